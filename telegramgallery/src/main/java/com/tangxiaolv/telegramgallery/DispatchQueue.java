@@ -1,74 +1,310 @@
 package com.tangxiaolv.telegramgallery;
 
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
+import com.tangxiaolv.telegramgallery.utils.FileLog;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Single consumer thread fed by a lock-free multi producer queue. Delayed runnables are kept
+ * in a hashed timing wheel that only the queue thread touches, so posting never blocks and
+ * never allocates more than one {@link Token}.
+ */
 public class DispatchQueue extends Thread {
 
-    private volatile Handler handler = null;
-    private CountDownLatch syncLatch = new CountDownLatch(1);
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int WHEEL_SIZE = 256;
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_DONE = 1;
+    private static final int STATE_CANCELLED = 2;
+
+    private static final CopyOnWriteArrayList<DispatchQueue> queues = new CopyOnWriteArrayList<>();
+
+    // Runs expired tokens by due time, and tokens due at the same time in the order they were posted.
+    private static final Comparator<Token> EXPIRY_ORDER = new Comparator<Token>() {
+        @Override
+        public int compare(Token lhs, Token rhs) {
+            long difference = lhs.dueTime - rhs.dueTime;
+            if (difference == 0) {
+                difference = lhs.sequence - rhs.sequence;
+            }
+            return difference < 0 ? -1 : (difference == 0 ? 0 : 1);
+        }
+    };
+
+    /**
+     * Handle returned by {@link #postRunnable(Runnable, long)}, pass it to {@link #cancel(Token)}.
+     */
+    public static final class Token {
+        private static final AtomicIntegerFieldUpdater<Token> stateUpdater =
+                AtomicIntegerFieldUpdater.newUpdater(Token.class, "state");
+
+        private final Runnable runnable;
+        private final long dueTime;
+        private volatile int state;
+        private long sequence;
+        private int rounds;
+        private Token nextInSlot;
+
+        private Token(Runnable runnable, long dueTime) {
+            this.runnable = runnable;
+            this.dueTime = dueTime;
+        }
+    }
+
+    /**
+     * Snapshot of the queue counters, times are in milliseconds.
+     */
+    public static final class Metrics {
+        public String name;
+        public int depth;
+        public long executed;
+        public float averageWaitMs;
+        public float averageRunMs;
+        public float maxWaitMs;
+        public float maxRunMs;
+
+        @Override
+        public String toString() {
+            return name + " depth=" + depth + " executed=" + executed
+                    + " avgWait=" + averageWaitMs + "ms maxWait=" + maxWaitMs
+                    + "ms avgRun=" + averageRunMs + "ms maxRun=" + maxRunMs + "ms";
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Token> queue = new ConcurrentLinkedQueue<>();
+    private final Set<Token> pending = Collections.newSetFromMap(new ConcurrentHashMap<Token, Boolean>());
+    private final AtomicInteger depth = new AtomicInteger();
+    private volatile boolean waiting;
+
+    private final Token[] wheel = new Token[WHEEL_SIZE];
+    private final ArrayList<Token> expired = new ArrayList<>();
+    private int wheelCursor;
+    private int wheelCount;
+    private long wheelTime;
+    private long nextSequence;
+
+    private volatile long executed;
+    private volatile long totalWaitNanos;
+    private volatile long totalRunNanos;
+    private volatile long maxWaitNanos;
+    private volatile long maxRunNanos;
 
     public DispatchQueue(final String threadName) {
         setName(threadName);
+        queues.add(this);
         start();
     }
 
-    private void sendMessage(Message msg, int delay) {
-        try {
-            syncLatch.await();
-            if (delay <= 0) {
-                handler.sendMessage(msg);
-            } else {
-                handler.sendMessageDelayed(msg, delay);
+    public void cancelRunnable(Runnable runnable) {
+        Iterator<Token> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            Token token = iterator.next();
+            if (token.runnable == runnable) {
+                cancel(token);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
     }
 
-    public void cancelRunnable(Runnable runnable) {
-        try {
-            syncLatch.await();
-            handler.removeCallbacks(runnable);
-        } catch (Exception e) {
-            e.printStackTrace();
+    public boolean cancel(Token token) {
+        if (token == null || !Token.stateUpdater.compareAndSet(token, STATE_PENDING, STATE_CANCELLED)) {
+            return false;
         }
+        pending.remove(token);
+        depth.decrementAndGet();
+        return true;
     }
 
-    public void postRunnable(Runnable runnable) {
-        postRunnable(runnable, 0);
+    public Token postRunnable(Runnable runnable) {
+        return postRunnable(runnable, 0);
     }
 
-    public void postRunnable(Runnable runnable, long delay) {
-        try {
-            syncLatch.await();
-            if (delay <= 0) {
-                handler.post(runnable);
-            } else {
-                handler.postDelayed(runnable, delay);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+    public Token postRunnable(Runnable runnable, long delay) {
+        long now = System.nanoTime();
+        Token token = new Token(runnable, delay <= 0 ? now : now + TimeUnit.MILLISECONDS.toNanos(delay));
+        pending.add(token);
+        depth.incrementAndGet();
+        queue.offer(token);
+        if (waiting) {
+            LockSupport.unpark(this);
         }
+        return token;
     }
 
     public void cleanupQueue() {
-        try {
-            syncLatch.await();
-            handler.removeCallbacksAndMessages(null);
-        } catch (Exception e) {
-            e.printStackTrace();
+        Iterator<Token> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            cancel(iterator.next());
+        }
+    }
+
+    public Metrics getMetrics() {
+        Metrics metrics = new Metrics();
+        long count = executed;
+        metrics.name = getName();
+        metrics.depth = depth.get();
+        metrics.executed = count;
+        if (count != 0) {
+            metrics.averageWaitMs = totalWaitNanos / (float) count / 1000000.0f;
+            metrics.averageRunMs = totalRunNanos / (float) count / 1000000.0f;
+        }
+        metrics.maxWaitMs = maxWaitNanos / 1000000.0f;
+        metrics.maxRunMs = maxRunNanos / 1000000.0f;
+        return metrics;
+    }
+
+    public static ArrayList<Metrics> getAllMetrics() {
+        ArrayList<Metrics> result = new ArrayList<>(queues.size());
+        for (DispatchQueue dispatchQueue : queues) {
+            result.add(dispatchQueue.getMetrics());
+        }
+        return result;
+    }
+
+    public static void dumpMetrics() {
+        for (DispatchQueue dispatchQueue : queues) {
+            FileLog.d(dispatchQueue.getMetrics().toString());
+        }
+    }
+
+    private void schedule(Token token, long now) {
+        if (wheelCount == 0) {
+            wheelTime = now;
+        }
+        long ticks = (token.dueTime - wheelTime + TICK_NANOS - 1) / TICK_NANOS;
+        if (ticks < 1) {
+            ticks = 1;
+        }
+        token.rounds = (int) ((ticks - 1) / WHEEL_SIZE);
+        int slot = (int) ((wheelCursor + ticks) % WHEEL_SIZE);
+        token.nextInSlot = wheel[slot];
+        wheel[slot] = token;
+        wheelCount++;
+    }
+
+    private void advanceWheel(long now) {
+        while (wheelCount > 0 && now - wheelTime >= TICK_NANOS) {
+            wheelTime += TICK_NANOS;
+            wheelCursor = (wheelCursor + 1) % WHEEL_SIZE;
+            Token token = wheel[wheelCursor];
+            Token kept = null;
+            while (token != null) {
+                Token next = token.nextInSlot;
+                if (token.rounds > 0 && token.state == STATE_PENDING) {
+                    token.rounds--;
+                    token.nextInSlot = kept;
+                    kept = token;
+                } else {
+                    token.nextInSlot = null;
+                    wheelCount--;
+                    expired.add(token);
+                }
+                token = next;
+            }
+            wheel[wheelCursor] = kept;
+        }
+        if (expired.size() > 1) {
+            Collections.sort(expired, EXPIRY_ORDER);
+        }
+        for (int a = 0; a < expired.size(); a++) {
+            runToken(expired.get(a), a == 0 ? now : System.nanoTime());
+        }
+        expired.clear();
+    }
+
+    /**
+     * Drops cancelled tokens from the wheel and returns the time at which the wheel reaches the
+     * slot of the earliest remaining token. Only valid while {@link #wheelCount} is not zero.
+     */
+    private long pruneWheel() {
+        long nextTicks = Long.MAX_VALUE;
+        for (int slot = 0; slot < WHEEL_SIZE; slot++) {
+            Token token = wheel[slot];
+            Token kept = null;
+            while (token != null) {
+                Token next = token.nextInSlot;
+                if (token.state == STATE_PENDING) {
+                    token.nextInSlot = kept;
+                    kept = token;
+                    int distance = (slot - wheelCursor + WHEEL_SIZE) % WHEEL_SIZE;
+                    long ticks = (distance == 0 ? WHEEL_SIZE : distance) + (long) token.rounds * WHEEL_SIZE;
+                    if (ticks < nextTicks) {
+                        nextTicks = ticks;
+                    }
+                } else {
+                    token.nextInSlot = null;
+                    wheelCount--;
+                }
+                token = next;
+            }
+            wheel[slot] = kept;
+        }
+        return wheelTime + nextTicks * TICK_NANOS;
+    }
+
+    private void runToken(Token token, long now) {
+        if (!Token.stateUpdater.compareAndSet(token, STATE_PENDING, STATE_DONE)) {
+            return;
+        }
+        pending.remove(token);
+        depth.decrementAndGet();
+        long waitNanos = now - token.dueTime;
+        if (waitNanos < 0) {
+            waitNanos = 0;
+        }
+        token.runnable.run();
+        long runNanos = System.nanoTime() - now;
+        executed++;
+        totalWaitNanos += waitNanos;
+        totalRunNanos += runNanos;
+        if (waitNanos > maxWaitNanos) {
+            maxWaitNanos = waitNanos;
+        }
+        if (runNanos > maxRunNanos) {
+            maxRunNanos = runNanos;
         }
     }
 
     @Override
     public void run() {
-        Looper.prepare();
-        handler = new Handler();
-        syncLatch.countDown();
-        Looper.loop();
+        while (true) {
+            long now = System.nanoTime();
+            advanceWheel(now);
+            Token token = queue.poll();
+            if (token != null) {
+                if (token.state != STATE_PENDING) {
+                    continue;
+                }
+                token.sequence = nextSequence++;
+                if (token.dueTime - now > 0) {
+                    schedule(token, now);
+                } else {
+                    runToken(token, now);
+                }
+                continue;
+            }
+            waiting = true;
+            if (queue.isEmpty()) {
+                long deadline = wheelCount > 0 ? pruneWheel() : 0;
+                if (wheelCount > 0) {
+                    LockSupport.parkNanos(this, deadline - System.nanoTime());
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+            waiting = false;
+            Thread.interrupted();
+        }
     }
-}
\ No newline at end of file
+}
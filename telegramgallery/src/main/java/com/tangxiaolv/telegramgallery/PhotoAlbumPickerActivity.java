@@ -25,7 +25,10 @@ import com.tangxiaolv.telegramgallery.actionbar.ActionBarMenuItem;
 import com.tangxiaolv.telegramgallery.actionbar.BaseFragment;
 import com.tangxiaolv.telegramgallery.components.PhotoPickerAlbumsCell;
 import com.tangxiaolv.telegramgallery.tl.FileLocation;
+import com.tangxiaolv.telegramgallery.tl.PhotoSize;
 import com.tangxiaolv.telegramgallery.utils.AndroidUtilities;
+import com.tangxiaolv.telegramgallery.utils.FileLoader;
+import com.tangxiaolv.telegramgallery.utils.GalleryImageLoader;
 import com.tangxiaolv.telegramgallery.utils.LayoutHelper;
 import com.tangxiaolv.telegramgallery.utils.LocaleController;
 import com.tangxiaolv.telegramgallery.utils.MediaController;
@@ -74,6 +77,10 @@ public class PhotoAlbumPickerActivity extends BaseFragment
     private final static int item_photos = 2;
     private final static int item_video = 3;
 
+    //未勾选原图时发送的图片尺寸与质量
+    private final static int compressed_photo_size = 1280;
+    private final static int compressed_photo_quality = 80;
+
     //非预览中被选择的图片imageId:corner
     private final LinkedHashMap<Integer, Integer> unPreviewCheckeds = new LinkedHashMap<>(limitPickPhoto);
 
@@ -432,10 +439,47 @@ public class PhotoAlbumPickerActivity extends BaseFragment
             }
             medias.add(info);
         }
+        if (getConfig().hasOriginalPic() && !Gallery.sOriginChecked) {
+            compressPhotos(medias);
+        }
         delegate.didSelectMedia(medias);
         AndroidUtilities.cancelToast();
     }
 
+    /**
+     * Replaces the selected photos with scaled down copies, decoded in parallel with a bounded
+     * sample size. Gifs and videos are sent as they are.
+     */
+    private void compressPhotos(ArrayList<MediaInfo> medias) {
+        ArrayList<MediaInfo> photos = new ArrayList<>();
+        ArrayList<String> paths = new ArrayList<>();
+        for (MediaInfo info : medias) {
+            String mimeType = info.getMimeType();
+            if (info.getPath() != null && mimeType != null && mimeType.startsWith("image")
+                    && !mimeType.contains("gif")) {
+                photos.add(info);
+                paths.add(info.getPath());
+            }
+        }
+        if (paths.isEmpty()) {
+            return;
+        }
+        ArrayList<PhotoSize> sizes = GalleryImageLoader.scaleAndSaveImages(paths,
+                compressed_photo_size, compressed_photo_size, compressed_photo_quality, false);
+        for (int i = 0; i < photos.size(); i++) {
+            PhotoSize size = sizes.get(i);
+            if (size == null) {
+                continue;
+            }
+            MediaInfo info = photos.get(i);
+            info.setPath(FileLoader.getPathToAttach(size, true).getAbsolutePath());
+            info.setSize(size.size);
+            info.setWidth(size.w);
+            info.setHeight(size.h);
+            info.setMimeType("image/jpeg");
+        }
+    }
+
     private void fixLayout() {
         if (listView != null) {
             ViewTreeObserver obs = listView.getViewTreeObserver();
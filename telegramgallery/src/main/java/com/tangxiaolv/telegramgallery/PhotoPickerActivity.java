@@ -4,6 +4,7 @@ package com.tangxiaolv.telegramgallery;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
 import android.util.TypedValue;
 import android.view.Gravity;
 import android.view.MotionEvent;
@@ -29,6 +30,7 @@ import com.tangxiaolv.telegramgallery.components.PickerBottomLayout;
 import com.tangxiaolv.telegramgallery.tl.FileLocation;
 import com.tangxiaolv.telegramgallery.utils.AndroidUtilities;
 import com.tangxiaolv.telegramgallery.utils.Constants;
+import com.tangxiaolv.telegramgallery.utils.GalleryImageLoader;
 import com.tangxiaolv.telegramgallery.utils.LayoutHelper;
 import com.tangxiaolv.telegramgallery.utils.LocaleController;
 import com.tangxiaolv.telegramgallery.utils.MediaController;
@@ -81,6 +83,13 @@ public class PhotoPickerActivity extends BaseFragment
     private boolean singlePhoto;
     private int currentVideoEditId;
 
+    // 快速滑动时超过该速度(行/秒)则暂停加载缩略图
+    private static final int THROTTLE_ROWS_PER_SECOND = 8;
+    private boolean loadThrottled;
+    private int scrollState = AbsListView.OnScrollListener.SCROLL_STATE_IDLE;
+    private int lastFirstVisibleItem;
+    private long lastScrollTime;
+
     public PhotoPickerActivity(int type,
                                MediaController.AlbumEntry selectedAlbum,
                                LinkedHashMap<Integer, MediaController.PhotoEntry> selectedPhotos,
@@ -231,21 +240,38 @@ public class PhotoPickerActivity extends BaseFragment
             }
         });
 
-        if (selectedAlbum == null) {
-            listView.setOnScrollListener(new AbsListView.OnScrollListener() {
-                @Override
-                public void onScrollStateChanged(AbsListView absListView, int i) {
-                    if (i == SCROLL_STATE_TOUCH_SCROLL) {
-                        AndroidUtilities.hideKeyboard(getParentActivity().getCurrentFocus());
-                    }
+        listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView absListView, int i) {
+                if (i == SCROLL_STATE_TOUCH_SCROLL && selectedAlbum == null) {
+                    AndroidUtilities.hideKeyboard(getParentActivity().getCurrentFocus());
                 }
+                scrollState = i;
+                if (i != SCROLL_STATE_FLING) {
+                    setLoadThrottled(false);
+                }
+            }
 
-                @Override
-                public void onScroll(AbsListView absListView, int firstVisibleItem,
-                                     int visibleItemCount, int totalItemCount) {
+            @Override
+            public void onScroll(AbsListView absListView, int firstVisibleItem,
+                                 int visibleItemCount, int totalItemCount) {
+                if (firstVisibleItem == lastFirstVisibleItem) {
+                    return;
                 }
-            });
+                long time = System.currentTimeMillis();
+                long dt = time - lastScrollTime;
+                if (dt > 0 && scrollState == SCROLL_STATE_FLING) {
+                    int columns = Math.max(1, listView.getNumColumns());
+                    float rowsPerSecond = Math.abs(firstVisibleItem - lastFirstVisibleItem)
+                            * 1000f / dt / columns;
+                    setLoadThrottled(rowsPerSecond > THROTTLE_ROWS_PER_SECOND);
+                }
+                lastFirstVisibleItem = firstVisibleItem;
+                lastScrollTime = time;
+            }
+        });
 
+        if (selectedAlbum == null) {
             progressView = new FrameLayout(context);
             progressView.setVisibility(View.GONE);
             frameLayout.addView(progressView);
@@ -390,6 +416,45 @@ public class PhotoPickerActivity extends BaseFragment
         return null;
     }
 
+    private void setLoadThrottled(boolean value) {
+        if (loadThrottled == value) {
+            return;
+        }
+        loadThrottled = value;
+        if (value || selectedAlbum == null) {
+            return;
+        }
+        // 滑动减速后, 对可见区域中仍显示占位图的item重新加载
+        int count = listView.getChildCount();
+        for (int a = 0; a < count; a++) {
+            View view = listView.getChildAt(a);
+            if (view instanceof PhotoPickerPhotoCell) {
+                PhotoPickerPhotoCell cell = (PhotoPickerPhotoCell) view;
+                int index = (Integer) cell.photoImage.getTag();
+                if (index < 0 || index >= selectedAlbum.photos.size()) {
+                    continue;
+                }
+                if (cell.photoImage.getImageReceiver().getHttpImageLocation() == null) {
+                    updatePhotoAtIndex(index);
+                }
+            }
+        }
+    }
+
+    /**
+     * While flinging fast only images already in memory are shown, everything else gets the
+     * placeholder. Setting the placeholder also cancels the stale load of a recycled cell
+     * through {@link GalleryImageLoader#cancelLoadingForImageReceiver}.
+     */
+    private void setPhotoImage(BackupImageView imageView, String path, Drawable placeholder) {
+        if (loadThrottled
+                && GalleryImageLoader.getInstance().getImageFromMemory(null, path, null) == null) {
+            imageView.setImageDrawable(placeholder);
+        } else {
+            imageView.setImage(path, null, placeholder);
+        }
+    }
+
     @Override
     public void updatePhotoAtIndex(int index) {
         PhotoPickerPhotoCell cell = getCellForIndex(index);
@@ -761,7 +826,7 @@ public class PhotoPickerActivity extends BaseFragment
             if (selectedAlbum != null) {
                 MediaController.PhotoEntry photoEntry = selectedAlbum.photos.get(i);
                 if (photoEntry.thumbPath != null) {
-                    imageView.setImage(photoEntry.thumbPath, null,
+                    setPhotoImage(imageView, photoEntry.thumbPath,
                             mContext.getResources().getDrawable(DARK_THEME ?
                                     R.drawable.album_nophotos : R.drawable.album_nophotos_new));
                 } else if (photoEntry.path != null) {
@@ -774,7 +839,7 @@ public class PhotoPickerActivity extends BaseFragment
                         int seconds = photoEntry.duration - minutes * 60;
                         cell.videoTextView.setText(String.format(Locale.getDefault(),
                                 "%d:%02d", minutes, seconds));
-                        imageView.setImage("vthumb://" + photoEntry.imageId + ":" + photoEntry.path, null,
+                        setPhotoImage(imageView, "vthumb://" + photoEntry.imageId + ":" + photoEntry.path,
                                 mContext.getResources().getDrawable(DARK_THEME ?
                                         R.drawable.album_nophotos : R.drawable.album_nophotos_new));
                     } else {
@@ -783,7 +848,7 @@ public class PhotoPickerActivity extends BaseFragment
                         } else {
                             cell.infoContainer.setVisibility(View.INVISIBLE);
                         }
-                        imageView.setImage("thumb://" + photoEntry.imageId + ":" + photoEntry.path, null,
+                        setPhotoImage(imageView, "thumb://" + photoEntry.imageId + ":" + photoEntry.path,
                                 mContext.getResources().getDrawable(DARK_THEME ?
                                         R.drawable.album_nophotos : R.drawable.album_nophotos_new));
                     }
@@ -1,6 +1,8 @@
 package com.tangxiaolv.telegramgallery.components;
 
 import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
 import android.graphics.SurfaceTexture;
 import android.net.Uri;
 import android.os.Handler;
@@ -15,6 +17,7 @@ import com.tangxiaolv.telegramgallery.exoplayer2.PlaybackParameters;
 import com.tangxiaolv.telegramgallery.exoplayer2.SimpleExoPlayer;
 import com.tangxiaolv.telegramgallery.exoplayer2.Timeline;
 import com.tangxiaolv.telegramgallery.exoplayer2.extractor.DefaultExtractorsFactory;
+import com.tangxiaolv.telegramgallery.exoplayer2.extractor.mp4.Mp4Extractor;
 import com.tangxiaolv.telegramgallery.exoplayer2.source.ExtractorMediaSource;
 import com.tangxiaolv.telegramgallery.exoplayer2.source.LoopingMediaSource;
 import com.tangxiaolv.telegramgallery.exoplayer2.source.MediaSource;
@@ -33,6 +36,7 @@ import com.tangxiaolv.telegramgallery.exoplayer2.trackselection.TrackSelectionAr
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSource;
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DefaultBandwidthMeter;
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DefaultHttpDataSourceFactory;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.SegmentedDataSourceFactory;
 import com.tangxiaolv.telegramgallery.Gallery;
 import com.tangxiaolv.telegramgallery.secretmedia.ExtendedDefaultDataSourceFactory;
 
@@ -54,11 +58,15 @@ public class VideoPlayer implements ExoPlayer.EventListener, SimpleExoPlayer.Vid
     }
 
     private SimpleExoPlayer player;
+    private DefaultLoadControl loadControl;
     private MappingTrackSelector trackSelector;
     private Handler mainHandler;
     private DataSource.Factory mediaDataSourceFactory;
+    private DataSource.Factory progressiveDataSourceFactory;
+    private DefaultExtractorsFactory extractorsFactory;
     private TextureView textureView;
     private boolean autoplay;
+    private boolean useDirectBuffers;
 
     private VideoPlayerDelegate delegate;
     private int lastReportedPlaybackState;
@@ -71,8 +79,12 @@ public class VideoPlayer implements ExoPlayer.EventListener, SimpleExoPlayer.Vid
     private static final DefaultBandwidthMeter BANDWIDTH_METER = new DefaultBandwidthMeter();
 
     public VideoPlayer() {
-        mediaDataSourceFactory = new ExtendedDefaultDataSourceFactory(Gallery.applicationContext, BANDWIDTH_METER, new DefaultHttpDataSourceFactory("Mozilla/5.0 (X11; Linux x86_64; rv:10.0) Gecko/20150101 Firefox/47.0 (Chrome)", BANDWIDTH_METER));
+        DefaultHttpDataSourceFactory httpDataSourceFactory = new DefaultHttpDataSourceFactory("Mozilla/5.0 (X11; Linux x86_64; rv:10.0) Gecko/20150101 Firefox/47.0 (Chrome)", BANDWIDTH_METER);
+        mediaDataSourceFactory = new ExtendedDefaultDataSourceFactory(Gallery.applicationContext, BANDWIDTH_METER, httpDataSourceFactory);
+        // Only progressive files are loaded over parallel connections, chunks of adaptive streams are short anyway.
+        progressiveDataSourceFactory = new ExtendedDefaultDataSourceFactory(Gallery.applicationContext, BANDWIDTH_METER, new SegmentedDataSourceFactory(httpDataSourceFactory, BANDWIDTH_METER));
 
+        extractorsFactory = new DefaultExtractorsFactory().setMp4ExtractorFlags(Mp4Extractor.FLAG_LAZY_SAMPLE_TABLES);
         mainHandler = new Handler();
 
         TrackSelection.Factory videoTrackSelectionFactory = new AdaptiveTrackSelection.Factory(BANDWIDTH_METER);
@@ -83,7 +95,9 @@ public class VideoPlayer implements ExoPlayer.EventListener, SimpleExoPlayer.Vid
 
     private void ensurePleyaerCreated() {
         if (player == null) {
-            player = ExoPlayerFactory.newSimpleInstance(Gallery.applicationContext, trackSelector, new DefaultLoadControl(), null, DefaultRenderersFactory.EXTENSION_RENDERER_MODE_OFF);
+            loadControl = new DefaultLoadControl(useDirectBuffers);
+            Gallery.applicationContext.registerComponentCallbacks(componentCallbacks);
+            player = ExoPlayerFactory.newSimpleInstance(Gallery.applicationContext, trackSelector, loadControl, null, DefaultRenderersFactory.EXTENSION_RENDERER_MODE_OFF);
             player.addListener(this);
             player.setVideoListener(this);
             player.setVideoTextureView(textureView);
@@ -116,7 +130,7 @@ public class VideoPlayer implements ExoPlayer.EventListener, SimpleExoPlayer.Vid
                     mediaSource = new SsMediaSource(uri, mediaDataSourceFactory, new DefaultSsChunkSource.Factory(mediaDataSourceFactory), mainHandler, null);
                     break;
                 default:
-                    mediaSource = new ExtractorMediaSource(uri, mediaDataSourceFactory, new DefaultExtractorsFactory(), mainHandler, null);
+                    mediaSource = new ExtractorMediaSource(uri, progressiveDataSourceFactory, extractorsFactory, mainHandler, null);
                     break;
             }
             mediaSource = new LoopingMediaSource(mediaSource);
@@ -144,12 +158,17 @@ public class VideoPlayer implements ExoPlayer.EventListener, SimpleExoPlayer.Vid
                 mediaSource = new SsMediaSource(uri, mediaDataSourceFactory, new DefaultSsChunkSource.Factory(mediaDataSourceFactory), mainHandler, null);
                 break;
             default:
-                mediaSource = new ExtractorMediaSource(uri, mediaDataSourceFactory, new DefaultExtractorsFactory(), mainHandler, null);
+                mediaSource = new ExtractorMediaSource(uri, progressiveDataSourceFactory, extractorsFactory, mainHandler, null);
                 break;
         }
         player.prepare(mediaSource, true, true);
     }
 
+    // Buffers media outside of the Java heap, takes effect when the next player is created.
+    public void setUseDirectBuffers(boolean useDirectBuffers) {
+        this.useDirectBuffers = useDirectBuffers;
+    }
+
     public boolean isPlayerPrepared() {
         return player != null;
     }
@@ -158,9 +177,30 @@ public class VideoPlayer implements ExoPlayer.EventListener, SimpleExoPlayer.Vid
         if (player != null) {
             player.release();
             player = null;
+            Gallery.applicationContext.unregisterComponentCallbacks(componentCallbacks);
+            loadControl = null;
         }
     }
 
+    private final ComponentCallbacks2 componentCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (loadControl != null) {
+                loadControl.onTrimMemory(level);
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            onTrimMemory(TRIM_MEMORY_RUNNING_CRITICAL);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+            // Intentionally empty, only memory pressure is of interest.
+        }
+    };
+
     public void setTextureView(TextureView texture) {
         if (textureView == texture) {
             return;
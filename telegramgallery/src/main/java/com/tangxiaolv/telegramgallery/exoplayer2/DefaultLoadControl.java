@@ -15,7 +15,11 @@
  */
 package com.tangxiaolv.telegramgallery.exoplayer2;
 
+import android.content.ComponentCallbacks2;
+import android.os.Handler;
+import android.os.SystemClock;
 import com.tangxiaolv.telegramgallery.exoplayer2.source.TrackGroupArray;
+import com.tangxiaolv.telegramgallery.exoplayer2.trackselection.TrackSelection;
 import com.tangxiaolv.telegramgallery.exoplayer2.trackselection.TrackSelectionArray;
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.Allocator;
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DefaultAllocator;
@@ -24,9 +28,32 @@ import com.tangxiaolv.telegramgallery.exoplayer2.util.Util;
 
 /**
  * The default {@link LoadControl} implementation.
+ * <p>
+ * The target buffer size of each renderer is derived from the highest bitrate of its selected
+ * tracks where known, and is never larger than the default for its track type. Memory pressure
+ * signalled through {@link #onTrimMemory(int)} scales down both the target buffer size and the
+ * maximum buffer duration, and memory held by the allocator beyond the new target is released
+ * straight away. The scaling is lifted once no pressure has been signalled for
+ * {@link #MEMORY_PRESSURE_TIMEOUT_MS}.
  */
 public final class DefaultLoadControl implements LoadControl {
 
+  /**
+   * Listener of buffer events.
+   */
+  public interface EventListener {
+
+    /**
+     * Called periodically whilst the player is loading or buffering media.
+     *
+     * @param bufferedDurationUs The duration of media that's currently buffered.
+     * @param bufferedBytes The number of bytes currently allocated for buffered media.
+     * @param targetBufferBytes The current target buffer size, in bytes.
+     */
+    void onBufferStateChanged(long bufferedDurationUs, int bufferedBytes, int targetBufferBytes);
+
+  }
+
   /**
    * The default minimum duration of media that the player will attempt to ensure is buffered at all
    * times, in milliseconds.
@@ -51,6 +78,19 @@ public final class DefaultLoadControl implements LoadControl {
    */
   public static final int DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS  = 5000;
 
+  /**
+   * The time after the last memory pressure signal after which buffer sizes are restored, in
+   * milliseconds.
+   */
+  public static final int MEMORY_PRESSURE_TIMEOUT_MS = 60000;
+
+  /**
+   * The target buffer size is this many times the size of the buffered media at the maximum
+   * duration and known bitrate, since allocations are not always filled.
+   */
+  private static final int BITRATE_BUFFER_SIZE_FACTOR = 2;
+  private static final int REPORT_INTERVAL_MS = 1000;
+
   private static final int ABOVE_HIGH_WATERMARK = 0;
   private static final int BETWEEN_WATERMARKS = 1;
   private static final int BELOW_LOW_WATERMARK = 2;
@@ -62,15 +102,34 @@ public final class DefaultLoadControl implements LoadControl {
   private final long bufferForPlaybackUs;
   private final long bufferForPlaybackAfterRebufferUs;
   private final PriorityTaskManager priorityTaskManager;
+  private final Handler eventHandler;
+  private final EventListener eventListener;
 
-  private int targetBufferSize;
+  // Written whilst holding this, as memory pressure is signalled on the main thread.
+  private int unscaledTargetBufferSize;
+  private volatile float memoryScale;
+  private long lastMemoryPressureMs;
+
+  private volatile int targetBufferSize;
+  private volatile long scaledMaxBufferUs;
   private boolean isBuffering;
+  private long lastReportMs;
 
   /**
    * Constructs a new instance, using the {@code DEFAULT_*} constants defined in this class.
    */
   public DefaultLoadControl() {
-    this(new DefaultAllocator(true, C.DEFAULT_BUFFER_SEGMENT_SIZE));
+    this(false);
+  }
+
+  /**
+   * Constructs a new instance, using the {@code DEFAULT_*} constants defined in this class.
+   *
+   * @param useDirectBuffers Whether buffered media is held in direct buffers outside of the Java
+   *     heap, rather than in heap arrays.
+   */
+  public DefaultLoadControl(boolean useDirectBuffers) {
+    this(new DefaultAllocator(true, C.DEFAULT_BUFFER_SEGMENT_SIZE, 0, useDirectBuffers));
   }
 
   /**
@@ -123,12 +182,79 @@ public final class DefaultLoadControl implements LoadControl {
   public DefaultLoadControl(DefaultAllocator allocator, int minBufferMs, int maxBufferMs,
       long bufferForPlaybackMs, long bufferForPlaybackAfterRebufferMs,
       PriorityTaskManager priorityTaskManager) {
+    this(allocator, minBufferMs, maxBufferMs, bufferForPlaybackMs, bufferForPlaybackAfterRebufferMs,
+        priorityTaskManager, null, null);
+  }
+
+  /**
+   * Constructs a new instance.
+   *
+   * @param allocator The {@link DefaultAllocator} used by the loader.
+   * @param minBufferMs The minimum duration of media that the player will attempt to ensure is
+   *     buffered at all times, in milliseconds.
+   * @param maxBufferMs The maximum duration of media that the player will attempt buffer, in
+   *     milliseconds.
+   * @param bufferForPlaybackMs The duration of media that must be buffered for playback to start or
+   *     resume following a user action such as a seek, in milliseconds.
+   * @param bufferForPlaybackAfterRebufferMs The default duration of media that must be buffered for
+   *     playback to resume after a rebuffer, in milliseconds. A rebuffer is defined to be caused by
+   *     buffer depletion rather than a user action.
+   * @param priorityTaskManager If not null, registers itself as a task with priority
+   *     {@link C#PRIORITY_PLAYBACK} during loading periods, and unregisters itself during draining
+   *     periods.
+   * @param eventHandler A handler for events. May be null if delivery of events is not required.
+   * @param eventListener A listener of events. May be null if delivery of events is not required.
+   */
+  public DefaultLoadControl(DefaultAllocator allocator, int minBufferMs, int maxBufferMs,
+      long bufferForPlaybackMs, long bufferForPlaybackAfterRebufferMs,
+      PriorityTaskManager priorityTaskManager, Handler eventHandler, EventListener eventListener) {
     this.allocator = allocator;
     minBufferUs = minBufferMs * 1000L;
     maxBufferUs = maxBufferMs * 1000L;
     bufferForPlaybackUs = bufferForPlaybackMs * 1000L;
     bufferForPlaybackAfterRebufferUs = bufferForPlaybackAfterRebufferMs * 1000L;
     this.priorityTaskManager = priorityTaskManager;
+    this.eventHandler = eventHandler;
+    this.eventListener = eventListener;
+    memoryScale = 1;
+    scaledMaxBufferUs = maxBufferUs;
+  }
+
+  /**
+   * Signals memory pressure, scaling down buffering according to the given level. Should be called
+   * from {@link ComponentCallbacks2#onTrimMemory(int)}, and with
+   * {@link ComponentCallbacks2#TRIM_MEMORY_RUNNING_CRITICAL} from
+   * {@link ComponentCallbacks2#onLowMemory()}. May be called from any thread.
+   *
+   * @param level The trim memory level.
+   */
+  public synchronized void onTrimMemory(int level) {
+    float scale;
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      scale = 0.25f;
+    } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      scale = 0.5f;
+    } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+      scale = 0.75f;
+    } else {
+      // TRIM_MEMORY_UI_HIDDEN doesn't indicate memory pressure.
+      return;
+    }
+    lastMemoryPressureMs = SystemClock.elapsedRealtime();
+    if (scale < memoryScale) {
+      memoryScale = scale;
+      updateTargetBufferSize();
+    } else {
+      allocator.trim();
+    }
+  }
+
+  /**
+   * Returns the current target buffer size, in bytes.
+   */
+  public int getTargetBufferSize() {
+    return targetBufferSize;
   }
 
   @Override
@@ -139,13 +265,17 @@ public final class DefaultLoadControl implements LoadControl {
   @Override
   public void onTracksSelected(Renderer[] renderers, TrackGroupArray trackGroups,
       TrackSelectionArray trackSelections) {
-    targetBufferSize = 0;
+    int targetBufferSize = 0;
     for (int i = 0; i < renderers.length; i++) {
-      if (trackSelections.get(i) != null) {
-        targetBufferSize += Util.getDefaultBufferSize(renderers[i].getTrackType());
+      TrackSelection trackSelection = trackSelections.get(i);
+      if (trackSelection != null) {
+        targetBufferSize += getTargetBufferSize(renderers[i].getTrackType(), trackSelection);
       }
     }
-    allocator.setTargetBufferSize(targetBufferSize);
+    synchronized (this) {
+      unscaledTargetBufferSize = targetBufferSize;
+      updateTargetBufferSize();
+    }
   }
 
   @Override
@@ -171,8 +301,13 @@ public final class DefaultLoadControl implements LoadControl {
 
   @Override
   public boolean shouldContinueLoading(long bufferedDurationUs) {
+    long nowMs = SystemClock.elapsedRealtime();
+    if (memoryScale < 1) {
+      maybeLiftMemoryPressure(nowMs);
+    }
     int bufferTimeState = getBufferTimeState(bufferedDurationUs);
-    boolean targetBufferSizeReached = allocator.getTotalBytesAllocated() >= targetBufferSize;
+    int bufferedBytes = allocator.getTotalBytesAllocated();
+    boolean targetBufferSizeReached = bufferedBytes >= targetBufferSize;
     boolean wasBuffering = isBuffering;
     isBuffering = bufferTimeState == BELOW_LOW_WATERMARK
         || (bufferTimeState == BETWEEN_WATERMARKS && isBuffering && !targetBufferSizeReached);
@@ -183,16 +318,65 @@ public final class DefaultLoadControl implements LoadControl {
         priorityTaskManager.remove(C.PRIORITY_PLAYBACK);
       }
     }
+    if (nowMs - lastReportMs >= REPORT_INTERVAL_MS) {
+      lastReportMs = nowMs;
+      notifyBufferState(bufferedDurationUs, bufferedBytes, targetBufferSize);
+    }
     return isBuffering;
   }
 
+  private int getTargetBufferSize(int trackType, TrackSelection trackSelection) {
+    int defaultBufferSize = Util.getDefaultBufferSize(trackType);
+    int maxBitrate = Format.NO_VALUE;
+    for (int i = 0; i < trackSelection.length(); i++) {
+      int bitrate = trackSelection.getFormat(i).bitrate;
+      if (bitrate == Format.NO_VALUE) {
+        return defaultBufferSize;
+      }
+      maxBitrate = Math.max(maxBitrate, bitrate);
+    }
+    long bitrateBufferSize = maxBitrate / 8 * maxBufferUs / C.MICROS_PER_SECOND
+        * BITRATE_BUFFER_SIZE_FACTOR;
+    return (int) Math.max(allocator.getIndividualAllocationLength(),
+        Math.min(defaultBufferSize, bitrateBufferSize));
+  }
+
+  private synchronized void maybeLiftMemoryPressure(long nowMs) {
+    if (memoryScale < 1 && nowMs - lastMemoryPressureMs >= MEMORY_PRESSURE_TIMEOUT_MS) {
+      memoryScale = 1;
+      updateTargetBufferSize();
+    }
+  }
+
+  private synchronized void updateTargetBufferSize() {
+    targetBufferSize = (int) (unscaledTargetBufferSize * memoryScale);
+    scaledMaxBufferUs = Math.max(minBufferUs, (long) (maxBufferUs * memoryScale));
+    // Releases pooled allocations beyond the target if it was reduced.
+    allocator.setTargetBufferSize(targetBufferSize);
+  }
+
+  private void notifyBufferState(final long bufferedDurationUs, final int bufferedBytes,
+      final int targetBufferBytes) {
+    if (eventHandler != null && eventListener != null) {
+      eventHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          eventListener.onBufferStateChanged(bufferedDurationUs, bufferedBytes, targetBufferBytes);
+        }
+      });
+    }
+  }
+
   private int getBufferTimeState(long bufferedDurationUs) {
-    return bufferedDurationUs > maxBufferUs ? ABOVE_HIGH_WATERMARK
+    return bufferedDurationUs > scaledMaxBufferUs ? ABOVE_HIGH_WATERMARK
         : (bufferedDurationUs < minBufferUs ? BELOW_LOW_WATERMARK : BETWEEN_WATERMARKS);
   }
 
   private void reset(boolean resetAllocator) {
-    targetBufferSize = 0;
+    synchronized (this) {
+      unscaledTargetBufferSize = 0;
+      targetBufferSize = 0;
+    }
     if (priorityTaskManager != null && isBuffering) {
       priorityTaskManager.remove(C.PRIORITY_PLAYBACK);
     }
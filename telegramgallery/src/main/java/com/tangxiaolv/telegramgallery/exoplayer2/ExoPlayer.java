@@ -476,6 +476,12 @@ public interface ExoPlayer {
    */
   int getBufferedPercentage();
 
+  /**
+   * Returns the number of times the playback thread did work during the last second, which can be
+   * used to monitor how often the player wakes the device's CPU.
+   */
+  int getPlaybackThreadWakeupsPerSecond();
+
   /**
    * Returns whether the current window is dynamic, or {@code false} if the {@link Timeline} is
    * empty.
@@ -307,6 +307,11 @@ import java.util.concurrent.CopyOnWriteArraySet;
         : (int) (duration == 0 ? 100 : (bufferedPosition * 100) / duration);
   }
 
+  @Override
+  public int getPlaybackThreadWakeupsPerSecond() {
+    return internalPlayer.getWakeupsPerSecond();
+  }
+
   @Override
   public boolean isCurrentWindowDynamic() {
     return !timeline.isEmpty() && timeline.getWindow(getCurrentWindowIndex(), window).isDynamic;
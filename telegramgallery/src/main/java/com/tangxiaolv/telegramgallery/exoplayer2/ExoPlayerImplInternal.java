@@ -115,6 +115,13 @@ import java.io.IOException;
   private static final int PREPARING_SOURCE_INTERVAL_MS = 10;
   private static final int RENDERING_INTERVAL_MS = 10;
   private static final int IDLE_INTERVAL_MS = 1000;
+  /**
+   * The maximum interval to which work is backed off whilst buffering without an event that may
+   * let playback progress. Loading progress, period preparation and timeline updates wake the
+   * playback thread immediately.
+   */
+  private static final int MAX_BACKED_OFF_INTERVAL_MS = 100;
+  private static final int WAKEUP_COUNT_PERIOD_MS = 1000;
 
   /**
    * Limits the maximum number of periods to buffer ahead of the current playing period. The
@@ -157,6 +164,10 @@ import java.io.IOException;
   private int customMessagesSent;
   private int customMessagesProcessed;
   private long elapsedRealtimeUs;
+  private long backedOffIntervalMs;
+  private int wakeupCount;
+  private volatile long wakeupCountStartTimeMs;
+  private volatile int wakeupsPerSecond;
 
   private int pendingInitialSeekCount;
   private SeekPosition pendingSeekPosition;
@@ -302,6 +313,10 @@ import java.io.IOException;
           return true;
         }
         case MSG_DO_SOME_WORK: {
+          if (msg.arg1 == 0) {
+            // Not scheduled by doSomeWork itself, so something may have changed.
+            backedOffIntervalMs = 0;
+          }
           doSomeWork();
           return true;
         }
@@ -323,14 +338,17 @@ import java.io.IOException;
         }
         case MSG_PERIOD_PREPARED: {
           handlePeriodPrepared((MediaPeriod) msg.obj);
+          maybeWakeUp();
           return true;
         }
         case MSG_REFRESH_SOURCE_INFO: {
           handleSourceInfoRefreshed((Pair<Timeline, Object>) msg.obj);
+          maybeWakeUp();
           return true;
         }
         case MSG_SOURCE_CONTINUE_LOADING_REQUESTED: {
           handleContinueLoadingRequested((MediaPeriod) msg.obj);
+          maybeWakeUp();
           return true;
         }
         case MSG_TRACK_SELECTION_INVALIDATED: {
@@ -360,6 +378,15 @@ import java.io.IOException;
     }
   }
 
+  /**
+   * Returns the number of times the playback thread did work during the last second. May be called
+   * from any thread.
+   */
+  public int getWakeupsPerSecond() {
+    long elapsedMs = SystemClock.elapsedRealtime() - wakeupCountStartTimeMs;
+    return elapsedMs > 2 * WAKEUP_COUNT_PERIOD_MS ? 0 : wakeupsPerSecond;
+  }
+
   // Private methods.
 
   private void setState(int state) {
@@ -451,11 +478,12 @@ import java.io.IOException;
 
   private void doSomeWork() throws ExoPlaybackException, IOException {
     long operationStartTimeMs = SystemClock.elapsedRealtime();
+    countWakeup(operationStartTimeMs);
     updatePeriods();
     if (playingPeriodHolder == null) {
-      // We're still waiting for the first period to be prepared.
+      // We're still waiting for the first period to be prepared, which wakes us up.
       maybeThrowPeriodPrepareError();
-      scheduleNextWork(operationStartTimeMs, PREPARING_SOURCE_INTERVAL_MS);
+      scheduleNextWork(operationStartTimeMs, backOff(PREPARING_SOURCE_INTERVAL_MS));
       return;
     }
 
@@ -532,8 +560,12 @@ import java.io.IOException;
       }
     }
 
-    if ((playWhenReady && state == ExoPlayer.STATE_READY) || state == ExoPlayer.STATE_BUFFERING) {
+    if (playWhenReady
+        && (state == ExoPlayer.STATE_READY || state == ExoPlayer.STATE_BUFFERING)) {
       scheduleNextWork(operationStartTimeMs, RENDERING_INTERVAL_MS);
+    } else if (state == ExoPlayer.STATE_BUFFERING) {
+      // Paused, so nobody is waiting for playback to start. Back off until loading progresses.
+      scheduleNextWork(operationStartTimeMs, backOff(RENDERING_INTERVAL_MS));
     } else if (enabledRenderers.length != 0) {
       scheduleNextWork(operationStartTimeMs, IDLE_INTERVAL_MS);
     } else {
@@ -547,10 +579,42 @@ import java.io.IOException;
     handler.removeMessages(MSG_DO_SOME_WORK);
     long nextOperationStartTimeMs = thisOperationStartTimeMs + intervalMs;
     long nextOperationDelayMs = nextOperationStartTimeMs - SystemClock.elapsedRealtime();
+    // arg1 marks the message as scheduled, so that it doesn't reset the back off.
+    Message message = handler.obtainMessage(MSG_DO_SOME_WORK, 1, 0);
     if (nextOperationDelayMs <= 0) {
-      handler.sendEmptyMessage(MSG_DO_SOME_WORK);
+      handler.sendMessage(message);
     } else {
-      handler.sendEmptyMessageDelayed(MSG_DO_SOME_WORK, nextOperationDelayMs);
+      handler.sendMessageDelayed(message, nextOperationDelayMs);
+    }
+  }
+
+  /**
+   * Returns the interval before the next work whilst waiting for an event, doubling it each time
+   * up to {@link #MAX_BACKED_OFF_INTERVAL_MS}.
+   */
+  private long backOff(long minIntervalMs) {
+    backedOffIntervalMs = backedOffIntervalMs == 0 ? minIntervalMs
+        : Math.min(backedOffIntervalMs * 2, MAX_BACKED_OFF_INTERVAL_MS);
+    return backedOffIntervalMs;
+  }
+
+  /**
+   * Does work straight away if buffering, since an event may have let playback progress.
+   */
+  private void maybeWakeUp() {
+    if (state == ExoPlayer.STATE_BUFFERING && mediaSource != null) {
+      handler.removeMessages(MSG_DO_SOME_WORK);
+      handler.sendEmptyMessage(MSG_DO_SOME_WORK);
+    }
+  }
+
+  private void countWakeup(long nowMs) {
+    wakeupCount++;
+    long elapsedMs = nowMs - wakeupCountStartTimeMs;
+    if (elapsedMs >= WAKEUP_COUNT_PERIOD_MS) {
+      wakeupsPerSecond = (int) (wakeupCount * 1000L / elapsedMs);
+      wakeupCount = 0;
+      wakeupCountStartTimeMs = nowMs;
     }
   }
 
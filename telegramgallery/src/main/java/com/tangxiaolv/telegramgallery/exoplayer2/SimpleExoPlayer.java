@@ -641,6 +641,11 @@ public class SimpleExoPlayer implements ExoPlayer {
     return player.getBufferedPercentage();
   }
 
+  @Override
+  public int getPlaybackThreadWakeupsPerSecond() {
+    return player.getPlaybackThreadWakeupsPerSecond();
+  }
+
   @Override
   public boolean isCurrentWindowDynamic() {
     return player.isCurrentWindowDynamic();
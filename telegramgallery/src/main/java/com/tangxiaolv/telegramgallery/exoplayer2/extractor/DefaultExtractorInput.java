@@ -17,14 +17,19 @@ package com.tangxiaolv.telegramgallery.exoplayer2.extractor;
 
 import com.tangxiaolv.telegramgallery.exoplayer2.C;
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSource;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.MappedDataSource;
 import com.tangxiaolv.telegramgallery.exoplayer2.util.Assertions;
 import com.tangxiaolv.telegramgallery.exoplayer2.util.Util;
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
  * An {@link ExtractorInput} that wraps a {@link DataSource}.
+ * <p>
+ * If the {@link DataSource} is a {@link MappedDataSource}, data is skipped by consuming its mapped
+ * region rather than by reading it into a scratch buffer.
  */
 public final class DefaultExtractorInput implements ExtractorInput {
 
@@ -33,6 +38,7 @@ public final class DefaultExtractorInput implements ExtractorInput {
   private static final byte[] SCRATCH_SPACE = new byte[4096];
 
   private final DataSource dataSource;
+  private final MappedDataSource mappedDataSource;
   private final long streamLength;
 
   private long position;
@@ -47,6 +53,8 @@ public final class DefaultExtractorInput implements ExtractorInput {
    */
   public DefaultExtractorInput(DataSource dataSource, long position, long length) {
     this.dataSource = dataSource;
+    this.mappedDataSource =
+        dataSource instanceof MappedDataSource ? (MappedDataSource) dataSource : null;
     this.position = position;
     this.streamLength = length;
     peekBuffer = new byte[PEEK_MIN_FREE_SPACE_AFTER_RESIZE];
@@ -83,8 +91,7 @@ public final class DefaultExtractorInput implements ExtractorInput {
   public int skip(int length) throws IOException, InterruptedException {
     int bytesSkipped = skipFromPeekBuffer(length);
     if (bytesSkipped == 0) {
-      bytesSkipped =
-          readFromDataSource(SCRATCH_SPACE, 0, Math.min(length, SCRATCH_SPACE.length), 0, true);
+      bytesSkipped = skipFromDataSource(length, 0, true);
     }
     commitBytesRead(bytesSkipped);
     return bytesSkipped;
@@ -95,8 +102,7 @@ public final class DefaultExtractorInput implements ExtractorInput {
       throws IOException, InterruptedException {
     int bytesSkipped = skipFromPeekBuffer(length);
     while (bytesSkipped < length && bytesSkipped != C.RESULT_END_OF_INPUT) {
-      bytesSkipped = readFromDataSource(SCRATCH_SPACE, -bytesSkipped,
-          Math.min(length, bytesSkipped + SCRATCH_SPACE.length), bytesSkipped, allowEndOfInput);
+      bytesSkipped = skipFromDataSource(length, bytesSkipped, allowEndOfInput);
     }
     commitBytesRead(bytesSkipped);
     return bytesSkipped != C.RESULT_END_OF_INPUT;
@@ -264,6 +270,40 @@ public final class DefaultExtractorInput implements ExtractorInput {
     return bytesAlreadyRead + bytesRead;
   }
 
+  /**
+   * Starts or continues a skip from the data source. Mapped data is consumed without being copied.
+   * Otherwise up to {@code SCRATCH_SPACE.length} bytes are read into {@code SCRATCH_SPACE}.
+   *
+   * @param length The maximum number of bytes to skip from the input.
+   * @param bytesAlreadySkipped The number of bytes already skipped from the input.
+   * @param allowEndOfInput True if encountering the end of the input having skipped no data is
+   *     allowed, and should result in {@link C#RESULT_END_OF_INPUT} being returned. False if it
+   *     should be considered an error, causing an {@link EOFException} to be thrown.
+   * @return The total number of bytes skipped so far, or {@link C#RESULT_END_OF_INPUT} if
+   *     {@code allowEndOfInput} is true and the input has ended having skipped no bytes.
+   * @throws EOFException If the end of input was encountered having partially satisfied the skip,
+   *     or if no bytes were skipped and {@code allowEndOfInput} is false.
+   * @throws IOException If an error occurs reading from the input.
+   * @throws InterruptedException If the thread is interrupted.
+   */
+  private int skipFromDataSource(int length, int bytesAlreadySkipped, boolean allowEndOfInput)
+      throws InterruptedException, IOException {
+    if (mappedDataSource != null) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      ByteBuffer region = mappedDataSource.getMappedRegion();
+      if (region != null) {
+        int bytesSkipped = Math.min(region.remaining(), length - bytesAlreadySkipped);
+        mappedDataSource.consumeMappedBytes(bytesSkipped);
+        return bytesAlreadySkipped + bytesSkipped;
+      }
+    }
+    return readFromDataSource(SCRATCH_SPACE, -bytesAlreadySkipped,
+        Math.min(length, bytesAlreadySkipped + SCRATCH_SPACE.length), bytesAlreadySkipped,
+        allowEndOfInput);
+  }
+
   /**
    * Advances the position by the specified number of bytes read.
    *
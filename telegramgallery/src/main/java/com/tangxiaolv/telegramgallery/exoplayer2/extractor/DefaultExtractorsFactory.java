@@ -68,6 +68,7 @@ public final class DefaultExtractorsFactory implements ExtractorsFactory {
 
   private @MatroskaExtractor.Flags int matroskaFlags;
   private @FragmentedMp4Extractor.Flags int fragmentedMp4Flags;
+  private @Mp4Extractor.Flags int mp4Flags;
   private @Mp3Extractor.Flags int mp3Flags;
   private @DefaultTsPayloadReaderFactory.Flags int tsFlags;
 
@@ -97,6 +98,18 @@ public final class DefaultExtractorsFactory implements ExtractorsFactory {
     return this;
   }
 
+  /**
+   * Sets flags for {@link Mp4Extractor} instances created by the factory.
+   *
+   * @see Mp4Extractor#Mp4Extractor(int)
+   * @param flags The flags to use.
+   * @return The factory, for convenience.
+   */
+  public synchronized DefaultExtractorsFactory setMp4ExtractorFlags(@Mp4Extractor.Flags int flags) {
+    mp4Flags = flags;
+    return this;
+  }
+
   /**
    * Sets flags for {@link Mp3Extractor} instances created by the factory.
    *
@@ -128,7 +141,7 @@ public final class DefaultExtractorsFactory implements ExtractorsFactory {
     Extractor[] extractors = new Extractor[FLAC_EXTRACTOR_CONSTRUCTOR == null ? 11 : 12];
     extractors[0] = new MatroskaExtractor(matroskaFlags);
     extractors[1] = new FragmentedMp4Extractor(fragmentedMp4Flags);
-    extractors[2] = new Mp4Extractor();
+    extractors[2] = new Mp4Extractor(mp4Flags);
     extractors[3] = new Mp3Extractor(mp3Flags);
     extractors[4] = new AdtsExtractor();
     extractors[5] = new Ac3Extractor();
@@ -33,6 +33,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 /**
  * A {@link TrackOutput} that buffers extracted samples in a queue and allows for consumption from
  * that queue.
+ * <p>
+ * If the {@link Allocator} hands out {@link Allocation}s backed by direct buffers, sample data is
+ * kept off the Java heap and copied directly into {@link DecoderInputBuffer#data}.
  */
 public final class DefaultTrackOutput implements TrackOutput {
 
@@ -51,6 +54,7 @@ public final class DefaultTrackOutput implements TrackOutput {
   }
 
   private static final int INITIAL_SCRATCH_SIZE = 32;
+  private static final int DIRECT_WRITE_SCRATCH_SIZE = 4096;
 
   private static final int STATE_ENABLED = 0;
   private static final int STATE_ENABLED_WRITING = 1;
@@ -75,7 +79,9 @@ public final class DefaultTrackOutput implements TrackOutput {
   private long sampleOffsetUs;
   private long totalBytesWritten;
   private Allocation lastAllocation;
+  private ByteBuffer lastAllocationBuffer;
   private int lastAllocationOffset;
+  private byte[] directWriteScratch;
   private boolean pendingSplice;
   private UpstreamFormatChangedListener upstreamFormatChangeListener;
 
@@ -165,7 +171,7 @@ public final class DefaultTrackOutput implements TrackOutput {
       allocator.release(dataQueue.removeLast());
     }
     // Update lastAllocation and lastAllocationOffset to reflect the new position.
-    lastAllocation = dataQueue.peekLast();
+    setLastAllocation(dataQueue.peekLast());
     lastAllocationOffset = allocationOffset == 0 ? allocationLength : allocationOffset;
   }
 
@@ -187,6 +193,14 @@ public final class DefaultTrackOutput implements TrackOutput {
     return infoQueue.isEmpty();
   }
 
+  /**
+   * Returns the number of bytes of memory currently held by this output for sample data. May be
+   * called from any thread.
+   */
+  public int getAllocatedBytes() {
+    return dataQueue.size() * allocationLength;
+  }
+
   /**
    * Returns the current absolute read index.
    */
@@ -389,7 +403,14 @@ public final class DefaultTrackOutput implements TrackOutput {
       int positionInAllocation = (int) (absolutePosition - totalBytesDropped);
       int toCopy = Math.min(remaining, allocationLength - positionInAllocation);
       Allocation allocation = dataQueue.peek();
-      target.put(allocation.data, allocation.translateOffset(positionInAllocation), toCopy);
+      if (allocation.data != null) {
+        target.put(allocation.data, allocation.translateOffset(positionInAllocation), toCopy);
+      } else {
+        ByteBuffer source = allocation.buffer.duplicate();
+        source.position(positionInAllocation);
+        source.limit(positionInAllocation + toCopy);
+        target.put(source);
+      }
       absolutePosition += toCopy;
       remaining -= toCopy;
     }
@@ -409,8 +430,14 @@ public final class DefaultTrackOutput implements TrackOutput {
       int positionInAllocation = (int) (absolutePosition - totalBytesDropped);
       int toCopy = Math.min(length - bytesRead, allocationLength - positionInAllocation);
       Allocation allocation = dataQueue.peek();
-      System.arraycopy(allocation.data, allocation.translateOffset(positionInAllocation), target,
-          bytesRead, toCopy);
+      if (allocation.data != null) {
+        System.arraycopy(allocation.data, allocation.translateOffset(positionInAllocation), target,
+            bytesRead, toCopy);
+      } else {
+        ByteBuffer source = allocation.buffer.duplicate();
+        source.position(positionInAllocation);
+        source.get(target, bytesRead, toCopy);
+      }
       absolutePosition += toCopy;
       bytesRead += toCopy;
     }
@@ -481,8 +508,22 @@ public final class DefaultTrackOutput implements TrackOutput {
     }
     try {
       length = prepareForAppend(length);
-      int bytesAppended = input.read(lastAllocation.data,
-          lastAllocation.translateOffset(lastAllocationOffset), length);
+      int bytesAppended;
+      if (lastAllocationBuffer == null) {
+        bytesAppended = input.read(lastAllocation.data,
+            lastAllocation.translateOffset(lastAllocationOffset), length);
+      } else {
+        // ExtractorInput can only read into arrays, so stage through a small scratch array.
+        if (directWriteScratch == null) {
+          directWriteScratch = new byte[DIRECT_WRITE_SCRATCH_SIZE];
+        }
+        bytesAppended = input.read(directWriteScratch, 0,
+            Math.min(length, DIRECT_WRITE_SCRATCH_SIZE));
+        if (bytesAppended != C.RESULT_END_OF_INPUT) {
+          lastAllocationBuffer.position(lastAllocationOffset);
+          lastAllocationBuffer.put(directWriteScratch, 0, bytesAppended);
+        }
+      }
       if (bytesAppended == C.RESULT_END_OF_INPUT) {
         if (allowEndOfInput) {
           return C.RESULT_END_OF_INPUT;
@@ -505,8 +546,14 @@ public final class DefaultTrackOutput implements TrackOutput {
     }
     while (length > 0) {
       int thisAppendLength = prepareForAppend(length);
-      buffer.readBytes(lastAllocation.data, lastAllocation.translateOffset(lastAllocationOffset),
-          thisAppendLength);
+      if (lastAllocationBuffer == null) {
+        buffer.readBytes(lastAllocation.data, lastAllocation.translateOffset(lastAllocationOffset),
+            thisAppendLength);
+      } else {
+        lastAllocationBuffer.position(lastAllocationOffset);
+        lastAllocationBuffer.put(buffer.data, buffer.getPosition(), thisAppendLength);
+        buffer.skipBytes(thisAppendLength);
+      }
       lastAllocationOffset += thisAppendLength;
       totalBytesWritten += thisAppendLength;
       length -= thisAppendLength;
@@ -558,7 +605,7 @@ public final class DefaultTrackOutput implements TrackOutput {
     allocator.trim();
     totalBytesDropped = 0;
     totalBytesWritten = 0;
-    lastAllocation = null;
+    setLastAllocation(null);
     lastAllocationOffset = allocationLength;
   }
 
@@ -569,12 +616,20 @@ public final class DefaultTrackOutput implements TrackOutput {
   private int prepareForAppend(int length) {
     if (lastAllocationOffset == allocationLength) {
       lastAllocationOffset = 0;
-      lastAllocation = allocator.allocate();
+      setLastAllocation(allocator.allocate());
       dataQueue.add(lastAllocation);
     }
     return Math.min(length, allocationLength - lastAllocationOffset);
   }
 
+  private void setLastAllocation(Allocation allocation) {
+    lastAllocation = allocation;
+    // Writes go through a view of their own, since the consuming thread may read from the same
+    // allocation.
+    lastAllocationBuffer = allocation != null && allocation.buffer != null
+        ? allocation.buffer.duplicate() : null;
+  }
+
   /**
    * Adjusts a {@link Format} to incorporate a sample offset into {@link Format#subsampleOffsetUs}.
    *
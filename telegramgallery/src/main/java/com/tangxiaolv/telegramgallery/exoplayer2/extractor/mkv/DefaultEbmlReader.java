@@ -21,7 +21,7 @@ import com.tangxiaolv.telegramgallery.exoplayer2.extractor.ExtractorInput;
 import com.tangxiaolv.telegramgallery.exoplayer2.util.Assertions;
 import java.io.EOFException;
 import java.io.IOException;
-import java.util.Stack;
+import java.util.Arrays;
 
 /**
  * Default implementation of {@link EbmlReader}.
@@ -39,10 +39,19 @@ import java.util.Stack;
   private static final int VALID_FLOAT32_ELEMENT_SIZE_BYTES = 4;
   private static final int VALID_FLOAT64_ELEMENT_SIZE_BYTES = 8;
 
+  private static final int INITIAL_MASTER_ELEMENT_DEPTH = 8;
+
   private final byte[] scratch = new byte[8];
-  private final Stack<MasterElement> masterElementsStack = new Stack<>();
   private final VarintReader varintReader = new VarintReader();
 
+  // The stack of master elements that are currently open, kept in parallel arrays so that opening
+  // a master element (e.g. a Cluster or BlockGroup) doesn't allocate.
+  private int[] masterElementIds = new int[INITIAL_MASTER_ELEMENT_DEPTH];
+  private long[] masterElementEndPositions = new long[INITIAL_MASTER_ELEMENT_DEPTH];
+  private int masterElementDepth;
+
+  private byte[] stringBytes = new byte[0];
+
   private EbmlReaderOutput output;
   private int elementState;
   private int elementId;
@@ -56,7 +65,7 @@ import java.util.Stack;
   @Override
   public void reset() {
     elementState = ELEMENT_STATE_READ_ID;
-    masterElementsStack.clear();
+    masterElementDepth = 0;
     varintReader.reset();
   }
 
@@ -64,9 +73,9 @@ import java.util.Stack;
   public boolean read(ExtractorInput input) throws IOException, InterruptedException {
     Assertions.checkState(output != null);
     while (true) {
-      if (!masterElementsStack.isEmpty()
-          && input.getPosition() >= masterElementsStack.peek().elementEndPosition) {
-        output.endMasterElement(masterElementsStack.pop().elementId);
+      if (masterElementDepth > 0
+          && input.getPosition() >= masterElementEndPositions[masterElementDepth - 1]) {
+        output.endMasterElement(masterElementIds[--masterElementDepth]);
         return true;
       }
 
@@ -93,7 +102,7 @@ import java.util.Stack;
         case TYPE_MASTER:
           long elementContentPosition = input.getPosition();
           long elementEndPosition = elementContentPosition + elementContentSize;
-          masterElementsStack.add(new MasterElement(elementId, elementEndPosition));
+          pushMasterElement(elementId, elementEndPosition);
           output.startMasterElement(elementId, elementContentPosition, elementContentSize);
           elementState = ELEMENT_STATE_READ_ID;
           return true;
@@ -133,6 +142,16 @@ import java.util.Stack;
     }
   }
 
+  private void pushMasterElement(int elementId, long elementEndPosition) {
+    if (masterElementDepth == masterElementIds.length) {
+      masterElementIds = Arrays.copyOf(masterElementIds, masterElementDepth * 2);
+      masterElementEndPositions = Arrays.copyOf(masterElementEndPositions, masterElementDepth * 2);
+    }
+    masterElementIds[masterElementDepth] = elementId;
+    masterElementEndPositions[masterElementDepth] = elementEndPosition;
+    masterElementDepth++;
+  }
+
   /**
    * Does a byte by byte search to try and find the next level 1 element. This method is called if
    * some invalid data is encountered in the parser.
@@ -215,25 +234,11 @@ import java.util.Stack;
     if (byteLength == 0) {
       return "";
     }
-    byte[] stringBytes = new byte[byteLength];
-    input.readFully(stringBytes, 0, byteLength);
-    return new String(stringBytes);
-  }
-
-  /**
-   * Used in {@link #masterElementsStack} to track when the current master element ends, so that
-   * {@link EbmlReaderOutput#endMasterElement(int)} can be called.
-   */
-  private static final class MasterElement {
-
-    private final int elementId;
-    private final long elementEndPosition;
-
-    private MasterElement(int elementId, long elementEndPosition) {
-      this.elementId = elementId;
-      this.elementEndPosition = elementEndPosition;
+    if (stringBytes.length < byteLength) {
+      stringBytes = new byte[byteLength];
     }
-
+    input.readFully(stringBytes, 0, byteLength);
+    return new String(stringBytes, 0, byteLength);
   }
 
 }
@@ -294,6 +294,8 @@ public final class MatroskaExtractor implements Extractor {
   private long cuesContentPosition = C.POSITION_UNSET;
   private long seekPositionAfterBuildingCues = C.POSITION_UNSET;
   private long clusterTimecodeUs = C.TIME_UNSET;
+  // The time of the last seek. SimpleBlocks of keyframe only tracks that end before it are skipped.
+  private long seekTimeUs;
   private LongArray cueTimesUs;
   private LongArray cueClusterPositions;
   private boolean seenClusterPositionForCurrentCuePoint;
@@ -363,6 +365,7 @@ public final class MatroskaExtractor implements Extractor {
 
   @Override
   public void seek(long position, long timeUs) {
+    seekTimeUs = timeUs;
     clusterTimecodeUs = C.TIME_UNSET;
     blockState = BLOCK_STATE_START;
     reader.reset();
@@ -1005,6 +1008,14 @@ public final class MatroskaExtractor implements Extractor {
               | (isInvisible ? C.BUFFER_FLAG_DECODE_ONLY : 0);
           blockState = BLOCK_STATE_DATA;
           blockLacingSampleIndex = 0;
+
+          if (id == ID_SIMPLE_BLOCK && isBlockBeforeSeekTime(track)) {
+            // None of the samples are needed to start playback at the seek time, so skip the
+            // block instead of copying it to the output.
+            input.skipFully(contentSize - blockTrackNumberLength - scratch.limit());
+            blockState = BLOCK_STATE_START;
+            return;
+          }
         }
 
         if (id == ID_SIMPLE_BLOCK) {
@@ -1029,6 +1040,22 @@ public final class MatroskaExtractor implements Extractor {
     }
   }
 
+  /**
+   * Returns whether the current block ends at or before {@link #seekTimeUs}, less the seek pre-roll
+   * of its track, and whether every sample of its track is a sync sample so that dropping the block
+   * doesn't affect decoding of the samples that follow it. Blocks within the pre-roll are kept, as
+   * decoders such as Opus need them to converge before the seek time.
+   */
+  private boolean isBlockBeforeSeekTime(Track track) {
+    if (track.type != TRACK_TYPE_AUDIO || track.defaultSampleDurationNs <= 0
+        || blockTimeUs >= seekTimeUs) {
+      return false;
+    }
+    long blockEndTimeUs = blockTimeUs
+        + (blockLacingSampleCount * (long) track.defaultSampleDurationNs) / 1000;
+    return blockEndTimeUs <= seekTimeUs - track.seekPreRollNs / 1000;
+  }
+
   private void commitSampleToOutput(Track track, long timeUs) {
     if (CODEC_ID_SUBRIP.equals(track.codecId)) {
       writeSubripSample(track);
@@ -1304,9 +1331,8 @@ public final class MatroskaExtractor implements Extractor {
     int[] sizes = new int[cuePointsSize];
     long[] offsets = new long[cuePointsSize];
     long[] durationsUs = new long[cuePointsSize];
-    long[] timesUs = new long[cuePointsSize];
+    long[] timesUs = cueTimesUs.toArray();
     for (int i = 0; i < cuePointsSize; i++) {
-      timesUs[i] = cueTimesUs.get(i);
       offsets[i] = segmentContentPosition + cueClusterPositions.get(i);
     }
     for (int i = 0; i < cuePointsSize - 1; i++) {
@@ -52,6 +52,9 @@ import java.util.List;
   private static final int TYPE_cenc = Util.getIntegerCodeForString("cenc");
   private static final int TYPE_meta = Util.getIntegerCodeForString("meta");
 
+  // Sample size entries follow the full header, the sample or field size and the sample count.
+  private static final int SAMPLE_SIZE_ENTRIES_POSITION = Atom.FULL_HEADER_SIZE + 8;
+
   /**
    * Parses a trak atom (defined in 14496-12).
    *
@@ -101,11 +104,12 @@ import java.util.List;
    * @param track Track to which this sample table corresponds.
    * @param stblAtom stbl (sample table) atom to decode.
    * @param gaplessInfoHolder Holder to populate with gapless playback information.
+   * @param lazy Whether to return a {@link LazyTrackSampleTable} if the track's edit list allows.
    * @return Sample table described by the stbl atom.
    * @throws ParserException If the resulting sample sequence does not contain a sync sample.
    */
   public static TrackSampleTable parseStbl(Track track, Atom.ContainerAtom stblAtom,
-      GaplessInfoHolder gaplessInfoHolder) throws ParserException {
+      GaplessInfoHolder gaplessInfoHolder, boolean lazy) throws ParserException {
     SampleSizeBox sampleSizeBox;
     Atom.LeafAtom stszAtom = stblAtom.getLeafAtomOfType(Atom.TYPE_stsz);
     if (stszAtom != null) {
@@ -120,7 +124,7 @@ import java.util.List;
 
     int sampleCount = sampleSizeBox.getSampleCount();
     if (sampleCount == 0) {
-      return new TrackSampleTable(new long[0], new int[0], 0, new long[0], new int[0]);
+      return new ArrayTrackSampleTable(new long[0], new int[0], 0, new long[0], new int[0]);
     }
 
     // Entries are byte offsets of chunks.
@@ -179,6 +183,14 @@ import java.util.List;
         && remainingTimestampDeltaChanges == 0 && remainingTimestampOffsetChanges == 0
         && remainingSynchronizationSamples == 0;
 
+    if (lazy && !isRechunkable) {
+      TrackSampleTable lazySampleTable = createLazySampleTable(track, gaplessInfoHolder,
+          sampleSizeBox, chunkOffsets, chunkOffsetsAreLongs, stsc, stts, ctts, stss);
+      if (lazySampleTable != null) {
+        return lazySampleTable;
+      }
+    }
+
     long[] offsets;
     int[] sizes;
     int maximumSize = 0;
@@ -286,7 +298,7 @@ import java.util.List;
       // There is no edit list, or we are ignoring it as we already have gapless metadata to apply.
       // This implementation does not support applying both gapless metadata and an edit list.
       Util.scaleLargeTimestampsInPlace(timestamps, C.MICROS_PER_SECOND, track.timescale);
-      return new TrackSampleTable(offsets, sizes, maximumSize, timestamps, flags);
+      return new ArrayTrackSampleTable(offsets, sizes, maximumSize, timestamps, flags);
     }
 
     // See the BMFF spec (ISO 14496-12) subsection 8.6.6. Edit lists that require prerolling from a
@@ -316,7 +328,7 @@ import java.util.List;
           gaplessInfoHolder.encoderDelay = (int) encoderDelay;
           gaplessInfoHolder.encoderPadding = (int) encoderPadding;
           Util.scaleLargeTimestampsInPlace(timestamps, C.MICROS_PER_SECOND, track.timescale);
-          return new TrackSampleTable(offsets, sizes, maximumSize, timestamps, flags);
+          return new ArrayTrackSampleTable(offsets, sizes, maximumSize, timestamps, flags);
         }
       }
     }
@@ -329,7 +341,7 @@ import java.util.List;
         timestamps[i] = Util.scaleLargeTimestamp(timestamps[i] - track.editListMediaTimes[0],
             C.MICROS_PER_SECOND, track.timescale);
       }
-      return new TrackSampleTable(offsets, sizes, maximumSize, timestamps, flags);
+      return new ArrayTrackSampleTable(offsets, sizes, maximumSize, timestamps, flags);
     }
 
     // Omit any sample at the end point of an edit for audio tracks.
@@ -398,8 +410,43 @@ import java.util.List;
       throw new ParserException("The edited sample sequence does not contain a sync sample.");
     }
 
-    return new TrackSampleTable(editedOffsets, editedSizes, editedMaximumSize, editedTimestamps,
-        editedFlags);
+    return new ArrayTrackSampleTable(editedOffsets, editedSizes, editedMaximumSize,
+        editedTimestamps, editedFlags);
+  }
+
+  /**
+   * Returns a {@link LazyTrackSampleTable} for a track whose edit list doesn't require the sample
+   * table to be expanded, or null. Supported are tracks without an edit list or whose edit list is
+   * ignored, and tracks with a single edit which keeps all samples.
+   */
+  private static TrackSampleTable createLazySampleTable(Track track,
+      GaplessInfoHolder gaplessInfoHolder, SampleSizeBox sampleSizeBox,
+      ParsableByteArray chunkOffsets, boolean chunkOffsetsAreLongs, ParsableByteArray stsc,
+      ParsableByteArray stts, ParsableByteArray ctts, ParsableByteArray stss) {
+    if (track.editListDurations == null || gaplessInfoHolder.hasGaplessInfo()) {
+      return new LazyTrackSampleTable(sampleSizeBox, chunkOffsets, chunkOffsetsAreLongs, stsc,
+          stts, ctts, stss, track.timescale, 0);
+    }
+    if (track.editListDurations.length != 1 || track.editListMediaTimes[0] == -1) {
+      return null;
+    }
+    long mediaTime = track.editListMediaTimes[0];
+    LazyTrackSampleTable sampleTable = new LazyTrackSampleTable(sampleSizeBox, chunkOffsets,
+        chunkOffsetsAreLongs, stsc, stts, ctts, stss, track.timescale, mediaTime);
+    if (track.editListDurations[0] == 0) {
+      // All samples are included, as in parseStbl.
+      return sampleTable;
+    }
+    if (track.type == C.TRACK_TYPE_AUDIO) {
+      // The edit may be handled with gapless playback metadata.
+      return null;
+    }
+    long duration = Util.scaleLargeTimestamp(track.editListDurations[0], track.timescale,
+        track.movieTimescale);
+    int startIndex = sampleTable.binarySearchCeilUnscaled(mediaTime, true, true);
+    int endIndex = sampleTable.binarySearchCeilUnscaled(mediaTime + duration, false, false);
+    // If the edit keeps all samples it only shifts their timestamps by the media time.
+    return startIndex == 0 && endIndex == sampleTable.sampleCount ? sampleTable : null;
   }
 
   /**
@@ -1219,7 +1266,7 @@ import java.util.List;
   /**
    * A box containing sample sizes (e.g. stsz, stz2).
    */
-  private interface SampleSizeBox {
+  /* package */ interface SampleSizeBox {
 
     /**
      * Returns the number of samples.
@@ -1231,6 +1278,14 @@ import java.util.List;
      */
     int readNextSampleSize();
 
+    /**
+     * Returns the size of the sample at the given index, without affecting
+     * {@link #readNextSampleSize()}.
+     *
+     * @param index The index of the sample.
+     */
+    int getSampleSize(int index);
+
     /**
      * Returns whether samples have a fixed size.
      */
@@ -1264,6 +1319,17 @@ import java.util.List;
       return fixedSampleSize == 0 ? data.readUnsignedIntToInt() : fixedSampleSize;
     }
 
+    @Override
+    public int getSampleSize(int index) {
+      if (fixedSampleSize != 0) {
+        return fixedSampleSize;
+      }
+      byte[] entries = data.data;
+      int position = SAMPLE_SIZE_ENTRIES_POSITION + 4 * index;
+      return (entries[position] & 0xFF) << 24 | (entries[position + 1] & 0xFF) << 16
+          | (entries[position + 2] & 0xFF) << 8 | (entries[position + 3] & 0xFF);
+    }
+
     @Override
     public boolean isFixedSampleSize() {
       return fixedSampleSize != 0;
@@ -1316,6 +1382,21 @@ import java.util.List;
       }
     }
 
+    @Override
+    public int getSampleSize(int index) {
+      byte[] entries = data.data;
+      if (fieldSize == 8) {
+        return entries[SAMPLE_SIZE_ENTRIES_POSITION + index] & 0xFF;
+      } else if (fieldSize == 16) {
+        int position = SAMPLE_SIZE_ENTRIES_POSITION + 2 * index;
+        return (entries[position] & 0xFF) << 8 | (entries[position + 1] & 0xFF);
+      } else {
+        // fieldSize == 4. Even samples are in the upper bits.
+        int entry = entries[SAMPLE_SIZE_ENTRIES_POSITION + index / 2] & 0xFF;
+        return (index % 2) == 0 ? entry >> 4 : entry & 0x0F;
+      }
+    }
+
     @Override
     public boolean isFixedSampleSize() {
       return false;
@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.extractor.mp4;
+
+import com.tangxiaolv.telegramgallery.exoplayer2.C;
+import com.tangxiaolv.telegramgallery.exoplayer2.extractor.mp4.AtomParsers.SampleSizeBox;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.Assertions;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.ParsableByteArray;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.Util;
+
+/**
+ * Sample table for a track in an MP4 file, which resolves the properties of samples on demand
+ * from the sample table boxes rather than holding them in arrays.
+ * <p>
+ * The stsc, stts and ctts boxes are accessed as tables of runs. The first sample of every
+ * {@link RunTable#CHECKPOINT_INTERVAL}th run is stored so that the run containing a sample can be
+ * found quickly, and the run containing the last accessed sample is kept, so that accessing
+ * samples in order takes constant time. Sample sizes and sync samples are read from the stsz or
+ * stz2 and stss boxes directly. Timestamps are searched with the same algorithm as
+ * {@link Util#binarySearchFloor(long[], long, boolean, boolean)} and
+ * {@link Util#binarySearchCeil(long[], long, boolean, boolean)}, so results match those of an
+ * {@link ArrayTrackSampleTable} even if timestamps aren't sorted.
+ * <p>
+ * Methods are synchronized, since the table may be accessed by the loading thread through the
+ * extractor and by the playback thread through the seek map.
+ */
+/* package */ final class LazyTrackSampleTable extends TrackSampleTable {
+
+  private final SampleSizeBox sampleSizeBox;
+  private final byte[] chunkOffsets;
+  private final boolean chunkOffsetsAreLongs;
+  private final RunTable stsc;
+  private final RunTable stts;
+  private final RunTable ctts;
+  private final byte[] stss;
+  private final int syncSampleCount;
+  private final long timescale;
+  private final long timeOffset;
+
+  private int cachedOffsetIndex;
+  private long cachedOffset;
+
+  /**
+   * @param sampleSizeBox The stsz or stz2 box.
+   * @param chunkOffsets The stco or co64 box.
+   * @param chunkOffsetsAreLongs Whether {@code chunkOffsets} is a co64 box.
+   * @param stsc The stsc box.
+   * @param stts The stts box.
+   * @param ctts The ctts box, or null if not present.
+   * @param stss The stss box, or null if all samples are sync samples.
+   * @param timescale The timescale of the track.
+   * @param timeOffset A time subtracted from every sample timestamp, in units of the timescale.
+   */
+  public LazyTrackSampleTable(SampleSizeBox sampleSizeBox, ParsableByteArray chunkOffsets,
+      boolean chunkOffsetsAreLongs, ParsableByteArray stsc, ParsableByteArray stts,
+      ParsableByteArray ctts, ParsableByteArray stss, long timescale, long timeOffset) {
+    super(sampleSizeBox.getSampleCount(), getMaximumSize(sampleSizeBox));
+    this.sampleSizeBox = sampleSizeBox;
+    this.chunkOffsets = chunkOffsets.data;
+    this.chunkOffsetsAreLongs = chunkOffsetsAreLongs;
+    this.timescale = timescale;
+    this.timeOffset = timeOffset;
+    int chunkCount = readInt(chunkOffsets.data, Atom.FULL_HEADER_SIZE);
+    this.stsc = new RunTable(stsc.data, RunTable.TYPE_STSC, chunkCount);
+    if (this.stsc.runCount > 0) {
+      Assertions.checkState(readInt(stsc.data, Atom.FULL_HEADER_SIZE + 4) == 1,
+          "first_chunk must be 1");
+    }
+    Assertions.checkState(this.stsc.totalSampleCount >= sampleCount);
+    this.stts = new RunTable(stts.data, RunTable.TYPE_STTS, 0);
+    if (ctts != null) {
+      this.ctts = new RunTable(ctts.data, RunTable.TYPE_CTTS, 0);
+      Assertions.checkArgument(this.ctts.totalSampleCount == sampleCount);
+    } else {
+      this.ctts = null;
+    }
+    this.stss = stss != null ? stss.data : null;
+    syncSampleCount = stss != null ? readInt(stss.data, Atom.FULL_HEADER_SIZE) : 0;
+    cachedOffsetIndex = C.INDEX_UNSET;
+  }
+
+  @Override
+  public synchronized long getOffset(int index) {
+    stsc.seek(index);
+    int samplesPerChunk = stsc.getValue();
+    int indexInRun = index - stsc.runFirstSample;
+    int firstSampleInChunk = index - indexInRun % samplesPerChunk;
+    int sample;
+    long offset;
+    if (cachedOffsetIndex >= firstSampleInChunk && cachedOffsetIndex <= index) {
+      sample = cachedOffsetIndex;
+      offset = cachedOffset;
+    } else {
+      sample = firstSampleInChunk;
+      offset = getChunkOffset((int) stsc.runFirstValue + indexInRun / samplesPerChunk);
+    }
+    while (sample < index) {
+      offset += sampleSizeBox.getSampleSize(sample++);
+    }
+    cachedOffsetIndex = index;
+    cachedOffset = offset;
+    return offset;
+  }
+
+  @Override
+  public int getSize(int index) {
+    return sampleSizeBox.getSampleSize(index);
+  }
+
+  @Override
+  public synchronized long getTimestampUs(int index) {
+    return getTimestamp(index, true);
+  }
+
+  @Override
+  public int getFlags(int index) {
+    return stss == null || searchSyncSamples(index) >= 0 ? C.BUFFER_FLAG_KEY_FRAME : 0;
+  }
+
+  @Override
+  public synchronized int getIndexOfEarlierOrEqualSynchronizationSample(long timeUs) {
+    // Video frame timestamps may not be sorted, so the behavior of this call can be undefined.
+    // Frames are not reordered past synchronization samples so this works in practice.
+    int startIndex = binarySearchFloor(timeUs, true, false, true);
+    if (startIndex < 0 || stss == null) {
+      return startIndex < 0 ? C.INDEX_UNSET : startIndex;
+    }
+    int syncSampleIndex = searchSyncSamples(startIndex);
+    if (syncSampleIndex < 0) {
+      // The insertion point is the first sync sample after the start index.
+      syncSampleIndex = -(syncSampleIndex + 2);
+    }
+    return syncSampleIndex < 0 ? C.INDEX_UNSET : getSyncSample(syncSampleIndex);
+  }
+
+  @Override
+  public synchronized int getIndexOfLaterOrEqualSynchronizationSample(long timeUs) {
+    int startIndex = binarySearchCeil(timeUs, true, false, true);
+    if (startIndex >= sampleCount || stss == null) {
+      return startIndex >= sampleCount ? C.INDEX_UNSET : startIndex;
+    }
+    int syncSampleIndex = searchSyncSamples(startIndex);
+    if (syncSampleIndex < 0) {
+      syncSampleIndex = -(syncSampleIndex + 1);
+    }
+    if (syncSampleIndex == syncSampleCount) {
+      return C.INDEX_UNSET;
+    }
+    int sample = getSyncSample(syncSampleIndex);
+    return sample < sampleCount ? sample : C.INDEX_UNSET;
+  }
+
+  /**
+   * Equivalent to {@link Util#binarySearchCeil(long[], long, boolean, boolean)} over the sample
+   * timestamps in units of the timescale, before {@code timeOffset} is subtracted.
+   */
+  public synchronized int binarySearchCeilUnscaled(long value, boolean inclusive,
+      boolean stayInBounds) {
+    return binarySearchCeil(value, inclusive, stayInBounds, false);
+  }
+
+  private long getTimestamp(int index, boolean scaled) {
+    long timestamp;
+    if (index < stts.totalSampleCount) {
+      stts.seek(index);
+      timestamp = stts.runFirstValue + (long) (index - stts.runFirstSample) * stts.getValue();
+    } else {
+      // Samples beyond the end of the table have the last duration.
+      timestamp = stts.totalValue
+          + (long) (index - stts.totalSampleCount) * stts.getValue(stts.runCount - 1);
+    }
+    if (ctts != null) {
+      ctts.seek(index);
+      timestamp += ctts.getValue();
+    }
+    return scaled ? Util.scaleLargeTimestamp(timestamp - timeOffset, C.MICROS_PER_SECOND, timescale)
+        : timestamp;
+  }
+
+  private long getChunkOffset(int chunk) {
+    if (chunkOffsetsAreLongs) {
+      int position = Atom.FULL_HEADER_SIZE + 4 + 8 * chunk;
+      return ((long) readInt(chunkOffsets, position) << 32)
+          | (readInt(chunkOffsets, position + 4) & 0xFFFFFFFFL);
+    } else {
+      return readInt(chunkOffsets, Atom.FULL_HEADER_SIZE + 4 + 4 * chunk) & 0xFFFFFFFFL;
+    }
+  }
+
+  private int getSyncSample(int syncSampleIndex) {
+    return readInt(stss, Atom.FULL_HEADER_SIZE + 4 + 4 * syncSampleIndex) - 1;
+  }
+
+  /**
+   * Returns the index in the stss box of the given sample if it's a sync sample, or otherwise
+   * {@code -(insertion point) - 1}, as for {@link java.util.Arrays#binarySearch(int[], int)}.
+   */
+  private int searchSyncSamples(int sample) {
+    int low = 0;
+    int high = syncSampleCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int midSample = getSyncSample(mid);
+      if (midSample < sample) {
+        low = mid + 1;
+      } else if (midSample > sample) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  private int binarySearch(long value, boolean scaled) {
+    int low = 0;
+    int high = sampleCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long midValue = getTimestamp(mid, scaled);
+      if (midValue < value) {
+        low = mid + 1;
+      } else if (midValue > value) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  private int binarySearchFloor(long value, boolean inclusive, boolean stayInBounds,
+      boolean scaled) {
+    int index = binarySearch(value, scaled);
+    if (index < 0) {
+      index = -(index + 2);
+    } else {
+      while ((--index) >= 0 && getTimestamp(index, scaled) == value) {}
+      if (inclusive) {
+        index++;
+      }
+    }
+    return stayInBounds ? Math.max(0, index) : index;
+  }
+
+  private int binarySearchCeil(long value, boolean inclusive, boolean stayInBounds,
+      boolean scaled) {
+    int index = binarySearch(value, scaled);
+    if (index < 0) {
+      index = ~index;
+    } else {
+      while ((++index) < sampleCount && getTimestamp(index, scaled) == value) {}
+      if (inclusive) {
+        index--;
+      }
+    }
+    return stayInBounds ? Math.min(sampleCount - 1, index) : index;
+  }
+
+  private static int getMaximumSize(SampleSizeBox sampleSizeBox) {
+    if (sampleSizeBox.isFixedSampleSize()) {
+      return sampleSizeBox.getSampleSize(0);
+    }
+    int maximumSize = 0;
+    int sampleCount = sampleSizeBox.getSampleCount();
+    for (int i = 0; i < sampleCount; i++) {
+      maximumSize = Math.max(maximumSize, sampleSizeBox.getSampleSize(i));
+    }
+    return maximumSize;
+  }
+
+  private static int readInt(byte[] data, int position) {
+    return (data[position] & 0xFF) << 24 | (data[position + 1] & 0xFF) << 16
+        | (data[position + 2] & 0xFF) << 8 | (data[position + 3] & 0xFF);
+  }
+
+  /**
+   * A box whose entries each describe a run of consecutive samples.
+   */
+  private static final class RunTable {
+
+    /**
+     * Entries are (first chunk, samples per chunk, sample description index). The value of a run
+     * is its number of samples per chunk, and its accumulated value is its first chunk index.
+     */
+    public static final int TYPE_STSC = 0;
+    /**
+     * Entries are (number of samples, timestamp delta). The value of a run is its timestamp delta,
+     * and its accumulated value is its first timestamp.
+     */
+    public static final int TYPE_STTS = 1;
+    /**
+     * Entries are (number of samples, timestamp offset). The value of a run is its timestamp
+     * offset.
+     */
+    public static final int TYPE_CTTS = 2;
+
+    public static final int CHECKPOINT_INTERVAL = 64;
+
+    private final byte[] data;
+    private final int type;
+    private final int chunkCount;
+    private final int entrySize;
+    private final int[] checkpointFirstSamples;
+    private final long[] checkpointFirstValues;
+
+    public final int runCount;
+    public final int totalSampleCount;
+    public final long totalValue;
+
+    // The current run.
+    public int run;
+    public int runFirstSample;
+    public int runSampleCount;
+    public long runFirstValue;
+
+    public RunTable(byte[] data, int type, int chunkCount) {
+      this.data = data;
+      this.type = type;
+      this.chunkCount = chunkCount;
+      entrySize = type == TYPE_STSC ? 12 : 8;
+      runCount = readInt(data, Atom.FULL_HEADER_SIZE);
+      int checkpointCount = (runCount + CHECKPOINT_INTERVAL - 1) / CHECKPOINT_INTERVAL;
+      checkpointFirstSamples = new int[checkpointCount];
+      checkpointFirstValues = new long[checkpointCount];
+      int sample = 0;
+      long value = 0;
+      for (int i = 0; i < runCount; i++) {
+        if (i % CHECKPOINT_INTERVAL == 0) {
+          checkpointFirstSamples[i / CHECKPOINT_INTERVAL] = sample;
+          checkpointFirstValues[i / CHECKPOINT_INTERVAL] = value;
+        }
+        sample += getSampleCount(i);
+        value += getValueIncrement(i);
+      }
+      totalSampleCount = sample;
+      totalValue = value;
+      runSampleCount = runCount > 0 ? getSampleCount(0) : 0;
+    }
+
+    /**
+     * Makes the run containing the given sample the current run.
+     *
+     * @param sample The index of a sample, which must be less than {@link #totalSampleCount}.
+     */
+    public void seek(int sample) {
+      int nextCheckpoint = run / CHECKPOINT_INTERVAL + 1;
+      if (sample < runFirstSample || (nextCheckpoint < checkpointFirstSamples.length
+          && sample >= checkpointFirstSamples[nextCheckpoint])) {
+        int checkpoint = Util.binarySearchFloor(checkpointFirstSamples, sample, true, true);
+        run = checkpoint * CHECKPOINT_INTERVAL;
+        runFirstSample = checkpointFirstSamples[checkpoint];
+        runFirstValue = checkpointFirstValues[checkpoint];
+        runSampleCount = getSampleCount(run);
+      }
+      while (sample >= runFirstSample + runSampleCount) {
+        runFirstSample += runSampleCount;
+        runFirstValue += getValueIncrement(run);
+        runSampleCount = getSampleCount(++run);
+      }
+    }
+
+    /**
+     * Returns the value of the current run.
+     */
+    public int getValue() {
+      return getValue(run);
+    }
+
+    /**
+     * Returns the value of a run.
+     */
+    public int getValue(int run) {
+      return readInt(data, getEntryPosition(run) + 4);
+    }
+
+    private int getSampleCount(int run) {
+      if (type != TYPE_STSC) {
+        return readInt(data, getEntryPosition(run));
+      }
+      return getChunkCount(run) * getValue(run);
+    }
+
+    private long getValueIncrement(int run) {
+      switch (type) {
+        case TYPE_STSC:
+          return getChunkCount(run);
+        case TYPE_STTS:
+          return (long) getSampleCount(run) * getValue(run);
+        default:
+          return 0;
+      }
+    }
+
+    private int getChunkCount(int run) {
+      int firstChunk = readInt(data, getEntryPosition(run));
+      int nextFirstChunk = run + 1 < runCount ? readInt(data, getEntryPosition(run + 1))
+          : chunkCount + 1;
+      return nextFirstChunk - firstChunk;
+    }
+
+    private int getEntryPosition(int run) {
+      return Atom.FULL_HEADER_SIZE + 4 + entrySize * run;
+    }
+
+  }
+
+}
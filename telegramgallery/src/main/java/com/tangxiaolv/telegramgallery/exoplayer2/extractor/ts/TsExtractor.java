@@ -18,7 +18,6 @@ package com.tangxiaolv.telegramgallery.exoplayer2.extractor.ts;
 import android.support.annotation.IntDef;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
-import android.util.SparseIntArray;
 import com.tangxiaolv.telegramgallery.exoplayer2.C;
 import com.tangxiaolv.telegramgallery.exoplayer2.extractor.Extractor;
 import com.tangxiaolv.telegramgallery.exoplayer2.extractor.ExtractorInput;
@@ -105,16 +104,19 @@ public final class TsExtractor implements Extractor {
   private static final long E_AC3_FORMAT_IDENTIFIER = Util.getIntegerCodeForString("EAC3");
   private static final long HEVC_FORMAT_IDENTIFIER = Util.getIntegerCodeForString("HEVC");
 
-  private static final int BUFFER_PACKET_COUNT = 5; // Should be at least 2
+  private static final int SNIFF_PACKET_COUNT = 5;
+  private static final int SNIFF_SIZE = TS_PACKET_SIZE * SNIFF_PACKET_COUNT;
+  private static final int BUFFER_PACKET_COUNT = 64; // Should be at least 2
   private static final int BUFFER_SIZE = TS_PACKET_SIZE * BUFFER_PACKET_COUNT;
+  private static final int TS_HEADER_SIZE = 4;
+  private static final int TS_PAYLOAD_ONLY = 0x10; // adaptation_field_control == '01'
 
   @Mode private final int mode;
   private final List<TimestampAdjuster> timestampAdjusters;
   private final ParsableByteArray tsPacketBuffer;
-  private final ParsableBitArray tsScratch;
-  private final SparseIntArray continuityCounters;
+  private final int[] continuityCounters; // Indexed by pid
   private final TsPayloadReader.Factory payloadReaderFactory;
-  private final SparseArray<TsPayloadReader> tsPayloadReaders; // Indexed by pid
+  private final TsPayloadReader[] tsPayloadReaders; // Indexed by pid
   private final SparseBooleanArray trackIds;
 
   // Accessed only by the loading thread.
@@ -153,10 +155,10 @@ public final class TsExtractor implements Extractor {
       timestampAdjusters.add(timestampAdjuster);
     }
     tsPacketBuffer = new ParsableByteArray(BUFFER_SIZE);
-    tsScratch = new ParsableBitArray(new byte[3]);
     trackIds = new SparseBooleanArray();
-    tsPayloadReaders = new SparseArray<>();
-    continuityCounters = new SparseIntArray();
+    tsPayloadReaders = new TsPayloadReader[MAX_PID_PLUS_ONE];
+    continuityCounters = new int[MAX_PID_PLUS_ONE];
+    Arrays.fill(continuityCounters, C.INDEX_UNSET);
     resetPayloadReaders();
   }
 
@@ -165,10 +167,10 @@ public final class TsExtractor implements Extractor {
   @Override
   public boolean sniff(ExtractorInput input) throws IOException, InterruptedException {
     byte[] buffer = tsPacketBuffer.data;
-    input.peekFully(buffer, 0, BUFFER_SIZE);
+    input.peekFully(buffer, 0, SNIFF_SIZE);
     for (int j = 0; j < TS_PACKET_SIZE; j++) {
       for (int i = 0; true; i++) {
-        if (i == BUFFER_PACKET_COUNT) {
+        if (i == SNIFF_PACKET_COUNT) {
           input.skipFully(j);
           return true;
         }
@@ -193,7 +195,7 @@ public final class TsExtractor implements Extractor {
       timestampAdjusters.get(i).reset();
     }
     tsPacketBuffer.reset();
-    continuityCounters.clear();
+    Arrays.fill(continuityCounters, C.INDEX_UNSET);
     // Elementary stream readers' state should be cleared to get consistent behaviours when seeking.
     resetPayloadReaders();
   }
@@ -225,87 +227,144 @@ public final class TsExtractor implements Extractor {
       tsPacketBuffer.setLimit(limit + read);
     }
 
-    // Note: see ISO/IEC 13818-1, section 2.4.3.2 for detailed information on the format of
-    // the header.
-    final int limit = tsPacketBuffer.limit();
+    // Demux all of the complete packets in the buffer.
+    int limit = tsPacketBuffer.limit();
     int position = tsPacketBuffer.getPosition();
-    while (position < limit && data[position] != TS_SYNC_BYTE) {
-      position++;
+    while (true) {
+      if (data[position] != TS_SYNC_BYTE) {
+        position = findSyncBytePosition(data, position, limit);
+      }
+      if (position + TS_PACKET_SIZE > limit) {
+        break;
+      }
+      position = consumePackets(data, position, limit);
+      if (position == limit) {
+        break;
+      }
     }
     tsPacketBuffer.setPosition(position);
+    return RESULT_CONTINUE;
+  }
 
-    int endOfPacket = position + TS_PACKET_SIZE;
-    if (endOfPacket > limit) {
-      return RESULT_CONTINUE;
+  // Internals.
+
+  /**
+   * Returns the position of the next sync byte that is followed by another one a packet later, or
+   * the first sync byte whose following packet isn't buffered yet. Returns {@code limit} if there
+   * is no such byte. Checking the following packet avoids locking onto sync bytes in payloads.
+   */
+  private static int findSyncBytePosition(byte[] data, int position, int limit) {
+    for (; position < limit; position++) {
+      if (data[position] == TS_SYNC_BYTE && (position + TS_PACKET_SIZE >= limit
+          || data[position + TS_PACKET_SIZE] == TS_SYNC_BYTE)) {
+        return position;
+      }
     }
+    return limit;
+  }
 
-    tsPacketBuffer.skipBytes(1);
-    tsPacketBuffer.readBytes(tsScratch, 3);
-    if (tsScratch.readBit()) { // transport_error_indicator
+  /**
+   * Consumes the packet at {@code position}. If its payload is read by a {@link PesReader}, the
+   * payloads of the directly following packets of the same PES are moved next to it, and the run
+   * is passed to the reader at once.
+   *
+   * @param data The packet buffer.
+   * @param position The position of the packet's sync byte.
+   * @param limit The limit of the data in the buffer.
+   * @return The position following the consumed packets.
+   */
+  private int consumePackets(byte[] data, int position, int limit) {
+    // Note: see ISO/IEC 13818-1, section 2.4.3.2 for detailed information on the format of
+    // the header.
+    int endOfPacket = position + TS_PACKET_SIZE;
+    int header = (data[position + 1] & 0xFF) << 16 | (data[position + 2] & 0xFF) << 8
+        | (data[position + 3] & 0xFF);
+    if ((header & 0x800000) != 0) { // transport_error_indicator
       // There are uncorrectable errors in this packet.
-      tsPacketBuffer.setPosition(endOfPacket);
-      return RESULT_CONTINUE;
+      return endOfPacket;
     }
-    boolean payloadUnitStartIndicator = tsScratch.readBit();
-    tsScratch.skipBits(1); // transport_priority
-    int pid = tsScratch.readBits(13);
-    tsScratch.skipBits(2); // transport_scrambling_control
-    boolean adaptationFieldExists = tsScratch.readBit();
-    boolean payloadExists = tsScratch.readBit();
+    boolean payloadUnitStartIndicator = (header & 0x400000) != 0;
+    int pid = (header >> 8) & 0x1FFF;
+    boolean adaptationFieldExists = (header & 0x20) != 0;
+    boolean payloadExists = (header & 0x10) != 0;
 
     // Discontinuity check.
     boolean discontinuityFound = false;
-    int continuityCounter = tsScratch.readBits(4);
+    int continuityCounter = header & 0x0F;
     if (mode != MODE_HLS) {
-      int previousCounter = continuityCounters.get(pid, continuityCounter - 1);
-      continuityCounters.put(pid, continuityCounter);
+      int previousCounter = continuityCounters[pid];
+      if (previousCounter == C.INDEX_UNSET) {
+        previousCounter = (continuityCounter + 15) % 16;
+      }
+      continuityCounters[pid] = continuityCounter;
       if (previousCounter == continuityCounter) {
         if (payloadExists) {
           // Duplicate packet found.
-          tsPacketBuffer.setPosition(endOfPacket);
-          return RESULT_CONTINUE;
+          return endOfPacket;
         }
       } else if (continuityCounter != (previousCounter + 1) % 16) {
         discontinuityFound = true;
       }
     }
 
+    TsPayloadReader payloadReader = tsPayloadReaders[pid];
+    if (!payloadExists || payloadReader == null) {
+      return endOfPacket;
+    }
     // Skip the adaptation field.
+    int payloadPosition = position + TS_HEADER_SIZE;
     if (adaptationFieldExists) {
-      int adaptationFieldLength = tsPacketBuffer.readUnsignedByte();
-      tsPacketBuffer.skipBytes(adaptationFieldLength);
+      payloadPosition += 1 + (data[payloadPosition] & 0xFF);
+      if (payloadPosition > endOfPacket) {
+        // The adaptation field is corrupt.
+        return endOfPacket;
+      }
+    }
+    if (discontinuityFound) {
+      payloadReader.seek();
     }
 
-    // Read the payload.
-    if (payloadExists) {
-      TsPayloadReader payloadReader = tsPayloadReaders.get(pid);
-      if (payloadReader != null) {
-        if (discontinuityFound) {
-          payloadReader.seek();
+    int payloadLimit = endOfPacket;
+    if (payloadReader instanceof PesReader) {
+      // Append the payloads of following packets which continue the PES packet without gaps.
+      int expectedHeader = header & 0x1FFF00 | TS_PAYLOAD_ONLY;
+      while (endOfPacket + TS_PACKET_SIZE <= limit && data[endOfPacket] == TS_SYNC_BYTE) {
+        int nextHeader = (data[endOfPacket + 1] & 0xFF) << 16
+            | (data[endOfPacket + 2] & 0xFF) << 8 | (data[endOfPacket + 3] & 0xFF);
+        int nextContinuityCounter = nextHeader & 0x0F;
+        if ((nextHeader & 0xFFFFF0) != expectedHeader || (mode != MODE_HLS
+            && nextContinuityCounter != (continuityCounter + 1) % 16)) {
+          break;
         }
-        tsPacketBuffer.setLimit(endOfPacket);
-        payloadReader.consume(tsPacketBuffer, payloadUnitStartIndicator);
-        Assertions.checkState(tsPacketBuffer.getPosition() <= endOfPacket);
-        tsPacketBuffer.setLimit(limit);
+        System.arraycopy(data, endOfPacket + TS_HEADER_SIZE, data, payloadLimit,
+            TS_PACKET_SIZE - TS_HEADER_SIZE);
+        payloadLimit += TS_PACKET_SIZE - TS_HEADER_SIZE;
+        endOfPacket += TS_PACKET_SIZE;
+        continuityCounter = nextContinuityCounter;
+      }
+      if (mode != MODE_HLS) {
+        continuityCounters[pid] = continuityCounter;
       }
     }
 
-    tsPacketBuffer.setPosition(endOfPacket);
-    return RESULT_CONTINUE;
+    tsPacketBuffer.setPosition(payloadPosition);
+    tsPacketBuffer.setLimit(payloadLimit);
+    payloadReader.consume(tsPacketBuffer, payloadUnitStartIndicator);
+    Assertions.checkState(tsPacketBuffer.getPosition() <= payloadLimit);
+    tsPacketBuffer.setLimit(limit);
+    return endOfPacket;
   }
 
-  // Internals.
-
   private void resetPayloadReaders() {
     trackIds.clear();
-    tsPayloadReaders.clear();
+    Arrays.fill(tsPayloadReaders, null);
     SparseArray<TsPayloadReader> initialPayloadReaders =
         payloadReaderFactory.createInitialPayloadReaders();
     int initialPayloadReadersSize = initialPayloadReaders.size();
     for (int i = 0; i < initialPayloadReadersSize; i++) {
-      tsPayloadReaders.put(initialPayloadReaders.keyAt(i), initialPayloadReaders.valueAt(i));
+      tsPayloadReaders[initialPayloadReaders.keyAt(i)] = initialPayloadReaders.valueAt(i);
     }
-    tsPayloadReaders.put(TS_PAT_PID, new SectionReader(new PatReader()));
+    tsPayloadReaders[TS_PAT_PID] = new SectionReader(new PatReader());
     id3Reader = null;
   }
 
@@ -347,12 +406,12 @@ public final class TsExtractor implements Extractor {
           patScratch.skipBits(13); // network_PID (13)
         } else {
           int pid = patScratch.readBits(13);
-          tsPayloadReaders.put(pid, new SectionReader(new PmtReader(pid)));
+          tsPayloadReaders[pid] = new SectionReader(new PmtReader(pid));
           remainingPmts++;
         }
       }
       if (mode != MODE_HLS) {
-        tsPayloadReaders.remove(TS_PAT_PID);
+        tsPayloadReaders[TS_PAT_PID] = null;
       }
     }
 
@@ -457,7 +516,7 @@ public final class TsExtractor implements Extractor {
         }
 
         if (reader != null) {
-          tsPayloadReaders.put(elementaryPid, reader);
+          tsPayloadReaders[elementaryPid] = reader;
         }
       }
       if (mode == MODE_HLS) {
@@ -467,7 +526,7 @@ public final class TsExtractor implements Extractor {
           tracksEnded = true;
         }
       } else {
-        tsPayloadReaders.remove(pid);
+        tsPayloadReaders[pid] = null;
         remainingPmts = mode == MODE_SINGLE_PMT ? 0 : remainingPmts - 1;
         if (remainingPmts == 0) {
           output.endTracks();
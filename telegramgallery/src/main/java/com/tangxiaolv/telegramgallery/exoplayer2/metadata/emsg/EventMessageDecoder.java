@@ -18,31 +18,28 @@ package com.tangxiaolv.telegramgallery.exoplayer2.metadata.emsg;
 import com.tangxiaolv.telegramgallery.exoplayer2.metadata.Metadata;
 import com.tangxiaolv.telegramgallery.exoplayer2.metadata.MetadataDecoder;
 import com.tangxiaolv.telegramgallery.exoplayer2.metadata.MetadataInputBuffer;
-import com.tangxiaolv.telegramgallery.exoplayer2.util.ParsableByteArray;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 /**
  * Decodes Event Message (emsg) atoms, as defined in ISO 23009-1.
  * <p>
  * Atom data should be provided to the decoder without the full atom header (i.e. starting from the
- * first byte of the scheme_id_uri field).
+ * first byte of the scheme_id_uri field). The input buffer may be a heap or a direct buffer.
  */
 public final class EventMessageDecoder implements MetadataDecoder {
 
   @Override
   public Metadata decode(MetadataInputBuffer inputBuffer) {
     ByteBuffer buffer = inputBuffer.data;
-    byte[] data = buffer.array();
-    int size = buffer.limit();
-    ParsableByteArray emsgData = new ParsableByteArray(data, size);
+    ParsableByteBuffer emsgData = new ParsableByteBuffer(buffer);
     String schemeIdUri = emsgData.readNullTerminatedString();
     String value = emsgData.readNullTerminatedString();
     long timescale = emsgData.readUnsignedInt();
     emsgData.skipBytes(4); // presentation_time_delta
     long durationMs = (emsgData.readUnsignedInt() * 1000) / timescale;
     long id = emsgData.readUnsignedInt();
-    byte[] messageData = Arrays.copyOfRange(data, emsgData.getPosition(), size);
+    byte[] messageData = new byte[emsgData.bytesLeft()];
+    emsgData.readBytes(messageData, 0, messageData.length);
     return new Metadata(new EventMessage(schemeIdUri, value, durationMs, id, messageData));
   }
 
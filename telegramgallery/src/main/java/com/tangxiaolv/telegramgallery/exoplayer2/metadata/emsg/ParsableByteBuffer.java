@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.metadata.emsg;
+
+import com.tangxiaolv.telegramgallery.exoplayer2.util.Assertions;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.ParsableByteArray;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Wraps a {@link ByteBuffer}, providing the subset of the parsing methods of {@link
+ * ParsableByteArray} needed by {@link EventMessageDecoder}, whose input may be a direct buffer.
+ * Numerical values are parsed with the assumption that their constituent bytes are in big endian
+ * order.
+ * <p>
+ * Values are read with absolute gets, so the data is never copied into a heap array in order to be
+ * parsed, and the position, limit and byte order of the wrapped buffer are left untouched.
+ */
+/* package */ final class ParsableByteBuffer {
+
+  private final ByteBuffer buffer;
+  private final int offset;
+  private final int limit;
+
+  private int position;
+
+  /**
+   * Creates a new instance wrapping the remaining bytes of {@code buffer}.
+   *
+   * @param buffer The buffer to wrap.
+   */
+  public ParsableByteBuffer(ByteBuffer buffer) {
+    this.buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+    offset = buffer.position();
+    limit = buffer.remaining();
+  }
+
+  /**
+   * Returns the number of bytes yet to be read.
+   */
+  public int bytesLeft() {
+    return limit - position;
+  }
+
+  /**
+   * Moves the reading offset by {@code bytes}.
+   *
+   * @param bytes The number of bytes to skip.
+   * @throws IllegalArgumentException Thrown if the new position is neither in nor at the end of the
+   *     view.
+   */
+  public void skipBytes(int bytes) {
+    Assertions.checkArgument(bytes >= 0 && bytes <= bytesLeft());
+    position += bytes;
+  }
+
+  /**
+   * Reads the next {@code length} bytes into {@code buffer} at {@code offset}.
+   *
+   * @param buffer The array into which the read data should be written.
+   * @param offset The offset in {@code buffer} at which the read data should be written.
+   * @param length The number of bytes to read.
+   */
+  public void readBytes(byte[] buffer, int offset, int length) {
+    Assertions.checkArgument(length >= 0 && length <= bytesLeft());
+    this.buffer.position(this.offset + position);
+    this.buffer.get(buffer, offset, length);
+    position += length;
+  }
+
+  /**
+   * Reads the next four bytes as an unsigned value.
+   */
+  public long readUnsignedInt() {
+    long result = buffer.getInt(offset + position) & 0xFFFFFFFFL;
+    position += 4;
+    return result;
+  }
+
+  /**
+   * Reads up to the next NUL byte (or the limit) as UTF-8 characters.
+   *
+   * @return The string not including any terminating NUL byte, or null if the end of the data has
+   *     already been reached.
+   */
+  public String readNullTerminatedString() {
+    if (bytesLeft() == 0) {
+      return null;
+    }
+    int stringLimit = position;
+    while (stringLimit < limit && buffer.get(offset + stringLimit) != 0) {
+      stringLimit++;
+    }
+    String string = decodeString(position, stringLimit - position);
+    position = stringLimit;
+    if (position < limit) {
+      position++;
+    }
+    return string;
+  }
+
+  /**
+   * Decodes {@code length} bytes starting at {@code start}. Heap buffers are decoded in place, the
+   * bytes of other buffers are copied out first.
+   */
+  private String decodeString(int start, int length) {
+    if (length == 0) {
+      return "";
+    }
+    if (buffer.hasArray()) {
+      return new String(buffer.array(), buffer.arrayOffset() + offset + start, length,
+          Charset.defaultCharset());
+    }
+    byte[] bytes = new byte[length];
+    buffer.position(offset + start);
+    buffer.get(bytes, 0, length);
+    return new String(bytes, Charset.defaultCharset());
+  }
+
+}
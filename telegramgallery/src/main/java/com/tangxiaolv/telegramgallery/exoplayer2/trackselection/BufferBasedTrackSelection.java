@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.trackselection;
+
+import com.tangxiaolv.telegramgallery.exoplayer2.C;
+import com.tangxiaolv.telegramgallery.exoplayer2.source.TrackGroup;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.BandwidthMeter;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.Clock;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.SystemClock;
+
+/**
+ * An adaptive {@link TrackSelection} whose selected track is chosen primarily from the duration of
+ * buffered media, following the BOLA algorithm.
+ * <p>
+ * Each track is assigned a utility, which is the logarithm of its bitrate relative to the lowest
+ * bitrate. The selected track is the one maximizing {@code (v * (utility + gamma) - buffer) /
+ * bitrate}, where {@code v} and {@code gamma} are derived from the minimum and target buffer
+ * durations such that the lowest quality track is selected when the buffer is at or below the
+ * minimum, and the highest when it reaches the target. Since the buffer drains smoothly, this
+ * oscillates far less than selecting from a bandwidth estimate on unstable networks.
+ * <p>
+ * The bandwidth estimate is used to select the initial track, and to limit switching up: the
+ * selection only rises above the current track as far as the estimate allows. Like BOLA-O, it also
+ * puts a floor under the selection after starting or seeking, until the buffer first reaches the
+ * minimum duration, so that the selection doesn't drop below the track the bandwidth allows just
+ * because the buffer is still empty. A seek is recognized by the buffered duration falling faster
+ * than playback drains it. When the buffer runs low during playback the floor doesn't apply.
+ */
+public class BufferBasedTrackSelection extends BaseTrackSelection {
+
+  /**
+   * Factory for {@link BufferBasedTrackSelection} instances.
+   */
+  public static final class Factory implements TrackSelection.Factory {
+
+    private final BandwidthMeter bandwidthMeter;
+    private final int maxInitialBitrate;
+    private final int minBufferMs;
+    private final int targetBufferMs;
+    private final float bandwidthFraction;
+
+    /**
+     * @param bandwidthMeter Provides an estimate of the currently available bandwidth.
+     */
+    public Factory(BandwidthMeter bandwidthMeter) {
+      this(bandwidthMeter, DEFAULT_MAX_INITIAL_BITRATE, DEFAULT_MIN_BUFFER_MS,
+          DEFAULT_TARGET_BUFFER_MS, DEFAULT_BANDWIDTH_FRACTION);
+    }
+
+    /**
+     * @param bandwidthMeter Provides an estimate of the currently available bandwidth.
+     * @param maxInitialBitrate The maximum bitrate in bits per second that should be assumed
+     *     when a bandwidth estimate is unavailable.
+     * @param minBufferMs The duration of buffered data at or below which the lowest quality track
+     *     is selected, unless the bandwidth estimate allows a higher one.
+     * @param targetBufferMs The duration of buffered data at or above which the highest quality
+     *     track is selected. Should be less than the maximum buffer duration of the
+     *     {@link com.tangxiaolv.telegramgallery.exoplayer2.LoadControl}.
+     * @param bandwidthFraction The fraction of the available bandwidth that the selection should
+     *     consider available for use when switching up.
+     */
+    public Factory(BandwidthMeter bandwidthMeter, int maxInitialBitrate, int minBufferMs,
+        int targetBufferMs, float bandwidthFraction) {
+      this.bandwidthMeter = bandwidthMeter;
+      this.maxInitialBitrate = maxInitialBitrate;
+      this.minBufferMs = minBufferMs;
+      this.targetBufferMs = targetBufferMs;
+      this.bandwidthFraction = bandwidthFraction;
+    }
+
+    @Override
+    public BufferBasedTrackSelection createTrackSelection(TrackGroup group, int... tracks) {
+      return new BufferBasedTrackSelection(group, tracks, bandwidthMeter, maxInitialBitrate,
+          minBufferMs, targetBufferMs, bandwidthFraction);
+    }
+
+  }
+
+  public static final int DEFAULT_MAX_INITIAL_BITRATE = 800000;
+  public static final int DEFAULT_MIN_BUFFER_MS = 10000;
+  public static final int DEFAULT_TARGET_BUFFER_MS = 25000;
+  public static final float DEFAULT_BANDWIDTH_FRACTION = 0.75f;
+
+  // How far the buffered duration may fall beyond the elapsed time before it's taken as a seek.
+  private static final long DISCONTINUITY_TOLERANCE_US = 1000000;
+
+  private final BandwidthMeter bandwidthMeter;
+  private final int maxInitialBitrate;
+  private final float bandwidthFraction;
+  private final double[] utilities;
+  private final int[] bitrates;
+  private final double gamma;
+  private final double v;
+  private final long minBufferUs;
+  private final Clock clock;
+
+  private int selectedIndex;
+  private int reason;
+  private boolean isFillingAfterDiscontinuity;
+  private long lastBufferedDurationUs;
+  private long lastUpdateTimeMs;
+
+  /**
+   * @param group The {@link TrackGroup}.
+   * @param tracks The indices of the selected tracks within the {@link TrackGroup}. Must not be
+   *     empty. May be in any order.
+   * @param bandwidthMeter Provides an estimate of the currently available bandwidth.
+   */
+  public BufferBasedTrackSelection(TrackGroup group, int[] tracks,
+      BandwidthMeter bandwidthMeter) {
+    this(group, tracks, bandwidthMeter, DEFAULT_MAX_INITIAL_BITRATE, DEFAULT_MIN_BUFFER_MS,
+        DEFAULT_TARGET_BUFFER_MS, DEFAULT_BANDWIDTH_FRACTION);
+  }
+
+  /**
+   * @param group The {@link TrackGroup}.
+   * @param tracks The indices of the selected tracks within the {@link TrackGroup}. Must not be
+   *     empty. May be in any order.
+   * @param bandwidthMeter Provides an estimate of the currently available bandwidth.
+   * @param maxInitialBitrate The maximum bitrate in bits per second that should be assumed when a
+   *     bandwidth estimate is unavailable.
+   * @param minBufferMs The duration of buffered data at or below which the lowest quality track is
+   *     selected, unless the bandwidth estimate allows a higher one.
+   * @param targetBufferMs The duration of buffered data at or above which the highest quality
+   *     track is selected.
+   * @param bandwidthFraction The fraction of the available bandwidth that the selection should
+   *     consider available for use when switching up.
+   */
+  public BufferBasedTrackSelection(TrackGroup group, int[] tracks, BandwidthMeter bandwidthMeter,
+      int maxInitialBitrate, int minBufferMs, int targetBufferMs, float bandwidthFraction) {
+    this(group, tracks, bandwidthMeter, maxInitialBitrate, minBufferMs, targetBufferMs,
+        bandwidthFraction, new SystemClock());
+  }
+
+  /**
+   * Like {@link #BufferBasedTrackSelection(TrackGroup, int[], BandwidthMeter, int, int, int,
+   * float)}, reading the time used to recognize seeks from the given {@link Clock}.
+   */
+  /* package */ BufferBasedTrackSelection(TrackGroup group, int[] tracks,
+      BandwidthMeter bandwidthMeter, int maxInitialBitrate, int minBufferMs, int targetBufferMs,
+      float bandwidthFraction, Clock clock) {
+    super(group, tracks);
+    this.bandwidthMeter = bandwidthMeter;
+    this.maxInitialBitrate = maxInitialBitrate;
+    this.bandwidthFraction = bandwidthFraction;
+    bitrates = new int[length];
+    utilities = new double[length];
+    // Formats are sorted by decreasing bitrate, so the last one has the lowest.
+    for (int i = 0; i < length; i++) {
+      bitrates[i] = Math.max(getFormat(i).bitrate, 1);
+    }
+    double minBitrateLog = Math.log(bitrates[length - 1]);
+    for (int i = 0; i < length; i++) {
+      utilities[i] = Math.log(bitrates[i]) - minBitrateLog + 1;
+    }
+    double minBufferSeconds = minBufferMs / 1000d;
+    double targetBufferSeconds = Math.max(targetBufferMs, minBufferMs + 1) / 1000d;
+    // Avoid dividing by zero if all tracks have the same bitrate.
+    gamma = Math.max(utilities[0] - 1, 0.001)
+        / (targetBufferSeconds / minBufferSeconds - 1);
+    v = minBufferSeconds / gamma;
+    minBufferUs = minBufferMs * 1000L;
+    this.clock = clock;
+    selectedIndex = determineThroughputIndex(Long.MIN_VALUE);
+    reason = C.SELECTION_REASON_INITIAL;
+    isFillingAfterDiscontinuity = true;
+    lastUpdateTimeMs = C.TIME_UNSET;
+  }
+
+  @Override
+  public void updateSelectedTrack(long bufferedDurationUs) {
+    long nowMs = clock.elapsedRealtime();
+    if (lastUpdateTimeMs != C.TIME_UNSET && lastBufferedDurationUs - bufferedDurationUs
+        > (nowMs - lastUpdateTimeMs) * 1000 + DISCONTINUITY_TOLERANCE_US) {
+      // Playback can't have consumed the difference, the buffer was discarded by a seek.
+      isFillingAfterDiscontinuity = true;
+    }
+    lastBufferedDurationUs = bufferedDurationUs;
+    lastUpdateTimeMs = nowMs;
+    if (bufferedDurationUs >= minBufferUs) {
+      isFillingAfterDiscontinuity = false;
+    }
+
+    int currentSelectedIndex = selectedIndex;
+    int bufferIndex = determineBufferIndex(bufferedDurationUs, nowMs);
+    if (isFillingAfterDiscontinuity) {
+      // The buffer is still building up, don't go below the track the bandwidth allows.
+      selectedIndex = Math.min(bufferIndex, determineThroughputIndex(nowMs));
+    } else if (bufferIndex < currentSelectedIndex) {
+      // Only switch up as far as the bandwidth allows, but never below the current track.
+      int throughputIndex = determineThroughputIndex(nowMs);
+      selectedIndex = Math.max(bufferIndex, Math.min(currentSelectedIndex, throughputIndex));
+      if (isBlacklisted(selectedIndex, nowMs)) {
+        selectedIndex = bufferIndex;
+      }
+    } else {
+      selectedIndex = bufferIndex;
+    }
+    if (selectedIndex != currentSelectedIndex) {
+      reason = C.SELECTION_REASON_ADAPTIVE;
+    }
+  }
+
+  @Override
+  public int getSelectedIndex() {
+    return selectedIndex;
+  }
+
+  @Override
+  public int getSelectionReason() {
+    return reason;
+  }
+
+  @Override
+  public Object getSelectionData() {
+    return null;
+  }
+
+  /**
+   * Computes the index maximizing the BOLA objective for the given buffer duration.
+   */
+  private int determineBufferIndex(long bufferedDurationUs, long nowMs) {
+    double bufferSeconds = bufferedDurationUs / (double) C.MICROS_PER_SECOND;
+    int bestIndex = C.INDEX_UNSET;
+    double bestScore = 0;
+    for (int i = 0; i < length; i++) {
+      if (isBlacklisted(i, nowMs)) {
+        continue;
+      }
+      double score = (v * (utilities[i] + gamma) - bufferSeconds) / bitrates[i];
+      if (bestIndex == C.INDEX_UNSET || score > bestScore) {
+        bestIndex = i;
+        bestScore = score;
+      }
+    }
+    return bestIndex == C.INDEX_UNSET ? selectedIndex : bestIndex;
+  }
+
+  /**
+   * Computes the index of the highest quality track the bandwidth estimate allows.
+   *
+   * @param nowMs The current time in the timebase of {@link Clock#elapsedRealtime()}, or
+   *     {@link Long#MIN_VALUE} to ignore blacklisting.
+   */
+  private int determineThroughputIndex(long nowMs) {
+    long bitrateEstimate = bandwidthMeter.getBitrateEstimate();
+    long effectiveBitrate = bitrateEstimate == BandwidthMeter.NO_ESTIMATE
+        ? maxInitialBitrate : (long) (bitrateEstimate * bandwidthFraction);
+    int lowestBitrateNonBlacklistedIndex = 0;
+    for (int i = 0; i < length; i++) {
+      if (nowMs == Long.MIN_VALUE || !isBlacklisted(i, nowMs)) {
+        if (bitrates[i] <= effectiveBitrate) {
+          return i;
+        } else {
+          lowestBitrateNonBlacklistedIndex = i;
+        }
+      }
+    }
+    return lowestBitrateNonBlacklistedIndex;
+  }
+
+}
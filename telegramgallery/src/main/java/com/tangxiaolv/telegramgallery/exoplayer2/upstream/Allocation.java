@@ -15,8 +15,10 @@
  */
 package com.tangxiaolv.telegramgallery.exoplayer2.upstream;
 
+import java.nio.ByteBuffer;
+
 /**
- * An allocation within a byte array.
+ * An allocation within a byte array, or a direct {@link ByteBuffer}.
  * <p>
  * The allocation's length is obtained by calling {@link Allocator#getIndividualAllocationLength()}
  * on the {@link Allocator} from which it was obtained.
@@ -25,10 +27,18 @@ public final class Allocation {
 
   /**
    * The array containing the allocated space. The allocated space might not be at the start of the
-   * array, and so {@link #translateOffset(int)} method must be used when indexing into it.
+   * array, and so {@link #translateOffset(int)} method must be used when indexing into it. Null
+   * if the allocation is backed by {@link #buffer}.
    */
   public final byte[] data;
 
+  /**
+   * The direct buffer containing the allocated space, which spans the whole buffer. Null if the
+   * allocation is backed by {@link #data}. The buffer's position and limit must not be modified,
+   * use a {@link ByteBuffer#duplicate()} to access its content.
+   */
+  public final ByteBuffer buffer;
+
   private final int offset;
 
   /**
@@ -38,6 +48,16 @@ public final class Allocation {
   public Allocation(byte[] data, int offset) {
     this.data = data;
     this.offset = offset;
+    buffer = null;
+  }
+
+  /**
+   * @param buffer The direct buffer containing the allocated space.
+   */
+  public Allocation(ByteBuffer buffer) {
+    this.buffer = buffer;
+    data = null;
+    offset = 0;
   }
 
   /**
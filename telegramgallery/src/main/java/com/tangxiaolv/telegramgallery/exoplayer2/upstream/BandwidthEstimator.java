@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream;
+
+/**
+ * Estimates bandwidth from samples of data transfers, on behalf of a {@link DefaultBandwidthMeter}.
+ * <p>
+ * Implementations needn't be thread safe, the meter serializes calls.
+ */
+public interface BandwidthEstimator {
+
+  /**
+   * A factory for {@link BandwidthEstimator} instances.
+   */
+  interface Factory {
+
+    /**
+     * Creates a {@link BandwidthEstimator} instance.
+     */
+    BandwidthEstimator createBandwidthEstimator();
+
+  }
+
+  /**
+   * Adds a sample.
+   *
+   * @param bytes The number of bytes transferred.
+   * @param elapsedMs The time taken to transfer the bytes, in milliseconds. Greater than zero.
+   */
+  void addSample(long bytes, long elapsedMs);
+
+  /**
+   * Returns the estimated bandwidth in bits/sec, or {@link BandwidthMeter#NO_ESTIMATE} if an
+   * estimate is not available.
+   */
+  long getBitrateEstimate();
+
+}
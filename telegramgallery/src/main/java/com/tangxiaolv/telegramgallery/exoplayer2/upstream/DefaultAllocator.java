@@ -17,24 +17,65 @@ package com.tangxiaolv.telegramgallery.exoplayer2.upstream;
 
 import com.tangxiaolv.telegramgallery.exoplayer2.util.Assertions;
 import com.tangxiaolv.telegramgallery.exoplayer2.util.Util;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Default implementation of {@link Allocator}.
+ * <p>
+ * {@link #allocate()} and {@link #release(Allocation)} don't lock. Each thread allocates from and
+ * releases to its own magazine of up to {@link #MAGAZINE_SIZE} allocations. Magazines are
+ * exchanged in whole with a lock-free shared pool when they run empty or full, so a thread that
+ * only releases (such as the playback thread) hands allocations to a thread that only allocates
+ * (such as the loading thread) in batches.
+ * <p>
+ * Allocations can optionally be backed by direct {@link ByteBuffer}s rather than by byte arrays,
+ * which keeps buffered media off the Java heap.
  */
 public final class DefaultAllocator implements Allocator {
 
-  private static final int AVAILABLE_EXTRA_CAPACITY = 100;
+  /**
+   * The maximum number of allocations held by a magazine.
+   */
+  public static final int MAGAZINE_SIZE = 16;
+
+  private static final class Magazine {
+
+    public final Allocation[] allocations;
+    public int count;
+    public int trimGeneration;
+
+    public Magazine() {
+      allocations = new Allocation[MAGAZINE_SIZE];
+    }
+
+    public boolean isEmpty() {
+      return count == 0;
+    }
+
+    public boolean isFull() {
+      return count == MAGAZINE_SIZE;
+    }
+
+  }
 
   private final boolean trimOnReset;
   private final int individualAllocationSize;
+  private final boolean useDirectBuffers;
   private final byte[] initialAllocationBlock;
-  private final Allocation[] singleAllocationReleaseHolder;
+  private final Set<Allocation> initialDirectAllocations;
+  private final AtomicInteger allocatedCount;
+  private final ConcurrentLinkedQueue<Magazine> fullMagazines;
+  private final ConcurrentLinkedQueue<Magazine> emptyMagazines;
+  private final ThreadLocal<Magazine> localMagazine;
 
   private int targetBufferSize;
-  private int allocatedCount;
-  private int availableCount;
-  private Allocation[] availableAllocations;
+  private volatile int trimGeneration;
 
   /**
    * Constructs an instance without creating any {@link Allocation}s up front.
@@ -59,22 +100,73 @@ public final class DefaultAllocator implements Allocator {
    */
   public DefaultAllocator(boolean trimOnReset, int individualAllocationSize,
       int initialAllocationCount) {
+    this(trimOnReset, individualAllocationSize, initialAllocationCount, false);
+  }
+
+  /**
+   * Constructs an instance with some {@link Allocation}s created up front.
+   * <p>
+   * Note: {@link Allocation}s created up front will never be discarded by {@link #trim()}.
+   *
+   * @param trimOnReset Whether memory is freed when the allocator is reset. Should be true unless
+   *     the allocator will be re-used by multiple player instances.
+   * @param individualAllocationSize The length of each individual {@link Allocation}.
+   * @param initialAllocationCount The number of allocations to create up front.
+   * @param useDirectBuffers Whether allocations are backed by direct {@link ByteBuffer}s rather
+   *     than by byte arrays.
+   */
+  public DefaultAllocator(boolean trimOnReset, int individualAllocationSize,
+      int initialAllocationCount, boolean useDirectBuffers) {
     Assertions.checkArgument(individualAllocationSize > 0);
     Assertions.checkArgument(initialAllocationCount >= 0);
     this.trimOnReset = trimOnReset;
     this.individualAllocationSize = individualAllocationSize;
-    this.availableCount = initialAllocationCount;
-    this.availableAllocations = new Allocation[initialAllocationCount + AVAILABLE_EXTRA_CAPACITY];
-    if (initialAllocationCount > 0) {
+    this.useDirectBuffers = useDirectBuffers;
+    allocatedCount = new AtomicInteger();
+    fullMagazines = new ConcurrentLinkedQueue<>();
+    emptyMagazines = new ConcurrentLinkedQueue<>();
+    localMagazine = new ThreadLocal<Magazine>() {
+      @Override
+      protected Magazine initialValue() {
+        return obtainEmptyMagazine();
+      }
+    };
+    if (initialAllocationCount > 0 && useDirectBuffers) {
+      initialAllocationBlock = null;
+      initialDirectAllocations =
+          Collections.newSetFromMap(new IdentityHashMap<Allocation, Boolean>());
+      ByteBuffer block =
+          ByteBuffer.allocateDirect(initialAllocationCount * individualAllocationSize);
+      Magazine magazine = new Magazine();
+      for (int i = 0; i < initialAllocationCount; i++) {
+        int allocationOffset = i * individualAllocationSize;
+        block.limit(allocationOffset + individualAllocationSize);
+        block.position(allocationOffset);
+        Allocation allocation = new Allocation(block.slice());
+        initialDirectAllocations.add(allocation);
+        magazine.allocations[magazine.count++] = allocation;
+        if (magazine.isFull() || i == initialAllocationCount - 1) {
+          fullMagazines.add(magazine);
+          magazine = new Magazine();
+        }
+      }
+    } else if (initialAllocationCount > 0) {
       initialAllocationBlock = new byte[initialAllocationCount * individualAllocationSize];
+      initialDirectAllocations = null;
+      Magazine magazine = new Magazine();
       for (int i = 0; i < initialAllocationCount; i++) {
         int allocationOffset = i * individualAllocationSize;
-        availableAllocations[i] = new Allocation(initialAllocationBlock, allocationOffset);
+        magazine.allocations[magazine.count++] =
+            new Allocation(initialAllocationBlock, allocationOffset);
+        if (magazine.isFull() || i == initialAllocationCount - 1) {
+          fullMagazines.add(magazine);
+          magazine = new Magazine();
+        }
       }
     } else {
       initialAllocationBlock = null;
+      initialDirectAllocations = null;
     }
-    singleAllocationReleaseHolder = new Allocation[1];
   }
 
   public synchronized void reset() {
@@ -92,86 +184,99 @@ public final class DefaultAllocator implements Allocator {
   }
 
   @Override
-  public synchronized Allocation allocate() {
-    allocatedCount++;
-    Allocation allocation;
-    if (availableCount > 0) {
-      allocation = availableAllocations[--availableCount];
-      availableAllocations[availableCount] = null;
-    } else {
-      allocation = new Allocation(new byte[individualAllocationSize], 0);
+  public Allocation allocate() {
+    allocatedCount.incrementAndGet();
+    Magazine magazine = getLocalMagazine();
+    if (magazine.isEmpty()) {
+      Magazine fullMagazine = fullMagazines.poll();
+      if (fullMagazine == null) {
+        return useDirectBuffers
+            ? new Allocation(ByteBuffer.allocateDirect(individualAllocationSize))
+            : new Allocation(new byte[individualAllocationSize], 0);
+      }
+      emptyMagazines.add(magazine);
+      fullMagazine.trimGeneration = trimGeneration;
+      localMagazine.set(fullMagazine);
+      magazine = fullMagazine;
     }
+    Allocation allocation = magazine.allocations[--magazine.count];
+    magazine.allocations[magazine.count] = null;
     return allocation;
   }
 
   @Override
-  public synchronized void release(Allocation allocation) {
-    singleAllocationReleaseHolder[0] = allocation;
-    release(singleAllocationReleaseHolder);
+  public void release(Allocation allocation) {
+    releaseInternal(getLocalMagazine(), allocation);
+    allocatedCount.decrementAndGet();
   }
 
   @Override
-  public synchronized void release(Allocation[] allocations) {
-    if (availableCount + allocations.length >= availableAllocations.length) {
-      availableAllocations = Arrays.copyOf(availableAllocations,
-          Math.max(availableAllocations.length * 2, availableCount + allocations.length));
-    }
+  public void release(Allocation[] allocations) {
+    Magazine magazine = getLocalMagazine();
     for (Allocation allocation : allocations) {
-      // Weak sanity check that the allocation probably originated from this pool.
-      Assertions.checkArgument(allocation.data == initialAllocationBlock
-          || allocation.data.length == individualAllocationSize);
-      availableAllocations[availableCount++] = allocation;
+      magazine = releaseInternal(magazine, allocation);
     }
-    allocatedCount -= allocations.length;
-    // Wake up threads waiting for the allocated size to drop.
-    notifyAll();
+    allocatedCount.addAndGet(-allocations.length);
   }
 
+  /**
+   * Discards available allocations beyond those needed to reach the target buffer size. Only
+   * allocations in the shared pool are discarded immediately. If the shared pool alone reaches the
+   * target, allocations cached by each thread are discarded the next time that thread allocates or
+   * releases.
+   */
   @Override
   public synchronized void trim() {
     int targetAllocationCount = Util.ceilDivide(targetBufferSize, individualAllocationSize);
-    int targetAvailableCount = Math.max(0, targetAllocationCount - allocatedCount);
-    if (targetAvailableCount >= availableCount) {
-      // We're already at or below the target.
-      return;
-    }
-
-    if (initialAllocationBlock != null) {
-      // Some allocations are backed by an initial block. We need to make sure that we hold onto all
-      // such allocations. Re-order the available allocations so that the ones backed by the initial
-      // block come first.
-      int lowIndex = 0;
-      int highIndex = availableCount - 1;
-      while (lowIndex <= highIndex) {
-        Allocation lowAllocation = availableAllocations[lowIndex];
-        if (lowAllocation.data == initialAllocationBlock) {
-          lowIndex++;
+    int targetAvailableCount = Math.max(0, targetAllocationCount - allocatedCount.get());
+
+    ArrayList<Allocation> availableAllocations = new ArrayList<>();
+    int initialAvailableCount = 0;
+    Magazine magazine;
+    while ((magazine = fullMagazines.poll()) != null) {
+      for (int i = 0; i < magazine.count; i++) {
+        Allocation allocation = magazine.allocations[i];
+        if (isInitialAllocation(allocation)) {
+          // Allocations backed by the initial block are never discarded, so keep them first.
+          availableAllocations.add(initialAvailableCount++, allocation);
         } else {
-          Allocation highAllocation = availableAllocations[highIndex];
-          if (highAllocation.data != initialAllocationBlock) {
-            highIndex--;
-          } else {
-            availableAllocations[lowIndex++] = highAllocation;
-            availableAllocations[highIndex--] = lowAllocation;
-          }
+          availableAllocations.add(allocation);
         }
+        magazine.allocations[i] = null;
       }
-      // lowIndex is the index of the first allocation not backed by an initial block.
-      targetAvailableCount = Math.max(targetAvailableCount, lowIndex);
-      if (targetAvailableCount >= availableCount) {
-        // We're already at or below the target.
-        return;
-      }
+      magazine.count = 0;
+      emptyMagazines.add(magazine);
+    }
+
+    if (availableAllocations.size() >= targetAvailableCount) {
+      // Anything cached by individual threads is excess.
+      trimGeneration++;
+    }
+    int keptCount = Math.max(targetAvailableCount, initialAvailableCount);
+    if (keptCount < availableAllocations.size()) {
+      // Discard allocations beyond the target.
+      availableAllocations.subList(keptCount, availableAllocations.size()).clear();
     }
 
-    // Discard allocations beyond the target.
-    Arrays.fill(availableAllocations, targetAvailableCount, availableCount, null);
-    availableCount = targetAvailableCount;
+    magazine = null;
+    for (int i = 0; i < availableAllocations.size(); i++) {
+      if (magazine == null) {
+        magazine = obtainEmptyMagazine();
+      }
+      magazine.allocations[magazine.count++] = availableAllocations.get(i);
+      if (magazine.isFull()) {
+        fullMagazines.add(magazine);
+        magazine = null;
+      }
+    }
+    if (magazine != null) {
+      fullMagazines.add(magazine);
+    }
   }
 
   @Override
-  public synchronized int getTotalBytesAllocated() {
-    return allocatedCount * individualAllocationSize;
+  public int getTotalBytesAllocated() {
+    return allocatedCount.get() * individualAllocationSize;
   }
 
   @Override
@@ -179,4 +284,59 @@ public final class DefaultAllocator implements Allocator {
     return individualAllocationSize;
   }
 
+  /**
+   * Returns whether allocations are backed by direct {@link ByteBuffer}s.
+   */
+  public boolean usesDirectBuffers() {
+    return useDirectBuffers;
+  }
+
+  private Magazine getLocalMagazine() {
+    Magazine magazine = localMagazine.get();
+    if (magazine.trimGeneration != trimGeneration) {
+      // Trimmed since this thread last used its magazine. Keep only allocations backed by the
+      // initial block.
+      int keptCount = 0;
+      for (int i = 0; i < magazine.count; i++) {
+        Allocation allocation = magazine.allocations[i];
+        magazine.allocations[i] = null;
+        if (isInitialAllocation(allocation)) {
+          magazine.allocations[keptCount++] = allocation;
+        }
+      }
+      magazine.count = keptCount;
+      magazine.trimGeneration = trimGeneration;
+    }
+    return magazine;
+  }
+
+  private boolean isInitialAllocation(Allocation allocation) {
+    return initialDirectAllocations != null ? initialDirectAllocations.contains(allocation)
+        : initialAllocationBlock != null && allocation.data == initialAllocationBlock;
+  }
+
+  private Magazine releaseInternal(Magazine magazine, Allocation allocation) {
+    // Weak sanity check that the allocation probably originated from this pool.
+    Assertions.checkArgument(useDirectBuffers
+        ? allocation.buffer != null && allocation.buffer.capacity() == individualAllocationSize
+        : allocation.data == initialAllocationBlock
+            || allocation.data.length == individualAllocationSize);
+    if (magazine.isFull()) {
+      fullMagazines.add(magazine);
+      magazine = obtainEmptyMagazine();
+      localMagazine.set(magazine);
+    }
+    magazine.allocations[magazine.count++] = allocation;
+    return magazine;
+  }
+
+  private Magazine obtainEmptyMagazine() {
+    Magazine magazine = emptyMagazines.poll();
+    if (magazine == null) {
+      magazine = new Magazine();
+    }
+    magazine.trimGeneration = trimGeneration;
+    return magazine;
+  }
+
 }
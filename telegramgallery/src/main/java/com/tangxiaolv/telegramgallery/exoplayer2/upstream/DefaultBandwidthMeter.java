@@ -18,33 +18,36 @@ package com.tangxiaolv.telegramgallery.exoplayer2.upstream;
 import android.os.Handler;
 import android.os.SystemClock;
 import com.tangxiaolv.telegramgallery.exoplayer2.util.Assertions;
-import com.tangxiaolv.telegramgallery.exoplayer2.util.SlidingPercentile;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Estimates bandwidth by listening to data transfers. The bandwidth estimate is calculated using
- * a {@link SlidingPercentile} and is updated each time a transfer ends.
+ * Estimates bandwidth by listening to data transfers. The bandwidth estimate is calculated by a
+ * {@link BandwidthEstimator}, by default a {@link SlidingMedianBandwidthEstimator}, and is updated
+ * each time a transfer ends.
+ * <p>
+ * Counting transferred bytes and reading the estimate don't lock.
  */
 public final class DefaultBandwidthMeter implements BandwidthMeter, TransferListener<Object> {
 
   /**
    * The default maximum weight for the sliding window.
    */
-  public static final int DEFAULT_MAX_WEIGHT = 2000;
+  public static final int DEFAULT_MAX_WEIGHT = SlidingMedianBandwidthEstimator.DEFAULT_MAX_WEIGHT;
 
   private static final int ELAPSED_MILLIS_FOR_ESTIMATE = 2000;
   private static final int BYTES_TRANSFERRED_FOR_ESTIMATE = 512 * 1024;
 
   private final Handler eventHandler;
   private final EventListener eventListener;
-  private final SlidingPercentile slidingPercentile;
+  private final BandwidthEstimator bandwidthEstimator;
+  private final AtomicLong sampleBytesTransferred;
 
   private int streamCount;
   private long sampleStartTimeMs;
-  private long sampleBytesTransferred;
 
   private long totalElapsedTimeMs;
   private long totalBytesTransferred;
-  private long bitrateEstimate;
+  private volatile long bitrateEstimate;
 
   public DefaultBandwidthMeter() {
     this(null, null);
@@ -55,14 +58,25 @@ public final class DefaultBandwidthMeter implements BandwidthMeter, TransferList
   }
 
   public DefaultBandwidthMeter(Handler eventHandler, EventListener eventListener, int maxWeight) {
+    this(eventHandler, eventListener, new SlidingMedianBandwidthEstimator(maxWeight));
+  }
+
+  /**
+   * @param eventHandler A handler for events. May be null if delivery of events is not required.
+   * @param eventListener A listener of events. May be null if delivery of events is not required.
+   * @param bandwidthEstimator The {@link BandwidthEstimator} which calculates the estimate.
+   */
+  public DefaultBandwidthMeter(Handler eventHandler, EventListener eventListener,
+      BandwidthEstimator bandwidthEstimator) {
     this.eventHandler = eventHandler;
     this.eventListener = eventListener;
-    this.slidingPercentile = new SlidingPercentile(maxWeight);
+    this.bandwidthEstimator = Assertions.checkNotNull(bandwidthEstimator);
+    sampleBytesTransferred = new AtomicLong();
     bitrateEstimate = NO_ESTIMATE;
   }
 
   @Override
-  public synchronized long getBitrateEstimate() {
+  public long getBitrateEstimate() {
     return bitrateEstimate;
   }
 
@@ -75,8 +89,8 @@ public final class DefaultBandwidthMeter implements BandwidthMeter, TransferList
   }
 
   @Override
-  public synchronized void onBytesTransferred(Object source, int bytes) {
-    sampleBytesTransferred += bytes;
+  public void onBytesTransferred(Object source, int bytes) {
+    sampleBytesTransferred.addAndGet(bytes);
   }
 
   @Override
@@ -84,23 +98,20 @@ public final class DefaultBandwidthMeter implements BandwidthMeter, TransferList
     Assertions.checkState(streamCount > 0);
     long nowMs = SystemClock.elapsedRealtime();
     int sampleElapsedTimeMs = (int) (nowMs - sampleStartTimeMs);
+    long sampleBytesTransferred = this.sampleBytesTransferred.getAndSet(0);
     totalElapsedTimeMs += sampleElapsedTimeMs;
     totalBytesTransferred += sampleBytesTransferred;
     if (sampleElapsedTimeMs > 0) {
-      float bitsPerSecond = (sampleBytesTransferred * 8000) / sampleElapsedTimeMs;
-      slidingPercentile.addSample((int) Math.sqrt(sampleBytesTransferred), bitsPerSecond);
+      bandwidthEstimator.addSample(sampleBytesTransferred, sampleElapsedTimeMs);
       if (totalElapsedTimeMs >= ELAPSED_MILLIS_FOR_ESTIMATE
           || totalBytesTransferred >= BYTES_TRANSFERRED_FOR_ESTIMATE) {
-        float bitrateEstimateFloat = slidingPercentile.getPercentile(0.5f);
-        bitrateEstimate = Float.isNaN(bitrateEstimateFloat) ? NO_ESTIMATE
-            : (long) bitrateEstimateFloat;
+        bitrateEstimate = bandwidthEstimator.getBitrateEstimate();
       }
     }
     notifyBandwidthSample(sampleElapsedTimeMs, sampleBytesTransferred, bitrateEstimate);
     if (--streamCount > 0) {
       sampleStartTimeMs = nowMs;
     }
-    sampleBytesTransferred = 0;
   }
 
   private void notifyBandwidthSample(final int elapsedMs, final long bytes, final long bitrate) {
@@ -20,6 +20,7 @@ import android.net.Uri;
 import com.tangxiaolv.telegramgallery.exoplayer2.util.Assertions;
 import com.tangxiaolv.telegramgallery.exoplayer2.util.Util;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A {@link DataSource} that supports multiple URI schemes. The supported schemes are:
@@ -35,14 +36,16 @@ import java.io.IOException;
  *     any other schemes supported by a base data source if constructed using
  *     {@link #DefaultDataSource(Context, TransferListener, DataSource)}.
  * </ul>
+ * Local files are read through a {@link MappedFileDataSource}, whose mapped data is exposed through
+ * {@link #getMappedRegion()}.
  */
-public final class DefaultDataSource implements DataSource {
+public final class DefaultDataSource implements MappedDataSource {
 
   private static final String SCHEME_ASSET = "asset";
   private static final String SCHEME_CONTENT = "content";
 
   private final DataSource baseDataSource;
-  private final DataSource fileDataSource;
+  private final MappedFileDataSource fileDataSource;
   private final DataSource assetDataSource;
   private final DataSource contentDataSource;
 
@@ -96,7 +99,7 @@ public final class DefaultDataSource implements DataSource {
   public DefaultDataSource(Context context, TransferListener<? super DataSource> listener,
       DataSource baseDataSource) {
     this.baseDataSource = Assertions.checkNotNull(baseDataSource);
-    this.fileDataSource = new FileDataSource(listener);
+    this.fileDataSource = new MappedFileDataSource(listener);
     this.assetDataSource = new AssetDataSource(context, listener);
     this.contentDataSource = new ContentDataSource(context, listener);
   }
@@ -128,6 +131,17 @@ public final class DefaultDataSource implements DataSource {
     return dataSource.read(buffer, offset, readLength);
   }
 
+  @Override
+  public ByteBuffer getMappedRegion() throws IOException {
+    return dataSource == fileDataSource ? fileDataSource.getMappedRegion() : null;
+  }
+
+  @Override
+  public void consumeMappedBytes(int length) {
+    Assertions.checkState(dataSource == fileDataSource);
+    fileDataSource.consumeMappedBytes(length);
+  }
+
   @Override
   public Uri getUri() {
     return dataSource == null ? null : dataSource.getUri();
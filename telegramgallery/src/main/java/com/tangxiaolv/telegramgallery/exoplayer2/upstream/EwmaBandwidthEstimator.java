@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream;
+
+/**
+ * A {@link BandwidthEstimator} that keeps a fast and a slow exponentially weighted moving average
+ * of the bitrate, weighted by the duration of each sample, and estimates the lower of the two. The
+ * estimate drops quickly when bandwidth drops, and rises only once higher bandwidth is sustained.
+ */
+public final class EwmaBandwidthEstimator implements BandwidthEstimator {
+
+  /**
+   * The default half-life of the fast average, in milliseconds.
+   */
+  public static final int DEFAULT_FAST_HALF_LIFE_MS = 2000;
+  /**
+   * The default half-life of the slow average, in milliseconds.
+   */
+  public static final int DEFAULT_SLOW_HALF_LIFE_MS = 5000;
+
+  /**
+   * A factory for {@link EwmaBandwidthEstimator} instances.
+   */
+  public static final class Factory implements BandwidthEstimator.Factory {
+
+    private final int fastHalfLifeMs;
+    private final int slowHalfLifeMs;
+
+    public Factory() {
+      this(DEFAULT_FAST_HALF_LIFE_MS, DEFAULT_SLOW_HALF_LIFE_MS);
+    }
+
+    /**
+     * @param fastHalfLifeMs The half-life of the fast average, in milliseconds.
+     * @param slowHalfLifeMs The half-life of the slow average, in milliseconds.
+     */
+    public Factory(int fastHalfLifeMs, int slowHalfLifeMs) {
+      this.fastHalfLifeMs = fastHalfLifeMs;
+      this.slowHalfLifeMs = slowHalfLifeMs;
+    }
+
+    @Override
+    public BandwidthEstimator createBandwidthEstimator() {
+      return new EwmaBandwidthEstimator(fastHalfLifeMs, slowHalfLifeMs);
+    }
+
+  }
+
+  private final Ewma fast;
+  private final Ewma slow;
+
+  public EwmaBandwidthEstimator() {
+    this(DEFAULT_FAST_HALF_LIFE_MS, DEFAULT_SLOW_HALF_LIFE_MS);
+  }
+
+  /**
+   * @param fastHalfLifeMs The half-life of the fast average, in milliseconds.
+   * @param slowHalfLifeMs The half-life of the slow average, in milliseconds.
+   */
+  public EwmaBandwidthEstimator(int fastHalfLifeMs, int slowHalfLifeMs) {
+    fast = new Ewma(fastHalfLifeMs);
+    slow = new Ewma(slowHalfLifeMs);
+  }
+
+  @Override
+  public void addSample(long bytes, long elapsedMs) {
+    double bitsPerSecond = (bytes * 8000d) / elapsedMs;
+    fast.addSample(elapsedMs, bitsPerSecond);
+    slow.addSample(elapsedMs, bitsPerSecond);
+  }
+
+  @Override
+  public long getBitrateEstimate() {
+    if (fast.totalWeightMs == 0) {
+      return BandwidthMeter.NO_ESTIMATE;
+    }
+    return (long) Math.min(fast.getEstimate(), slow.getEstimate());
+  }
+
+  private static final class Ewma {
+
+    private final double alphaPerMs;
+
+    public double estimate;
+    public long totalWeightMs;
+
+    public Ewma(int halfLifeMs) {
+      alphaPerMs = Math.exp(Math.log(0.5) / halfLifeMs);
+    }
+
+    public void addSample(long weightMs, double value) {
+      double alpha = Math.pow(alphaPerMs, weightMs);
+      estimate = value * (1 - alpha) + alpha * estimate;
+      totalWeightMs += weightMs;
+    }
+
+    public double getEstimate() {
+      // Correct for the bias towards the initial estimate of zero.
+      return estimate / (1 - Math.pow(alphaPerMs, totalWeightMs));
+    }
+
+  }
+
+}
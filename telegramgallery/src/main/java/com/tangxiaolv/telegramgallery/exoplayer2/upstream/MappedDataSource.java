@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link DataSource} whose data may be memory-mapped. Mapped data can be consumed without being
+ * copied, which {@link com.tangxiaolv.telegramgallery.exoplayer2.extractor.DefaultExtractorInput}
+ * does when extractors skip data.
+ */
+public interface MappedDataSource extends DataSource {
+
+  /**
+   * Returns a buffer whose remaining bytes are the mapped data from the current read position, or
+   * null if no mapped data is available at the read position. This is the case when the end of
+   * the opened range has been reached, or when the data isn't read from a mapping.
+   * <p>
+   * The returned buffer is owned by the source. Callers may change its position and limit, but it
+   * must not be used after the next call to any other method of the source.
+   *
+   * @return The mapped data from the current read position, or null.
+   * @throws IOException If an error occurs mapping the data.
+   */
+  ByteBuffer getMappedRegion() throws IOException;
+
+  /**
+   * Advances the read position by {@code length} bytes of the region last returned by
+   * {@link #getMappedRegion()}, as if they had been read.
+   *
+   * @param length The number of bytes to consume. Must not exceed the number of bytes remaining in
+   *     the region when it was returned.
+   */
+  void consumeMappedBytes(int length);
+
+}
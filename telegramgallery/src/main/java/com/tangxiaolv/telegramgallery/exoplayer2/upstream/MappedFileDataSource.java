@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream;
+
+import android.net.Uri;
+import com.tangxiaolv.telegramgallery.exoplayer2.C;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.FileDataSource.FileDataSourceException;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.Assertions;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link DataSource} for reading local files through a memory mapping.
+ * <p>
+ * Each {@link #open(DataSpec)} maps a single window from the opened position, sized from the reads
+ * expected: the length of the {@link DataSpec} if it's bounded, and otherwise the number of bytes
+ * read after the previous open, between {@link #INITIAL_WINDOW_SIZE} and the maximum window size.
+ * Reads within the window are served by bulk copies, which avoids a system call per read, and the
+ * window is exposed through {@link #getMappedRegion()} so that extractors can skip it without
+ * copying. Mappings are only released once they are garbage collected, so the window is never
+ * moved: data beyond it is read from the file instead. The window is kept when the source is
+ * closed, and reused if the same file is opened again at a position inside it, e.g. when an
+ * extractor seeks back, so each source holds at most one mapping. Reads expected to be shorter
+ * than {@link #MIN_MAPPED_LENGTH} aren't worth a mapping, and are read from the file as
+ * {@link FileDataSource} does, as are opens for which the file can't be mapped.
+ */
+public final class MappedFileDataSource implements MappedDataSource {
+
+  /**
+   * The default maximum size of a mapped window, in bytes.
+   */
+  public static final int DEFAULT_WINDOW_SIZE = 16 * 1024 * 1024;
+  /**
+   * The size of the window mapped when the number of bytes to be read isn't known, before any data
+   * has been read, in bytes.
+   */
+  public static final int INITIAL_WINDOW_SIZE = 1024 * 1024;
+  /**
+   * The number of bytes expected to be read below which the file isn't mapped.
+   */
+  public static final int MIN_MAPPED_LENGTH = 64 * 1024;
+
+  private final TransferListener<? super MappedFileDataSource> listener;
+  private final int windowSize;
+
+  private RandomAccessFile file;
+  private FileChannel channel;
+  private Uri uri;
+  private long readPosition;
+  private long bytesRemaining;
+  private long bytesRead;
+  private boolean opened;
+
+  // The last mapped window, which is kept after closing so that it can be reused.
+  private ByteBuffer window;
+  private long windowPosition;
+  private String windowPath;
+  private long windowFileLength;
+  private long windowFileLastModified;
+  private int unboundedWindowSize;
+
+  public MappedFileDataSource() {
+    this(null);
+  }
+
+  /**
+   * @param listener An optional listener.
+   */
+  public MappedFileDataSource(TransferListener<? super MappedFileDataSource> listener) {
+    this(listener, DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * @param listener An optional listener.
+   * @param windowSize The maximum size of a mapped window, in bytes.
+   */
+  public MappedFileDataSource(TransferListener<? super MappedFileDataSource> listener,
+      int windowSize) {
+    Assertions.checkArgument(windowSize > 0);
+    this.listener = listener;
+    this.windowSize = windowSize;
+    unboundedWindowSize = Math.min(INITIAL_WINDOW_SIZE, windowSize);
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws FileDataSourceException {
+    try {
+      uri = dataSpec.uri;
+      String path = dataSpec.uri.getPath();
+      file = new RandomAccessFile(path, "r");
+      channel = file.getChannel();
+      long fileLength = file.length();
+      readPosition = dataSpec.position;
+      bytesRemaining = dataSpec.length == C.LENGTH_UNSET ? fileLength - dataSpec.position
+          : dataSpec.length;
+      if (bytesRemaining < 0 || dataSpec.position + bytesRemaining > fileLength) {
+        throw new EOFException();
+      }
+      bytesRead = 0;
+      long lastModified = new File(path).lastModified();
+      if (!isInWindow(path, fileLength, lastModified)) {
+        long expectedLength = Math.min(bytesRemaining,
+            dataSpec.length == C.LENGTH_UNSET ? unboundedWindowSize : windowSize);
+        mapWindow(path, fileLength, lastModified, expectedLength);
+      }
+    } catch (IOException e) {
+      throw new FileDataSourceException(e);
+    }
+
+    opened = true;
+    if (listener != null) {
+      listener.onTransferStart(this, dataSpec);
+    }
+
+    return bytesRemaining;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws FileDataSourceException {
+    if (readLength == 0) {
+      return 0;
+    }
+    if (bytesRemaining == 0) {
+      return C.RESULT_END_OF_INPUT;
+    }
+    ByteBuffer region = getMappedRegion();
+    int bytesRead;
+    if (region != null) {
+      bytesRead = Math.min(region.remaining(), readLength);
+      region.get(buffer, offset, bytesRead);
+    } else {
+      // Past the window.
+      try {
+        bytesRead = channel.read(ByteBuffer.wrap(buffer, offset,
+            (int) Math.min(bytesRemaining, readLength)), readPosition);
+      } catch (IOException e) {
+        throw new FileDataSourceException(e);
+      }
+      if (bytesRead == -1) {
+        return C.RESULT_END_OF_INPUT;
+      }
+    }
+    advance(bytesRead);
+    return bytesRead;
+  }
+
+  @Override
+  public ByteBuffer getMappedRegion() {
+    if (bytesRemaining == 0 || window == null
+        || readPosition >= windowPosition + window.capacity()) {
+      return null;
+    }
+    int regionStart = (int) (readPosition - windowPosition);
+    int regionLength = (int) Math.min(window.capacity() - regionStart, bytesRemaining);
+    window.limit(regionStart + regionLength).position(regionStart);
+    return window;
+  }
+
+  @Override
+  public void consumeMappedBytes(int length) {
+    Assertions.checkArgument(length >= 0 && length <= bytesRemaining);
+    advance(length);
+  }
+
+  @Override
+  public Uri getUri() {
+    return uri;
+  }
+
+  @Override
+  public void close() throws FileDataSourceException {
+    uri = null;
+    channel = null;
+    if (opened) {
+      // The next open is expected to read about as much as this one.
+      unboundedWindowSize = (int) Math.min(windowSize, Math.max(INITIAL_WINDOW_SIZE, bytesRead));
+    }
+    try {
+      if (file != null) {
+        file.close();
+      }
+    } catch (IOException e) {
+      throw new FileDataSourceException(e);
+    } finally {
+      file = null;
+      if (opened) {
+        opened = false;
+        if (listener != null) {
+          listener.onTransferEnd(this);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns whether the last mapped window is of the given file, unchanged since it was mapped, and
+   * contains the read position.
+   */
+  private boolean isInWindow(String path, long fileLength, long lastModified) {
+    return window != null && path.equals(windowPath) && fileLength == windowFileLength
+        && lastModified == windowFileLastModified && readPosition >= windowPosition
+        && readPosition < windowPosition + window.capacity();
+  }
+
+  /**
+   * Maps a window of {@code length} bytes from the read position, replacing the last one, or
+   * drops the last one if {@code length} is too short to be worth mapping or the mapping fails.
+   */
+  private void mapWindow(String path, long fileLength, long lastModified, long length) {
+    // The replaced mapping is released once it's garbage collected.
+    window = null;
+    windowPath = null;
+    if (length < MIN_MAPPED_LENGTH) {
+      return;
+    }
+    try {
+      window = channel.map(FileChannel.MapMode.READ_ONLY, readPosition, length);
+    } catch (IOException e) {
+      // For example if the address space is exhausted. Read from the file instead.
+      return;
+    }
+    windowPosition = readPosition;
+    windowPath = path;
+    windowFileLength = fileLength;
+    windowFileLastModified = lastModified;
+  }
+
+  private void advance(int length) {
+    if (length > 0) {
+      readPosition += length;
+      bytesRemaining -= length;
+      bytesRead += length;
+      if (listener != null) {
+        listener.onBytesTransferred(this, length);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.SparseArray;
+
+/**
+ * A {@link BandwidthEstimator} that keeps a separate history for each type of network, so that
+ * switching from Wi-Fi to mobile data and back doesn't start each estimate from scratch or carry
+ * one network's estimate over to the other.
+ * <p>
+ * The network type is determined when a sample is added. It can only be determined if the
+ * application holds the {@code ACCESS_NETWORK_STATE} permission, otherwise a single history is
+ * kept.
+ */
+public final class NetworkTypeBandwidthEstimator implements BandwidthEstimator {
+
+  private static final int TYPE_UNKNOWN = -1;
+
+  private final ConnectivityManager connectivityManager;
+  private final BandwidthEstimator.Factory estimatorFactory;
+  private final SparseArray<BandwidthEstimator> estimators;
+
+  private BandwidthEstimator currentEstimator;
+
+  /**
+   * @param context A context.
+   * @param estimatorFactory A factory for the estimator used for each type of network.
+   */
+  public NetworkTypeBandwidthEstimator(Context context,
+      BandwidthEstimator.Factory estimatorFactory) {
+    connectivityManager =
+        (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    this.estimatorFactory = estimatorFactory;
+    estimators = new SparseArray<>();
+  }
+
+  @Override
+  public void addSample(long bytes, long elapsedMs) {
+    int networkType = getNetworkType();
+    currentEstimator = estimators.get(networkType);
+    if (currentEstimator == null) {
+      currentEstimator = estimatorFactory.createBandwidthEstimator();
+      estimators.put(networkType, currentEstimator);
+    }
+    currentEstimator.addSample(bytes, elapsedMs);
+  }
+
+  @Override
+  public long getBitrateEstimate() {
+    return currentEstimator == null ? BandwidthMeter.NO_ESTIMATE
+        : currentEstimator.getBitrateEstimate();
+  }
+
+  private int getNetworkType() {
+    try {
+      NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+      return networkInfo == null ? TYPE_UNKNOWN : networkInfo.getType();
+    } catch (SecurityException e) {
+      // The permission isn't held.
+      return TYPE_UNKNOWN;
+    }
+  }
+
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream;
+
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import com.tangxiaolv.telegramgallery.exoplayer2.C;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.Assertions;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.Util;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link DataSource} that loads large resources over several connections in parallel.
+ * <p>
+ * The first connection covers the whole requested range, and the beginning of the resource is read
+ * from it directly. If the resource is longer than two segments, the rest is split into segments
+ * which are loaded with range requests on background threads, and handed out in order. Resources
+ * of unknown or small length are read from the first connection only.
+ * <p>
+ * The number of parallel connections is adapted to the {@link BandwidthMeter}, which should be
+ * listening to the upstream data sources. After every round of segments the connection count is
+ * increased if the bitrate estimate rose since the last change, and decreased if it fell.
+ * <p>
+ * Segments are loaded into {@link Allocation}s obtained from an {@link Allocator}, which are
+ * returned as soon as they have been read rather than when the whole segment has.
+ */
+public final class SegmentedDataSource implements DataSource {
+
+  /**
+   * The default maximum number of parallel connections.
+   */
+  public static final int DEFAULT_MAX_CONNECTION_COUNT = 4;
+  /**
+   * The default length of a segment, in bytes.
+   */
+  public static final int DEFAULT_SEGMENT_LENGTH = 1024 * 1024;
+
+  private static final int INITIAL_CONNECTION_COUNT = 2;
+  private static final long KEEP_ALIVE_SECONDS = 10;
+  private static final float ADJUSTMENT_THRESHOLD = 0.1f;
+
+  private final DataSource.Factory upstreamFactory;
+  private final BandwidthMeter bandwidthMeter;
+  private final ExecutorService executor;
+  private final Allocator allocator;
+  private final int allocationLength;
+  private final int maxConnectionCount;
+  private final int segmentLength;
+  private final ArrayDeque<Segment> segments;
+
+  private DataSource primary;
+  private DataSpec dataSpec;
+  private Uri uri;
+  private long length;
+  private long primaryBytesRemaining;
+  private long nextSegmentPosition;
+
+  // Accessed by the loading threads, guarded by this.
+  private int connectionCount;
+  private int segmentsSinceAdjustment;
+  private long bitrateEstimateAtAdjustment;
+
+  /**
+   * @param upstreamFactory A factory for the {@link DataSource}s from which data is read.
+   * @param bandwidthMeter The {@link BandwidthMeter} used to adapt the number of connections.
+   */
+  public SegmentedDataSource(DataSource.Factory upstreamFactory, BandwidthMeter bandwidthMeter) {
+    this(upstreamFactory, bandwidthMeter, DEFAULT_MAX_CONNECTION_COUNT, DEFAULT_SEGMENT_LENGTH);
+  }
+
+  /**
+   * @param upstreamFactory A factory for the {@link DataSource}s from which data is read.
+   * @param bandwidthMeter The {@link BandwidthMeter} used to adapt the number of connections.
+   * @param maxConnectionCount The maximum number of segments loaded in parallel. Also bounds the
+   *     number of segments held in memory.
+   * @param segmentLength The length of a segment, in bytes.
+   */
+  public SegmentedDataSource(DataSource.Factory upstreamFactory, BandwidthMeter bandwidthMeter,
+      int maxConnectionCount, int segmentLength) {
+    this(upstreamFactory, bandwidthMeter, createExecutor(maxConnectionCount),
+        createAllocator(maxConnectionCount, segmentLength), maxConnectionCount, segmentLength);
+  }
+
+  /**
+   * @param upstreamFactory A factory for the {@link DataSource}s from which data is read.
+   * @param bandwidthMeter The {@link BandwidthMeter} used to adapt the number of connections.
+   * @param executor The executor on which segments are loaded. May be shared by several instances.
+   * @param allocator The {@link Allocator} providing the memory into which segments are loaded.
+   *     Its {@link Allocation}s must be backed by arrays. May be shared by several instances.
+   * @param maxConnectionCount The maximum number of segments loaded in parallel. Also bounds the
+   *     number of segments held in memory.
+   * @param segmentLength The length of a segment, in bytes.
+   */
+  public SegmentedDataSource(DataSource.Factory upstreamFactory, BandwidthMeter bandwidthMeter,
+      ExecutorService executor, Allocator allocator, int maxConnectionCount, int segmentLength) {
+    Assertions.checkArgument(maxConnectionCount > 0 && segmentLength > 0);
+    this.upstreamFactory = Assertions.checkNotNull(upstreamFactory);
+    this.bandwidthMeter = Assertions.checkNotNull(bandwidthMeter);
+    this.executor = Assertions.checkNotNull(executor);
+    this.allocator = Assertions.checkNotNull(allocator);
+    allocationLength = allocator.getIndividualAllocationLength();
+    this.maxConnectionCount = maxConnectionCount;
+    this.segmentLength = segmentLength;
+    segments = new ArrayDeque<>();
+    connectionCount = Math.min(INITIAL_CONNECTION_COUNT, maxConnectionCount);
+    bitrateEstimateAtAdjustment = BandwidthMeter.NO_ESTIMATE;
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    this.dataSpec = dataSpec;
+    primary = upstreamFactory.createDataSource();
+    length = primary.open(dataSpec);
+    uri = primary.getUri() != null ? primary.getUri() : dataSpec.uri;
+    if (length == C.LENGTH_UNSET || length <= 2L * segmentLength) {
+      primaryBytesRemaining = C.LENGTH_UNSET;
+      return length;
+    }
+    primaryBytesRemaining = segmentLength;
+    nextSegmentPosition = segmentLength;
+    maybeStartSegments();
+    return length;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    if (readLength == 0) {
+      return 0;
+    }
+    if (primaryBytesRemaining == C.LENGTH_UNSET) {
+      return primary.read(buffer, offset, readLength);
+    }
+    if (primary != null) {
+      if (primaryBytesRemaining > 0) {
+        int bytesRead = primary.read(buffer, offset,
+            (int) Math.min(readLength, primaryBytesRemaining));
+        if (bytesRead == C.RESULT_END_OF_INPUT) {
+          throw new EOFException();
+        }
+        primaryBytesRemaining -= bytesRead;
+        return bytesRead;
+      }
+      // The rest is read from the segments.
+      DataSource primary = this.primary;
+      this.primary = null;
+      primary.close();
+    }
+    Segment segment = segments.peek();
+    if (segment == null) {
+      return C.RESULT_END_OF_INPUT;
+    }
+    int bytesRead = segment.read(buffer, offset, readLength);
+    if (segment.isFullyRead()) {
+      segments.remove();
+      maybeStartSegments();
+    }
+    return bytesRead;
+  }
+
+  @Override
+  public Uri getUri() {
+    return uri;
+  }
+
+  @Override
+  public void close() throws IOException {
+    uri = null;
+    for (Segment segment : segments) {
+      segment.cancel();
+    }
+    segments.clear();
+    if (primary != null) {
+      try {
+        primary.close();
+      } finally {
+        primary = null;
+      }
+    }
+  }
+
+  /**
+   * Creates an executor for loading segments, whose threads exit when they are idle.
+   *
+   * @param maxConnectionCount The maximum number of segments loaded in parallel.
+   */
+  /* package */ static ExecutorService createExecutor(int maxConnectionCount) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(maxConnectionCount, maxConnectionCount,
+        KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(@NonNull Runnable r) {
+            return new Thread(r, "SegmentedDataSource");
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Creates an allocator for loading segments, which keeps enough memory for the maximum number
+   * of segments in its pool.
+   *
+   * @param maxConnectionCount The maximum number of segments loaded in parallel.
+   * @param segmentLength The length of a segment, in bytes.
+   */
+  /* package */ static DefaultAllocator createAllocator(int maxConnectionCount,
+      int segmentLength) {
+    DefaultAllocator allocator = new DefaultAllocator(false,
+        Math.min(segmentLength, C.DEFAULT_BUFFER_SEGMENT_SIZE));
+    allocator.setTargetBufferSize(maxConnectionCount * segmentLength);
+    return allocator;
+  }
+
+  private void maybeStartSegments() {
+    int connectionCount = getConnectionCount();
+    while (segments.size() < connectionCount && nextSegmentPosition < length) {
+      int segmentLength = (int) Math.min(this.segmentLength, length - nextSegmentPosition);
+      Segment segment = new Segment(new DataSpec(uri,
+          dataSpec.absoluteStreamPosition + nextSegmentPosition,
+          dataSpec.position + nextSegmentPosition, segmentLength, dataSpec.key, dataSpec.flags));
+      segments.add(segment);
+      executor.execute(segment);
+      nextSegmentPosition += segmentLength;
+    }
+  }
+
+  private synchronized int getConnectionCount() {
+    return connectionCount;
+  }
+
+  private synchronized void onSegmentLoaded() {
+    if (++segmentsSinceAdjustment < connectionCount) {
+      // Let the estimate settle for a round of segments.
+      return;
+    }
+    long bitrateEstimate = bandwidthMeter.getBitrateEstimate();
+    if (bitrateEstimate == BandwidthMeter.NO_ESTIMATE) {
+      return;
+    }
+    if (bitrateEstimateAtAdjustment == BandwidthMeter.NO_ESTIMATE
+        || bitrateEstimate > bitrateEstimateAtAdjustment * (1 + ADJUSTMENT_THRESHOLD)) {
+      connectionCount = Math.min(connectionCount + 1, maxConnectionCount);
+    } else if (bitrateEstimate < bitrateEstimateAtAdjustment * (1 - ADJUSTMENT_THRESHOLD)) {
+      connectionCount = Math.max(connectionCount - 1, 1);
+    }
+    bitrateEstimateAtAdjustment = bitrateEstimate;
+    segmentsSinceAdjustment = 0;
+  }
+
+  /**
+   * A segment loaded on a background thread, and read on the reading thread.
+   * <p>
+   * The reading thread releases each allocation once it has been read. The allocations left when
+   * the segment is canceled are released by whichever thread is last to finish with them.
+   */
+  private final class Segment implements Runnable {
+
+    private final DataSpec dataSpec;
+    private final int length;
+    private final Allocation[] allocations;
+
+    // Guarded by this.
+    private int bytesLoaded;
+    private IOException error;
+    private boolean loadingFinished;
+    private volatile boolean canceled;
+
+    // Accessed only by the reading thread.
+    private int readPosition;
+
+    public Segment(DataSpec dataSpec) {
+      this.dataSpec = dataSpec;
+      length = (int) dataSpec.length;
+      allocations = new Allocation[Util.ceilDivide(length, allocationLength)];
+    }
+
+    public synchronized void cancel() {
+      canceled = true;
+      if (loadingFinished) {
+        releaseAllocations();
+      }
+    }
+
+    public boolean isFullyRead() {
+      return readPosition == length;
+    }
+
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      int bytesAvailable;
+      synchronized (this) {
+        while (bytesLoaded == readPosition && error == null) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+          }
+        }
+        if (bytesLoaded == readPosition) {
+          throw error;
+        }
+        bytesAvailable = bytesLoaded - readPosition;
+      }
+      int allocationIndex = readPosition / allocationLength;
+      int allocationOffset = readPosition % allocationLength;
+      int bytesRead = Math.min(Math.min(readLength, bytesAvailable),
+          allocationLength - allocationOffset);
+      Allocation allocation = allocations[allocationIndex];
+      System.arraycopy(allocation.data, allocation.translateOffset(allocationOffset), buffer,
+          offset, bytesRead);
+      readPosition += bytesRead;
+      if (allocationOffset + bytesRead == allocationLength || readPosition == length) {
+        synchronized (this) {
+          allocator.release(allocation);
+          allocations[allocationIndex] = null;
+        }
+      }
+      return bytesRead;
+    }
+
+    @Override
+    public void run() {
+      if (canceled) {
+        // The source was closed before the segment got a thread.
+        return;
+      }
+      DataSource dataSource = upstreamFactory.createDataSource();
+      try {
+        dataSource.open(dataSpec);
+        int loaded = 0;
+        while (!canceled && loaded < length) {
+          int allocationIndex = loaded / allocationLength;
+          int allocationOffset = loaded % allocationLength;
+          Allocation allocation = allocations[allocationIndex];
+          if (allocation == null) {
+            allocation = allocator.allocate();
+            allocations[allocationIndex] = allocation;
+          }
+          int bytesRead = dataSource.read(allocation.data,
+              allocation.translateOffset(allocationOffset),
+              Math.min(allocationLength - allocationOffset, length - loaded));
+          if (bytesRead == C.RESULT_END_OF_INPUT) {
+            throw new EOFException();
+          }
+          loaded += bytesRead;
+          synchronized (this) {
+            bytesLoaded = loaded;
+            notifyAll();
+          }
+        }
+      } catch (IOException e) {
+        synchronized (this) {
+          error = e;
+          notifyAll();
+        }
+      } finally {
+        Util.closeQuietly(dataSource);
+        synchronized (this) {
+          loadingFinished = true;
+          if (canceled) {
+            releaseAllocations();
+          }
+        }
+      }
+      if (!canceled && error == null) {
+        onSegmentLoaded();
+      }
+    }
+
+    private void releaseAllocations() {
+      for (int i = 0; i < allocations.length; i++) {
+        if (allocations[i] != null) {
+          allocator.release(allocations[i]);
+          allocations[i] = null;
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A {@link DataSource.Factory} that produces {@link SegmentedDataSource} instances, which share a
+ * single executor and allocator for loading segments.
+ */
+public final class SegmentedDataSourceFactory implements DataSource.Factory {
+
+  private final DataSource.Factory upstreamFactory;
+  private final BandwidthMeter bandwidthMeter;
+  private final ExecutorService executor;
+  private final Allocator allocator;
+  private final int maxConnectionCount;
+  private final int segmentLength;
+
+  /**
+   * @see SegmentedDataSource#SegmentedDataSource(DataSource.Factory, BandwidthMeter)
+   */
+  public SegmentedDataSourceFactory(DataSource.Factory upstreamFactory,
+      BandwidthMeter bandwidthMeter) {
+    this(upstreamFactory, bandwidthMeter, SegmentedDataSource.DEFAULT_MAX_CONNECTION_COUNT,
+        SegmentedDataSource.DEFAULT_SEGMENT_LENGTH);
+  }
+
+  /**
+   * @see SegmentedDataSource#SegmentedDataSource(DataSource.Factory, BandwidthMeter, int, int)
+   */
+  public SegmentedDataSourceFactory(DataSource.Factory upstreamFactory,
+      BandwidthMeter bandwidthMeter, int maxConnectionCount, int segmentLength) {
+    this.upstreamFactory = upstreamFactory;
+    this.bandwidthMeter = bandwidthMeter;
+    executor = SegmentedDataSource.createExecutor(maxConnectionCount);
+    allocator = SegmentedDataSource.createAllocator(maxConnectionCount, segmentLength);
+    this.maxConnectionCount = maxConnectionCount;
+    this.segmentLength = segmentLength;
+  }
+
+  @Override
+  public SegmentedDataSource createDataSource() {
+    return new SegmentedDataSource(upstreamFactory, bandwidthMeter, executor, allocator,
+        maxConnectionCount, segmentLength);
+  }
+
+}
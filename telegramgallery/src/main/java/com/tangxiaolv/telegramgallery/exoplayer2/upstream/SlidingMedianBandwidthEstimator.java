@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream;
+
+import com.tangxiaolv.telegramgallery.exoplayer2.util.SlidingPercentile;
+
+/**
+ * A {@link BandwidthEstimator} that estimates the median bitrate over a sliding window of samples,
+ * each weighted by the square root of the number of bytes transferred. Robust against outliers.
+ */
+public final class SlidingMedianBandwidthEstimator implements BandwidthEstimator {
+
+  /**
+   * The default maximum weight for the sliding window.
+   */
+  public static final int DEFAULT_MAX_WEIGHT = 2000;
+
+  /**
+   * A factory for {@link SlidingMedianBandwidthEstimator} instances.
+   */
+  public static final class Factory implements BandwidthEstimator.Factory {
+
+    private final int maxWeight;
+
+    public Factory() {
+      this(DEFAULT_MAX_WEIGHT);
+    }
+
+    /**
+     * @param maxWeight The maximum weight for the sliding window.
+     */
+    public Factory(int maxWeight) {
+      this.maxWeight = maxWeight;
+    }
+
+    @Override
+    public BandwidthEstimator createBandwidthEstimator() {
+      return new SlidingMedianBandwidthEstimator(maxWeight);
+    }
+
+  }
+
+  private final SlidingPercentile slidingPercentile;
+
+  public SlidingMedianBandwidthEstimator() {
+    this(DEFAULT_MAX_WEIGHT);
+  }
+
+  /**
+   * @param maxWeight The maximum weight for the sliding window.
+   */
+  public SlidingMedianBandwidthEstimator(int maxWeight) {
+    slidingPercentile = new SlidingPercentile(maxWeight);
+  }
+
+  @Override
+  public void addSample(long bytes, long elapsedMs) {
+    float bitsPerSecond = (bytes * 8000) / elapsedMs;
+    slidingPercentile.addSample((int) Math.sqrt(bytes), bitsPerSecond);
+  }
+
+  @Override
+  public long getBitrateEstimate() {
+    float bitrateEstimate = slidingPercentile.getPercentile(0.5f);
+    return Float.isNaN(bitrateEstimate) ? BandwidthMeter.NO_ESTIMATE : (long) bitrateEstimate;
+  }
+
+}
@@ -28,6 +28,8 @@ public final class TeeDataSource implements DataSource {
   private final DataSource upstream;
   private final DataSink dataSink;
 
+  private boolean dataSinkNeedsClosing;
+
   /**
    * @param upstream The upstream {@link DataSource}.
    * @param dataSink The {@link DataSink} into which data is written.
@@ -40,12 +42,17 @@ public final class TeeDataSource implements DataSource {
   @Override
   public long open(DataSpec dataSpec) throws IOException {
     long dataLength = upstream.open(dataSpec);
+    if (dataLength == 0) {
+      // Nothing to read, e.g. an unbounded request at the end of the stream.
+      return 0;
+    }
     if (dataSpec.length == C.LENGTH_UNSET && dataLength != C.LENGTH_UNSET) {
       // Reconstruct dataSpec in order to provide the resolved length to the sink.
       dataSpec = new DataSpec(dataSpec.uri, dataSpec.absoluteStreamPosition, dataSpec.position,
           dataLength, dataSpec.key, dataSpec.flags);
     }
     dataSink.open(dataSpec);
+    dataSinkNeedsClosing = true;
     return dataLength;
   }
 
@@ -69,7 +76,10 @@ public final class TeeDataSource implements DataSource {
     try {
       upstream.close();
     } finally {
-      dataSink.close();
+      if (dataSinkNeedsClosing) {
+        dataSinkNeedsClosing = false;
+        dataSink.close();
+      }
     }
   }
 
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream.cache;
+
+import com.tangxiaolv.telegramgallery.exoplayer2.C;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSink;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSpec;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.cache.CacheDataSink.CacheDataSinkException;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.Assertions;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.ConditionVariable;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.Util;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Writes data into a cache on a background thread.
+ * <p>
+ * {@link #write(byte[], int, int)} only copies data into one of a bounded number of chunks, which
+ * are written to cache files by a writer thread shared by all instances. When all chunks are in
+ * flight, writing blocks until the writer thread returns one. {@link #close()} waits for the
+ * writer thread to write and commit the remaining data, so spans are still committed whilst the
+ * caller holds the corresponding hole span.
+ */
+public final class AsyncCacheDataSink implements DataSink {
+
+  /** Default chunk size. */
+  public static final int DEFAULT_CHUNK_SIZE = C.DEFAULT_BUFFER_SEGMENT_SIZE;
+  /** Default maximum number of chunks in flight. */
+  public static final int DEFAULT_MAX_CHUNK_COUNT = 8;
+
+  private static ExecutorService writerExecutor;
+
+  private final Cache cache;
+  private final long maxCacheFileSize;
+  private final int chunkSize;
+  private final int maxChunkCount;
+  private final LinkedBlockingQueue<byte[]> freeChunks;
+  private int allocatedChunkCount;
+
+  private DataSpec dataSpec;
+  private byte[] currentChunk;
+  private int currentChunkLength;
+  private volatile IOException writeException;
+
+  // Only accessed on the writer thread.
+  private DataSpec currentDataSpec;
+  private File file;
+  private FileOutputStream outputStream;
+  private long outputStreamBytesWritten;
+  private long dataSpecBytesWritten;
+
+  /**
+   * Constructs an AsyncCacheDataSink using {@link #DEFAULT_CHUNK_SIZE} and {@link
+   * #DEFAULT_MAX_CHUNK_COUNT}.
+   *
+   * @param cache The cache into which data should be written.
+   * @param maxCacheFileSize The maximum size of a cache file, in bytes. If the sink is opened for
+   *    a {@link DataSpec} whose size exceeds this value, then the data will be fragmented into
+   *    multiple cache files.
+   */
+  public AsyncCacheDataSink(Cache cache, long maxCacheFileSize) {
+    this(cache, maxCacheFileSize, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_CHUNK_COUNT);
+  }
+
+  /**
+   * @param cache The cache into which data should be written.
+   * @param maxCacheFileSize The maximum size of a cache file, in bytes. If the sink is opened for
+   *    a {@link DataSpec} whose size exceeds this value, then the data will be fragmented into
+   *    multiple cache files.
+   * @param chunkSize The size of the chunks handed to the writer thread, in bytes.
+   * @param maxChunkCount The maximum number of chunks in flight, which bounds the memory used.
+   */
+  public AsyncCacheDataSink(Cache cache, long maxCacheFileSize, int chunkSize,
+      int maxChunkCount) {
+    Assertions.checkArgument(chunkSize > 0 && maxChunkCount > 0);
+    this.cache = Assertions.checkNotNull(cache);
+    this.maxCacheFileSize = maxCacheFileSize;
+    this.chunkSize = chunkSize;
+    this.maxChunkCount = maxChunkCount;
+    freeChunks = new LinkedBlockingQueue<>();
+  }
+
+  @Override
+  public void open(final DataSpec dataSpec) throws CacheDataSinkException {
+    if (dataSpec.length == C.LENGTH_UNSET
+        && !dataSpec.isFlagSet(DataSpec.FLAG_ALLOW_CACHING_UNKNOWN_LENGTH)) {
+      this.dataSpec = null;
+      return;
+    }
+    this.dataSpec = dataSpec;
+    writeException = null;
+    getWriterExecutor().execute(new Runnable() {
+      @Override
+      public void run() {
+        currentDataSpec = dataSpec;
+        dataSpecBytesWritten = 0;
+      }
+    });
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws CacheDataSinkException {
+    if (dataSpec == null) {
+      return;
+    }
+    throwIfWriteFailed();
+    while (length > 0) {
+      if (currentChunk == null) {
+        currentChunk = obtainChunk();
+        currentChunkLength = 0;
+      }
+      int bytesToCopy = Math.min(length, chunkSize - currentChunkLength);
+      System.arraycopy(buffer, offset, currentChunk, currentChunkLength, bytesToCopy);
+      currentChunkLength += bytesToCopy;
+      offset += bytesToCopy;
+      length -= bytesToCopy;
+      if (currentChunkLength == chunkSize) {
+        submitCurrentChunk();
+      }
+    }
+  }
+
+  @Override
+  public void close() throws CacheDataSinkException {
+    if (dataSpec == null) {
+      return;
+    }
+    dataSpec = null;
+    if (currentChunk != null) {
+      submitCurrentChunk();
+    }
+    final ConditionVariable closed = new ConditionVariable();
+    getWriterExecutor().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (writeException == null) {
+            closeCurrentOutputStream();
+          } else {
+            abortCurrentOutputStream();
+          }
+        } catch (IOException e) {
+          writeException = e;
+        } finally {
+          closed.open();
+        }
+      }
+    });
+    // The data must be committed before the caller releases its hole span, so wait even if
+    // interrupted.
+    boolean interrupted = false;
+    while (true) {
+      try {
+        closed.block();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    throwIfWriteFailed();
+  }
+
+  private byte[] obtainChunk() throws CacheDataSinkException {
+    byte[] chunk = freeChunks.poll();
+    if (chunk != null) {
+      return chunk;
+    }
+    if (allocatedChunkCount < maxChunkCount) {
+      allocatedChunkCount++;
+      return new byte[chunkSize];
+    }
+    try {
+      return freeChunks.take();
+    } catch (InterruptedException e) {
+      throw new CacheDataSinkException(new InterruptedIOException());
+    }
+  }
+
+  private void submitCurrentChunk() {
+    final byte[] chunk = currentChunk;
+    final int chunkLength = currentChunkLength;
+    currentChunk = null;
+    currentChunkLength = 0;
+    getWriterExecutor().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (writeException == null) {
+            writeChunk(chunk, chunkLength);
+          }
+        } catch (IOException e) {
+          writeException = e;
+          abortCurrentOutputStream();
+        } finally {
+          freeChunks.offer(chunk);
+        }
+      }
+    });
+  }
+
+  private void throwIfWriteFailed() throws CacheDataSinkException {
+    IOException exception = writeException;
+    if (exception != null) {
+      throw exception instanceof CacheDataSinkException ? (CacheDataSinkException) exception
+          : new CacheDataSinkException(exception);
+    }
+  }
+
+  // Called on the writer thread.
+
+  private void writeChunk(byte[] chunk, int length) throws IOException {
+    int bytesWritten = 0;
+    while (bytesWritten < length) {
+      if (outputStream == null || outputStreamBytesWritten == maxCacheFileSize) {
+        closeCurrentOutputStream();
+        openNextOutputStream();
+      }
+      int bytesToWrite = (int) Math.min(length - bytesWritten,
+          maxCacheFileSize - outputStreamBytesWritten);
+      outputStream.write(chunk, bytesWritten, bytesToWrite);
+      bytesWritten += bytesToWrite;
+      outputStreamBytesWritten += bytesToWrite;
+      dataSpecBytesWritten += bytesToWrite;
+    }
+  }
+
+  private void openNextOutputStream() throws IOException {
+    DataSpec dataSpec = currentDataSpec;
+    long maxLength = dataSpec.length == C.LENGTH_UNSET ? maxCacheFileSize
+        : Math.min(dataSpec.length - dataSpecBytesWritten, maxCacheFileSize);
+    file = cache.startFile(dataSpec.key, dataSpec.absoluteStreamPosition + dataSpecBytesWritten,
+        maxLength);
+    outputStream = new FileOutputStream(file);
+    outputStreamBytesWritten = 0;
+  }
+
+  @SuppressWarnings("ThrowFromFinallyBlock")
+  private void closeCurrentOutputStream() throws IOException {
+    if (outputStream == null) {
+      return;
+    }
+
+    boolean success = false;
+    try {
+      outputStream.flush();
+      outputStream.getFD().sync();
+      success = true;
+    } finally {
+      Util.closeQuietly(outputStream);
+      outputStream = null;
+      File fileToCommit = file;
+      file = null;
+      if (success) {
+        cache.commitFile(fileToCommit);
+      } else {
+        fileToCommit.delete();
+      }
+    }
+  }
+
+  private void abortCurrentOutputStream() {
+    if (outputStream == null) {
+      return;
+    }
+    Util.closeQuietly(outputStream);
+    outputStream = null;
+    file.delete();
+    file = null;
+  }
+
+  private static synchronized ExecutorService getWriterExecutor() {
+    if (writerExecutor == null) {
+      writerExecutor = Util.newSingleThreadExecutor("AsyncCacheDataSink:Writer");
+    }
+    return writerExecutor;
+  }
+
+}
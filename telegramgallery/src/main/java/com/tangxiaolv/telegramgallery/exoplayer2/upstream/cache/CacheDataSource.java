@@ -23,7 +23,6 @@ import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSink;
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSource;
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSourceException;
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSpec;
-import com.tangxiaolv.telegramgallery.exoplayer2.upstream.FileDataSource;
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.TeeDataSource;
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.cache.Cache.CacheException;
 import java.io.IOException;
@@ -131,8 +130,8 @@ public final class CacheDataSource implements DataSource {
    */
   public CacheDataSource(Cache cache, DataSource upstream, @Flags int flags,
       long maxCacheFileSize) {
-    this(cache, upstream, new FileDataSource(), new CacheDataSink(cache, maxCacheFileSize),
-        flags, null);
+    this(cache, upstream, new CacheFileDataSource(cache),
+        new AsyncCacheDataSink(cache, maxCacheFileSize), flags, null);
   }
 
   /**
@@ -314,6 +313,12 @@ public final class CacheDataSource implements DataSource {
       currentBytesRemaining = currentDataSource.open(dataSpec);
       successful = true;
     } catch (IOException e) {
+      if (currentDataSource == cacheReadDataSource && !span.file.exists()) {
+        // The span file was renamed by a concurrent touch or evicted after the lookup. Look the
+        // position up again, it's now either in another file or a hole.
+        currentDataSource = null;
+        return openNextSource(initial);
+      }
       // if this isn't the initial open call (we had read some bytes) and an unbounded range request
       // failed because of POSITION_OUT_OF_RANGE then mute the exception. We are trying to find the
       // end of the stream.
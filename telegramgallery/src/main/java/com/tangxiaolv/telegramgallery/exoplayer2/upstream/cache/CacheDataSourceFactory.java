@@ -18,7 +18,6 @@ package com.tangxiaolv.telegramgallery.exoplayer2.upstream.cache;
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSink;
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSource;
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSource.Factory;
-import com.tangxiaolv.telegramgallery.exoplayer2.upstream.FileDataSourceFactory;
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.cache.CacheDataSource.EventListener;
 
 /**
@@ -45,8 +44,8 @@ public final class CacheDataSourceFactory implements DataSource.Factory {
    */
   public CacheDataSourceFactory(Cache cache, DataSource.Factory upstreamFactory, int flags,
       long maxCacheFileSize) {
-    this(cache, upstreamFactory, new FileDataSourceFactory(),
-        new CacheDataSinkFactory(cache, maxCacheFileSize), flags, null);
+    this(cache, upstreamFactory, new CacheFileDataSourceFactory(cache),
+        new AsyncCacheDataSinkFactory(cache, maxCacheFileSize), flags, null);
   }
 
   /**
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream.cache;
+
+import android.net.Uri;
+import com.tangxiaolv.telegramgallery.exoplayer2.C;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSource;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSpec;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.FileDataSource.FileDataSourceException;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.TransferListener;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A {@link DataSource} for reading cache span files, used by {@link CacheDataSource}.
+ * <p>
+ * Span files are memory-mapped and reads are served from the mapping, which avoids a system call
+ * per read. Each {@link Cache} has its own LRU pool of mappings. Touching a span renames its file,
+ * so mappings are looked up by cache key and span position, and a pooled mapping is only reused if
+ * the file currently at the span's path has the mapping's length and modification time. Renaming
+ * a file keeps both, whereas a span which was evicted and written again gets a new modification
+ * time. Files larger than {@link #MAX_MAPPED_FILE_SIZE} are read through a {@link
+ * RandomAccessFile} instead.
+ */
+public final class CacheFileDataSource implements DataSource {
+
+  /**
+   * The maximum size of a file which is memory-mapped.
+   */
+  public static final long MAX_MAPPED_FILE_SIZE = 16 * 1024 * 1024;
+
+  private static final int MAX_POOLED_MAPS = 32;
+  private static final long MAX_POOLED_BYTES = 64 * 1024 * 1024;
+
+  private static final WeakHashMap<Cache, MapPool> mapPools = new WeakHashMap<>();
+
+  private final MapPool mapPool;
+  private final TransferListener<? super CacheFileDataSource> listener;
+
+  private ByteBuffer buffer;
+  private RandomAccessFile file;
+  private Uri uri;
+  private long bytesRemaining;
+  private boolean opened;
+
+  /**
+   * @param cache The cache whose span files are read.
+   */
+  public CacheFileDataSource(Cache cache) {
+    this(cache, null);
+  }
+
+  /**
+   * @param cache The cache whose span files are read.
+   * @param listener An optional listener.
+   */
+  public CacheFileDataSource(Cache cache, TransferListener<? super CacheFileDataSource> listener) {
+    this.mapPool = getMapPool(cache);
+    this.listener = listener;
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws FileDataSourceException {
+    try {
+      uri = dataSpec.uri;
+      String mapKey = dataSpec.key != null
+          ? dataSpec.key + '@' + (dataSpec.absoluteStreamPosition - dataSpec.position)
+          : dataSpec.uri.getPath();
+      File spanFile = new File(dataSpec.uri.getPath());
+      long lastModified = spanFile.lastModified();
+      ByteBuffer mapping = mapPool.get(mapKey, spanFile.length(), lastModified);
+      if (mapping == null) {
+        file = new RandomAccessFile(spanFile, "r");
+        long fileLength = file.length();
+        if (fileLength <= MAX_MAPPED_FILE_SIZE) {
+          mapping = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+          mapPool.put(mapKey, (MappedByteBuffer) mapping, lastModified);
+          // The mapping stays valid after the file is closed.
+          file.close();
+          file = null;
+        } else {
+          file.seek(dataSpec.position);
+        }
+      }
+      long length = mapping != null ? mapping.capacity() : file.length();
+      bytesRemaining = dataSpec.length == C.LENGTH_UNSET ? length - dataSpec.position
+          : dataSpec.length;
+      if (bytesRemaining < 0 || dataSpec.position + bytesRemaining > length) {
+        throw new EOFException();
+      }
+      if (mapping != null) {
+        buffer = mapping.duplicate();
+        buffer.position((int) dataSpec.position);
+      }
+    } catch (IOException e) {
+      throw new FileDataSourceException(e);
+    }
+
+    opened = true;
+    if (listener != null) {
+      listener.onTransferStart(this, dataSpec);
+    }
+
+    return bytesRemaining;
+  }
+
+  @Override
+  public int read(byte[] target, int offset, int readLength) throws FileDataSourceException {
+    if (readLength == 0) {
+      return 0;
+    } else if (bytesRemaining == 0) {
+      return C.RESULT_END_OF_INPUT;
+    } else {
+      int bytesRead = (int) Math.min(bytesRemaining, readLength);
+      if (buffer != null) {
+        buffer.get(target, offset, bytesRead);
+      } else {
+        try {
+          bytesRead = file.read(target, offset, bytesRead);
+        } catch (IOException e) {
+          throw new FileDataSourceException(e);
+        }
+      }
+
+      if (bytesRead > 0) {
+        bytesRemaining -= bytesRead;
+        if (listener != null) {
+          listener.onBytesTransferred(this, bytesRead);
+        }
+      }
+
+      return bytesRead;
+    }
+  }
+
+  @Override
+  public Uri getUri() {
+    return uri;
+  }
+
+  @Override
+  public void close() throws FileDataSourceException {
+    uri = null;
+    buffer = null;
+    try {
+      if (file != null) {
+        file.close();
+      }
+    } catch (IOException e) {
+      throw new FileDataSourceException(e);
+    } finally {
+      file = null;
+      if (opened) {
+        opened = false;
+        if (listener != null) {
+          listener.onTransferEnd(this);
+        }
+      }
+    }
+  }
+
+  private static MapPool getMapPool(Cache cache) {
+    synchronized (mapPools) {
+      MapPool mapPool = mapPools.get(cache);
+      if (mapPool == null) {
+        mapPool = new MapPool();
+        mapPools.put(cache, mapPool);
+      }
+      return mapPool;
+    }
+  }
+
+  /**
+   * Keeps the most recently used mappings of a cache. Evicted mappings are unmapped once they are
+   * garbage collected.
+   */
+  private static final class MapPool {
+
+    private static final class PooledMapping {
+
+      public final MappedByteBuffer mapping;
+      public final long lastModified;
+
+      public PooledMapping(MappedByteBuffer mapping, long lastModified) {
+        this.mapping = mapping;
+        this.lastModified = lastModified;
+      }
+
+    }
+
+    private final LinkedHashMap<String, PooledMapping> maps;
+    private long pooledBytes;
+
+    public MapPool() {
+      maps = new LinkedHashMap<>(MAX_POOLED_MAPS, 0.75f, true);
+    }
+
+    /**
+     * Returns the pooled mapping for the given key, or null if there is none or if it doesn't
+     * match the given file length and modification time.
+     */
+    public synchronized MappedByteBuffer get(String key, long length, long lastModified) {
+      PooledMapping pooledMapping = maps.get(key);
+      if (pooledMapping == null) {
+        return null;
+      }
+      if (pooledMapping.mapping.capacity() != length
+          || pooledMapping.lastModified != lastModified) {
+        // The span was replaced, or its file is gone.
+        maps.remove(key);
+        pooledBytes -= pooledMapping.mapping.capacity();
+        return null;
+      }
+      return pooledMapping.mapping;
+    }
+
+    public synchronized void put(String key, MappedByteBuffer mapping, long lastModified) {
+      PooledMapping previous = maps.put(key, new PooledMapping(mapping, lastModified));
+      if (previous != null) {
+        pooledBytes -= previous.mapping.capacity();
+      }
+      pooledBytes += mapping.capacity();
+      Iterator<Map.Entry<String, PooledMapping>> iterator = maps.entrySet().iterator();
+      while ((maps.size() > MAX_POOLED_MAPS || pooledBytes > MAX_POOLED_BYTES)
+          && maps.size() > 1) {
+        pooledBytes -= iterator.next().getValue().mapping.capacity();
+        iterator.remove();
+      }
+    }
+
+  }
+
+}
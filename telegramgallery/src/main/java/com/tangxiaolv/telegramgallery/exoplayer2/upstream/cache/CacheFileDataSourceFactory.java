@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream.cache;
+
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSource;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.TransferListener;
+
+/**
+ * A {@link DataSource.Factory} that produces {@link CacheFileDataSource}.
+ */
+public final class CacheFileDataSourceFactory implements DataSource.Factory {
+
+  private final Cache cache;
+  private final TransferListener<? super CacheFileDataSource> listener;
+
+  public CacheFileDataSourceFactory(Cache cache) {
+    this(cache, null);
+  }
+
+  public CacheFileDataSourceFactory(Cache cache,
+      TransferListener<? super CacheFileDataSource> listener) {
+    this.cache = cache;
+    this.listener = listener;
+  }
+
+  @Override
+  public DataSource createDataSource() {
+    return new CacheFileDataSource(cache, listener);
+  }
+
+}
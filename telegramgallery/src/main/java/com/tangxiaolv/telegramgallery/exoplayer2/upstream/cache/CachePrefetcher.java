@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream.cache;
+
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import com.tangxiaolv.telegramgallery.exoplayer2.C;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSource;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSpec;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.PriorityDataSource;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.PriorityTaskManager;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fills the beginning of media into a {@link Cache} ahead of playback, so that playback of a
+ * prefetched item can start from the cache.
+ * <p>
+ * Prefetches run on a bounded pool of threads, which picks them up in the order of the list passed
+ * to {@link #prefetch(List)}. All of them are registered with the given {@link PriorityTaskManager}
+ * at {@link C#PRIORITY_DOWNLOAD}, so that they run side by side. Pass the same manager to the
+ * {@link PriorityDataSource} used for playback and prefetching pauses whilst playback is loading.
+ */
+public final class CachePrefetcher {
+
+  /**
+   * The default number of bytes prefetched from the beginning of each item.
+   */
+  public static final long DEFAULT_PREFETCH_BYTES = 512 * 1024;
+  /**
+   * The default maximum number of items prefetched at once.
+   */
+  public static final int DEFAULT_THREAD_COUNT = 2;
+
+  private static final String TAG = "CachePrefetcher";
+
+  private static final int BUFFER_SIZE = 32 * 1024;
+  private static final long KEEP_ALIVE_SECONDS = 10;
+
+  private final Cache cache;
+  private final DataSource.Factory upstreamFactory;
+  private final PriorityTaskManager priorityTaskManager;
+  private final long prefetchBytes;
+  private final ThreadPoolExecutor executor;
+  private final HashMap<String, Task> tasks;
+
+  /**
+   * @param cache The cache to fill.
+   * @param upstreamFactory A factory for the {@link DataSource}s from which data is read.
+   * @param priorityTaskManager The manager with which prefetches are registered.
+   */
+  public CachePrefetcher(Cache cache, DataSource.Factory upstreamFactory,
+      PriorityTaskManager priorityTaskManager) {
+    this(cache, upstreamFactory, priorityTaskManager, DEFAULT_PREFETCH_BYTES,
+        DEFAULT_THREAD_COUNT);
+  }
+
+  /**
+   * @param cache The cache to fill.
+   * @param upstreamFactory A factory for the {@link DataSource}s from which data is read.
+   * @param priorityTaskManager The manager with which prefetches are registered.
+   * @param prefetchBytes The number of bytes prefetched from the beginning of each item.
+   * @param threadCount The maximum number of items prefetched at once.
+   */
+  public CachePrefetcher(Cache cache, DataSource.Factory upstreamFactory,
+      PriorityTaskManager priorityTaskManager, long prefetchBytes, int threadCount) {
+    this.cache = cache;
+    this.upstreamFactory = upstreamFactory;
+    this.priorityTaskManager = priorityTaskManager;
+    this.prefetchBytes = prefetchBytes;
+    tasks = new HashMap<>();
+    executor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_SECONDS,
+        TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(@NonNull Runnable r) {
+            return new Thread(r, TAG);
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Prefetches the given items, most important first. Prefetches of items which are not in the
+   * list are canceled.
+   *
+   * @param uris The items to prefetch.
+   */
+  public synchronized void prefetch(List<Uri> uris) {
+    HashSet<String> keys = new HashSet<>();
+    for (int i = 0; i < uris.size(); i++) {
+      keys.add(CacheUtil.generateKey(uris.get(i)));
+    }
+    for (Task task : new ArrayList<>(tasks.values())) {
+      if (!keys.contains(task.key)) {
+        cancel(task);
+      }
+    }
+    for (int i = 0; i < uris.size(); i++) {
+      Uri uri = uris.get(i);
+      String key = CacheUtil.generateKey(uri);
+      Task task = tasks.get(key);
+      if (task != null) {
+        if (task.order == i || !executor.remove(task)) {
+          // Already queued at this position, or already running.
+          continue;
+        }
+        // Queue it again at its new position.
+        tasks.remove(key);
+      }
+      if (isPrefetched(uri)) {
+        continue;
+      }
+      task = new Task(uri, key, i);
+      tasks.put(key, task);
+      executor.execute(task);
+    }
+  }
+
+  /**
+   * Cancels the prefetch of the given item, if any. Returns immediately, data which has already
+   * been cached is kept.
+   *
+   * @param uri The item.
+   */
+  public synchronized void cancel(Uri uri) {
+    Task task = tasks.get(CacheUtil.generateKey(uri));
+    if (task != null) {
+      cancel(task);
+    }
+  }
+
+  /**
+   * Cancels all prefetches.
+   */
+  public synchronized void cancelAll() {
+    for (Task task : new ArrayList<>(tasks.values())) {
+      cancel(task);
+    }
+  }
+
+  /**
+   * Returns whether the beginning of the given item is in the cache.
+   *
+   * @param uri The item.
+   */
+  public boolean isPrefetched(Uri uri) {
+    String key = CacheUtil.generateKey(uri);
+    long length = cache.getContentLength(key);
+    long bytes = length == C.LENGTH_UNSET ? prefetchBytes : Math.min(length, prefetchBytes);
+    return cache.isCached(key, 0, bytes);
+  }
+
+  /**
+   * Cancels all prefetches and releases the threads. The instance can't be used afterwards.
+   */
+  public void release() {
+    cancelAll();
+    executor.shutdownNow();
+  }
+
+  private void cancel(Task task) {
+    tasks.remove(task.key);
+    executor.remove(task);
+    task.cancel();
+  }
+
+  private synchronized void onTaskFinished(Task task) {
+    if (tasks.get(task.key) == task) {
+      tasks.remove(task.key);
+    }
+  }
+
+  private final class Task implements Runnable, Comparable<Task> {
+
+    public final Uri uri;
+    public final String key;
+    public final int order;
+
+    private final AtomicBoolean isCanceled;
+    private Thread thread;
+
+    public Task(Uri uri, String key, int order) {
+      this.uri = uri;
+      this.key = key;
+      this.order = order;
+      isCanceled = new AtomicBoolean();
+    }
+
+    public synchronized void cancel() {
+      isCanceled.set(true);
+      if (thread != null) {
+        // Wakes the task up if it's waiting for the priority manager or for the cache.
+        thread.interrupt();
+      }
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        if (isCanceled.get()) {
+          return;
+        }
+        thread = Thread.currentThread();
+      }
+      priorityTaskManager.add(C.PRIORITY_DOWNLOAD);
+      try {
+        DataSource upstream = new PriorityDataSource(upstreamFactory.createDataSource(),
+            priorityTaskManager, C.PRIORITY_DOWNLOAD);
+        CacheDataSource dataSource = new CacheDataSource(cache, upstream,
+            CacheDataSource.FLAG_BLOCK_ON_CACHE);
+        DataSpec dataSpec = new DataSpec(uri, 0, prefetchBytes, key);
+        CacheUtil.cache(dataSpec, cache, dataSource, new byte[BUFFER_SIZE], priorityTaskManager,
+            C.PRIORITY_DOWNLOAD, null, isCanceled);
+      } catch (InterruptedException e) {
+        // Canceled.
+      } catch (IOException e) {
+        if (!isCanceled.get()) {
+          Log.w(TAG, "Prefetch failed: " + uri, e);
+        }
+      } finally {
+        priorityTaskManager.remove(C.PRIORITY_DOWNLOAD);
+        synchronized (this) {
+          thread = null;
+          // Don't leak the interrupt into the next task run by this thread.
+          Thread.interrupted();
+        }
+        onTaskFinished(this);
+      }
+    }
+
+    @Override
+    public int compareTo(@NonNull Task another) {
+      // Earlier positions in the list first.
+      return order == another.order ? 0 : (order < another.order ? -1 : 1);
+    }
+
+  }
+
+}
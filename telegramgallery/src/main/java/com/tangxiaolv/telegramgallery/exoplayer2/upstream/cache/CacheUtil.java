@@ -24,6 +24,7 @@ import com.tangxiaolv.telegramgallery.exoplayer2.util.PriorityTaskManager;
 import com.tangxiaolv.telegramgallery.exoplayer2.util.Util;
 import java.io.IOException;
 import java.util.NavigableSet;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Caching related utility methods.
@@ -76,7 +77,7 @@ public final class CacheUtil {
   public static CachingCounters getCached(DataSpec dataSpec, Cache cache,
       CachingCounters counters) {
     try {
-      return internalCache(dataSpec, cache, null, null, null, 0, counters);
+      return internalCache(dataSpec, cache, null, null, null, 0, counters, null);
     } catch (IOException | InterruptedException e) {
       throw new IllegalStateException(e);
     }
@@ -101,10 +102,36 @@ public final class CacheUtil {
   public static CachingCounters cache(DataSpec dataSpec, Cache cache, CacheDataSource dataSource,
       byte[] buffer, PriorityTaskManager priorityTaskManager, int priority,
       CachingCounters counters) throws IOException, InterruptedException {
+    return cache(dataSpec, cache, dataSource, buffer, priorityTaskManager, priority, counters,
+        null);
+  }
+
+  /**
+   * Caches the data defined by {@code dataSpec} while skipping already cached data. Caching stops
+   * early if the thread is interrupted or {@code isCanceled} is set.
+   *
+   * @param dataSpec Defines the data to be cached.
+   * @param cache A {@link Cache} to store the data.
+   * @param dataSource A {@link CacheDataSource} that works on the {@code cache}.
+   * @param buffer The buffer to be used while caching.
+   * @param priorityTaskManager If not null it's used to check whether it is allowed to proceed with
+   *     caching.
+   * @param priority The priority of this task. Used with {@code priorityTaskManager}.
+   * @param counters The counters to be set during caching. If not null its values reset to
+   *     zero before using. If null a new {@link CachingCounters} is created and used.
+   * @param isCanceled An optional flag that will cancel caching if set to true.
+   * @return The used {@link CachingCounters} instance.
+   * @throws IOException If an error occurs reading from the source.
+   * @throws InterruptedException If the thread was interrupted or caching was canceled.
+   */
+  public static CachingCounters cache(DataSpec dataSpec, Cache cache, CacheDataSource dataSource,
+      byte[] buffer, PriorityTaskManager priorityTaskManager, int priority,
+      CachingCounters counters, AtomicBoolean isCanceled)
+      throws IOException, InterruptedException {
     Assertions.checkNotNull(dataSource);
     Assertions.checkNotNull(buffer);
     return internalCache(dataSpec, cache, dataSource, buffer, priorityTaskManager, priority,
-        counters);
+        counters, isCanceled);
   }
 
   /**
@@ -121,13 +148,16 @@ public final class CacheUtil {
    * @param priority The priority of this task. Used with {@code priorityTaskManager}.
    * @param counters The counters to be set during caching. If not null its values reset to
    *     zero before using. If null a new {@link CachingCounters} is created and used.
+   * @param isCanceled An optional flag that will cancel caching if set to true.
    * @return The used {@link CachingCounters} instance.
    * @throws IOException If not dry run and an error occurs reading from the source.
-   * @throws InterruptedException If not dry run and the thread was interrupted.
+   * @throws InterruptedException If not dry run and the thread was interrupted or caching was
+   *     canceled.
    */
   private static CachingCounters internalCache(DataSpec dataSpec, Cache cache,
       CacheDataSource dataSource, byte[] buffer, PriorityTaskManager priorityTaskManager,
-      int priority, CachingCounters counters) throws IOException, InterruptedException {
+      int priority, CachingCounters counters, AtomicBoolean isCanceled)
+      throws IOException, InterruptedException {
     long start = dataSpec.position;
     long left = dataSpec.length;
     String key = getKey(dataSpec);
@@ -155,7 +185,7 @@ public final class CacheUtil {
           DataSpec subDataSpec = new DataSpec(dataSpec.uri, start,
               blockLength == Long.MAX_VALUE ? C.LENGTH_UNSET : blockLength, key);
           long read = readAndDiscard(subDataSpec, dataSource, buffer, priorityTaskManager,
-              priority);
+              priority, isCanceled);
           counters.downloadedBytes += read;
           if (read < blockLength) {
             // Reached end of data.
@@ -185,11 +215,12 @@ public final class CacheUtil {
    * @param priorityTaskManager If not null it's used to check whether it is allowed to proceed with
    *     caching.
    * @param priority The priority of this task.
+   * @param isCanceled An optional flag that will cancel reading if set to true.
    * @return Number of read bytes, or 0 if no data is available because the end of the opened range
    * has been reached.
    */
   private static long readAndDiscard(DataSpec dataSpec, DataSource dataSource, byte[] buffer,
-      PriorityTaskManager priorityTaskManager, int priority)
+      PriorityTaskManager priorityTaskManager, int priority, AtomicBoolean isCanceled)
       throws IOException, InterruptedException {
     while (true) {
       if (priorityTaskManager != null) {
@@ -200,7 +231,7 @@ public final class CacheUtil {
         dataSource.open(dataSpec);
         long totalRead = 0;
         while (true) {
-          if (Thread.interrupted()) {
+          if (Thread.interrupted() || (isCanceled != null && isCanceled.get())) {
             throw new InterruptedException();
           }
           int read = dataSource.read(buffer, 0, buffer.length);
@@ -15,6 +15,7 @@
  */
 package com.tangxiaolv.telegramgallery.exoplayer2.upstream.cache;
 
+import android.util.Log;
 import android.util.SparseArray;
 import com.tangxiaolv.telegramgallery.exoplayer2.C;
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.cache.Cache.CacheException;
@@ -23,16 +24,25 @@ import com.tangxiaolv.telegramgallery.exoplayer2.util.AtomicFile;
 import com.tangxiaolv.telegramgallery.exoplayer2.util.ReusableBufferedOutputStream;
 import com.tangxiaolv.telegramgallery.exoplayer2.util.Util;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -47,23 +57,59 @@ import javax.crypto.spec.SecretKeySpec;
 
 /**
  * This class maintains the index of cached content.
+ * <p>
+ * The index is persisted as a snapshot file followed by an append-only log of changes. Each call to
+ * {@link #store()} only appends the records of the changes made since the previous call. Once the
+ * log grows beyond the size of the index it is rotated and a new snapshot is written on a
+ * background thread, after which the rotated log is deleted.
+ * <p>
+ * Every log record sets the state of a single content id, so replaying a log which is already
+ * reflected in the snapshot is harmless. This makes a crash at any point of a compaction safe.
+ * Records are checksummed and, if a secret key is set, each record is encrypted with its own
+ * initialization vector so that a torn write only loses the records that were being written.
  */
 /*package*/ final class CachedContentIndex {
 
   public static final String FILE_NAME = "cached_content_index.exi";
 
+  private static final String LOG_SUFFIX = ".log";
+  private static final String OLD_LOG_SUFFIX = ".log.old";
+
   private static final int VERSION = 1;
+  private static final int LOG_VERSION = 1;
 
   private static final int FLAG_ENCRYPTED_INDEX = 1;
 
+  private static final int RECORD_ADD = 1;
+  private static final int RECORD_REMOVE = 2;
+  private static final int RECORD_LENGTH = 3;
+
+  /**
+   * The minimum number of log records before the log is compacted.
+   */
+  private static final int COMPACTION_THRESHOLD = 512;
+  private static final int MAX_RECORD_SIZE = 128 * 1024;
+
   private static final String TAG = "CachedContentIndex";
 
   private final HashMap<String, CachedContent> keyToContent;
   private final SparseArray<String> idToKey;
   private final AtomicFile atomicFile;
+  private final File logFile;
+  private final File oldLogFile;
   private final Cipher cipher;
   private final SecretKeySpec secretKeySpec;
-  private boolean changed;
+  private final Random random;
+  private final ByteArrayOutputStream recordBuffer;
+  private final ByteArrayOutputStream pendingRecords;
+  private final DataOutputStream pendingOutput;
+  private int pendingRecordCount;
+  private FileOutputStream logOutput;
+  private long logLength;
+  private int logRecordCount;
+  private boolean compactionRequired;
+  private volatile boolean compacting;
+  private Cipher compactionCipher;
   private ReusableBufferedOutputStream bufferedOutputStream;
 
   /**
@@ -85,12 +131,8 @@ import javax.crypto.spec.SecretKeySpec;
   public CachedContentIndex(File cacheDir, byte[] secretKey) {
     if (secretKey != null) {
       Assertions.checkArgument(secretKey.length == 16);
-      try {
-        cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING");
-        secretKeySpec = new SecretKeySpec(secretKey, "AES");
-      } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-        throw new IllegalStateException(e); // Should never happen.
-      }
+      cipher = createCipher();
+      secretKeySpec = new SecretKeySpec(secretKey, "AES");
     } else {
       cipher = null;
       secretKeySpec = null;
@@ -98,25 +140,55 @@ import javax.crypto.spec.SecretKeySpec;
     keyToContent = new HashMap<>();
     idToKey = new SparseArray<>();
     atomicFile = new AtomicFile(new File(cacheDir, FILE_NAME));
+    logFile = new File(cacheDir, FILE_NAME + LOG_SUFFIX);
+    oldLogFile = new File(cacheDir, FILE_NAME + OLD_LOG_SUFFIX);
+    random = new Random();
+    recordBuffer = new ByteArrayOutputStream();
+    pendingRecords = new ByteArrayOutputStream();
+    pendingOutput = new DataOutputStream(pendingRecords);
   }
 
-  /** Loads the index file. */
+  /** Returns whether the given file belongs to the index rather than being a span file. */
+  public static boolean isIndexFile(File file) {
+    return file.getName().startsWith(FILE_NAME);
+  }
+
+  /** Loads the index file and replays its logs. */
   public void load() {
-    Assertions.checkState(!changed);
+    Assertions.checkState(pendingRecordCount == 0);
     if (!readFile()) {
       atomicFile.delete();
+      logFile.delete();
+      oldLogFile.delete();
       keyToContent.clear();
       idToKey.clear();
+      return;
+    }
+    boolean oldLogIntact = readLog(oldLogFile);
+    boolean logIntact = readLog(logFile);
+    if (!oldLogIntact || !logIntact) {
+      // Drop the damaged records by writing a new snapshot.
+      compactionRequired = true;
     }
   }
 
-  /** Stores the index data to index file if there is a change. */
+  /**
+   * Appends the changes made since the last call to the log, and starts a compaction if the log
+   * has grown too large.
+   */
   public void store() throws CacheException {
-    if (!changed) {
-      return;
+    int recordCount = logRecordCount + pendingRecordCount;
+    boolean compact = !compacting && (compactionRequired
+        || recordCount > Math.max(COMPACTION_THRESHOLD, keyToContent.size()));
+    if (compact) {
+      rotateLog();
+    }
+    if (pendingRecordCount > 0) {
+      writePendingRecords();
+    }
+    if (compact) {
+      startCompaction();
     }
-    writeFile();
-    changed = false;
   }
 
   /**
@@ -169,7 +241,7 @@ import javax.crypto.spec.SecretKeySpec;
     if (cachedContent != null) {
       Assertions.checkState(cachedContent.isEmpty());
       idToKey.remove(cachedContent.id);
-      changed = true;
+      appendRecord(RECORD_REMOVE, cachedContent);
     }
   }
 
@@ -205,7 +277,7 @@ import javax.crypto.spec.SecretKeySpec;
     if (cachedContent != null) {
       if (cachedContent.getLength() != length) {
         cachedContent.setLength(length);
-        changed = true;
+        appendRecord(RECORD_LENGTH, cachedContent);
       }
     } else {
       addNew(key, length);
@@ -248,7 +320,7 @@ import javax.crypto.spec.SecretKeySpec;
         input = new DataInputStream(new CipherInputStream(inputStream, cipher));
       } else {
         if (cipher != null) {
-          changed = true; // Force index to be rewritten encrypted after read.
+          compactionRequired = true; // Force index to be rewritten encrypted after read.
         }
       }
 
@@ -263,7 +335,8 @@ import javax.crypto.spec.SecretKeySpec;
         return false;
       }
     } catch (FileNotFoundException e) {
-      return false;
+      // No snapshot has been written yet, the logs hold all the changes.
+      return true;
     } catch (IOException e) {
       return false;
     } finally {
@@ -274,7 +347,225 @@ import javax.crypto.spec.SecretKeySpec;
     return true;
   }
 
-  private void writeFile() throws CacheException {
+  /**
+   * Replays the records of the given log file.
+   *
+   * @return Whether the log was read without finding a damaged record. Records after a damaged one
+   *     are not replayed.
+   */
+  private boolean readLog(File file) {
+    if (!file.exists() || file.length() == 0) {
+      return true;
+    }
+    DataInputStream input = null;
+    try {
+      input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (input.readInt() != LOG_VERSION) {
+        return false;
+      }
+      boolean encrypted = (input.readInt() & FLAG_ENCRYPTED_INDEX) != 0;
+      if (encrypted != (cipher != null)) {
+        return false;
+      }
+      while (true) {
+        int size;
+        try {
+          size = input.readInt();
+        } catch (EOFException e) {
+          return true;
+        }
+        if (size <= 0 || size > MAX_RECORD_SIZE) {
+          return false;
+        }
+        byte[] record = new byte[size];
+        input.readFully(record);
+        if (input.readInt() != Arrays.hashCode(record)) {
+          return false;
+        }
+        if (encrypted) {
+          record = decryptRecord(record);
+          if (record == null) {
+            return false;
+          }
+        }
+        applyRecord(new DataInputStream(new ByteArrayInputStream(record)));
+        logRecordCount++;
+      }
+    } catch (IOException e) {
+      return false;
+    } finally {
+      Util.closeQuietly(input);
+    }
+  }
+
+  private void applyRecord(DataInputStream input) throws IOException {
+    int type = input.readByte();
+    switch (type) {
+      case RECORD_ADD:
+        CachedContent cachedContent = new CachedContent(input);
+        CachedContent existingContent = keyToContent.remove(cachedContent.key);
+        if (existingContent != null) {
+          idToKey.remove(existingContent.id);
+        }
+        String existingKey = idToKey.get(cachedContent.id);
+        if (existingKey != null) {
+          keyToContent.remove(existingKey);
+        }
+        add(cachedContent);
+        break;
+      case RECORD_REMOVE:
+        String key = idToKey.get(input.readInt());
+        if (key != null) {
+          idToKey.remove(keyToContent.remove(key).id);
+        }
+        break;
+      case RECORD_LENGTH:
+        key = idToKey.get(input.readInt());
+        long length = input.readLong();
+        if (key != null) {
+          keyToContent.get(key).setLength(length);
+        }
+        break;
+      default:
+        throw new IOException("Unexpected record type: " + type);
+    }
+  }
+
+  private void appendRecord(int type, CachedContent cachedContent) {
+    try {
+      recordBuffer.reset();
+      DataOutputStream output = new DataOutputStream(recordBuffer);
+      output.writeByte(type);
+      if (type == RECORD_ADD) {
+        cachedContent.writeToStream(output);
+      } else {
+        output.writeInt(cachedContent.id);
+        if (type == RECORD_LENGTH) {
+          output.writeLong(cachedContent.getLength());
+        }
+      }
+      byte[] record = recordBuffer.toByteArray();
+      if (cipher != null) {
+        record = encryptRecord(record);
+      }
+      pendingOutput.writeInt(record.length);
+      pendingOutput.write(record);
+      pendingOutput.writeInt(Arrays.hashCode(record));
+      pendingRecordCount++;
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // Should never happen, the streams are in memory.
+    }
+  }
+
+  private byte[] encryptRecord(byte[] record) {
+    byte[] initializationVector = new byte[16];
+    random.nextBytes(initializationVector);
+    try {
+      cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, new IvParameterSpec(initializationVector));
+      byte[] encrypted = cipher.doFinal(record);
+      byte[] result = Arrays.copyOf(initializationVector, 16 + encrypted.length);
+      System.arraycopy(encrypted, 0, result, 16, encrypted.length);
+      return result;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e); // Should never happen.
+    }
+  }
+
+  private byte[] decryptRecord(byte[] record) {
+    if (record.length <= 16) {
+      return null;
+    }
+    IvParameterSpec ivParameterSpec = new IvParameterSpec(record, 0, 16);
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, secretKeySpec, ivParameterSpec);
+      return cipher.doFinal(record, 16, record.length - 16);
+    } catch (GeneralSecurityException e) {
+      return null;
+    }
+  }
+
+  private void writePendingRecords() throws CacheException {
+    try {
+      if (logOutput == null) {
+        boolean newLog = logFile.length() == 0;
+        logOutput = new FileOutputStream(logFile, true);
+        if (newLog) {
+          DataOutputStream header = new DataOutputStream(logOutput);
+          header.writeInt(LOG_VERSION);
+          header.writeInt(cipher != null ? FLAG_ENCRYPTED_INDEX : 0);
+        }
+        logLength = logFile.length();
+      }
+      pendingRecords.writeTo(logOutput);
+      logOutput.getFD().sync();
+      logLength += pendingRecords.size();
+      logRecordCount += pendingRecordCount;
+      pendingRecords.reset();
+      pendingRecordCount = 0;
+    } catch (IOException e) {
+      // Cut off anything partially written so that later appends stay readable. The records are
+      // kept pending and will be retried by the next store.
+      Util.closeQuietly(logOutput);
+      logOutput = null;
+      truncateLog();
+      compactionRequired = true;
+      throw new CacheException(e);
+    }
+  }
+
+  private void truncateLog() {
+    RandomAccessFile file = null;
+    try {
+      file = new RandomAccessFile(logFile, "rw");
+      file.setLength(logLength);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to truncate " + logFile, e);
+    } finally {
+      Util.closeQuietly(file);
+    }
+  }
+
+  /**
+   * Moves the current log aside so that appends made whilst the snapshot is being written go to a
+   * new log. If a rotated log is left from a failed compaction it is kept, and the current log is
+   * left in place since replaying it on top of the new snapshot is harmless.
+   */
+  private void rotateLog() {
+    Util.closeQuietly(logOutput);
+    logOutput = null;
+    if (!oldLogFile.exists() && logFile.exists() && !logFile.renameTo(oldLogFile)) {
+      Log.e(TAG, "Failed to rotate " + logFile);
+    }
+    logRecordCount = 0;
+    compactionRequired = false;
+  }
+
+  private void startCompaction() {
+    final ArrayList<CachedContent> contents = new ArrayList<>(keyToContent.size());
+    for (CachedContent cachedContent : keyToContent.values()) {
+      contents.add(new CachedContent(cachedContent.id, cachedContent.key,
+          cachedContent.getLength()));
+    }
+    compacting = true;
+    new Thread("CachedContentIndex.compact()") {
+      @Override
+      public void run() {
+        try {
+          writeFile(contents);
+          oldLogFile.delete();
+        } catch (CacheException e) {
+          Log.e(TAG, "Failed to compact the index", e);
+        }
+        compacting = false;
+      }
+    }.start();
+  }
+
+  /**
+   * Writes a snapshot of the given contents. Only called from the compaction thread, at most one
+   * at a time.
+   */
+  private void writeFile(ArrayList<CachedContent> contents) throws CacheException {
     DataOutputStream output = null;
     try {
       OutputStream outputStream = atomicFile.startWrite();
@@ -290,22 +581,26 @@ import javax.crypto.spec.SecretKeySpec;
       output.writeInt(flags);
 
       if (cipher != null) {
+        if (compactionCipher == null) {
+          compactionCipher = createCipher();
+        }
         byte[] initializationVector = new byte[16];
         new Random().nextBytes(initializationVector);
         output.write(initializationVector);
         IvParameterSpec ivParameterSpec = new IvParameterSpec(initializationVector);
         try {
-          cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, ivParameterSpec);
+          compactionCipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, ivParameterSpec);
         } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
           throw new IllegalStateException(e); // Should never happen.
         }
         output.flush();
-        output = new DataOutputStream(new CipherOutputStream(bufferedOutputStream, cipher));
+        output = new DataOutputStream(
+            new CipherOutputStream(bufferedOutputStream, compactionCipher));
       }
 
-      output.writeInt(keyToContent.size());
+      output.writeInt(contents.size());
       int hashCode = 0;
-      for (CachedContent cachedContent : keyToContent.values()) {
+      for (CachedContent cachedContent : contents) {
         cachedContent.writeToStream(output);
         hashCode += cachedContent.headerHashCode();
       }
@@ -329,7 +624,7 @@ import javax.crypto.spec.SecretKeySpec;
   /** Adds the given CachedContent to the index. */
   /*package*/ void addNew(CachedContent cachedContent) {
     add(cachedContent);
-    changed = true;
+    appendRecord(RECORD_ADD, cachedContent);
   }
 
   private CachedContent addNew(String key, long length) {
@@ -339,6 +634,14 @@ import javax.crypto.spec.SecretKeySpec;
     return cachedContent;
   }
 
+  private static Cipher createCipher() {
+    try {
+      return Cipher.getInstance("AES/CBC/PKCS5PADDING");
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+      throw new IllegalStateException(e); // Should never happen.
+    }
+  }
+
   /**
    * Returns an id which isn't used in the given array. If the maximum id in the array is smaller
    * than {@link java.lang.Integer#MAX_VALUE} it just returns the next bigger integer. Otherwise it
@@ -0,0 +1,490 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream.cache;
+
+import android.util.Log;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.AtomicFile;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.Util;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists the span metadata of a {@link SimpleCache} so that spans can be restored on startup
+ * without listing and parsing every file in the cache directory.
+ * <p>
+ * The journal is a snapshot of all spans followed by appended add and remove records. A span is
+ * identified by its content id and position, so an add record for an existing span replaces it
+ * (which is how touched spans are recorded). Every record carries a checksum and a journal with a
+ * damaged record is rejected as a whole, in which case the cache falls back to a directory scan.
+ * <p>
+ * Touches are kept in memory and written in batches, either with the next add or remove or after
+ * {@link #TOUCH_FLUSH_DELAY_MS}, so that reading from the cache never writes to the journal.
+ * Touches lost in a crash leave span files whose names don't match the journal, which the cache
+ * reconciles on startup. Compaction writes the snapshot on a background thread whilst new records
+ * are queued in memory.
+ * <p>
+ * The journal only holds ids, positions, lengths and timestamps, which are also encoded in the
+ * span file names, so it is never encrypted.
+ */
+/*package*/ final class CachedSpanJournal {
+
+  public static final String FILE_NAME = "cached_content_spans.exj";
+
+  private static final String TAG = "CachedSpanJournal";
+
+  private static final int VERSION = 1;
+
+  private static final int RECORD_ADD = 1;
+  private static final int RECORD_REMOVE = 2;
+
+  /**
+   * The number of appended records after which the journal is compacted, provided that they
+   * outnumber the live spans.
+   */
+  private static final int COMPACTION_THRESHOLD = 1024;
+
+  /**
+   * The maximum time touches are kept in memory before they are written, if no add or remove is
+   * written first.
+   */
+  private static final long TOUCH_FLUSH_DELAY_MS = 5000;
+
+  private static final class Entry {
+
+    public final int id;
+    public final long position;
+    public long length;
+    public long lastAccessTimestamp;
+
+    public Entry(int id, long position) {
+      this.id = id;
+      this.position = position;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Entry)) {
+        return false;
+      }
+      Entry other = (Entry) obj;
+      return id == other.id && position == other.position;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * id + (int) (position ^ (position >>> 32));
+    }
+
+  }
+
+  private final File cacheDir;
+  private final File file;
+  private final AtomicFile atomicFile;
+  private final HashMap<Entry, Entry> pendingTouches;
+  private final ArrayList<Entry> pendingRecords;
+  private final ArrayList<Integer> pendingRecordTypes;
+  private ScheduledThreadPoolExecutor executor;
+  private DataOutputStream output;
+  private int recordCount;
+  private int liveCount;
+  private boolean recordsDropped;
+  private boolean compacting;
+  private boolean touchFlushScheduled;
+  private boolean invalid;
+
+  /**
+   * Creates a journal which works on the journal file in the given cacheDir.
+   *
+   * @param cacheDir Directory where the journal file is kept.
+   */
+  public CachedSpanJournal(File cacheDir) {
+    this.cacheDir = cacheDir;
+    file = new File(cacheDir, FILE_NAME);
+    atomicFile = new AtomicFile(file);
+    pendingTouches = new HashMap<>();
+    pendingRecords = new ArrayList<>();
+    pendingRecordTypes = new ArrayList<>();
+  }
+
+  /** Returns whether the given file belongs to the journal rather than being a span file. */
+  public static boolean isJournalFile(File file) {
+    return file.getName().startsWith(FILE_NAME);
+  }
+
+  /**
+   * Reads the journal.
+   *
+   * @param index The loaded index, used to map content ids to keys.
+   * @return The restored spans, or null if the journal is missing or damaged.
+   */
+  public synchronized ArrayList<SimpleCacheSpan> read(CachedContentIndex index) {
+    HashMap<Entry, Entry> entries = new HashMap<>();
+    if (!readEntries(entries)) {
+      // Make sure open() replaces the damaged journal rather than appending to it.
+      recordCount = 0;
+      return null;
+    }
+
+    ArrayList<SimpleCacheSpan> spans = new ArrayList<>(entries.size());
+    for (Entry entry : entries.values()) {
+      String key = index.getKeyForId(entry.id);
+      if (key != null && entry.length > 0) {
+        spans.add(SimpleCacheSpan.createCacheEntry(cacheDir, key, entry.id, entry.position,
+            entry.length, entry.lastAccessTimestamp));
+      }
+    }
+    liveCount = spans.size();
+    return spans;
+  }
+
+  /**
+   * Prepares the journal for appending, compacting it first if it was not read successfully, if
+   * records were dropped before it was opened or if it has grown too large. Called on the cache's
+   * initialization thread, so the compaction is done synchronously.
+   *
+   * @param contents All cached contents of the cache.
+   */
+  public synchronized void open(Collection<CachedContent> contents) {
+    invalid = false;
+    if (recordCount == 0 || recordsDropped || shouldCompact()) {
+      pendingTouches.clear();
+      ArrayList<Entry> snapshot = createSnapshot(contents);
+      if (writeSnapshot(snapshot)) {
+        recordCount = snapshot.size();
+        liveCount = snapshot.size();
+        recordsDropped = false;
+        openForAppend();
+      }
+    } else {
+      openForAppend();
+    }
+  }
+
+  /** Records that the given span was added. */
+  public synchronized void onSpanAdded(SimpleCacheSpan span, int id) {
+    liveCount++;
+    append(RECORD_ADD, createEntry(id, span));
+  }
+
+  /**
+   * Records that the given span was touched. The record is only kept in memory until it's written
+   * in a batch.
+   */
+  public synchronized void onSpanTouched(SimpleCacheSpan span, int id) {
+    if (invalid) {
+      return;
+    }
+    if (output == null && !compacting) {
+      recordsDropped = true;
+      return;
+    }
+    Entry entry = createEntry(id, span);
+    pendingTouches.put(entry, entry);
+    scheduleTouchFlush();
+  }
+
+  /** Records that the given span was removed. */
+  public synchronized void onSpanRemoved(CacheSpan span, int id) {
+    liveCount--;
+    Entry entry = new Entry(id, span.position);
+    // A pending touch must not be written after the removal.
+    pendingTouches.remove(entry);
+    append(RECORD_REMOVE, entry);
+  }
+
+  /**
+   * Writes pending records and starts compacting the journal on a background thread if it has
+   * grown too large.
+   *
+   * @param contents All cached contents of the cache. Only read during the call.
+   */
+  public synchronized void flush(Collection<CachedContent> contents) {
+    if (invalid || compacting) {
+      // Records are written once the compaction has finished.
+      return;
+    }
+    if (shouldCompact()) {
+      startCompaction(contents);
+      return;
+    }
+    writePendingTouches();
+  }
+
+  /**
+   * Deletes the journal and stops recording until the next {@link #open(Collection)}, so that the
+   * cache directory is scanned on the next startup. Used when the in-memory representation was
+   * found to be out of sync with the files on disk.
+   */
+  public synchronized void invalidate() {
+    invalid = true;
+    pendingTouches.clear();
+    pendingRecords.clear();
+    pendingRecordTypes.clear();
+    Util.closeQuietly(output);
+    output = null;
+    atomicFile.delete();
+  }
+
+  private boolean shouldCompact() {
+    return recordCount > COMPACTION_THRESHOLD && recordCount > 2 * liveCount;
+  }
+
+  private void append(int type, Entry entry) {
+    if (invalid) {
+      return;
+    }
+    if (compacting) {
+      pendingRecords.add(entry);
+      pendingRecordTypes.add(type);
+      return;
+    }
+    if (output == null) {
+      // E.g. spans evicted whilst the cache is initialized. The snapshot written by open() covers
+      // them.
+      recordsDropped = true;
+      return;
+    }
+    try {
+      writeRecord(output, type, entry);
+      recordCount++;
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to append to the span journal", e);
+      invalidate();
+    }
+  }
+
+  private void writePendingTouches() {
+    if (output == null) {
+      return;
+    }
+    try {
+      for (Entry entry : pendingTouches.values()) {
+        writeRecord(output, RECORD_ADD, entry);
+        recordCount++;
+      }
+      pendingTouches.clear();
+      output.flush();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to flush the span journal", e);
+      invalidate();
+    }
+  }
+
+  private void scheduleTouchFlush() {
+    if (touchFlushScheduled || pendingTouches.isEmpty()) {
+      return;
+    }
+    touchFlushScheduled = true;
+    getExecutor().schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (CachedSpanJournal.this) {
+          touchFlushScheduled = false;
+          if (!invalid && !compacting) {
+            writePendingTouches();
+          }
+        }
+      }
+    }, TOUCH_FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Closes the appended journal and writes a snapshot of the given contents in its place on the
+   * background thread. Records arriving in the meantime are queued and appended to the snapshot.
+   */
+  private void startCompaction(Collection<CachedContent> contents) {
+    Util.closeQuietly(output);
+    output = null;
+    // The snapshot holds the current timestamps of all spans.
+    pendingTouches.clear();
+    compacting = true;
+    final ArrayList<Entry> snapshot = createSnapshot(contents);
+    getExecutor().execute(new Runnable() {
+      @Override
+      public void run() {
+        boolean written = writeSnapshot(snapshot);
+        synchronized (CachedSpanJournal.this) {
+          compacting = false;
+          if (invalid) {
+            // Invalidated whilst the snapshot was written, which must not outlive it.
+            atomicFile.delete();
+            return;
+          }
+          if (!written) {
+            return;
+          }
+          recordCount = snapshot.size();
+          openForAppend();
+          for (int i = 0; i < pendingRecords.size() && output != null; i++) {
+            append(pendingRecordTypes.get(i), pendingRecords.get(i));
+          }
+          pendingRecords.clear();
+          pendingRecordTypes.clear();
+          writePendingTouches();
+        }
+      }
+    });
+  }
+
+  private static ArrayList<Entry> createSnapshot(Collection<CachedContent> contents) {
+    ArrayList<Entry> snapshot = new ArrayList<>();
+    for (CachedContent cachedContent : contents) {
+      for (SimpleCacheSpan span : cachedContent.getSpans()) {
+        snapshot.add(createEntry(cachedContent.id, span));
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * Replaces the journal with the given snapshot. Must not be called whilst appending to the
+   * journal.
+   *
+   * @return Whether the snapshot was written. If not, the journal has been invalidated.
+   */
+  private boolean writeSnapshot(ArrayList<Entry> snapshot) {
+    DataOutputStream snapshotOutput = null;
+    try {
+      snapshotOutput = new DataOutputStream(new BufferedOutputStream(atomicFile.startWrite()));
+      snapshotOutput.writeInt(VERSION);
+      for (int i = 0; i < snapshot.size(); i++) {
+        writeRecord(snapshotOutput, RECORD_ADD, snapshot.get(i));
+      }
+      atomicFile.endWrite(snapshotOutput);
+      return true;
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write the span journal", e);
+      Util.closeQuietly(snapshotOutput);
+      synchronized (this) {
+        invalidate();
+      }
+      return false;
+    }
+  }
+
+  private void openForAppend() {
+    if (output != null) {
+      return;
+    }
+    try {
+      output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    } catch (FileNotFoundException e) {
+      Log.e(TAG, "Failed to open the span journal", e);
+      invalidate();
+    }
+  }
+
+  private synchronized ScheduledThreadPoolExecutor getExecutor() {
+    if (executor == null) {
+      executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          return new Thread(r, "CachedSpanJournal");
+        }
+      });
+      executor.setKeepAliveTime(TOUCH_FLUSH_DELAY_MS * 2, TimeUnit.MILLISECONDS);
+      executor.allowCoreThreadTimeOut(true);
+    }
+    return executor;
+  }
+
+  private static Entry createEntry(int id, CacheSpan span) {
+    Entry entry = new Entry(id, span.position);
+    entry.length = span.length;
+    entry.lastAccessTimestamp = span.lastAccessTimestamp;
+    return entry;
+  }
+
+  /**
+   * Reads the records of the journal into {@code entries}.
+   *
+   * @return Whether the journal was read successfully.
+   */
+  private boolean readEntries(HashMap<Entry, Entry> entries) {
+    recordCount = 0;
+    DataInputStream input = null;
+    try {
+      input = new DataInputStream(new BufferedInputStream(atomicFile.openRead()));
+      if (input.readInt() != VERSION) {
+        return false;
+      }
+      while (true) {
+        int type;
+        try {
+          type = input.readByte();
+        } catch (EOFException e) {
+          return true;
+        }
+        Entry entry = new Entry(input.readInt(), input.readLong());
+        entry.length = input.readLong();
+        entry.lastAccessTimestamp = input.readLong();
+        if (input.readInt() != checksum(type, entry)) {
+          return false;
+        }
+        if (type == RECORD_ADD) {
+          entries.put(entry, entry);
+        } else if (type == RECORD_REMOVE) {
+          entries.remove(entry);
+        } else {
+          return false;
+        }
+        recordCount++;
+      }
+    } catch (FileNotFoundException e) {
+      return false;
+    } catch (IOException e) {
+      // Includes a truncated trailing record.
+      return false;
+    } finally {
+      Util.closeQuietly(input);
+    }
+  }
+
+  private static void writeRecord(DataOutputStream output, int type, Entry entry)
+      throws IOException {
+    output.writeByte(type);
+    output.writeInt(entry.id);
+    output.writeLong(entry.position);
+    output.writeLong(entry.length);
+    output.writeLong(entry.lastAccessTimestamp);
+    output.writeInt(checksum(type, entry));
+  }
+
+  private static int checksum(int type, Entry entry) {
+    int result = type;
+    result = 31 * result + entry.hashCode();
+    result = 31 * result + (int) (entry.length ^ (entry.length >>> 32));
+    result = 31 * result + (int) (entry.lastAccessTimestamp ^ (entry.lastAccessTimestamp >>> 32));
+    return result;
+  }
+
+}
@@ -26,19 +26,50 @@ import java.util.LinkedList;
 import java.util.NavigableSet;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A {@link Cache} implementation that maintains an in-memory representation.
+ * <p>
+ * The in-memory representation is guarded by the cache's own monitor, which is only held for
+ * short bookkeeping sections. Hole locks are tracked per key, so a writer holding a hole, or a
+ * caller blocked in {@link #startReadWrite(String, long)}, never delays callers using other keys,
+ * and readers of already committed spans never wait for a writer of the same key.
  */
 public final class SimpleCache implements Cache {
 
+  private static final int MAX_SCAN_THREADS = 4;
+  private static final int MIN_FILES_PER_SCAN_THREAD = 256;
+
+  /**
+   * Per key state. The monitor of an instance serializes span lookups for its key and is what
+   * callers of {@link #startReadWrite(String, long)} wait on.
+   */
+  private static final class KeyLock {
+
+    /**
+     * The hole span currently locked for writing, or null. Only written whilst holding the
+     * instance monitor.
+     */
+    public volatile CacheSpan holeSpan;
+    /**
+     * The number of callers currently using this instance. Guarded by the cache monitor.
+     */
+    public int references;
+
+  }
+
   private final File cacheDir;
   private final CacheEvictor evictor;
-  private final HashMap<String, CacheSpan> lockedSpans;
+  private final HashMap<String, KeyLock> keyLocks;
   private final CachedContentIndex index;
+  private final CachedSpanJournal journal;
   private final HashMap<String, ArrayList<Listener>> listeners;
   private long totalSpace = 0;
-  private CacheException initializationException;
+  private volatile CacheException initializationException;
 
   /**
    * Constructs the cache. The cache will delete any unrecognized files from the directory. Hence
@@ -63,8 +94,9 @@ public final class SimpleCache implements Cache {
   public SimpleCache(File cacheDir, CacheEvictor evictor, byte[] secretKey) {
     this.cacheDir = cacheDir;
     this.evictor = evictor;
-    this.lockedSpans = new HashMap<>();
+    this.keyLocks = new HashMap<>();
     this.index = new CachedContentIndex(cacheDir, secretKey);
+    this.journal = new CachedSpanJournal(cacheDir);
     this.listeners = new HashMap<>();
     // Start cache initialization.
     final ConditionVariable conditionVariable = new ConditionVariable();
@@ -124,53 +156,45 @@ public final class SimpleCache implements Cache {
   }
 
   @Override
-  public synchronized SimpleCacheSpan startReadWrite(String key, long position)
+  public SimpleCacheSpan startReadWrite(String key, long position)
       throws InterruptedException, CacheException {
-    while (true) {
-      SimpleCacheSpan span = startReadWriteNonBlocking(key, position);
-      if (span != null) {
-        return span;
-      } else {
-        // Write case, lock not available. We'll be woken up when a locked span is released (if the
-        // released lock is for the requested key then we'll be able to make progress) or when a
-        // span is added to the cache (if the span is for the requested key and covers the requested
-        // position, then we'll become a read and be able to make progress).
-        wait();
+    KeyLock keyLock = acquireKeyLock(key);
+    try {
+      synchronized (keyLock) {
+        while (true) {
+          SimpleCacheSpan span = startReadWriteLocked(keyLock, key, position);
+          if (span != null) {
+            return span;
+          } else {
+            // Write case, lock not available. We'll be woken up when the locked span for this key
+            // is released or when a span is committed for this key (if the span covers the
+            // requested position, then we'll become a read and be able to make progress).
+            keyLock.wait();
+          }
+        }
       }
+    } finally {
+      releaseKeyLock(key, keyLock);
     }
   }
 
   @Override
-  public synchronized SimpleCacheSpan startReadWriteNonBlocking(String key, long position)
+  public SimpleCacheSpan startReadWriteNonBlocking(String key, long position)
       throws CacheException {
-    if (initializationException != null) {
-      throw initializationException;
-    }
-
-    SimpleCacheSpan cacheSpan = getSpan(key, position);
-
-    // Read case.
-    if (cacheSpan.isCached) {
-      // Obtain a new span with updated last access timestamp.
-      SimpleCacheSpan newCacheSpan = index.get(key).touch(cacheSpan);
-      notifySpanTouched(cacheSpan, newCacheSpan);
-      return newCacheSpan;
-    }
-
-    // Write case, lock available.
-    if (!lockedSpans.containsKey(key)) {
-      lockedSpans.put(key, cacheSpan);
-      return cacheSpan;
+    KeyLock keyLock = acquireKeyLock(key);
+    try {
+      synchronized (keyLock) {
+        return startReadWriteLocked(keyLock, key, position);
+      }
+    } finally {
+      releaseKeyLock(key, keyLock);
     }
-
-    // Write case, lock not available.
-    return null;
   }
 
   @Override
   public synchronized File startFile(String key, long position, long maxLength)
       throws CacheException {
-    Assertions.checkState(lockedSpans.containsKey(key));
+    Assertions.checkState(isHoleLocked(key));
     if (!cacheDir.exists()) {
       // For some reason the cache directory doesn't exist. Make a best effort to create it.
       removeStaleSpansAndCachedContents();
@@ -182,10 +206,13 @@ public final class SimpleCache implements Cache {
   }
 
   @Override
-  public synchronized void commitFile(File file) throws CacheException {
-    SimpleCacheSpan span = SimpleCacheSpan.createCacheEntry(file, index);
+  public void commitFile(File file) throws CacheException {
+    SimpleCacheSpan span;
+    synchronized (this) {
+      span = SimpleCacheSpan.createCacheEntry(file, index);
+    }
     Assertions.checkState(span != null);
-    Assertions.checkState(lockedSpans.containsKey(span.key));
+    Assertions.checkState(isHoleLocked(span.key));
     // If the file doesn't exist, don't add it to the in-memory representation.
     if (!file.exists()) {
       return;
@@ -195,20 +222,118 @@ public final class SimpleCache implements Cache {
       file.delete();
       return;
     }
-    // Check if the span conflicts with the set content length
-    Long length = getContentLength(span.key);
-    if (length != C.LENGTH_UNSET) {
-      Assertions.checkState((span.position + span.length) <= length);
+    synchronized (this) {
+      // Check if the span conflicts with the set content length
+      Long length = getContentLength(span.key);
+      if (length != C.LENGTH_UNSET) {
+        Assertions.checkState((span.position + span.length) <= length);
+      }
+      addSpan(span);
+      journal.onSpanAdded(span, index.get(span.key).id);
+      index.store();
+      journal.flush(index.getAll());
     }
-    addSpan(span);
-    index.store();
-    notifyAll();
+    notifyKeyLock(span.key);
   }
 
   @Override
-  public synchronized void releaseHoleSpan(CacheSpan holeSpan) {
-    Assertions.checkState(holeSpan == lockedSpans.remove(holeSpan.key));
-    notifyAll();
+  public void releaseHoleSpan(CacheSpan holeSpan) {
+    KeyLock keyLock = acquireKeyLock(holeSpan.key);
+    try {
+      synchronized (keyLock) {
+        Assertions.checkState(holeSpan == keyLock.holeSpan);
+        keyLock.holeSpan = null;
+        keyLock.notifyAll();
+      }
+    } finally {
+      // Drops both the reference taken above and the one held on behalf of the hole span.
+      releaseKeyLock(holeSpan.key, keyLock);
+      releaseKeyLock(holeSpan.key, keyLock);
+    }
+  }
+
+  /**
+   * Looks up the span for the given position, either touching it if it is cached or locking it if
+   * it is a hole. Must be called whilst holding the monitor of {@code keyLock}.
+   *
+   * @return The span, or null if it's a hole which is already locked by another caller.
+   */
+  private SimpleCacheSpan startReadWriteLocked(KeyLock keyLock, String key, long position)
+      throws CacheException {
+    while (true) {
+      SimpleCacheSpan cacheSpan = getSpan(key, position);
+
+      // Read case.
+      if (cacheSpan.isCached) {
+        // Obtain a new span with updated last access timestamp.
+        SimpleCacheSpan newCacheSpan = touchSpan(cacheSpan);
+        if (newCacheSpan == null) {
+          // The span was evicted after the lookup, look it up again.
+          continue;
+        }
+        return newCacheSpan;
+      }
+
+      // Write case, lock available.
+      if (keyLock.holeSpan == null) {
+        retainKeyLock(keyLock);
+        keyLock.holeSpan = cacheSpan;
+        return cacheSpan;
+      }
+
+      // Write case, lock not available.
+      return null;
+    }
+  }
+
+  private synchronized SimpleCacheSpan touchSpan(SimpleCacheSpan cacheSpan)
+      throws CacheException {
+    CachedContent cachedContent = index.get(cacheSpan.key);
+    if (cachedContent == null || !cachedContent.getSpans().contains(cacheSpan)) {
+      return null;
+    }
+    SimpleCacheSpan newCacheSpan = cachedContent.touch(cacheSpan);
+    // Only queued in memory, touches are written in batches.
+    journal.onSpanTouched(newCacheSpan, cachedContent.id);
+    notifySpanTouched(cacheSpan, newCacheSpan);
+    return newCacheSpan;
+  }
+
+  private synchronized KeyLock acquireKeyLock(String key) {
+    KeyLock keyLock = keyLocks.get(key);
+    if (keyLock == null) {
+      keyLock = new KeyLock();
+      keyLocks.put(key, keyLock);
+    }
+    keyLock.references++;
+    return keyLock;
+  }
+
+  private synchronized void retainKeyLock(KeyLock keyLock) {
+    keyLock.references++;
+  }
+
+  private synchronized void releaseKeyLock(String key, KeyLock keyLock) {
+    if (--keyLock.references == 0) {
+      keyLocks.remove(key);
+    }
+  }
+
+  private synchronized boolean isHoleLocked(String key) {
+    KeyLock keyLock = keyLocks.get(key);
+    return keyLock != null && keyLock.holeSpan != null;
+  }
+
+  private void notifyKeyLock(String key) {
+    KeyLock keyLock;
+    synchronized (this) {
+      keyLock = keyLocks.get(key);
+    }
+    if (keyLock != null) {
+      synchronized (keyLock) {
+        keyLock.notifyAll();
+      }
+    }
   }
 
   /**
@@ -225,52 +350,174 @@ public final class SimpleCache implements Cache {
    * @return The corresponding cache {@link SimpleCacheSpan}.
    */
   private SimpleCacheSpan getSpan(String key, long position) throws CacheException {
-    CachedContent cachedContent = index.get(key);
-    if (cachedContent == null) {
-      return SimpleCacheSpan.createOpenHole(key, position);
-    }
     while (true) {
-      SimpleCacheSpan span = cachedContent.getSpan(position);
+      SimpleCacheSpan span = lookupSpan(key, position);
       if (span.isCached && !span.file.exists()) {
         // The file has been deleted from under us. It's likely that other files will have been
         // deleted too, so scan the whole in-memory representation.
-        removeStaleSpansAndCachedContents();
+        synchronized (this) {
+          removeStaleSpansAndCachedContents();
+        }
         continue;
       }
       return span;
     }
   }
 
+  private synchronized SimpleCacheSpan lookupSpan(String key, long position)
+      throws CacheException {
+    if (initializationException != null) {
+      throw initializationException;
+    }
+    CachedContent cachedContent = index.get(key);
+    return cachedContent == null ? SimpleCacheSpan.createOpenHole(key, position)
+        : cachedContent.getSpan(position);
+  }
+
   /**
    * Ensures that the cache's in-memory representation has been initialized.
    */
   private void initialize() throws CacheException {
     if (!cacheDir.exists()) {
       cacheDir.mkdirs();
+      journal.open(index.getAll());
       return;
     }
 
     index.load();
 
+    ArrayList<SimpleCacheSpan> spans = journal.read(index);
+    if (spans != null) {
+      restoreJournaledSpans(spans);
+    } else {
+      scanCacheDir();
+    }
+
+    index.removeEmpty();
+    index.store();
+    journal.open(index.getAll());
+  }
+
+  /**
+   * Restores the in-memory representation from the files in the cache directory. Used when the
+   * span journal is missing or damaged. Current version file names are parsed in parallel, files
+   * which need an upgrade are handled afterwards as upgrading modifies the index.
+   */
+  private void scanCacheDir() {
+    final File[] files = cacheDir.listFiles();
+    if (files == null) {
+      return;
+    }
+    final SimpleCacheSpan[] parsedSpans = new SimpleCacheSpan[files.length];
+    int threadCount = Math.min(MAX_SCAN_THREADS, Runtime.getRuntime().availableProcessors());
+    if (threadCount > 1 && files.length >= MIN_FILES_PER_SCAN_THREAD * 2) {
+      threadCount = Math.min(threadCount, files.length / MIN_FILES_PER_SCAN_THREAD);
+      ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+      ArrayList<Future<?>> futures = new ArrayList<>(threadCount);
+      for (int i = 0; i < threadCount; i++) {
+        final int start = files.length * i / threadCount;
+        final int end = files.length * (i + 1) / threadCount;
+        futures.add(executorService.submit(new Runnable() {
+          @Override
+          public void run() {
+            parseCacheFiles(files, parsedSpans, start, end);
+          }
+        }));
+      }
+      executorService.shutdown();
+      try {
+        for (int i = 0; i < futures.size(); i++) {
+          futures.get(i).get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        // Fall through, unparsed files are parsed below.
+      }
+    } else {
+      parseCacheFiles(files, parsedSpans, 0, files.length);
+    }
+
+    for (int i = 0; i < files.length; i++) {
+      File file = files[i];
+      if (CachedContentIndex.isIndexFile(file) || CachedSpanJournal.isJournalFile(file)) {
+        continue;
+      }
+      SimpleCacheSpan span = parsedSpans[i];
+      if (span == null) {
+        span = file.length() > 0 ? SimpleCacheSpan.createCacheEntry(file, index) : null;
+      }
+      if (span != null) {
+        addSpan(span);
+      } else {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Adds the spans restored from the journal and reconciles them with the files in the cache
+   * directory. Only the names of files are compared, so files matching the journal aren't parsed.
+   * A span whose file was renamed by a touch which wasn't written to the journal before the process
+   * died is restored from its file instead. Other files which don't belong to a journaled span,
+   * such as span files committed after the last journal flush or files of keys missing from the
+   * index, are deleted.
+   */
+  private void restoreJournaledSpans(ArrayList<SimpleCacheSpan> spans) {
     File[] files = cacheDir.listFiles();
     if (files == null) {
       return;
     }
+    HashMap<String, SimpleCacheSpan> spansByFileName = new HashMap<>();
+    for (int i = 0; i < spans.size(); i++) {
+      SimpleCacheSpan span = spans.get(i);
+      spansByFileName.put(span.file.getName(), span);
+    }
+    ArrayList<File> unjournaledFiles = new ArrayList<>();
     for (File file : files) {
-      if (file.getName().equals(CachedContentIndex.FILE_NAME)) {
+      if (spansByFileName.remove(file.getName()) != null) {
         continue;
       }
-      SimpleCacheSpan span = file.length() > 0
-          ? SimpleCacheSpan.createCacheEntry(file, index) : null;
-      if (span != null) {
+      if (!CachedContentIndex.isIndexFile(file) && !CachedSpanJournal.isJournalFile(file)) {
+        unjournaledFiles.add(file);
+      }
+    }
+    // The remaining spans have no file, look them up by key and position.
+    HashMap<String, SimpleCacheSpan> missingSpans = new HashMap<>();
+    for (SimpleCacheSpan span : spansByFileName.values()) {
+      missingSpans.put(span.key + "@" + span.position, span);
+    }
+    for (int i = 0; i < spans.size(); i++) {
+      SimpleCacheSpan span = spans.get(i);
+      if (!spansByFileName.containsKey(span.file.getName())) {
+        addSpan(span);
+      }
+    }
+    for (int i = 0; i < unjournaledFiles.size(); i++) {
+      File file = unjournaledFiles.get(i);
+      SimpleCacheSpan span = missingSpans.isEmpty() || !SimpleCacheSpan.isCurrentVersion(file)
+          ? null : SimpleCacheSpan.createCacheEntry(file, index);
+      if (span != null && missingSpans.remove(span.key + "@" + span.position) != null) {
         addSpan(span);
+        // Recorded as dropped, so that the journal is rewritten when it's opened.
+        journal.onSpanTouched(span, index.get(span.key).id);
       } else {
         file.delete();
       }
     }
+  }
 
-    index.removeEmpty();
-    index.store();
+  /**
+   * Parses the current version span files in the given range. Only reads from the index, so it may
+   * be called from multiple threads at once.
+   */
+  private void parseCacheFiles(File[] files, SimpleCacheSpan[] parsedSpans, int start, int end) {
+    for (int i = start; i < end; i++) {
+      File file = files[i];
+      if (SimpleCacheSpan.isCurrentVersion(file) && file.length() > 0) {
+        parsedSpans[i] = SimpleCacheSpan.createCacheEntry(file, index);
+      }
+    }
   }
 
   /**
@@ -287,8 +534,10 @@ public final class SimpleCache implements Cache {
   private void removeSpan(CacheSpan span, boolean removeEmptyCachedContent) throws CacheException {
     CachedContent cachedContent = index.get(span.key);
     Assertions.checkState(cachedContent.removeSpan(span));
+    journal.onSpanRemoved(span, cachedContent.id);
     totalSpace -= span.length;
-    if (removeEmptyCachedContent && cachedContent.isEmpty()) {
+    // The content of a key whose hole is locked is kept, as its writer has been assigned its id.
+    if (removeEmptyCachedContent && cachedContent.isEmpty() && !isHoleLocked(span.key)) {
       index.removeEmpty(cachedContent.key);
       index.store();
     }
@@ -298,6 +547,7 @@ public final class SimpleCache implements Cache {
   @Override
   public synchronized void removeSpan(CacheSpan span) throws CacheException {
     removeSpan(span, true);
+    journal.flush(index.getAll());
   }
 
   /**
@@ -313,14 +563,32 @@ public final class SimpleCache implements Cache {
         }
       }
     }
+    if (!spansToBeRemoved.isEmpty()) {
+      // Files may have been renamed without the journal being updated, make sure the next startup
+      // scans the cache directory.
+      journal.invalidate();
+    }
     for (CacheSpan span : spansToBeRemoved) {
       // Remove span but not CachedContent to prevent multiple index.store() calls.
       removeSpan(span, false);
     }
-    index.removeEmpty();
+    removeEmptyCachedContents();
     index.store();
   }
 
+  /** Removes empty {@link CachedContent}s from the index, except for keys whose hole is locked. */
+  private void removeEmptyCachedContents() {
+    ArrayList<String> keysToBeRemoved = new ArrayList<>();
+    for (CachedContent cachedContent : index.getAll()) {
+      if (cachedContent.isEmpty() && !isHoleLocked(cachedContent.key)) {
+        keysToBeRemoved.add(cachedContent.key);
+      }
+    }
+    for (int i = 0; i < keysToBeRemoved.size(); i++) {
+      index.removeEmpty(keysToBeRemoved.get(i));
+    }
+  }
+
   private void notifySpanRemoved(CacheSpan span) {
     ArrayList<Listener> keyListeners = listeners.get(span.key);
     if (keyListeners != null) {
@@ -81,6 +81,32 @@ import java.util.regex.Pattern;
         Long.parseLong(matcher.group(3)), file);
   }
 
+  /**
+   * Creates a cache span from metadata persisted by {@link CachedSpanJournal}, without touching
+   * the file system.
+   *
+   * @param cacheDir The cache directory.
+   * @param key The cache key.
+   * @param id The cache file id.
+   * @param position The position of the span.
+   * @param length The length of the span.
+   * @param lastAccessTimestamp The last access timestamp of the span.
+   * @return The span.
+   */
+  public static SimpleCacheSpan createCacheEntry(File cacheDir, String key, int id, long position,
+      long length, long lastAccessTimestamp) {
+    return new SimpleCacheSpan(key, position, length, lastAccessTimestamp,
+        getCacheFile(cacheDir, id, position, lastAccessTimestamp));
+  }
+
+  /**
+   * Returns whether the file name is in the current format, in which case {@link
+   * #createCacheEntry(File, CachedContentIndex)} only reads from the index and never upgrades it.
+   */
+  public static boolean isCurrentVersion(File file) {
+    return file.getName().endsWith(SUFFIX);
+  }
+
   private static File upgradeFile(File file, CachedContentIndex index) {
     String key;
     String filename = file.getName();
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream.cache;
+
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.cache.Cache.CacheException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
+
+/**
+ * Evicts cache files using the W-TinyLFU policy, so that a single long stream being played once
+ * can't flush out small streams which are played again and again.
+ * <p>
+ * Spans are aggregated per key. New keys enter a small LRU window. When the window overflows, its
+ * least recently used key competes with the least recently used key of the main segmented LRU, and
+ * whichever has been accessed less often according to a count-min sketch is evicted. Keys which
+ * are accessed again whilst on probation move to the protected segment. Touching a key is O(1).
+ * <p>
+ * Spans of an evicted key are removed starting from the end of the stream, so keys that are only
+ * partially evicted keep their beginning and can still start playing from the cache.
+ */
+public final class TinyLfuCacheEvictor implements CacheEvictor {
+
+  private static final int DEFAULT_EXPECTED_KEY_COUNT = 1024;
+  private static final int WINDOW_PERCENTAGE = 1;
+  private static final int PROTECTED_PERCENTAGE = 80;
+
+  private static final int QUEUE_WINDOW = 0;
+  private static final int QUEUE_PROBATION = 1;
+  private static final int QUEUE_PROTECTED = 2;
+
+  private static final class KeyEntry {
+
+    public final String key;
+    public final TreeSet<CacheSpan> spans;
+    public long size;
+    public int queue;
+
+    public KeyEntry(String key) {
+      this.key = key;
+      this.spans = new TreeSet<>();
+    }
+
+  }
+
+  private final long maxBytes;
+  private final long maxWindowBytes;
+  private final long maxProtectedBytes;
+  private final FrequencySketch sketch;
+  private final HashMap<String, KeyEntry> entries;
+  private final LinkedHashMap<String, KeyEntry> window;
+  private final LinkedHashMap<String, KeyEntry> probation;
+  private final LinkedHashMap<String, KeyEntry> protectedSegment;
+
+  private long currentSize;
+  private long windowSize;
+  private long protectedSize;
+  private String lastTouchedKey;
+
+  /**
+   * @param maxBytes The maximum size of the cache in bytes.
+   */
+  public TinyLfuCacheEvictor(long maxBytes) {
+    this(maxBytes, DEFAULT_EXPECTED_KEY_COUNT);
+  }
+
+  /**
+   * @param maxBytes The maximum size of the cache in bytes.
+   * @param expectedKeyCount The expected number of keys in the cache, used to size the frequency
+   *     sketch.
+   */
+  public TinyLfuCacheEvictor(long maxBytes, int expectedKeyCount) {
+    this.maxBytes = maxBytes;
+    maxWindowBytes = maxBytes * WINDOW_PERCENTAGE / 100;
+    maxProtectedBytes = (maxBytes - maxWindowBytes) * PROTECTED_PERCENTAGE / 100;
+    sketch = new FrequencySketch(expectedKeyCount);
+    entries = new HashMap<>();
+    window = new LinkedHashMap<>();
+    probation = new LinkedHashMap<>();
+    protectedSegment = new LinkedHashMap<>();
+  }
+
+  @Override
+  public void onCacheInitialized() {
+    // Do nothing.
+  }
+
+  @Override
+  public void onStartFile(Cache cache, String key, long position, long maxLength) {
+    evictCache(cache, maxLength);
+  }
+
+  @Override
+  public void onSpanAdded(Cache cache, CacheSpan span) {
+    KeyEntry entry = entries.get(span.key);
+    if (entry == null) {
+      entry = new KeyEntry(span.key);
+      entries.put(span.key, entry);
+      entry.queue = QUEUE_WINDOW;
+      window.put(entry.key, entry);
+      sketch.increment(entry.key.hashCode());
+    }
+    entry.spans.add(span);
+    entry.size += span.length;
+    currentSize += span.length;
+    if (entry.queue == QUEUE_WINDOW) {
+      windowSize += span.length;
+      drainWindow();
+    } else if (entry.queue == QUEUE_PROTECTED) {
+      protectedSize += span.length;
+      demoteProtected();
+    }
+    evictCache(cache, 0);
+  }
+
+  @Override
+  public void onSpanRemoved(Cache cache, CacheSpan span) {
+    KeyEntry entry = entries.get(span.key);
+    if (entry == null || !entry.spans.remove(span)) {
+      return;
+    }
+    entry.size -= span.length;
+    currentSize -= span.length;
+    if (entry.queue == QUEUE_WINDOW) {
+      windowSize -= span.length;
+    } else if (entry.queue == QUEUE_PROTECTED) {
+      protectedSize -= span.length;
+    }
+    if (entry.spans.isEmpty()) {
+      entries.remove(entry.key);
+      getQueue(entry.queue).remove(entry.key);
+    }
+  }
+
+  @Override
+  public void onSpanTouched(Cache cache, CacheSpan oldSpan, CacheSpan newSpan) {
+    KeyEntry entry = entries.get(oldSpan.key);
+    if (entry == null) {
+      return;
+    }
+    // Both spans have the same key and position, so the new one replaces the old one.
+    entry.spans.remove(oldSpan);
+    entry.spans.add(newSpan);
+    if (!entry.key.equals(lastTouchedKey)) {
+      // Reading a stream touches each of its spans in turn, count that as a single access.
+      lastTouchedKey = entry.key;
+      sketch.increment(entry.key.hashCode());
+    }
+    onAccess(entry);
+  }
+
+  private void onAccess(KeyEntry entry) {
+    switch (entry.queue) {
+      case QUEUE_WINDOW:
+        moveToMostRecent(window, entry);
+        break;
+      case QUEUE_PROBATION:
+        probation.remove(entry.key);
+        entry.queue = QUEUE_PROTECTED;
+        protectedSegment.put(entry.key, entry);
+        protectedSize += entry.size;
+        demoteProtected();
+        break;
+      case QUEUE_PROTECTED:
+        moveToMostRecent(protectedSegment, entry);
+        break;
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  private void evictCache(Cache cache, long requiredSpace) {
+    while (currentSize + requiredSpace > maxBytes) {
+      KeyEntry victim = selectVictim();
+      if (victim == null) {
+        return;
+      }
+      try {
+        cache.removeSpan(victim.spans.last());
+      } catch (CacheException e) {
+        // Give up rather than retrying the same span forever.
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the key from which the next span should be evicted. Admits the window's least recently
+   * used key to the main segments if it is accessed more often than the main segments' victim.
+   */
+  private KeyEntry selectVictim() {
+    while (true) {
+      KeyEntry candidate = windowSize > maxWindowBytes ? leastRecent(window) : null;
+      KeyEntry victim = leastRecent(probation);
+      if (victim == null) {
+        victim = leastRecent(protectedSegment);
+      }
+      if (candidate == null) {
+        return victim != null ? victim : leastRecent(window);
+      }
+      if (victim == null
+          || sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+        return candidate;
+      }
+      // Admit the candidate to probation and evict from the main segments instead.
+      window.remove(candidate.key);
+      windowSize -= candidate.size;
+      candidate.queue = QUEUE_PROBATION;
+      probation.put(candidate.key, candidate);
+    }
+  }
+
+  /**
+   * Moves keys which overflow the window to probation whilst the cache isn't full. Once it is full
+   * they are left for {@link #selectVictim()}, which only admits them if they are accessed often
+   * enough.
+   */
+  private void drainWindow() {
+    while (windowSize > maxWindowBytes && window.size() > 1 && currentSize <= maxBytes) {
+      KeyEntry entry = leastRecent(window);
+      window.remove(entry.key);
+      windowSize -= entry.size;
+      entry.queue = QUEUE_PROBATION;
+      probation.put(entry.key, entry);
+    }
+  }
+
+  private void demoteProtected() {
+    while (protectedSize > maxProtectedBytes && protectedSegment.size() > 1) {
+      KeyEntry entry = leastRecent(protectedSegment);
+      protectedSegment.remove(entry.key);
+      protectedSize -= entry.size;
+      entry.queue = QUEUE_PROBATION;
+      probation.put(entry.key, entry);
+    }
+  }
+
+  private LinkedHashMap<String, KeyEntry> getQueue(int queue) {
+    switch (queue) {
+      case QUEUE_WINDOW:
+        return window;
+      case QUEUE_PROBATION:
+        return probation;
+      case QUEUE_PROTECTED:
+        return protectedSegment;
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  private static void moveToMostRecent(LinkedHashMap<String, KeyEntry> queue, KeyEntry entry) {
+    queue.remove(entry.key);
+    queue.put(entry.key, entry);
+  }
+
+  private static KeyEntry leastRecent(LinkedHashMap<String, KeyEntry> queue) {
+    return queue.isEmpty() ? null : queue.values().iterator().next();
+  }
+
+  /**
+   * A count-min sketch of 4-bit counters, which are halved periodically so that old accesses
+   * count for less.
+   */
+  private static final class FrequencySketch {
+
+    private static final long[] SEEDS = new long[] {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    public FrequencySketch(int expectedKeyCount) {
+      int length = Integer.highestOneBit(Math.max(expectedKeyCount, 16) - 1) << 1;
+      table = new long[length];
+      tableMask = length - 1;
+      sampleSize = 10 * length;
+    }
+
+    public int frequency(int hashCode) {
+      int hash = spread(hashCode);
+      int start = (hash & 3) << 2;
+      int frequency = Integer.MAX_VALUE;
+      for (int i = 0; i < 4; i++) {
+        int index = indexOf(hash, i);
+        int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+        frequency = Math.min(frequency, count);
+      }
+      return frequency;
+    }
+
+    public void increment(int hashCode) {
+      int hash = spread(hashCode);
+      int start = (hash & 3) << 2;
+      boolean added = false;
+      for (int i = 0; i < 4; i++) {
+        added |= incrementAt(indexOf(hash, i), start + i);
+      }
+      if (added && ++size == sampleSize) {
+        reset();
+      }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+      int offset = counter << 2;
+      long mask = 0xfL << offset;
+      if ((table[index] & mask) != mask) {
+        table[index] += 1L << offset;
+        return true;
+      }
+      return false;
+    }
+
+    private void reset() {
+      int oddCount = 0;
+      for (int i = 0; i < table.length; i++) {
+        oddCount += Long.bitCount(table[i] & ONE_MASK);
+        table[i] = (table[i] >>> 1) & RESET_MASK;
+      }
+      size = (size >>> 1) - (oddCount >>> 2);
+    }
+
+    private int indexOf(int hash, int i) {
+      long result = (hash + SEEDS[i]) * SEEDS[i];
+      result += result >>> 32;
+      return ((int) result) & tableMask;
+    }
+
+    private static int spread(int hash) {
+      hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+      hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+      return (hash >>> 16) ^ hash;
+    }
+
+  }
+
+}
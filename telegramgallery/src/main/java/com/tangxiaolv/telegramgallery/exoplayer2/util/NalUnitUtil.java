@@ -16,7 +16,9 @@
 package com.tangxiaolv.telegramgallery.exoplayer2.util;
 
 import android.util.Log;
+import com.tangxiaolv.telegramgallery.exoplayer2.C;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 
 /**
@@ -107,6 +109,8 @@ public final class NalUnitUtil {
   private static final int H264_NAL_UNIT_TYPE_SPS = 7; // Sequence parameter set
   private static final int H265_NAL_UNIT_TYPE_PREFIX_SEI = 39;
 
+  private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+
   private static final Object scratchEscapePositionsLock = new Object();
 
   /**
@@ -173,25 +177,21 @@ public final class NalUnitUtil {
    */
   public static void discardToSps(ByteBuffer data) {
     int length = data.position();
-    int consecutiveZeros = 0;
-    int offset = 0;
-    while (offset + 1 < length) {
-      int value = data.get(offset) & 0xFF;
-      if (consecutiveZeros == 3) {
-        if (value == 1 && (data.get(offset + 1) & 0x1F) == H264_NAL_UNIT_TYPE_SPS) {
-          // Copy from this NAL unit onwards to the start of the buffer.
-          ByteBuffer offsetData = data.duplicate();
-          offsetData.position(offset - 3);
-          offsetData.limit(length);
-          data.position(0);
-          data.put(offsetData);
-          return;
-        }
-      } else if (value == 0) {
-        consecutiveZeros++;
+    int offset = 1;
+    while (true) {
+      // Search for [0, 0, 1] preceded by 0, with the NAL unit type following it.
+      offset = findThreeBytePattern(data, offset, length - 1, 1);
+      if (offset == C.INDEX_UNSET) {
+        break;
       }
-      if (value != 0) {
-        consecutiveZeros = 0;
+      if (data.get(offset - 1) == 0 && (data.get(offset + 3) & 0x1F) == H264_NAL_UNIT_TYPE_SPS) {
+        // Copy from this NAL unit onwards to the start of the buffer.
+        ByteBuffer offsetData = data.duplicate();
+        offsetData.position(offset - 1);
+        offsetData.limit(length);
+        data.position(0);
+        data.put(offsetData);
+        return;
       }
       offset++;
     }
@@ -464,14 +464,60 @@ public final class NalUnitUtil {
   }
 
   private static int findNextUnescapeIndex(byte[] bytes, int offset, int limit) {
-    for (int i = offset; i < limit - 2; i++) {
-      if (bytes[i] == 0x00 && bytes[i + 1] == 0x00 && bytes[i + 2] == 0x03) {
-        return i;
+    // The value of i tracks the index of the third byte of [0, 0, 3], as in findNalUnit.
+    for (int i = offset + 2; i < limit; i += 3) {
+      int value = bytes[i];
+      if (value != 0x00 && value != 0x03) {
+        // There isn't an escape sequence ending here, or at the next two positions.
+      } else if (value == 0x03 && bytes[i - 2] == 0x00 && bytes[i - 1] == 0x00) {
+        return i - 2;
+      } else {
+        // Only skip forward by one. The loop will skip forward by three, so subtract two here.
+        i -= 2;
       }
     }
     return limit;
   }
 
+  /**
+   * Returns the index of the first occurrence of [0, 0, {@code thirdByte}] in {@code data} that
+   * starts at or after {@code offset} and ends before {@code limit}, or {@link C#INDEX_UNSET} if
+   * there is none.
+   * <p>
+   * Eight bytes are read at a time. A pattern can only start at a zero byte, so words without a
+   * zero byte are skipped, and otherwise the search continues from the word's first zero byte.
+   */
+  /* package */ static int findThreeBytePattern(ByteBuffer data, int offset, int limit,
+      int thirdByte) {
+    boolean littleEndian = data.order() == ByteOrder.LITTLE_ENDIAN;
+    int patternLimit = limit - 2;
+    int i = offset;
+    while (i <= limit - 8) {
+      long word = data.getLong(i);
+      // The top bit of each byte of zeroBytes is set if and only if the byte of word is zero.
+      long zeroBytes = ~(((word & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | word | LOW_SEVEN_BITS);
+      if (zeroBytes == 0) {
+        i += 8;
+        continue;
+      }
+      i += (littleEndian ? Long.numberOfTrailingZeros(zeroBytes)
+          : Long.numberOfLeadingZeros(zeroBytes)) >> 3;
+      if (i >= patternLimit) {
+        return C.INDEX_UNSET;
+      }
+      if (data.get(i + 1) == 0 && data.get(i + 2) == thirdByte) {
+        return i;
+      }
+      i++;
+    }
+    for (; i < patternLimit; i++) {
+      if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == thirdByte) {
+        return i;
+      }
+    }
+    return C.INDEX_UNSET;
+  }
+
   private static void skipScalingList(ParsableNalUnitBitArray bitArray, int size) {
     int lastScale = 8;
     int nextScale = 8;
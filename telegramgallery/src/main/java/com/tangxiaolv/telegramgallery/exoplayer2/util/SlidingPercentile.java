@@ -15,10 +15,6 @@
  */
 package com.tangxiaolv.telegramgallery.exoplayer2.util;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-
 /**
  * Calculate any percentile over a sliding window of weighted values. A maximum weight is
  * configured. Once the total weight of the values reaches the maximum weight, the oldest value is
@@ -28,51 +24,38 @@ import java.util.Comparator;
  * This class can be used for bandwidth estimation based on a sliding window of past transfer rate
  * observations. This is an alternative to sliding mean and exponential averaging which suffer from
  * susceptibility to outliers and slow adaptation to step functions.
+ * <p>
+ * Samples are kept in primitive arrays, in a ring buffer in the order in which they were added,
+ * and in an index which is kept sorted by value. Neither adding a sample nor computing a
+ * percentile sorts or allocates, except when the arrays grow.
  *
  * @see <a href="http://en.wikipedia.org/wiki/Moving_average">Wiki: Moving average</a>
  * @see <a href="http://en.wikipedia.org/wiki/Selection_algorithm">Wiki: Selection algorithm</a>
  */
 public class SlidingPercentile {
 
-  // Orderings.
-  private static final Comparator<Sample> INDEX_COMPARATOR = new Comparator<Sample>() {
-    @Override
-    public int compare(Sample a, Sample b) {
-      return a.index - b.index;
-    }
-  };
-
-  private static final Comparator<Sample> VALUE_COMPARATOR = new Comparator<Sample>() {
-    @Override
-    public int compare(Sample a, Sample b) {
-      return a.value < b.value ? -1 : b.value < a.value ? 1 : 0;
-    }
-  };
-
-  private static final int SORT_ORDER_NONE = -1;
-  private static final int SORT_ORDER_BY_VALUE = 0;
-  private static final int SORT_ORDER_BY_INDEX = 1;
-
-  private static final int MAX_RECYCLED_SAMPLES = 5;
+  private static final int INITIAL_CAPACITY = 16;
 
   private final int maxWeight;
-  private final ArrayList<Sample> samples;
 
-  private final Sample[] recycledSamples;
+  // Ring buffer of samples, indexed by slot. The oldest sample is in slot head.
+  private int[] weights;
+  private float[] values;
+  private int head;
+  private int count;
+  // The slots of the samples, sorted by value.
+  private int[] sortedSlots;
 
-  private int currentSortOrder;
-  private int nextSampleIndex;
   private int totalWeight;
-  private int recycledSampleCount;
 
   /**
    * @param maxWeight The maximum weight.
    */
   public SlidingPercentile(int maxWeight) {
     this.maxWeight = maxWeight;
-    recycledSamples = new Sample[MAX_RECYCLED_SAMPLES];
-    samples = new ArrayList<>();
-    currentSortOrder = SORT_ORDER_NONE;
+    weights = new int[INITIAL_CAPACITY];
+    values = new float[INITIAL_CAPACITY];
+    sortedSlots = new int[INITIAL_CAPACITY];
   }
 
   /**
@@ -82,27 +65,27 @@ public class SlidingPercentile {
    * @param value The value of the new observation.
    */
   public void addSample(int weight, float value) {
-    ensureSortedByIndex();
-
-    Sample newSample = recycledSampleCount > 0 ? recycledSamples[--recycledSampleCount]
-        : new Sample();
-    newSample.index = nextSampleIndex++;
-    newSample.weight = weight;
-    newSample.value = value;
-    samples.add(newSample);
+    if (count == weights.length) {
+      grow();
+    }
+    int slot = (head + count) % weights.length;
+    weights[slot] = weight;
+    values[slot] = value;
+    int sortedIndex = upperBound(value);
+    System.arraycopy(sortedSlots, sortedIndex, sortedSlots, sortedIndex + 1, count - sortedIndex);
+    sortedSlots[sortedIndex] = slot;
+    count++;
     totalWeight += weight;
 
     while (totalWeight > maxWeight) {
       int excessWeight = totalWeight - maxWeight;
-      Sample oldestSample = samples.get(0);
-      if (oldestSample.weight <= excessWeight) {
-        totalWeight -= oldestSample.weight;
-        samples.remove(0);
-        if (recycledSampleCount < MAX_RECYCLED_SAMPLES) {
-          recycledSamples[recycledSampleCount++] = oldestSample;
-        }
+      if (weights[head] <= excessWeight) {
+        totalWeight -= weights[head];
+        removeSorted(head);
+        head = (head + 1) % weights.length;
+        count--;
       } else {
-        oldestSample.weight -= excessWeight;
+        weights[head] -= excessWeight;
         totalWeight -= excessWeight;
       }
     }
@@ -115,46 +98,73 @@ public class SlidingPercentile {
    * @return The requested percentile value or {@link Float#NaN} if no samples have been added.
    */
   public float getPercentile(float percentile) {
-    ensureSortedByValue();
     float desiredWeight = percentile * totalWeight;
     int accumulatedWeight = 0;
-    for (int i = 0; i < samples.size(); i++) {
-      Sample currentSample = samples.get(i);
-      accumulatedWeight += currentSample.weight;
+    for (int i = 0; i < count; i++) {
+      int slot = sortedSlots[i];
+      accumulatedWeight += weights[slot];
       if (accumulatedWeight >= desiredWeight) {
-        return currentSample.value;
+        return values[slot];
       }
     }
     // Clamp to maximum value or NaN if no values.
-    return samples.isEmpty() ? Float.NaN : samples.get(samples.size() - 1).value;
+    return count == 0 ? Float.NaN : values[sortedSlots[count - 1]];
   }
 
   /**
-   * Sorts the samples by index.
+   * Returns the index in {@link #sortedSlots} of the first sample whose value is greater than
+   * {@code value}.
    */
-  private void ensureSortedByIndex() {
-    if (currentSortOrder != SORT_ORDER_BY_INDEX) {
-      Collections.sort(samples, INDEX_COMPARATOR);
-      currentSortOrder = SORT_ORDER_BY_INDEX;
+  private int upperBound(float value) {
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (values[sortedSlots[mid]] <= value) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
     }
+    return low;
   }
 
-  /**
-   * Sorts the samples by value.
-   */
-  private void ensureSortedByValue() {
-    if (currentSortOrder != SORT_ORDER_BY_VALUE) {
-      Collections.sort(samples, VALUE_COMPARATOR);
-      currentSortOrder = SORT_ORDER_BY_VALUE;
+  private void removeSorted(int slot) {
+    float value = values[slot];
+    // Find the first sample with the same value, then the slot amongst those samples.
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (values[sortedSlots[mid]] < value) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
     }
+    while (sortedSlots[low] != slot) {
+      low++;
+    }
+    System.arraycopy(sortedSlots, low + 1, sortedSlots, low, count - low - 1);
   }
 
-  private static class Sample {
-
-    public int index;
-    public int weight;
-    public float value;
-
+  private void grow() {
+    int capacity = weights.length;
+    int[] newWeights = new int[capacity * 2];
+    float[] newValues = new float[capacity * 2];
+    for (int i = 0; i < count; i++) {
+      int slot = (head + i) % capacity;
+      newWeights[i] = weights[slot];
+      newValues[i] = values[slot];
+    }
+    int[] newSortedSlots = new int[capacity * 2];
+    for (int i = 0; i < count; i++) {
+      newSortedSlots[i] = (sortedSlots[i] - head + capacity) % capacity;
+    }
+    weights = newWeights;
+    values = newValues;
+    sortedSlots = newSortedSlots;
+    head = 0;
   }
 
 }
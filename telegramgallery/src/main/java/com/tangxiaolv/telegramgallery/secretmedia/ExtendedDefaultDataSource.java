@@ -8,20 +8,22 @@ import com.tangxiaolv.telegramgallery.exoplayer2.upstream.ContentDataSource;
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSource;
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSpec;
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DefaultHttpDataSource;
-import com.tangxiaolv.telegramgallery.exoplayer2.upstream.FileDataSource;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.MappedDataSource;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.MappedFileDataSource;
 import com.tangxiaolv.telegramgallery.exoplayer2.upstream.TransferListener;
 import com.tangxiaolv.telegramgallery.exoplayer2.util.Assertions;
 import com.tangxiaolv.telegramgallery.exoplayer2.util.Util;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
-public final class ExtendedDefaultDataSource implements DataSource {
+public final class ExtendedDefaultDataSource implements MappedDataSource {
 
     private static final String SCHEME_ASSET = "asset";
     private static final String SCHEME_CONTENT = "content";
 
     private final DataSource baseDataSource;
-    private final DataSource fileDataSource;
+    private final MappedFileDataSource fileDataSource;
     private final DataSource encryptedFileDataSource;
     private final DataSource assetDataSource;
     private final DataSource contentDataSource;
@@ -76,7 +78,7 @@ public final class ExtendedDefaultDataSource implements DataSource {
     public ExtendedDefaultDataSource(Context context, TransferListener<? super DataSource> listener,
                                      DataSource baseDataSource) {
         this.baseDataSource = Assertions.checkNotNull(baseDataSource);
-        this.fileDataSource = new FileDataSource(listener);
+        this.fileDataSource = new MappedFileDataSource(listener);
         this.encryptedFileDataSource = new EncryptedFileDataSource(listener);
         this.assetDataSource = new AssetDataSource(context, listener);
         this.contentDataSource = new ContentDataSource(context, listener);
@@ -113,6 +115,17 @@ public final class ExtendedDefaultDataSource implements DataSource {
         return dataSource.read(buffer, offset, readLength);
     }
 
+    @Override
+    public ByteBuffer getMappedRegion() throws IOException {
+        return dataSource == fileDataSource ? fileDataSource.getMappedRegion() : null;
+    }
+
+    @Override
+    public void consumeMappedBytes(int length) {
+        Assertions.checkState(dataSource == fileDataSource);
+        fileDataSource.consumeMappedBytes(length);
+    }
+
     @Override
     public Uri getUri() {
         return dataSource == null ? null : dataSource.getUri();
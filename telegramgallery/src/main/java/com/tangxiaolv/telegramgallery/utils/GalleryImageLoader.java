@@ -16,6 +16,7 @@ import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Environment;
 import android.provider.MediaStore;
+import android.view.Choreographer;
 
 import com.tangxiaolv.telegramgallery.AnimatedFileDrawable;
 import com.tangxiaolv.telegramgallery.DispatchQueue;
@@ -29,7 +30,6 @@ import com.tangxiaolv.telegramgallery.tl.PhotoSize;
 import com.tangxiaolv.telegramgallery.tl.TLObject;
 import com.tangxiaolv.telegramgallery.secretmedia.EncryptedFileInputStream;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -43,13 +43,20 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class GalleryImageLoader {
 
@@ -71,6 +78,7 @@ public class GalleryImageLoader {
     private static byte[] bytesThumb;
     private static byte[] header = new byte[12];
     private static byte[] headerThumb = new byte[12];
+    private static ExecutorService scaleExecutor;
     private int currentHttpTasksCount = 0;
 
     private LinkedList<HttpFileTask> httpFileLoadTasks = new LinkedList<>();
@@ -86,6 +94,18 @@ public class GalleryImageLoader {
 
     private File telegramPath = null;
 
+    private final ArrayList<Runnable> pendingFrameDeliveries = new ArrayList<>();
+    private final ArrayList<Runnable> runningFrameDeliveries = new ArrayList<>();
+    private boolean frameDeliveryScheduled;
+    private volatile Choreographer choreographer;
+    private Choreographer.FrameCallback frameDeliveryCallback;
+    private Runnable frameDeliveryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            dispatchFrameDeliveries();
+        }
+    };
+
     private class ThumbGenerateInfo {
         private int count;
         private FileLocation fileLocation;
@@ -116,12 +136,7 @@ public class GalleryImageLoader {
                     @Override
                     public void run() {
                         fileProgresses.put(url, progress);
-                        AndroidUtilities.runOnUIThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.FileLoadProgressChanged, url, progress);
-                            }
-                        });
+                        NotificationCenter.getInstance().postProgress(NotificationCenter.FileLoadProgressChanged, url, progress, false);
                     }
                 });
             }
@@ -287,12 +302,7 @@ public class GalleryImageLoader {
                     @Override
                     public void run() {
                         fileProgresses.put(cacheImage.url, progress);
-                        AndroidUtilities.runOnUIThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.FileLoadProgressChanged, cacheImage.url, progress);
-                            }
-                        });
+                        NotificationCenter.getInstance().postProgress(NotificationCenter.FileLoadProgressChanged, cacheImage.url, progress, false);
                     }
                 });
             }
@@ -941,13 +951,17 @@ public class GalleryImageLoader {
                         ignore.getStackTrace();
                     }
                 }
+                if (image != null) {
+                    // start uploading the bitmap to the gpu before it reaches the ui thread
+                    image.prepareToDraw();
+                }
                 Thread.interrupted();
                 onPostExecute(image != null ? new BitmapDrawable(image) : null);
             }
         }
 
         private void onPostExecute(final BitmapDrawable bitmapDrawable) {
-            AndroidUtilities.runOnUIThread(new Runnable() {
+            runOnNextFrame(new Runnable() {
                 @Override
                 public void run() {
                     BitmapDrawable toSet = null;
@@ -1006,6 +1020,7 @@ public class GalleryImageLoader {
         protected String httpUrl;
         protected HttpImageTask httpTask;
         protected CacheOutTask cacheTask;
+        protected DispatchQueue.Token cacheToken;
 
         protected ArrayList<ImageReceiver> imageReceiverArray = new ArrayList<>();
         protected ArrayList<String> keys = new ArrayList<>();
@@ -1048,12 +1063,13 @@ public class GalleryImageLoader {
                 }
                 if (cacheTask != null) {
                     if (thumb) {
-                        cacheThumbOutQueue.cancelRunnable(cacheTask);
+                        cacheThumbOutQueue.cancel(cacheToken);
                     } else {
-                        cacheOutQueue.cancelRunnable(cacheTask);
+                        cacheOutQueue.cancel(cacheToken);
                     }
                     cacheTask.cancel();
                     cacheTask = null;
+                    cacheToken = null;
                 }
                 if (httpTask != null) {
                     httpTasks.remove(httpTask);
@@ -1072,7 +1088,7 @@ public class GalleryImageLoader {
         public void setImageAndClear(final BitmapDrawable image) {
             if (image != null) {
                 final ArrayList<ImageReceiver> finalImageReceiverArray = new ArrayList<>(imageReceiverArray);
-                AndroidUtilities.runOnUIThread(new Runnable() {
+                runOnNextFrame(new Runnable() {
                     @Override
                     public void run() {
                         if (image instanceof AnimatedFileDrawable) {
@@ -1127,6 +1143,21 @@ public class GalleryImageLoader {
 
     public GalleryImageLoader() {
 
+        if (Build.VERSION.SDK_INT >= 16) {
+            frameDeliveryCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    dispatchFrameDeliveries();
+                }
+            };
+            AndroidUtilities.runOnUIThread(new Runnable() {
+                @Override
+                public void run() {
+                    choreographer = Choreographer.getInstance();
+                }
+            });
+        }
+
         cacheOutQueue.setPriority(Thread.MIN_PRIORITY);
         cacheThumbOutQueue.setPriority(Thread.MIN_PRIORITY);
         thumbGeneratingQueue.setPriority(Thread.MIN_PRIORITY);
@@ -1162,13 +1193,7 @@ public class GalleryImageLoader {
                 long currentTime = System.currentTimeMillis();
                 if (lastProgressUpdateTime == 0 || lastProgressUpdateTime < currentTime - 500) {
                     lastProgressUpdateTime = currentTime;
-
-                    AndroidUtilities.runOnUIThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.FileUploadProgressChanged, location, progress, isEncrypted);
-                        }
-                    });
+                    NotificationCenter.getInstance().postProgress(NotificationCenter.FileUploadProgressChanged, location, progress, isEncrypted);
                 }
             }
 
@@ -1239,12 +1264,7 @@ public class GalleryImageLoader {
                 long currentTime = System.currentTimeMillis();
                 if (lastProgressUpdateTime == 0 || lastProgressUpdateTime < currentTime - 500) {
                     lastProgressUpdateTime = currentTime;
-                    AndroidUtilities.runOnUIThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.FileLoadProgressChanged, location, progress);
-                        }
-                    });
+                    NotificationCenter.getInstance().postProgress(NotificationCenter.FileLoadProgressChanged, location, progress, false);
                 }
             }
         });
@@ -1299,6 +1319,38 @@ public class GalleryImageLoader {
         checkMediaPaths();
     }
 
+    /**
+     * Queues a decoded image delivery for the ui thread. All deliveries queued before the
+     * next frame are run together from a single frame callback instead of one post each.
+     */
+    private void runOnNextFrame(Runnable runnable) {
+        synchronized (pendingFrameDeliveries) {
+            pendingFrameDeliveries.add(runnable);
+            if (frameDeliveryScheduled) {
+                return;
+            }
+            frameDeliveryScheduled = true;
+        }
+        Choreographer frameChoreographer = choreographer;
+        if (frameChoreographer != null) {
+            frameChoreographer.postFrameCallback(frameDeliveryCallback);
+        } else {
+            AndroidUtilities.runOnUIThread(frameDeliveryRunnable);
+        }
+    }
+
+    private void dispatchFrameDeliveries() {
+        synchronized (pendingFrameDeliveries) {
+            runningFrameDeliveries.addAll(pendingFrameDeliveries);
+            pendingFrameDeliveries.clear();
+            frameDeliveryScheduled = false;
+        }
+        for (int a = 0; a < runningFrameDeliveries.size(); a++) {
+            runningFrameDeliveries.get(a).run();
+        }
+        runningFrameDeliveries.clear();
+    }
+
     public void checkMediaPaths() {
         cacheOutQueue.postRunnable(new Runnable() {
             @Override
@@ -1747,9 +1799,9 @@ public class GalleryImageLoader {
                             img.cacheTask = new CacheOutTask(img);
                             imageLoadingByKeys.put(key, img);
                             if (thumb != 0) {
-                                cacheThumbOutQueue.postRunnable(img.cacheTask);
+                                img.cacheToken = cacheThumbOutQueue.postRunnable(img.cacheTask);
                             } else {
-                                cacheOutQueue.postRunnable(img.cacheTask);
+                                img.cacheToken = cacheOutQueue.postRunnable(img.cacheTask);
                             }
                         } else {
                             img.url = url;
@@ -1933,7 +1985,7 @@ public class GalleryImageLoader {
                     return;
                 }
                 imageLoadingByUrl.remove(location);
-                ArrayList<CacheOutTask> tasks = new ArrayList<>();
+                ArrayList<CacheImage> tasks = new ArrayList<>();
                 for (int a = 0; a < img.imageReceiverArray.size(); a++) {
                     String key = img.keys.get(a);
                     String filter = img.filters.get(a);
@@ -1951,15 +2003,16 @@ public class GalleryImageLoader {
                         cacheImage.filter = filter;
                         cacheImage.animatedFile = img.animatedFile;
                         imageLoadingByKeys.put(key, cacheImage);
-                        tasks.add(cacheImage.cacheTask);
+                        tasks.add(cacheImage);
                     }
                     cacheImage.addImageReceiver(imageReceiver, key, filter);
                 }
                 for (int a = 0; a < tasks.size(); a++) {
+                    CacheImage cacheImage = tasks.get(a);
                     if (img.thumb) {
-                        cacheThumbOutQueue.postRunnable(tasks.get(a));
+                        cacheImage.cacheToken = cacheThumbOutQueue.postRunnable(cacheImage.cacheTask);
                     } else {
-                        cacheOutQueue.postRunnable(tasks.get(a));
+                        cacheImage.cacheToken = cacheOutQueue.postRunnable(cacheImage.cacheTask);
                     }
                 }
             }
@@ -2231,13 +2284,24 @@ public class GalleryImageLoader {
             scaledBitmap = bitmap;
         }
 
+        try {
+            return saveImage(scaledBitmap, quality, cache, 0);
+        } finally {
+            if (scaledBitmap != bitmap) {
+                scaledBitmap.recycle();
+            }
+        }
+    }
+
+    private static PhotoSize saveImage(Bitmap bitmap, int quality, boolean cache, int localId) throws IOException {
         FileLocation.TL_fileLocation location = new FileLocation.TL_fileLocation();
         location.volume_id = Integer.MIN_VALUE;
         location.dc_id = Integer.MIN_VALUE;
+        location.local_id = localId;
         PhotoSize size = new PhotoSize.TL_photoSize();
         size.location = location;
-        size.w = scaledBitmap.getWidth();
-        size.h = scaledBitmap.getHeight();
+        size.w = bitmap.getWidth();
+        size.h = bitmap.getHeight();
         if (size.w <= 100 && size.h <= 100) {
             size.type = "s";
         } else if (size.w <= 320 && size.h <= 320) {
@@ -2250,45 +2314,154 @@ public class GalleryImageLoader {
             size.type = "w";
         }
 
-        FileOutputStream stream = null;
-        ByteArrayOutputStream stream2 = null;
+        // encode once straight into the file channel, cached bytes are read back from disk
+        // instead of compressing a second time into a growing byte array
+        RandomAccessFile file = null;
         try {
             String fileName = location.volume_id + "_" + location.local_id + ".jpg";
             final File cacheFile = new File(FileLoader.getInstance().getDirectory(FileLoader.MEDIA_DIR_CACHE), fileName);
-            stream = new FileOutputStream(cacheFile);
-            scaledBitmap.compress(Bitmap.CompressFormat.JPEG, quality, stream);
+            file = new RandomAccessFile(cacheFile, "rw");
+            FileChannel channel = file.getChannel();
+            channel.truncate(0);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, quality, Channels.newOutputStream(channel));
+            size.size = (int) channel.size();
             if (cache) {
-                stream2 = new ByteArrayOutputStream();
-                scaledBitmap.compress(Bitmap.CompressFormat.JPEG, quality, stream2);
-                size.bytes = stream2.toByteArray();
-                size.size = size.bytes.length;
-            } else {
-                size.size = (int) stream.getChannel().size();
+                size.bytes = new byte[size.size];
+                file.seek(0);
+                file.readFully(size.bytes, 0, size.size);
             }
         } finally {
-            if (null != stream) {
+            if (null != file) {
                 try {
-                    stream.close();
+                    file.close();
                 } catch (IOException e) {
                     /*igone*/
                     e.getStackTrace();
                 }
             }
+        }
+        return size;
+    }
 
-            if (null != stream2) {
-                try {
-                    stream2.close();
-                } catch (IOException e) {
-                /*igone*/
-                e.getStackTrace();
-                }
+    /**
+     * Decodes the image at path with the largest power of two sample size that still keeps
+     * it above the target, then applies the remaining scale and the exif rotation in a single
+     * filtered pass, so the full size image is never decoded. Each path is saved to its own
+     * cache file, which is overwritten when the same path is saved again.
+     */
+    public static PhotoSize scaleAndSaveImage(String path, float maxWidth, float maxHeight, int quality, boolean cache) {
+        if (path == null) {
+            return null;
+        }
+        BitmapFactory.Options bmOptions = new BitmapFactory.Options();
+        bmOptions.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, bmOptions);
+        float photoW = bmOptions.outWidth;
+        float photoH = bmOptions.outHeight;
+        if (photoW <= 0 || photoH <= 0) {
+            return null;
+        }
+        float scaleFactor = Math.max(photoW / maxWidth, photoH / maxHeight);
+        if (scaleFactor < 1) {
+            scaleFactor = 1;
+        }
+        int sample = 1;
+        while (sample * 2 <= scaleFactor) {
+            sample *= 2;
+        }
+        bmOptions.inJustDecodeBounds = false;
+        bmOptions.inSampleSize = sample;
+        bmOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        int orientation = 0;
+        try {
+            ExifInterface exif = new ExifInterface(path);
+            switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, 1)) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    orientation = 90;
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    orientation = 180;
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    orientation = 270;
+                    break;
+            }
+        } catch (Throwable ignore) {
+            ignore.getStackTrace();
+        }
+
+        Bitmap b = null;
+        Bitmap result = null;
+        try {
+            b = BitmapFactory.decodeFile(path, bmOptions);
+            if (b == null) {
+                return null;
+            }
+            float scale = Math.min(1.0f, Math.min(maxWidth / b.getWidth(), maxHeight / b.getHeight()));
+            Matrix matrix = new Matrix();
+            if (scale < 1.0f) {
+                matrix.postScale(scale, scale);
+            }
+            if (orientation != 0) {
+                matrix.postRotate(orientation);
+            }
+            result = matrix.isIdentity() ? b : Bitmaps.createBitmap(b, 0, 0, b.getWidth(), b.getHeight(), matrix, true);
+            if (result != b) {
+                b.recycle();
+                b = null;
+            }
+            // negative ids keep the file in the cache directory, see FileLoader.getPathToAttach
+            return saveImage(result, quality, cache, -1 - (path.hashCode() & Integer.MAX_VALUE));
+        } catch (Throwable e) {
+            FileLog.e(e);
+            return null;
+        } finally {
+            if (b != null && !b.isRecycled()) {
+                b.recycle();
+            }
+            if (result != null && !result.isRecycled()) {
+                result.recycle();
             }
         }
-        if (scaledBitmap != bitmap) {
-            scaledBitmap.recycle();
+    }
+
+    /**
+     * Scales and saves a batch of images in parallel, one decode per core at most.
+     * The returned list keeps the order of paths, failed images are null.
+     */
+    public static ArrayList<PhotoSize> scaleAndSaveImages(List<String> paths, final float maxWidth, final float maxHeight, final int quality, final boolean cache) {
+        ArrayList<PhotoSize> result = new ArrayList<>(paths.size());
+        ArrayList<Future<PhotoSize>> futures = new ArrayList<>(paths.size());
+        for (int a = 0; a < paths.size(); a++) {
+            final String path = paths.get(a);
+            futures.add(getScaleExecutor().submit(new Callable<PhotoSize>() {
+                @Override
+                public PhotoSize call() throws Exception {
+                    return scaleAndSaveImage(path, maxWidth, maxHeight, quality, cache);
+                }
+            }));
         }
+        for (int a = 0; a < futures.size(); a++) {
+            PhotoSize size = null;
+            try {
+                size = futures.get(a).get();
+            } catch (Throwable e) {
+                FileLog.e(e);
+            }
+            result.add(size);
+        }
+        return result;
+    }
 
-        return size;
+    private static synchronized ExecutorService getScaleExecutor() {
+        if (scaleExecutor == null) {
+            int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            executor.allowCoreThreadTimeOut(true);
+            scaleExecutor = executor;
+        }
+        return scaleExecutor;
     }
 
     public static PhotoSize scaleAndSaveImage(Bitmap bitmap, float maxWidth, float maxHeight, int quality, boolean cache) {
@@ -1,9 +1,13 @@
 package com.tangxiaolv.telegramgallery.utils;
 
+import android.os.Build;
 import android.os.Looper;
 import android.util.SparseArray;
+import android.view.Choreographer;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class NotificationCenter {
 
@@ -38,12 +42,21 @@ public class NotificationCenter {
     public static final int screenshotTook = totalEvents++;
     public static final int albumsDidLoaded = totalEvents++;
 
-    private SparseArray<ArrayList<Object>> observers = new SparseArray<>();
-    private SparseArray<ArrayList<Object>> removeAfterBroadcast = new SparseArray<>();
-    private SparseArray<ArrayList<Object>> addAfterBroadcast = new SparseArray<>();
+    private static final Object[] EMPTY_OBSERVERS = new Object[0];
+
+    // copy on write: a broadcast iterates the array it read, mutations swap in a new one
+    private final AtomicReferenceArray<Object[]> observers = new AtomicReferenceArray<>(totalEvents);
     private ArrayList<DelayedPost> delayedPosts = new ArrayList<>(10);
 
-    private int broadcasting = 0;
+    private final SparseArray<HashMap<String, ProgressEvent>> pendingProgress = new SparseArray<>();
+    private final ArrayList<ProgressEvent> dispatchingProgress = new ArrayList<>();
+    private final ArrayList<ProgressEvent> progressPool = new ArrayList<>();
+    private final Object[] loadProgressArgs = new Object[2];
+    private final Object[] uploadProgressArgs = new Object[3];
+    private boolean progressFlushScheduled;
+    private boolean progressDispatching;
+    private Object progressFrameCallback;
+
     private int[] allowedNotifications;
     private boolean animationInProgress;
 
@@ -51,6 +64,14 @@ public class NotificationCenter {
         void didReceivedNotification(int id, Object... args);
     }
 
+    // pending progress update of a location, instances are pooled
+    private static final class ProgressEvent {
+        private int id;
+        private String location;
+        private float progress;
+        private boolean isEncrypted;
+    }
+
     private class DelayedPost {
 
         private DelayedPost(int id, Object[] args) {
@@ -62,6 +83,25 @@ public class NotificationCenter {
         private Object[] args;
     }
 
+    private Runnable progressFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (Build.VERSION.SDK_INT >= 16) {
+                if (progressFrameCallback == null) {
+                    progressFrameCallback = new Choreographer.FrameCallback() {
+                        @Override
+                        public void doFrame(long frameTimeNanos) {
+                            dispatchProgress();
+                        }
+                    };
+                }
+                Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) progressFrameCallback);
+            } else {
+                dispatchProgress();
+            }
+        }
+    };
+
     private static volatile NotificationCenter Instance = null;
 
     public static NotificationCenter getInstance() {
@@ -89,6 +129,9 @@ public class NotificationCenter {
             }
             delayedPosts.clear();
         }
+        if (!animationInProgress) {
+            dispatchProgress();
+        }
     }
 
     public boolean isAnimationInProgress() {
@@ -96,21 +139,35 @@ public class NotificationCenter {
     }
 
     public void postNotificationName(int id, Object... args) {
-        boolean allowDuringAnimation = false;
+        boolean allowDuringAnimation = isAllowedDuringAnimation(id);
+        postNotificationNameInternal(id, allowDuringAnimation, args);
+    }
+
+    private boolean isAllowedDuringAnimation(int id) {
         if (allowedNotifications != null) {
             for (int a = 0; a < allowedNotifications.length; a++) {
                 if (allowedNotifications[a] == id) {
-                    allowDuringAnimation = true;
-                    break;
+                    return true;
                 }
             }
         }
-        postNotificationNameInternal(id, allowDuringAnimation, args);
+        return false;
     }
 
-    public void postNotificationNameInternal(int id, boolean allowDuringAnimation, Object... args) {
-        if (Looper.getMainLooper() != Looper.myLooper()){
-            throw new RuntimeException("addObserver allowed only from MAIN thread");
+    public void postNotificationNameInternal(final int id, final boolean allowDuringAnimation, final Object... args) {
+        if (id == FileDidLoaded || id == FileDidFailedLoad) {
+            dropPendingProgress(FileLoadProgressChanged, args);
+        } else if (id == FileDidUpload || id == FileDidFailUpload) {
+            dropPendingProgress(FileUploadProgressChanged, args);
+        }
+        if (Looper.getMainLooper() != Looper.myLooper()) {
+            AndroidUtilities.runOnUIThread(new Runnable() {
+                @Override
+                public void run() {
+                    postNotificationNameInternal(id, allowDuringAnimation, args);
+                }
+            });
+            return;
         }
 
         if (!allowDuringAnimation && animationInProgress) {
@@ -118,80 +175,161 @@ public class NotificationCenter {
             delayedPosts.add(delayedPost);
             return;
         }
-        broadcasting++;
-        ArrayList<Object> objects = observers.get(id);
-        if (objects != null && !objects.isEmpty()) {
-            for (int a = 0; a < objects.size(); a++) {
-                Object obj = objects.get(a);
-                ((NotificationCenterDelegate) obj).didReceivedNotification(id, args);
-            }
-        }
-        broadcasting--;
-        if (broadcasting == 0) {
-            if (removeAfterBroadcast.size() != 0) {
-                for (int a = 0; a < removeAfterBroadcast.size(); a++) {
-                    int key = removeAfterBroadcast.keyAt(a);
-                    ArrayList<Object> arrayList = removeAfterBroadcast.get(key);
-                    for (int b = 0; b < arrayList.size(); b++) {
-                        removeObserver(arrayList.get(b), key);
-                    }
-                }
-                removeAfterBroadcast.clear();
-            }
-            if (addAfterBroadcast.size() != 0) {
-                for (int a = 0; a < addAfterBroadcast.size(); a++) {
-                    int key = addAfterBroadcast.keyAt(a);
-                    ArrayList<Object> arrayList = addAfterBroadcast.get(key);
-                    for (int b = 0; b < arrayList.size(); b++) {
-                        addObserver(arrayList.get(b), key);
-                    }
-                }
-                addAfterBroadcast.clear();
+        Object[] objects = observers.get(id);
+        if (objects != null) {
+            for (int a = 0; a < objects.length; a++) {
+                ((NotificationCenterDelegate) objects[a]).didReceivedNotification(id, args);
             }
         }
     }
 
-    public void addObserver(Object observer, int id) {
-        if (Looper.getMainLooper() != Looper.myLooper()){
-                throw new RuntimeException("addObserver allowed only from MAIN thread");
+    /**
+     * Posts a progress update from any thread. Updates for the same location are coalesced and
+     * delivered once per frame on the main thread with the latest value.
+     */
+    public void postProgress(int id, String location, float progress, boolean isEncrypted) {
+        boolean schedule;
+        synchronized (pendingProgress) {
+            HashMap<String, ProgressEvent> events = pendingProgress.get(id);
+            if (events == null) {
+                pendingProgress.put(id, events = new HashMap<>());
+            }
+            ProgressEvent event = events.get(location);
+            if (event == null) {
+                int size = progressPool.size();
+                event = size != 0 ? progressPool.remove(size - 1) : new ProgressEvent();
+                event.id = id;
+                event.location = location;
+                events.put(location, event);
+            }
+            event.progress = progress;
+            event.isEncrypted = isEncrypted;
+            schedule = !progressFlushScheduled;
+            progressFlushScheduled = true;
+        }
+        if (schedule) {
+            AndroidUtilities.runOnUIThread(progressFlushRunnable);
         }
+    }
 
-        if (broadcasting != 0) {
-            ArrayList<Object> arrayList = addAfterBroadcast.get(id);
-            if (arrayList == null) {
-                arrayList = new ArrayList<>();
-                addAfterBroadcast.put(id, arrayList);
+    /**
+     * Drops the progress update that is still pending for the location of a completion event, so
+     * it can't arrive after the completion and reset the progress shown for the location.
+     */
+    private void dropPendingProgress(int progressId, Object[] args) {
+        if (args == null || args.length == 0 || !(args[0] instanceof String)) {
+            return;
+        }
+        synchronized (pendingProgress) {
+            HashMap<String, ProgressEvent> events = pendingProgress.get(progressId);
+            ProgressEvent event = events != null ? events.remove(args[0]) : null;
+            if (event != null) {
+                event.location = null;
+                progressPool.add(event);
             }
-            arrayList.add(observer);
+        }
+    }
+
+    private void dispatchProgress() {
+        if (progressDispatching) {
             return;
         }
-        ArrayList<Object> objects = observers.get(id);
-        if (objects == null) {
-            observers.put(id, (objects = new ArrayList<>()));
+        synchronized (pendingProgress) {
+            progressFlushScheduled = false;
+            for (int a = 0; a < pendingProgress.size(); a++) {
+                HashMap<String, ProgressEvent> events = pendingProgress.valueAt(a);
+                if (!events.isEmpty() && (!animationInProgress || isAllowedDuringAnimation(pendingProgress.keyAt(a)))) {
+                    dispatchingProgress.addAll(events.values());
+                    events.clear();
+                }
+            }
         }
-        if (objects.contains(observer)) {
+        if (dispatchingProgress.isEmpty()) {
             return;
         }
-        objects.add(observer);
+        progressDispatching = true;
+        for (int a = 0; a < dispatchingProgress.size(); a++) {
+            ProgressEvent event = dispatchingProgress.get(a);
+            Object[] objects = observers.get(event.id);
+            if (objects != null) {
+                // same arguments as before the updates were coalesced: location, progress and,
+                // for uploads, whether the file is encrypted
+                Object[] args;
+                if (event.id == FileUploadProgressChanged) {
+                    args = uploadProgressArgs;
+                    args[2] = event.isEncrypted;
+                } else {
+                    args = loadProgressArgs;
+                }
+                args[0] = event.location;
+                args[1] = event.progress;
+                for (int b = 0; b < objects.length; b++) {
+                    ((NotificationCenterDelegate) objects[b]).didReceivedNotification(event.id, args);
+                }
+            }
+        }
+        loadProgressArgs[0] = null;
+        uploadProgressArgs[0] = null;
+        progressDispatching = false;
+        boolean schedule;
+        synchronized (pendingProgress) {
+            for (int a = 0; a < dispatchingProgress.size(); a++) {
+                ProgressEvent event = dispatchingProgress.get(a);
+                event.location = null;
+                progressPool.add(event);
+            }
+            schedule = false;
+            if (!animationInProgress && !progressFlushScheduled) {
+                for (int a = 0; a < pendingProgress.size(); a++) {
+                    if (!pendingProgress.valueAt(a).isEmpty()) {
+                        schedule = true;
+                        break;
+                    }
+                }
+            }
+            if (schedule) {
+                progressFlushScheduled = true;
+            }
+        }
+        dispatchingProgress.clear();
+        if (schedule) {
+            AndroidUtilities.runOnUIThread(progressFlushRunnable);
+        }
     }
 
-    public void removeObserver(Object observer, int id) {
-        if (Looper.getMainLooper() != Looper.myLooper()){
-            throw new RuntimeException("addObserver allowed only from MAIN thread");
+    public void addObserver(Object observer, int id) {
+        synchronized (observers) {
+            Object[] objects = observers.get(id);
+            if (objects == null) {
+                objects = EMPTY_OBSERVERS;
+            }
+            for (int a = 0; a < objects.length; a++) {
+                if (objects[a] == observer) {
+                    return;
+                }
+            }
+            Object[] newObjects = new Object[objects.length + 1];
+            System.arraycopy(objects, 0, newObjects, 0, objects.length);
+            newObjects[objects.length] = observer;
+            observers.set(id, newObjects);
         }
+    }
 
-        if (broadcasting != 0) {
-            ArrayList<Object> arrayList = removeAfterBroadcast.get(id);
-            if (arrayList == null) {
-                arrayList = new ArrayList<>();
-                removeAfterBroadcast.put(id, arrayList);
+    public void removeObserver(Object observer, int id) {
+        synchronized (observers) {
+            Object[] objects = observers.get(id);
+            if (objects == null) {
+                return;
+            }
+            for (int a = 0; a < objects.length; a++) {
+                if (objects[a] == observer) {
+                    Object[] newObjects = new Object[objects.length - 1];
+                    System.arraycopy(objects, 0, newObjects, 0, a);
+                    System.arraycopy(objects, a + 1, newObjects, a, objects.length - a - 1);
+                    observers.set(id, newObjects.length == 0 ? null : newObjects);
+                    return;
+                }
             }
-            arrayList.add(observer);
-            return;
-        }
-        ArrayList<Object> objects = observers.get(id);
-        if (objects != null) {
-            objects.remove(observer);
         }
     }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.extractor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.tangxiaolv.telegramgallery.exoplayer2.C;
+import com.tangxiaolv.telegramgallery.exoplayer2.Format;
+import com.tangxiaolv.telegramgallery.exoplayer2.FormatHolder;
+import com.tangxiaolv.telegramgallery.exoplayer2.decoder.DecoderInputBuffer;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DefaultAllocator;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.MimeTypes;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.ParsableByteArray;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Tests that {@link DefaultTrackOutput} reports the memory it holds per track and reads back the
+ * queued samples, with heap and with direct allocations.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Config.TARGET_SDK, manifest = Config.NONE)
+public final class DefaultTrackOutputTest {
+
+  private static final int ALLOCATION_SIZE = 4096;
+  private static final int SAMPLE_COUNT = 20;
+  // Not a multiple of the allocation size, so that samples straddle allocations.
+  private static final int VIDEO_SAMPLE_SIZE = 3000;
+  private static final int AUDIO_SAMPLE_SIZE = 700;
+  private static final Format VIDEO_FORMAT =
+      Format.createSampleFormat("video", MimeTypes.VIDEO_H264, 0);
+  private static final Format AUDIO_FORMAT =
+      Format.createSampleFormat("audio", MimeTypes.AUDIO_AAC, 0);
+
+  @Test
+  public void testAllocatedBytesPerTrackWithHeapBuffers() {
+    assertAllocatedBytesPerTrack(new DefaultAllocator(true, ALLOCATION_SIZE));
+  }
+
+  @Test
+  public void testAllocatedBytesPerTrackWithDirectBuffers() {
+    assertAllocatedBytesPerTrack(new DefaultAllocator(true, ALLOCATION_SIZE, 0, true));
+  }
+
+  @Test
+  public void testReadDataWithHeapBuffers() {
+    assertReadDataMatches(new DefaultAllocator(true, ALLOCATION_SIZE),
+        DecoderInputBuffer.BUFFER_REPLACEMENT_MODE_NORMAL);
+  }
+
+  @Test
+  public void testReadDataWithDirectBuffers() {
+    assertReadDataMatches(new DefaultAllocator(true, ALLOCATION_SIZE, 0, true),
+        DecoderInputBuffer.BUFFER_REPLACEMENT_MODE_DIRECT);
+  }
+
+  private static void assertAllocatedBytesPerTrack(DefaultAllocator allocator) {
+    DefaultTrackOutput videoOutput = new DefaultTrackOutput(allocator);
+    DefaultTrackOutput audioOutput = new DefaultTrackOutput(allocator);
+    videoOutput.format(VIDEO_FORMAT);
+    audioOutput.format(AUDIO_FORMAT);
+    byte[] videoData = createData(VIDEO_SAMPLE_SIZE * SAMPLE_COUNT, 0);
+    byte[] audioData = createData(AUDIO_SAMPLE_SIZE * SAMPLE_COUNT, 1);
+    for (int i = 0; i < SAMPLE_COUNT; i++) {
+      appendSample(videoOutput, videoData, i, VIDEO_SAMPLE_SIZE);
+      appendSample(audioOutput, audioData, i, AUDIO_SAMPLE_SIZE);
+      assertEquals(allocationsFor((i + 1) * VIDEO_SAMPLE_SIZE) * ALLOCATION_SIZE,
+          videoOutput.getAllocatedBytes());
+      assertEquals(allocationsFor((i + 1) * AUDIO_SAMPLE_SIZE) * ALLOCATION_SIZE,
+          audioOutput.getAllocatedBytes());
+      assertEquals(allocator.getTotalBytesAllocated(),
+          videoOutput.getAllocatedBytes() + audioOutput.getAllocatedBytes());
+    }
+
+    // Reading samples returns the allocations they no longer need.
+    FormatHolder formatHolder = new FormatHolder();
+    DecoderInputBuffer buffer = new DecoderInputBuffer(
+        DecoderInputBuffer.BUFFER_REPLACEMENT_MODE_NORMAL);
+    int videoBytesBefore = videoOutput.getAllocatedBytes();
+    readSamples(videoOutput, formatHolder, buffer, SAMPLE_COUNT / 2);
+    assertTrue(videoOutput.getAllocatedBytes() < videoBytesBefore);
+    assertEquals(allocator.getTotalBytesAllocated(),
+        videoOutput.getAllocatedBytes() + audioOutput.getAllocatedBytes());
+
+    // Resetting one track doesn't affect the memory reported for the other.
+    int audioBytes = audioOutput.getAllocatedBytes();
+    videoOutput.reset(true);
+    assertEquals(0, videoOutput.getAllocatedBytes());
+    assertEquals(audioBytes, audioOutput.getAllocatedBytes());
+    assertEquals(audioBytes, allocator.getTotalBytesAllocated());
+    audioOutput.disable();
+    assertEquals(0, audioOutput.getAllocatedBytes());
+    assertEquals(0, allocator.getTotalBytesAllocated());
+  }
+
+  private static void assertReadDataMatches(DefaultAllocator allocator, int bufferReplacementMode) {
+    DefaultTrackOutput output = new DefaultTrackOutput(allocator);
+    output.format(VIDEO_FORMAT);
+    byte[] data = createData(VIDEO_SAMPLE_SIZE * SAMPLE_COUNT, 2);
+    for (int i = 0; i < SAMPLE_COUNT; i++) {
+      appendSample(output, data, i, VIDEO_SAMPLE_SIZE);
+    }
+    FormatHolder formatHolder = new FormatHolder();
+    DecoderInputBuffer buffer = new DecoderInputBuffer(bufferReplacementMode);
+    assertEquals(C.RESULT_FORMAT_READ,
+        output.readData(formatHolder, buffer, false, false, 0));
+    assertEquals(VIDEO_FORMAT, formatHolder.format);
+    for (int i = 0; i < SAMPLE_COUNT; i++) {
+      buffer.clear();
+      assertEquals(C.RESULT_BUFFER_READ, output.readData(formatHolder, buffer, false, false, 0));
+      assertEquals(i * 1000L, buffer.timeUs);
+      buffer.flip();
+      byte[] sample = new byte[buffer.data.remaining()];
+      buffer.data.get(sample);
+      assertTrue(Arrays.equals(
+          Arrays.copyOfRange(data, i * VIDEO_SAMPLE_SIZE, (i + 1) * VIDEO_SAMPLE_SIZE), sample));
+    }
+    // Only the allocation being written to is kept.
+    assertEquals(ALLOCATION_SIZE, output.getAllocatedBytes());
+    assertEquals(ALLOCATION_SIZE, allocator.getTotalBytesAllocated());
+  }
+
+  private static void readSamples(DefaultTrackOutput output, FormatHolder formatHolder,
+      DecoderInputBuffer buffer, int sampleCount) {
+    assertEquals(C.RESULT_FORMAT_READ, output.readData(formatHolder, buffer, false, false, 0));
+    for (int i = 0; i < sampleCount; i++) {
+      buffer.clear();
+      assertEquals(C.RESULT_BUFFER_READ, output.readData(formatHolder, buffer, false, false, 0));
+    }
+  }
+
+  private static void appendSample(DefaultTrackOutput output, byte[] data, int index,
+      int sampleSize) {
+    ParsableByteArray sampleData = new ParsableByteArray(data);
+    sampleData.setPosition(index * sampleSize);
+    output.sampleData(sampleData, sampleSize);
+    output.sampleMetadata(index * 1000L, C.BUFFER_FLAG_KEY_FRAME, sampleSize, 0, null);
+  }
+
+  private static int allocationsFor(int length) {
+    return (length + ALLOCATION_SIZE - 1) / ALLOCATION_SIZE;
+  }
+
+  private static byte[] createData(int length, long seed) {
+    byte[] data = new byte[length];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.extractor.mp4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.tangxiaolv.telegramgallery.exoplayer2.C;
+import com.tangxiaolv.telegramgallery.exoplayer2.Format;
+import com.tangxiaolv.telegramgallery.exoplayer2.ParserException;
+import com.tangxiaolv.telegramgallery.exoplayer2.extractor.GaplessInfoHolder;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.MimeTypes;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.ParsableByteArray;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Tests that {@link LazyTrackSampleTable} resolves the same samples as
+ * {@link ArrayTrackSampleTable} from generated sample table boxes, and compares the cost of both
+ * on a large table.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Config.TARGET_SDK, manifest = Config.NONE)
+public final class LazyTrackSampleTableTest {
+
+  private static final int SIZES_STSZ = 0;
+  private static final int SIZES_STSZ_FIXED = 1;
+  private static final int SIZES_STZ2_4 = 2;
+  private static final int SIZES_STZ2_8 = 3;
+  private static final int SIZES_STZ2_16 = 4;
+  private static final int SIZES_MODE_COUNT = 5;
+
+  private static final int EDIT_NONE = 0;
+  private static final int EDIT_ZERO_DURATION = 1;
+  private static final int EDIT_ALL_SAMPLES = 2;
+  private static final int EDIT_TRIMMING = 3;
+  private static final int EDIT_MODE_COUNT = 4;
+
+  private static final long TIMESCALE = 90000;
+  private static final long MOVIE_TIMESCALE = 1000;
+  private static final int SAMPLE_COUNT = 1500;
+  private static final int BENCHMARK_SAMPLE_COUNT = 1000000;
+  private static final int BENCHMARK_REPETITIONS = 5;
+  private static final int BENCHMARK_SEEK_COUNT = 10000;
+
+  @Test
+  public void testLazyTableMatchesArrayTable() throws ParserException {
+    int seed = 0;
+    for (int sizesMode = 0; sizesMode < SIZES_MODE_COUNT; sizesMode++) {
+      for (int editMode = 0; editMode < EDIT_MODE_COUNT; editMode++) {
+        for (int variant = 0; variant < 8; variant++) {
+          boolean co64 = (variant & 1) != 0;
+          boolean hasCtts = (variant & 2) != 0;
+          boolean hasStss = (variant & 4) != 0;
+          SyntheticTrack syntheticTrack = new SyntheticTrack(SAMPLE_COUNT, sizesMode, co64,
+              hasCtts, hasStss, editMode, seed++);
+          TrackSampleTable arrayTable = syntheticTrack.parse(false);
+          TrackSampleTable lazyTable = syntheticTrack.parse(true);
+          assertTrue(arrayTable instanceof ArrayTrackSampleTable);
+          if (editMode == EDIT_NONE || editMode == EDIT_ZERO_DURATION
+              || (editMode == EDIT_ALL_SAMPLES && !hasCtts)) {
+            assertTrue(syntheticTrack.toString(), lazyTable instanceof LazyTrackSampleTable);
+          }
+          assertTablesEqual(syntheticTrack.toString(), arrayTable, lazyTable,
+              new Random(seed));
+        }
+      }
+    }
+  }
+
+  /**
+   * Parses a sample table of a million samples, about nine hours of video at 30 fps, and prints
+   * the time taken to parse it, to read every sample in order and to look up sync samples at
+   * random positions. Doesn't assert on timings.
+   */
+  @Test
+  public void testBenchmarkLargeSampleTable() throws ParserException {
+    SyntheticTrack syntheticTrack = new SyntheticTrack(BENCHMARK_SAMPLE_COUNT, SIZES_STSZ, true,
+        true, true, EDIT_NONE, 0);
+    for (boolean lazy : new boolean[] {false, true}) {
+      long parseNs = Long.MAX_VALUE;
+      long sequentialNs = Long.MAX_VALUE;
+      long seekNs = Long.MAX_VALUE;
+      long checksum = 0;
+      for (int i = 0; i < BENCHMARK_REPETITIONS; i++) {
+        long startNs = System.nanoTime();
+        TrackSampleTable table = syntheticTrack.parse(lazy);
+        parseNs = Math.min(parseNs, System.nanoTime() - startNs);
+
+        startNs = System.nanoTime();
+        for (int j = 0; j < table.sampleCount; j++) {
+          checksum += table.getOffset(j) + table.getSize(j) + table.getTimestampUs(j)
+              + table.getFlags(j);
+        }
+        sequentialNs = Math.min(sequentialNs, System.nanoTime() - startNs);
+
+        Random random = new Random(i);
+        long durationUs = table.getTimestampUs(table.sampleCount - 1);
+        startNs = System.nanoTime();
+        for (int j = 0; j < BENCHMARK_SEEK_COUNT; j++) {
+          long timeUs = (long) (random.nextDouble() * durationUs);
+          int index = table.getIndexOfEarlierOrEqualSynchronizationSample(timeUs);
+          checksum += table.getOffset(index);
+        }
+        seekNs = Math.min(seekNs, System.nanoTime() - startNs);
+      }
+      System.out.println((lazy ? "LazyTrackSampleTable" : "ArrayTrackSampleTable") + ", "
+          + BENCHMARK_SAMPLE_COUNT + " samples: parse " + parseNs / 1000000 + " ms, read in order "
+          + sequentialNs / 1000000 + " ms, " + BENCHMARK_SEEK_COUNT + " seeks "
+          + seekNs / 1000000 + " ms (" + checksum % 10 + ")");
+    }
+  }
+
+  private static void assertTablesEqual(String name, TrackSampleTable expected,
+      TrackSampleTable actual, Random random) {
+    assertEquals(name, expected.sampleCount, actual.sampleCount);
+    assertEquals(name, expected.maximumSize, actual.maximumSize);
+    int sampleCount = expected.sampleCount;
+    for (int i = 0; i < sampleCount; i++) {
+      assertSampleEqual(name, expected, actual, i);
+    }
+    // Accessing samples out of order moves between checkpoints.
+    for (int i = 0; i < sampleCount; i++) {
+      assertSampleEqual(name, expected, actual, random.nextInt(sampleCount));
+    }
+    for (int i = sampleCount - 1; i >= 0; i--) {
+      assertEquals(name, expected.getOffset(i), actual.getOffset(i));
+    }
+
+    List<Long> timesUs = new ArrayList<>();
+    timesUs.add(Long.MIN_VALUE / 2);
+    timesUs.add(-1L);
+    timesUs.add(0L);
+    for (int i = 0; i < sampleCount; i++) {
+      long timeUs = expected.getTimestampUs(i);
+      timesUs.add(timeUs - 1);
+      timesUs.add(timeUs);
+      timesUs.add(timeUs + 1);
+    }
+    timesUs.add(Long.MAX_VALUE / 2);
+    for (long timeUs : timesUs) {
+      assertEquals(name + " at " + timeUs,
+          expected.getIndexOfEarlierOrEqualSynchronizationSample(timeUs),
+          actual.getIndexOfEarlierOrEqualSynchronizationSample(timeUs));
+      assertEquals(name + " at " + timeUs,
+          expected.getIndexOfLaterOrEqualSynchronizationSample(timeUs),
+          actual.getIndexOfLaterOrEqualSynchronizationSample(timeUs));
+    }
+  }
+
+  private static void assertSampleEqual(String name, TrackSampleTable expected,
+      TrackSampleTable actual, int index) {
+    String sampleName = name + " sample " + index;
+    assertEquals(sampleName, expected.getOffset(index), actual.getOffset(index));
+    assertEquals(sampleName, expected.getSize(index), actual.getSize(index));
+    assertEquals(sampleName, expected.getTimestampUs(index), actual.getTimestampUs(index));
+    assertEquals(sampleName, expected.getFlags(index), actual.getFlags(index));
+  }
+
+  /**
+   * A video track with randomly generated sample table boxes.
+   */
+  private static final class SyntheticTrack {
+
+    private final String name;
+    private final int sizeBoxType;
+    private final byte[] sizeBox;
+    private final int chunkOffsetsType;
+    private final byte[] chunkOffsets;
+    private final byte[] stsc;
+    private final byte[] stts;
+    private final byte[] ctts;
+    private final byte[] stss;
+    private final long[] editListDurations;
+    private final long[] editListMediaTimes;
+
+    public SyntheticTrack(int sampleCount, int sizesMode, boolean co64, boolean hasCtts,
+        boolean hasStss, int editMode, long seed) {
+      name = "sizes " + sizesMode + ", co64 " + co64 + ", ctts " + hasCtts + ", stss " + hasStss
+          + ", edit " + editMode;
+      Random random = new Random(seed);
+
+      int[] sizes = new int[sampleCount];
+      int fieldSize = 32;
+      int fixedSize = 0;
+      switch (sizesMode) {
+        case SIZES_STSZ_FIXED:
+          fixedSize = 1 + random.nextInt(5000);
+          break;
+        case SIZES_STZ2_4:
+          fieldSize = 4;
+          break;
+        case SIZES_STZ2_8:
+          fieldSize = 8;
+          break;
+        case SIZES_STZ2_16:
+          fieldSize = 16;
+          break;
+        default:
+          break;
+      }
+      for (int i = 0; i < sampleCount; i++) {
+        sizes[i] = fixedSize != 0 ? fixedSize
+            : fieldSize == 32 ? random.nextInt(200000) : random.nextInt(1 << fieldSize);
+      }
+      if (sizesMode == SIZES_STSZ || sizesMode == SIZES_STSZ_FIXED) {
+        sizeBoxType = Atom.TYPE_stsz;
+        ByteBuffer box = createFullBox(8 + (fixedSize != 0 ? 0 : 4 * sampleCount));
+        box.putInt(fixedSize);
+        box.putInt(sampleCount);
+        for (int i = 0; fixedSize == 0 && i < sampleCount; i++) {
+          box.putInt(sizes[i]);
+        }
+        sizeBox = box.array();
+      } else {
+        sizeBoxType = Atom.TYPE_stz2;
+        ByteBuffer box = createFullBox(8 + (sampleCount * fieldSize + 7) / 8);
+        box.putInt(fieldSize);
+        box.putInt(sampleCount);
+        for (int i = 0; i < sampleCount; i++) {
+          if (fieldSize == 4) {
+            if (i % 2 == 0) {
+              box.put((byte) (sizes[i] << 4));
+            } else {
+              int position = box.position() - 1;
+              box.put(position, (byte) (box.get(position) | sizes[i]));
+            }
+          } else if (fieldSize == 8) {
+            box.put((byte) sizes[i]);
+          } else {
+            box.putShort((short) sizes[i]);
+          }
+        }
+        sizeBox = box.array();
+      }
+
+      // Runs of chunks with the same number of samples, as (first chunk, samples per chunk).
+      List<int[]> runs = new ArrayList<>();
+      List<Integer> chunkSampleCounts = new ArrayList<>();
+      int remainingSamples = sampleCount;
+      while (remainingSamples > 0) {
+        int samplesPerChunk = 1 + random.nextInt(10);
+        int chunkCount = Math.min(1 + random.nextInt(20), remainingSamples / samplesPerChunk);
+        if (chunkCount == 0) {
+          samplesPerChunk = remainingSamples;
+          chunkCount = 1;
+        }
+        runs.add(new int[] {chunkSampleCounts.size() + 1, samplesPerChunk});
+        for (int i = 0; i < chunkCount; i++) {
+          chunkSampleCounts.add(samplesPerChunk);
+        }
+        remainingSamples -= chunkCount * samplesPerChunk;
+      }
+      ByteBuffer stscBox = createFullBox(4 + 12 * runs.size());
+      stscBox.putInt(runs.size());
+      for (int[] run : runs) {
+        stscBox.putInt(run[0]);
+        stscBox.putInt(run[1]);
+        stscBox.putInt(1);
+      }
+      stsc = stscBox.array();
+
+      chunkOffsetsType = co64 ? Atom.TYPE_co64 : Atom.TYPE_stco;
+      int chunkCount = chunkSampleCounts.size();
+      ByteBuffer chunkOffsetsBox = createFullBox(4 + (co64 ? 8 : 4) * chunkCount);
+      chunkOffsetsBox.putInt(chunkCount);
+      // Place co64 chunks beyond 4 GB.
+      long offset = co64 ? 5L << 32 : 1000;
+      int sample = 0;
+      for (int i = 0; i < chunkCount; i++) {
+        if (co64) {
+          chunkOffsetsBox.putLong(offset);
+        } else {
+          chunkOffsetsBox.putInt((int) offset);
+        }
+        for (int j = 0; j < chunkSampleCounts.get(i); j++) {
+          offset += sizes[sample++];
+        }
+        offset += random.nextInt(1000);
+      }
+      chunkOffsets = chunkOffsetsBox.array();
+
+      // Runs of samples with the same duration, as (sample count, delta).
+      List<int[]> timestampRuns = createRuns(random, sampleCount, 50, 3000, 1);
+      ByteBuffer sttsBox = createFullBox(4 + 8 * timestampRuns.size());
+      sttsBox.putInt(timestampRuns.size());
+      for (int[] run : timestampRuns) {
+        sttsBox.putInt(run[0]);
+        sttsBox.putInt(run[1]);
+      }
+      stts = sttsBox.array();
+
+      long[] timestamps = new long[sampleCount];
+      long timestamp = 0;
+      sample = 0;
+      for (int[] run : timestampRuns) {
+        for (int i = 0; i < run[0]; i++) {
+          timestamps[sample++] = timestamp;
+          timestamp += run[1];
+        }
+      }
+      if (hasCtts) {
+        // Short runs of composition offsets reorder samples, as B-frames do.
+        List<int[]> offsetRuns = createRuns(random, sampleCount, 5, 9000, 0);
+        ByteBuffer cttsBox = createFullBox(4 + 8 * offsetRuns.size());
+        cttsBox.putInt(offsetRuns.size());
+        sample = 0;
+        for (int[] run : offsetRuns) {
+          cttsBox.putInt(run[0]);
+          cttsBox.putInt(run[1]);
+          for (int i = 0; i < run[0]; i++) {
+            timestamps[sample++] += run[1];
+          }
+        }
+        ctts = cttsBox.array();
+      } else {
+        ctts = null;
+      }
+
+      if (hasStss) {
+        List<Integer> syncSamples = new ArrayList<>();
+        for (int i = 0; i < sampleCount; i++) {
+          if (i == 0 || random.nextInt(30) == 0) {
+            syncSamples.add(i + 1);
+          }
+        }
+        ByteBuffer stssBox = createFullBox(4 + 4 * syncSamples.size());
+        stssBox.putInt(syncSamples.size());
+        for (int syncSample : syncSamples) {
+          stssBox.putInt(syncSample);
+        }
+        stss = stssBox.array();
+      } else {
+        stss = null;
+      }
+
+      long maxTimestamp = 0;
+      for (long sampleTimestamp : timestamps) {
+        maxTimestamp = Math.max(maxTimestamp, sampleTimestamp);
+      }
+      long mediaTime;
+      switch (editMode) {
+        case EDIT_ZERO_DURATION:
+          editListMediaTimes = new long[] {timestamps[0]};
+          editListDurations = new long[] {0};
+          break;
+        case EDIT_ALL_SAMPLES:
+        case EDIT_TRIMMING:
+          mediaTime = editMode == EDIT_ALL_SAMPLES ? timestamps[0] : timestamps[sampleCount / 3];
+          editListMediaTimes = new long[] {mediaTime};
+          editListDurations =
+              new long[] {(maxTimestamp - mediaTime) * MOVIE_TIMESCALE / TIMESCALE + 2};
+          break;
+        default:
+          editListMediaTimes = null;
+          editListDurations = null;
+          break;
+      }
+    }
+
+    public TrackSampleTable parse(boolean lazy) throws ParserException {
+      Format format = Format.createSampleFormat("0", MimeTypes.VIDEO_H264, 0);
+      Track track = new Track(1, C.TRACK_TYPE_VIDEO, TIMESCALE, MOVIE_TIMESCALE, C.TIME_UNSET,
+          format, Track.TRANSFORMATION_NONE, null, 4, editListDurations, editListMediaTimes);
+      // Parsing reads the boxes from their position, so each parse gets its own atoms.
+      Atom.ContainerAtom stbl = new Atom.ContainerAtom(Atom.TYPE_stbl, 0);
+      stbl.add(new Atom.LeafAtom(sizeBoxType, new ParsableByteArray(sizeBox)));
+      stbl.add(new Atom.LeafAtom(chunkOffsetsType, new ParsableByteArray(chunkOffsets)));
+      stbl.add(new Atom.LeafAtom(Atom.TYPE_stsc, new ParsableByteArray(stsc)));
+      stbl.add(new Atom.LeafAtom(Atom.TYPE_stts, new ParsableByteArray(stts)));
+      if (ctts != null) {
+        stbl.add(new Atom.LeafAtom(Atom.TYPE_ctts, new ParsableByteArray(ctts)));
+      }
+      if (stss != null) {
+        stbl.add(new Atom.LeafAtom(Atom.TYPE_stss, new ParsableByteArray(stss)));
+      }
+      return AtomParsers.parseStbl(track, stbl, new GaplessInfoHolder(), lazy);
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+
+    /**
+     * Returns runs as (sample count, value) covering the given number of samples.
+     */
+    private static List<int[]> createRuns(Random random, int sampleCount, int maxRunLength,
+        int maxValue, int minValue) {
+      List<int[]> runs = new ArrayList<>();
+      int remainingSamples = sampleCount;
+      while (remainingSamples > 0) {
+        int runLength = Math.min(1 + random.nextInt(maxRunLength), remainingSamples);
+        runs.add(new int[] {runLength, minValue + random.nextInt(maxValue - minValue + 1)});
+        remainingSamples -= runLength;
+      }
+      return runs;
+    }
+
+    /**
+     * Returns a buffer for a full box with the given payload size, positioned at the payload.
+     */
+    private static ByteBuffer createFullBox(int payloadSize) {
+      ByteBuffer box = ByteBuffer.allocate(Atom.FULL_HEADER_SIZE + payloadSize);
+      box.putInt(Atom.FULL_HEADER_SIZE + payloadSize);
+      // The type isn't read by the parser.
+      box.putInt(0);
+      // Version and flags.
+      box.putInt(0);
+      return box;
+    }
+
+  }
+
+}
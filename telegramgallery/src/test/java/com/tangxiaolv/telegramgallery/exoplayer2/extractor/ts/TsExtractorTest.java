@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.extractor.ts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import android.util.SparseArray;
+import com.tangxiaolv.telegramgallery.exoplayer2.extractor.DefaultExtractorInput;
+import com.tangxiaolv.telegramgallery.exoplayer2.extractor.Extractor;
+import com.tangxiaolv.telegramgallery.exoplayer2.extractor.ExtractorInput;
+import com.tangxiaolv.telegramgallery.exoplayer2.extractor.ExtractorOutput;
+import com.tangxiaolv.telegramgallery.exoplayer2.extractor.SeekMap;
+import com.tangxiaolv.telegramgallery.exoplayer2.extractor.TrackOutput;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.ByteArrayDataSource;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSource;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSpec;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.ParsableByteArray;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.TimestampAdjuster;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.Util;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Tests that {@link TsExtractor} passes the payloads of generated multi-program transport streams
+ * to their readers unchanged, and measures its demux throughput.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Config.TARGET_SDK, manifest = Config.NONE)
+public final class TsExtractorTest {
+
+  private static final int TS_PACKET_SIZE = 188;
+  private static final int TS_SYNC_BYTE = 0x47;
+  private static final int STREAM_COUNT = 40;
+  private static final int PES_PACKET_COUNT = 200;
+  private static final int BENCHMARK_PROGRAM_COUNT = 4;
+  private static final int BENCHMARK_PES_PACKET_COUNT = 8000;
+  private static final int BENCHMARK_ROUNDS = 5;
+  // The largest read of ExtractingLoadable's DefaultExtractorInput, and short reads which leave
+  // partial packets in the extractor's buffer.
+  private static final int MAX_READ_LENGTH = 64 * 1024;
+  private static final int MAX_SHORT_READ_LENGTH = 3000;
+
+  @Test
+  public void testPayloadsArePassedUnchanged() throws Exception {
+    for (int seed = 0; seed < STREAM_COUNT; seed++) {
+      StreamBuilder stream = new StreamBuilder(seed, 1 + seed % 3, PES_PACKET_COUNT, false);
+      assertPayloadsEqual(stream, extract(stream.build(), new Random(seed), MAX_READ_LENGTH));
+      assertPayloadsEqual(stream,
+          extract(stream.build(), new Random(seed), MAX_SHORT_READ_LENGTH));
+    }
+  }
+
+  @Test
+  public void testImpairedStreamPayloadsArePassedUnchanged() throws Exception {
+    // Duplicate, null and errored packets and garbage between packets are all dropped.
+    for (int seed = 0; seed < STREAM_COUNT; seed++) {
+      StreamBuilder stream = new StreamBuilder(seed, 1 + seed % 3, PES_PACKET_COUNT, true);
+      assertPayloadsEqual(stream,
+          extract(stream.build(), new Random(seed), MAX_SHORT_READ_LENGTH));
+    }
+  }
+
+  /**
+   * Demuxes a stream of four programs of three elementary streams each, and prints the throughput.
+   * Doesn't assert on timings.
+   */
+  @Test
+  public void testBenchmarkMultiProgramThroughput() throws Exception {
+    StreamBuilder stream =
+        new StreamBuilder(0, BENCHMARK_PROGRAM_COUNT, BENCHMARK_PES_PACKET_COUNT, false);
+    byte[] data = stream.build();
+    long bestNs = Long.MAX_VALUE;
+    for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+      long startNs = System.nanoTime();
+      extract(data, null, MAX_READ_LENGTH);
+      bestNs = Math.min(bestNs, System.nanoTime() - startNs);
+    }
+    System.out.println("TsExtractor, " + BENCHMARK_PROGRAM_COUNT + " programs, "
+        + data.length / TS_PACKET_SIZE + " packets: " + data.length * 1000L / bestNs + " MB/s, "
+        + bestNs / (data.length / TS_PACKET_SIZE) + " ns per packet");
+  }
+
+  private static void assertPayloadsEqual(StreamBuilder stream, RecordingReaderFactory factory) {
+    assertEquals(stream.expectedPayloads.keySet(), factory.payloads.keySet());
+    for (Map.Entry<String, ByteArrayOutputStream> entry : stream.expectedPayloads.entrySet()) {
+      String formatId = entry.getKey();
+      assertEquals(formatId, stream.expectedPacketCounts.get(formatId),
+          factory.packetCounts.get(formatId));
+      assertTrue(formatId, Arrays.equals(entry.getValue().toByteArray(),
+          factory.payloads.get(formatId).toByteArray()));
+    }
+  }
+
+  /**
+   * Extracts {@code data}, reading at most {@code maxReadLength} bytes at a time, or a random
+   * number up to that if {@code random} isn't null.
+   */
+  private static RecordingReaderFactory extract(byte[] data, Random random, int maxReadLength)
+      throws IOException, InterruptedException {
+    RecordingReaderFactory factory = new RecordingReaderFactory();
+    TsExtractor extractor =
+        new TsExtractor(TsExtractor.MODE_NORMAL, new TimestampAdjuster(0), factory);
+    extractor.init(new ExtractorOutput() {
+      @Override
+      public TrackOutput track(int id, int type) {
+        throw new IllegalStateException();
+      }
+
+      @Override
+      public void endTracks() {
+        // Do nothing.
+      }
+
+      @Override
+      public void seekMap(SeekMap seekMap) {
+        // Do nothing.
+      }
+    });
+    DataSource dataSource = new ShortReadDataSource(data, random, maxReadLength);
+    dataSource.open(new DataSpec(Uri.parse("data")));
+    ExtractorInput input = new DefaultExtractorInput(dataSource, 0, data.length);
+    while (extractor.read(input, null) != Extractor.RESULT_END_OF_INPUT) {
+      // Continue.
+    }
+    dataSource.close();
+    return factory;
+  }
+
+  /**
+   * Builds a transport stream of several programs, each with a PMT and a few elementary streams,
+   * whose PES packets are interleaved and split into packets with and without adaptation fields.
+   */
+  private static final class StreamBuilder {
+
+    /** The concatenated PES payloads for each stream, keyed by "program number/PID". */
+    public final Map<String, ByteArrayOutputStream> expectedPayloads;
+    /** The number of PES packets for each stream. */
+    public final Map<String, Integer> expectedPacketCounts;
+
+    private final Random random;
+    private final boolean impaired;
+    private final int[] continuityCounters;
+    private final ByteArrayOutputStream output;
+
+    private boolean wroteGarbage;
+
+    public StreamBuilder(long seed, int programCount, int pesPacketCount, boolean impaired) {
+      random = new Random(seed);
+      this.impaired = impaired;
+      continuityCounters = new int[0x2000];
+      output = new ByteArrayOutputStream();
+      expectedPayloads = new TreeMap<>();
+      expectedPacketCounts = new TreeMap<>();
+
+      ByteArrayOutputStream pat = new ByteArrayOutputStream();
+      for (int i = 0; i < programCount; i++) {
+        writeShort(pat, i + 1);
+        writeShort(pat, 0xE000 | getPmtPid(i));
+      }
+      writeSection(0, 0x00, 1, pat.toByteArray());
+
+      List<Integer> elementaryPids = new ArrayList<>();
+      List<String> formatIds = new ArrayList<>();
+      for (int i = 0; i < programCount; i++) {
+        int streamCount = 1 + random.nextInt(3);
+        ByteArrayOutputStream pmt = new ByteArrayOutputStream();
+        writeShort(pmt, 0xE000 | 0x1FFF); // PCR_PID
+        writeShort(pmt, 0xF000); // program_info_length
+        for (int j = 0; j < streamCount; j++) {
+          int pid = 0x200 + i * 16 + j;
+          pmt.write(j == 0 ? TsExtractor.TS_STREAM_TYPE_H264 : TsExtractor.TS_STREAM_TYPE_AAC);
+          writeShort(pmt, 0xE000 | pid);
+          writeShort(pmt, 0xF000); // ES_info_length
+          elementaryPids.add(pid);
+          String formatId = (i + 1) + "/" + pid;
+          formatIds.add(formatId);
+          expectedPayloads.put(formatId, new ByteArrayOutputStream());
+          expectedPacketCounts.put(formatId, 0);
+        }
+        writeSection(getPmtPid(i), 0x02, i + 1, pmt.toByteArray());
+      }
+
+      for (int i = 0; i < pesPacketCount; i++) {
+        int index = random.nextInt(elementaryPids.size());
+        byte[] payload = new byte[1 + random.nextInt(5000)];
+        random.nextBytes(payload);
+        writePesPacket(elementaryPids.get(index), payload);
+        expectedPayloads.get(formatIds.get(index)).write(payload, 0, payload.length);
+        expectedPacketCounts.put(formatIds.get(index),
+            expectedPacketCounts.get(formatIds.get(index)) + 1);
+      }
+    }
+
+    public byte[] build() {
+      return output.toByteArray();
+    }
+
+    private void writePesPacket(int pid, byte[] payload) {
+      byte[] pesPacket = new byte[9 + payload.length];
+      // packet_start_code_prefix, stream_id.
+      pesPacket[2] = 1;
+      pesPacket[3] = (byte) 0xE0;
+      // PES_packet_length, which may be zero for video.
+      int pesPacketLength = random.nextBoolean() ? 0 : payload.length + 3;
+      pesPacket[4] = (byte) (pesPacketLength >> 8);
+      pesPacket[5] = (byte) pesPacketLength;
+      // '10', no PTS and no optional fields.
+      pesPacket[6] = (byte) 0x80;
+      System.arraycopy(payload, 0, pesPacket, 9, payload.length);
+      writePayload(pid, pesPacket);
+    }
+
+    private void writeSection(int pid, int tableId, int tableIdExtension, byte[] body) {
+      int sectionLength = 5 + body.length + 4;
+      byte[] section = new byte[3 + sectionLength];
+      section[0] = (byte) tableId;
+      section[1] = (byte) (0xB0 | (sectionLength >> 8));
+      section[2] = (byte) sectionLength;
+      section[3] = (byte) (tableIdExtension >> 8);
+      section[4] = (byte) tableIdExtension;
+      // version_number 0, current_next_indicator 1, section_number 0, last_section_number 0.
+      section[5] = (byte) 0xC1;
+      System.arraycopy(body, 0, section, 8, body.length);
+      int crc = Util.crc(section, 0, section.length - 4, 0xFFFFFFFF);
+      for (int i = 0; i < 4; i++) {
+        section[section.length - 4 + i] = (byte) (crc >> (24 - 8 * i));
+      }
+      // Prefix the pointer_field.
+      byte[] payload = new byte[1 + section.length];
+      System.arraycopy(section, 0, payload, 1, section.length);
+      writePayload(pid, payload);
+    }
+
+    private void writePayload(int pid, byte[] payload) {
+      int offset = 0;
+      boolean first = true;
+      while (offset < payload.length) {
+        // Occasionally carry an adaptation field, as packets with a PCR do.
+        boolean forceAdaptationField = random.nextInt(10) == 0;
+        int maxLength = forceAdaptationField ? 183 - random.nextInt(20) : 184;
+        int length = Math.min(payload.length - offset, maxLength);
+        writePacket(pid, first, payload, offset, length);
+        offset += length;
+        first = false;
+      }
+    }
+
+    private void writePacket(int pid, boolean payloadUnitStart, byte[] payload, int offset,
+        int length) {
+      byte[] packet = new byte[TS_PACKET_SIZE];
+      Arrays.fill(packet, (byte) 0xFF);
+      int adaptationFieldLength = length < 184 ? 183 - length : -1;
+      packet[0] = TS_SYNC_BYTE;
+      packet[1] = (byte) ((payloadUnitStart ? 0x40 : 0) | (pid >> 8));
+      packet[2] = (byte) pid;
+      packet[3] = (byte) ((adaptationFieldLength >= 0 ? 0x30 : 0x10)
+          | (continuityCounters[pid]++ & 0x0F));
+      int payloadPosition = 4;
+      if (adaptationFieldLength >= 0) {
+        packet[4] = (byte) adaptationFieldLength;
+        if (adaptationFieldLength > 0) {
+          // No flags, followed by stuffing.
+          packet[5] = 0;
+        }
+        payloadPosition = 5 + adaptationFieldLength;
+      }
+      System.arraycopy(payload, offset, packet, payloadPosition, length);
+      if (impaired) {
+        writeImpairment(packet);
+      }
+      output.write(packet, 0, TS_PACKET_SIZE);
+    }
+
+    private void writeImpairment(byte[] packet) {
+      boolean previousWroteGarbage = wroteGarbage;
+      wroteGarbage = false;
+      switch (random.nextInt(100)) {
+        case 0:
+          // A duplicate, which has the same continuity counter.
+          output.write(packet, 0, TS_PACKET_SIZE);
+          break;
+        case 1:
+          // A null packet.
+          byte[] nullPacket = new byte[TS_PACKET_SIZE];
+          nullPacket[0] = TS_SYNC_BYTE;
+          nullPacket[1] = 0x1F;
+          nullPacket[2] = (byte) 0xFF;
+          nullPacket[3] = 0x10;
+          output.write(nullPacket, 0, TS_PACKET_SIZE);
+          break;
+        case 2:
+          // A packet with the transport_error_indicator set.
+          byte[] erroredPacket = packet.clone();
+          erroredPacket[1] |= (byte) 0x80;
+          erroredPacket[3] = (byte) (erroredPacket[3] + 5);
+          output.write(erroredPacket, 0, TS_PACKET_SIZE);
+          break;
+        case 3:
+          // Garbage, without sync bytes so that resynchronization is deterministic. Resyncing
+          // requires a sync byte a packet later, so the following packet mustn't be preceded by
+          // garbage too.
+          if (previousWroteGarbage) {
+            break;
+          }
+          wroteGarbage = true;
+          int garbageLength = 1 + random.nextInt(300);
+          for (int i = 0; i < garbageLength; i++) {
+            int value = random.nextInt(255);
+            output.write(value >= TS_SYNC_BYTE ? value + 1 : value);
+          }
+          break;
+        default:
+          break;
+      }
+    }
+
+    private static int getPmtPid(int programIndex) {
+      return 0x100 + programIndex;
+    }
+
+    private static void writeShort(ByteArrayOutputStream output, int value) {
+      output.write(value >> 8);
+      output.write(value);
+    }
+
+  }
+
+  /**
+   * Creates a {@link PesReader} for every elementary stream, recording the payloads passed to it.
+   */
+  private static final class RecordingReaderFactory implements TsPayloadReader.Factory {
+
+    public final Map<String, ByteArrayOutputStream> payloads = new TreeMap<>();
+    public final Map<String, Integer> packetCounts = new TreeMap<>();
+
+    @Override
+    public SparseArray<TsPayloadReader> createInitialPayloadReaders() {
+      return new SparseArray<>();
+    }
+
+    @Override
+    public TsPayloadReader createPayloadReader(int streamType, TsPayloadReader.EsInfo esInfo) {
+      return new PesReader(new ElementaryStreamReader() {
+
+        private String formatId;
+
+        @Override
+        public void seek() {
+          // Do nothing.
+        }
+
+        @Override
+        public void createTracks(ExtractorOutput extractorOutput,
+            PesReader.TrackIdGenerator idGenerator) {
+          idGenerator.generateNewId();
+          formatId = idGenerator.getFormatId();
+          payloads.put(formatId, new ByteArrayOutputStream());
+          packetCounts.put(formatId, 0);
+        }
+
+        @Override
+        public void packetStarted(long pesTimeUs, boolean dataAlignmentIndicator) {
+          packetCounts.put(formatId, packetCounts.get(formatId) + 1);
+        }
+
+        @Override
+        public void consume(ParsableByteArray data) {
+          int length = data.bytesLeft();
+          payloads.get(formatId).write(data.data, data.getPosition(), length);
+          data.skipBytes(length);
+        }
+
+        @Override
+        public void packetFinished() {
+          // Do nothing.
+        }
+
+      });
+    }
+
+  }
+
+  /**
+   * A {@link ByteArrayDataSource} which returns short reads.
+   */
+  private static final class ShortReadDataSource implements DataSource {
+
+    private final ByteArrayDataSource dataSource;
+    private final Random random;
+    private final int maxReadLength;
+
+    public ShortReadDataSource(byte[] data, Random random, int maxReadLength) {
+      dataSource = new ByteArrayDataSource(data);
+      this.random = random;
+      this.maxReadLength = maxReadLength;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      return dataSource.open(dataSpec);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      int maxLength = random == null ? maxReadLength : 1 + random.nextInt(maxReadLength);
+      return dataSource.read(buffer, offset, Math.min(readLength, maxLength));
+    }
+
+    @Override
+    public Uri getUri() {
+      return dataSource.getUri();
+    }
+
+    @Override
+    public void close() throws IOException {
+      dataSource.close();
+    }
+
+  }
+
+}
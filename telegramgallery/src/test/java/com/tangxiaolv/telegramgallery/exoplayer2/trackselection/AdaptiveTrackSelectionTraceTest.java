@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.trackselection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.tangxiaolv.telegramgallery.exoplayer2.Format;
+import com.tangxiaolv.telegramgallery.exoplayer2.source.TrackGroup;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.BandwidthEstimator;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.EwmaBandwidthEstimator;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.SlidingMedianBandwidthEstimator;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.MimeTypes;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Replays throughput traces through {@link AdaptiveTrackSelection} with each
+ * {@link BandwidthEstimator}, and prints rebuffers, average bitrate and switches for each.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Config.TARGET_SDK, manifest = Config.NONE)
+public final class AdaptiveTrackSelectionTraceTest {
+
+  /* package */ static final int[] BITRATES = {300000, 750000, 1500000, 3000000, 4500000};
+  /* package */ static final int[] MOBILE_LEVELS = {400000, 1000000, 2500000, 5000000};
+  /* package */ static final int TRACE_SECONDS = 600;
+  /* package */ static final long DURATION_MS = 600000;
+  /* package */ static final int TRACE_COUNT = 20;
+
+  @Test
+  public void testSteadyTrace() {
+    int[] trace = PlaybackSimulator.createSteadyTrace(2500000, TRACE_SECONDS, 0);
+    for (BandwidthEstimator.Factory estimatorFactory : createEstimatorFactories()) {
+      PlaybackSimulator.Result result = replay(trace, estimatorFactory);
+      print("steady", estimatorFactory, result);
+      assertEquals(0, result.rebufferCount);
+      // 0.75 of the throughput allows the 1.5 Mbps track.
+      assertTrue(result.averageBitrate >= 1400000);
+    }
+  }
+
+  @Test
+  public void testDropTrace() {
+    int[] trace = PlaybackSimulator.createDropTrace(4000000, 300000, 60, 15, TRACE_SECONDS);
+    for (BandwidthEstimator.Factory estimatorFactory : createEstimatorFactories()) {
+      PlaybackSimulator.Result result = replay(trace, estimatorFactory);
+      print("drops", estimatorFactory, result);
+      assertTrue(result.averageBitrate > BITRATES[0]);
+    }
+  }
+
+  @Test
+  public void testMobileTraces() {
+    for (BandwidthEstimator.Factory estimatorFactory : createEstimatorFactories()) {
+      int rebufferCount = 0;
+      long bitrateSum = 0;
+      int switchCount = 0;
+      for (int seed = 0; seed < TRACE_COUNT; seed++) {
+        int[] trace = PlaybackSimulator.createMobileTrace(MOBILE_LEVELS, TRACE_SECONDS, seed);
+        PlaybackSimulator.Result result = replay(trace, estimatorFactory);
+        rebufferCount += result.rebufferCount;
+        bitrateSum += result.averageBitrate;
+        switchCount += result.switchCount;
+      }
+      System.out.println("AdaptiveTrackSelection mobile x" + TRACE_COUNT + ", "
+          + getName(estimatorFactory) + ": " + rebufferCount + " rebuffers, "
+          + bitrateSum / TRACE_COUNT / 1000 + " kbps, " + switchCount + " switches");
+      assertTrue(bitrateSum / TRACE_COUNT > BITRATES[0]);
+    }
+  }
+
+  /* package */ static TrackGroup createTrackGroup() {
+    Format[] formats = new Format[BITRATES.length];
+    for (int i = 0; i < BITRATES.length; i++) {
+      formats[i] = Format.createVideoSampleFormat(String.valueOf(i), MimeTypes.VIDEO_H264, null,
+          BITRATES[i], Format.NO_VALUE, 320 * (i + 1), 180 * (i + 1), Format.NO_VALUE, null, null);
+    }
+    return new TrackGroup(formats);
+  }
+
+  /* package */ static int[] createTrackIndices() {
+    int[] tracks = new int[BITRATES.length];
+    for (int i = 0; i < tracks.length; i++) {
+      tracks[i] = i;
+    }
+    return tracks;
+  }
+
+  /* package */ static BandwidthEstimator.Factory[] createEstimatorFactories() {
+    return new BandwidthEstimator.Factory[] {
+        new SlidingMedianBandwidthEstimator.Factory(), new EwmaBandwidthEstimator.Factory()};
+  }
+
+  /* package */ static String getName(BandwidthEstimator.Factory estimatorFactory) {
+    return estimatorFactory.createBandwidthEstimator().getClass().getSimpleName();
+  }
+
+  private static PlaybackSimulator.Result replay(int[] trace,
+      BandwidthEstimator.Factory estimatorFactory) {
+    PlaybackSimulator simulator =
+        new PlaybackSimulator(trace, estimatorFactory.createBandwidthEstimator());
+    AdaptiveTrackSelection selection = new AdaptiveTrackSelection(createTrackGroup(),
+        createTrackIndices(), simulator.getBandwidthMeter());
+    return simulator.run(selection, DURATION_MS);
+  }
+
+  private static void print(String traceName, BandwidthEstimator.Factory estimatorFactory,
+      PlaybackSimulator.Result result) {
+    System.out.println("AdaptiveTrackSelection " + traceName + ", " + getName(estimatorFactory)
+        + ": " + result);
+  }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.trackselection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.tangxiaolv.telegramgallery.exoplayer2.C;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.BandwidthEstimator;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.BandwidthMeter;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.Clock;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Tests for {@link BufferBasedTrackSelection}, and a simulation comparing it with
+ * {@link AdaptiveTrackSelection} on the traces of {@link AdaptiveTrackSelectionTraceTest}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Config.TARGET_SDK, manifest = Config.NONE)
+public final class BufferBasedTrackSelectionTest {
+
+  // Allows the 3 Mbps track at the default bandwidth fraction.
+  private static final long BITRATE_ESTIMATE = 4000000;
+  private static final int THROUGHPUT_BITRATE = 3000000;
+  private static final int LOWEST_BITRATE = 300000;
+  private static final long SEEK_INTERVAL_MS = 60000;
+
+  private long nowMs;
+
+  @Test
+  public void testFloorAppliesUntilBufferFirstReachesMinimum() {
+    BufferBasedTrackSelection selection = createSelection();
+    selection.updateSelectedTrack(0);
+    assertEquals(THROUGHPUT_BITRATE, selection.getSelectedFormat().bitrate);
+    nowMs += 4000;
+    selection.updateSelectedTrack(4 * C.MICROS_PER_SECOND);
+    assertEquals(THROUGHPUT_BITRATE, selection.getSelectedFormat().bitrate);
+    nowMs += 4000;
+    selection.updateSelectedTrack(12 * C.MICROS_PER_SECOND);
+
+    // Playback drains the buffer, which isn't a seek, so the buffer alone decides.
+    nowMs += 10000;
+    selection.updateSelectedTrack(3 * C.MICROS_PER_SECOND);
+    assertEquals(LOWEST_BITRATE, selection.getSelectedFormat().bitrate);
+    nowMs += 2000;
+    selection.updateSelectedTrack(C.MICROS_PER_SECOND);
+    assertEquals(LOWEST_BITRATE, selection.getSelectedFormat().bitrate);
+  }
+
+  @Test
+  public void testSeekAppliesFloorAgain() {
+    BufferBasedTrackSelection selection = createSelection();
+    selection.updateSelectedTrack(0);
+    nowMs += 12000;
+    selection.updateSelectedTrack(12 * C.MICROS_PER_SECOND);
+    nowMs += 1000;
+    // A seek discarded the buffer.
+    selection.updateSelectedTrack(0);
+    assertEquals(THROUGHPUT_BITRATE, selection.getSelectedFormat().bitrate);
+    nowMs += 4000;
+    selection.updateSelectedTrack(4 * C.MICROS_PER_SECOND);
+    assertEquals(THROUGHPUT_BITRATE, selection.getSelectedFormat().bitrate);
+  }
+
+  /**
+   * Replays each trace through both selections, with and without seeks, and prints rebuffers and
+   * average bitrate. Without seeks the buffer-based selection rebuffers less often. With frequent
+   * seeks most of the time is spent filling the buffer under the throughput floor, where both
+   * select alike, so {@link AdaptiveTrackSelection} stays the default of the player.
+   */
+  @Test
+  public void testSimulationAgainstAdaptiveTrackSelection() {
+    int[][] traces = new int[2 + AdaptiveTrackSelectionTraceTest.TRACE_COUNT][];
+    traces[0] = PlaybackSimulator.createSteadyTrace(2500000,
+        AdaptiveTrackSelectionTraceTest.TRACE_SECONDS, 0);
+    traces[1] = PlaybackSimulator.createDropTrace(4000000, 300000, 60, 15,
+        AdaptiveTrackSelectionTraceTest.TRACE_SECONDS);
+    for (int i = 2; i < traces.length; i++) {
+      traces[i] = PlaybackSimulator.createMobileTrace(AdaptiveTrackSelectionTraceTest.MOBILE_LEVELS,
+          AdaptiveTrackSelectionTraceTest.TRACE_SECONDS, i - 2);
+    }
+    for (BandwidthEstimator.Factory estimatorFactory
+        : AdaptiveTrackSelectionTraceTest.createEstimatorFactories()) {
+      for (long seekIntervalMs : new long[] {C.TIME_UNSET, SEEK_INTERVAL_MS}) {
+        PlaybackSimulator.Result adaptive = new PlaybackSimulator.Result();
+        PlaybackSimulator.Result bufferBased = new PlaybackSimulator.Result();
+        for (int[] trace : traces) {
+          add(adaptive, replay(trace, estimatorFactory, false, seekIntervalMs));
+          add(bufferBased, replay(trace, estimatorFactory, true, seekIntervalMs));
+        }
+        adaptive.averageBitrate /= traces.length;
+        bufferBased.averageBitrate /= traces.length;
+        String name = AdaptiveTrackSelectionTraceTest.getName(estimatorFactory)
+            + (seekIntervalMs == C.TIME_UNSET ? "" : ", seeking") + ": ";
+        System.out.println("AdaptiveTrackSelection, " + name + adaptive);
+        System.out.println("BufferBasedTrackSelection, " + name + bufferBased);
+        if (seekIntervalMs == C.TIME_UNSET) {
+          assertTrue(bufferBased.rebufferCount < adaptive.rebufferCount);
+        }
+      }
+    }
+  }
+
+  private BufferBasedTrackSelection createSelection() {
+    BandwidthMeter bandwidthMeter = new BandwidthMeter() {
+      @Override
+      public long getBitrateEstimate() {
+        return BITRATE_ESTIMATE;
+      }
+    };
+    Clock clock = new Clock() {
+      @Override
+      public long elapsedRealtime() {
+        return nowMs;
+      }
+    };
+    return new BufferBasedTrackSelection(AdaptiveTrackSelectionTraceTest.createTrackGroup(),
+        AdaptiveTrackSelectionTraceTest.createTrackIndices(), bandwidthMeter,
+        BufferBasedTrackSelection.DEFAULT_MAX_INITIAL_BITRATE,
+        BufferBasedTrackSelection.DEFAULT_MIN_BUFFER_MS,
+        BufferBasedTrackSelection.DEFAULT_TARGET_BUFFER_MS,
+        BufferBasedTrackSelection.DEFAULT_BANDWIDTH_FRACTION, clock);
+  }
+
+  private static PlaybackSimulator.Result replay(int[] trace,
+      BandwidthEstimator.Factory estimatorFactory, boolean bufferBased, long seekIntervalMs) {
+    PlaybackSimulator simulator =
+        new PlaybackSimulator(trace, estimatorFactory.createBandwidthEstimator());
+    TrackSelection selection;
+    if (bufferBased) {
+      selection = new BufferBasedTrackSelection(AdaptiveTrackSelectionTraceTest.createTrackGroup(),
+          AdaptiveTrackSelectionTraceTest.createTrackIndices(), simulator.getBandwidthMeter(),
+          BufferBasedTrackSelection.DEFAULT_MAX_INITIAL_BITRATE,
+          BufferBasedTrackSelection.DEFAULT_MIN_BUFFER_MS,
+          BufferBasedTrackSelection.DEFAULT_TARGET_BUFFER_MS,
+          BufferBasedTrackSelection.DEFAULT_BANDWIDTH_FRACTION, simulator.getClock());
+    } else {
+      selection = new AdaptiveTrackSelection(AdaptiveTrackSelectionTraceTest.createTrackGroup(),
+          AdaptiveTrackSelectionTraceTest.createTrackIndices(), simulator.getBandwidthMeter());
+    }
+    return simulator.run(selection, AdaptiveTrackSelectionTraceTest.DURATION_MS, seekIntervalMs);
+  }
+
+  private static void add(PlaybackSimulator.Result total, PlaybackSimulator.Result result) {
+    total.rebufferCount += result.rebufferCount;
+    total.rebufferMs += result.rebufferMs;
+    total.averageBitrate += result.averageBitrate;
+    total.switchCount += result.switchCount;
+  }
+
+}
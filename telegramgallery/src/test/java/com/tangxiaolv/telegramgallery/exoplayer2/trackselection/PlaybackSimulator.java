@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.trackselection;
+
+import com.tangxiaolv.telegramgallery.exoplayer2.C;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.BandwidthEstimator;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.BandwidthMeter;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.Clock;
+import java.util.Random;
+
+/**
+ * Replays a throughput trace through a {@link TrackSelection}, simulating the chunked loading and
+ * the playback of an adaptive stream in simulated time.
+ * <p>
+ * Chunks are loaded one at a time, in the way
+ * {@link com.tangxiaolv.telegramgallery.exoplayer2.DefaultLoadControl} schedules loading with its
+ * default buffer durations, and each chunk is loaded in the track selected just before. The
+ * time taken to load it follows from the trace, and is reported to a {@link BandwidthEstimator}
+ * just as {@link com.tangxiaolv.telegramgallery.exoplayer2.upstream.DefaultBandwidthMeter} would.
+ */
+/* package */ final class PlaybackSimulator {
+
+  /**
+   * The outcome of a simulation.
+   */
+  public static final class Result {
+
+    /**
+     * The number of times playback stalled because the buffer ran out.
+     */
+    public int rebufferCount;
+    /**
+     * The time spent stalled because the buffer ran out, in milliseconds.
+     */
+    public long rebufferMs;
+    /**
+     * The average bitrate of the loaded chunks, in bits per second.
+     */
+    public long averageBitrate;
+    /**
+     * The number of times consecutive chunks were loaded in different tracks.
+     */
+    public int switchCount;
+
+    @Override
+    public String toString() {
+      return rebufferCount + " rebuffers (" + rebufferMs / 1000 + " s), " + averageBitrate / 1000
+          + " kbps, " + switchCount + " switches";
+    }
+
+  }
+
+  /**
+   * The duration of a chunk, in milliseconds.
+   */
+  public static final int CHUNK_DURATION_MS = 4000;
+
+  private static final int TICK_MS = 10;
+  // The defaults of DefaultLoadControl.
+  private static final long MIN_BUFFER_US = 15000000;
+  private static final long MAX_BUFFER_US = 30000000;
+  private static final long BUFFER_FOR_PLAYBACK_US = 2500000;
+  private static final long BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_US = 5000000;
+  // Mirror DefaultBandwidthMeter, which doesn't publish an estimate before either is reached.
+  private static final int ELAPSED_MILLIS_FOR_ESTIMATE = 2000;
+  private static final int BYTES_TRANSFERRED_FOR_ESTIMATE = 512 * 1024;
+
+  private final int[] trace;
+  private final BandwidthEstimator estimator;
+  private final SimulatedBandwidthMeter bandwidthMeter;
+  private final Clock clock;
+
+  private long timeMs;
+
+  /**
+   * @param trace The available throughput in bits per second, for each second of simulated time.
+   *     Repeated if playback takes longer.
+   * @param estimator The estimator behind the {@link BandwidthMeter} returned by
+   *     {@link #getBandwidthMeter()}.
+   */
+  public PlaybackSimulator(int[] trace, BandwidthEstimator estimator) {
+    this.trace = trace;
+    this.estimator = estimator;
+    bandwidthMeter = new SimulatedBandwidthMeter();
+    clock = new Clock() {
+      @Override
+      public long elapsedRealtime() {
+        return timeMs;
+      }
+    };
+  }
+
+  /**
+   * Returns the {@link BandwidthMeter} from which the simulated selection should take its
+   * estimate.
+   */
+  public BandwidthMeter getBandwidthMeter() {
+    return bandwidthMeter;
+  }
+
+  /**
+   * Returns a {@link Clock} reading the simulated time.
+   */
+  public Clock getClock() {
+    return clock;
+  }
+
+  /**
+   * Plays a stream of the given duration from the start.
+   *
+   * @param selection The selection, whose selected track is updated before loading each chunk.
+   * @param durationMs The duration of the stream, in milliseconds.
+   * @return The outcome.
+   */
+  public Result run(TrackSelection selection, long durationMs) {
+    return run(selection, durationMs, C.TIME_UNSET);
+  }
+
+  /**
+   * Plays a stream of the given duration from the start, seeking at regular intervals. Each seek
+   * discards the buffer, and playback restarts as it does after starting. The time spent waiting
+   * for the buffer after a seek doesn't count as rebuffering.
+   *
+   * @param selection The selection, whose selected track is updated before loading each chunk.
+   * @param durationMs The duration of the stream, in milliseconds.
+   * @param seekIntervalMs The duration played between seeks, in milliseconds, or
+   *     {@link C#TIME_UNSET} not to seek.
+   * @return The outcome.
+   */
+  public Result run(TrackSelection selection, long durationMs, long seekIntervalMs) {
+    long durationUs = durationMs * 1000;
+    long chunkDurationUs = CHUNK_DURATION_MS * 1000L;
+    Result result = new Result();
+    long bitrateSum = 0;
+    int chunkCount = 0;
+    int previousBitrate = C.LENGTH_UNSET;
+
+    long loadedUs = 0;
+    long playedUs = 0;
+    boolean loading = true;
+    boolean playing = false;
+    boolean rebuffering = false;
+    // The chunk being loaded.
+    double bitsRemaining = 0;
+    long chunkBytes = 0;
+    long chunkStartMs = 0;
+    int chunkBitrate = 0;
+    boolean chunkLoading = false;
+    long nextSeekUs = seekIntervalMs == C.TIME_UNSET ? Long.MAX_VALUE : seekIntervalMs * 1000;
+
+    while (playedUs < durationUs) {
+      if (playedUs >= nextSeekUs) {
+        loadedUs = playedUs;
+        chunkLoading = false;
+        loading = true;
+        playing = false;
+        rebuffering = false;
+        nextSeekUs += seekIntervalMs * 1000;
+      }
+      long bufferedUs = loadedUs - playedUs;
+      if (!chunkLoading && loadedUs < durationUs) {
+        // Follow the hysteresis of DefaultLoadControl between the minimum and maximum buffer.
+        loading = bufferedUs < MIN_BUFFER_US || (loading && bufferedUs < MAX_BUFFER_US);
+        if (loading) {
+          selection.updateSelectedTrack(bufferedUs);
+          chunkBitrate = selection.getSelectedFormat().bitrate;
+          chunkBytes = (long) chunkBitrate * CHUNK_DURATION_MS / 8000;
+          bitsRemaining = chunkBytes * 8d;
+          chunkStartMs = timeMs;
+          chunkLoading = true;
+        }
+      }
+
+      timeMs += TICK_MS;
+      if (chunkLoading) {
+        bitsRemaining -= getThroughput() * (double) TICK_MS / 1000;
+        if (bitsRemaining <= 0) {
+          chunkLoading = false;
+          loadedUs += chunkDurationUs;
+          bandwidthMeter.onChunkLoaded(chunkBytes, timeMs - chunkStartMs);
+          bitrateSum += chunkBitrate;
+          chunkCount++;
+          if (previousBitrate != C.LENGTH_UNSET && previousBitrate != chunkBitrate) {
+            result.switchCount++;
+          }
+          previousBitrate = chunkBitrate;
+        }
+      }
+
+      bufferedUs = loadedUs - playedUs;
+      if (playing) {
+        playedUs += Math.min(TICK_MS * 1000L, bufferedUs);
+        if (playedUs == loadedUs && playedUs < durationUs) {
+          playing = false;
+          rebuffering = true;
+          result.rebufferCount++;
+        }
+      } else {
+        if (rebuffering) {
+          result.rebufferMs += TICK_MS;
+        }
+        long bufferForPlaybackUs =
+            rebuffering ? BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_US : BUFFER_FOR_PLAYBACK_US;
+        if (bufferedUs >= bufferForPlaybackUs || (loadedUs >= durationUs && bufferedUs > 0)) {
+          playing = true;
+        }
+      }
+    }
+    result.averageBitrate = chunkCount == 0 ? 0 : bitrateSum / chunkCount;
+    return result;
+  }
+
+  private int getThroughput() {
+    return trace[(int) ((timeMs / 1000) % trace.length)];
+  }
+
+  /**
+   * Creates a trace of steady throughput with some noise.
+   *
+   * @param bitrate The mean throughput, in bits per second.
+   * @param durationSeconds The duration of the trace.
+   * @param seed The seed for the noise.
+   */
+  public static int[] createSteadyTrace(int bitrate, int durationSeconds, long seed) {
+    Random random = new Random(seed);
+    int[] trace = new int[durationSeconds];
+    for (int i = 0; i < durationSeconds; i++) {
+      trace[i] = (int) (bitrate * (0.9 + 0.2 * random.nextDouble()));
+    }
+    return trace;
+  }
+
+  /**
+   * Creates a trace of a mobile link which moves between a few levels of throughput, staying on
+   * each for a few seconds, with log-normal noise within each second.
+   *
+   * @param levels The levels of throughput, in bits per second.
+   * @param durationSeconds The duration of the trace.
+   * @param seed The seed for the level changes and the noise.
+   */
+  public static int[] createMobileTrace(int[] levels, int durationSeconds, long seed) {
+    Random random = new Random(seed);
+    int[] trace = new int[durationSeconds];
+    int level = random.nextInt(levels.length);
+    int secondsLeftAtLevel = 0;
+    for (int i = 0; i < durationSeconds; i++) {
+      if (secondsLeftAtLevel == 0) {
+        // Mostly move to a neighbouring level, occasionally jump.
+        int step = random.nextInt(10) < 8 ? (random.nextBoolean() ? 1 : -1)
+            : random.nextInt(levels.length) - level;
+        level = Math.max(0, Math.min(levels.length - 1, level + step));
+        secondsLeftAtLevel = 2 + random.nextInt(18);
+      }
+      secondsLeftAtLevel--;
+      trace[i] = (int) (levels[level] * Math.exp(0.3 * random.nextGaussian()));
+    }
+    return trace;
+  }
+
+  /**
+   * Creates a trace of good throughput with periodic deep drops, like those of a train passing
+   * through tunnels.
+   *
+   * @param bitrate The throughput outside of drops, in bits per second.
+   * @param dropBitrate The throughput during drops, in bits per second.
+   * @param periodSeconds The time from the start of a drop to the start of the next.
+   * @param dropSeconds The duration of each drop.
+   * @param durationSeconds The duration of the trace.
+   */
+  public static int[] createDropTrace(int bitrate, int dropBitrate, int periodSeconds,
+      int dropSeconds, int durationSeconds) {
+    int[] trace = new int[durationSeconds];
+    for (int i = 0; i < durationSeconds; i++) {
+      trace[i] = i % periodSeconds >= periodSeconds - dropSeconds ? dropBitrate : bitrate;
+    }
+    return trace;
+  }
+
+  /**
+   * A {@link BandwidthMeter} fed with the simulated chunk loads.
+   */
+  private final class SimulatedBandwidthMeter implements BandwidthMeter {
+
+    private long totalElapsedMs;
+    private long totalBytes;
+    private long bitrateEstimate;
+
+    public SimulatedBandwidthMeter() {
+      bitrateEstimate = NO_ESTIMATE;
+    }
+
+    @Override
+    public long getBitrateEstimate() {
+      return bitrateEstimate;
+    }
+
+    public void onChunkLoaded(long bytes, long elapsedMs) {
+      totalElapsedMs += elapsedMs;
+      totalBytes += bytes;
+      estimator.addSample(bytes, elapsedMs);
+      if (totalElapsedMs >= ELAPSED_MILLIS_FOR_ESTIMATE
+          || totalBytes >= BYTES_TRANSFERRED_FOR_ESTIMATE) {
+        bitrateEstimate = estimator.getBitrateEstimate();
+      }
+    }
+
+  }
+
+}
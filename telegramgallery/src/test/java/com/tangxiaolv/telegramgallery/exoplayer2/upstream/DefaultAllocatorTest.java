@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Tests for {@link DefaultAllocator}, and a benchmark of the producer/consumer pattern of {@link
+ * com.tangxiaolv.telegramgallery.exoplayer2.extractor.DefaultTrackOutput} comparing it with the
+ * previous synchronized implementation.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Config.TARGET_SDK, manifest = Config.NONE)
+public final class DefaultAllocatorTest {
+
+  private static final int ALLOCATION_SIZE = 64 * 1024;
+  // The number of allocations buffered between a loading and a playback thread.
+  private static final int BUFFERED_ALLOCATION_COUNT = 256;
+  private static final int ALLOCATIONS_PER_PRODUCER = 500000;
+  private static final int BENCHMARK_ROUNDS = 3;
+  private static final long TIMEOUT_SECONDS = 60;
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testReleasedAllocationsAreReusedByAnotherThread() throws Exception {
+    final DefaultAllocator allocator = new DefaultAllocator(true, ALLOCATION_SIZE);
+    final Set<Allocation> distinctAllocations =
+        Collections.newSetFromMap(new IdentityHashMap<Allocation, Boolean>());
+    Allocation[] allocations = new Allocation[BUFFERED_ALLOCATION_COUNT];
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < allocations.length; i++) {
+        allocations[i] = allocator.allocate();
+        distinctAllocations.add(allocations[i]);
+      }
+      assertEquals(BUFFERED_ALLOCATION_COUNT * ALLOCATION_SIZE,
+          allocator.getTotalBytesAllocated());
+      final Allocation[] released = allocations.clone();
+      executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          for (Allocation allocation : released) {
+            allocator.release(allocation);
+          }
+          return null;
+        }
+      }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      assertEquals(0, allocator.getTotalBytesAllocated());
+    }
+    // Only allocations the releasing thread still caches in its magazine are ever new.
+    assertTrue(distinctAllocations.size()
+        <= BUFFERED_ALLOCATION_COUNT + 10 * DefaultAllocator.MAGAZINE_SIZE);
+  }
+
+  @Test
+  public void testTrimDiscardsAllocationsCachedByThreads() throws Exception {
+    DefaultAllocator allocator = new DefaultAllocator(true, ALLOCATION_SIZE);
+    Allocation[] allocations = new Allocation[BUFFERED_ALLOCATION_COUNT];
+    for (int i = 0; i < allocations.length; i++) {
+      allocations[i] = allocator.allocate();
+    }
+    allocator.release(allocations);
+    allocator.setTargetBufferSize(BUFFERED_ALLOCATION_COUNT * ALLOCATION_SIZE);
+    allocator.reset();
+    Set<Allocation> released =
+        Collections.newSetFromMap(new IdentityHashMap<Allocation, Boolean>());
+    released.addAll(Arrays.asList(allocations));
+    for (int i = 0; i < allocations.length; i++) {
+      assertFalse(released.contains(allocator.allocate()));
+    }
+  }
+
+  @Test
+  public void testTrimKeepsInitialAllocations() {
+    DefaultAllocator allocator = new DefaultAllocator(true, ALLOCATION_SIZE, 40);
+    Allocation[] allocations = new Allocation[40];
+    for (int i = 0; i < allocations.length; i++) {
+      allocations[i] = allocator.allocate();
+      assertSame(allocations[0].data, allocations[i].data);
+    }
+    allocator.release(allocations);
+    allocator.trim();
+    for (int i = 0; i < allocations.length; i++) {
+      assertSame(allocations[0].data, allocator.allocate().data);
+    }
+  }
+
+  @Test
+  public void testDirectAllocations() {
+    DefaultAllocator allocator = new DefaultAllocator(true, ALLOCATION_SIZE, 4, true);
+    for (int i = 0; i < 8; i++) {
+      Allocation allocation = allocator.allocate();
+      assertTrue(allocation.buffer.isDirect());
+      assertEquals(ALLOCATION_SIZE, allocation.buffer.capacity());
+    }
+    assertEquals(8 * ALLOCATION_SIZE, allocator.getTotalBytesAllocated());
+  }
+
+  /**
+   * Runs pairs of threads sharing one allocator. Of each pair the producer allocates, as the
+   * loading thread does when appending sample data, and hands allocations to the consumer, which
+   * releases them one at a time as the playback thread does when discarding read samples. The
+   * throughput of the lock-free allocator and of the previous synchronized allocator is printed,
+   * the best of {@link #BENCHMARK_ROUNDS} for each.
+   */
+  @Test
+  public void testProducerConsumerThroughput() throws Exception {
+    for (int pairCount = 1; pairCount <= 4; pairCount *= 2) {
+      long synchronizedNs = Long.MAX_VALUE;
+      long lockFreeNs = Long.MAX_VALUE;
+      for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+        SynchronizedAllocator synchronizedAllocator = new SynchronizedAllocator(ALLOCATION_SIZE);
+        synchronizedNs = Math.min(synchronizedNs,
+            runProducersAndConsumers(synchronizedAllocator, pairCount));
+        assertEquals(0, synchronizedAllocator.getTotalBytesAllocated());
+        DefaultAllocator lockFreeAllocator = new DefaultAllocator(true, ALLOCATION_SIZE);
+        lockFreeNs = Math.min(lockFreeNs, runProducersAndConsumers(lockFreeAllocator, pairCount));
+        assertEquals(0, lockFreeAllocator.getTotalBytesAllocated());
+      }
+      long allocationCount = (long) pairCount * ALLOCATIONS_PER_PRODUCER;
+      System.out.println("DefaultAllocator " + pairCount + " producer/consumer pairs: synchronized "
+          + allocationCount * 1000 / synchronizedNs + " M/s, lock-free "
+          + allocationCount * 1000 / lockFreeNs + " M/s");
+    }
+  }
+
+  /** Returns the time taken by all pairs, in nanoseconds. */
+  private long runProducersAndConsumers(final Allocator allocator, int pairCount)
+      throws Exception {
+    ArrayList<Future<Void>> futures = new ArrayList<>();
+    long startNs = System.nanoTime();
+    for (int i = 0; i < pairCount; i++) {
+      final AllocationQueue queue = new AllocationQueue(BUFFERED_ALLOCATION_COUNT);
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          for (int j = 0; j < ALLOCATIONS_PER_PRODUCER; j++) {
+            Allocation allocation = allocator.allocate();
+            allocation.data[allocation.translateOffset(0)] = (byte) j;
+            queue.put(allocation);
+          }
+          return null;
+        }
+      }));
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          for (int j = 0; j < ALLOCATIONS_PER_PRODUCER; j++) {
+            Allocation allocation = queue.take();
+            assertEquals((byte) j, allocation.data[allocation.translateOffset(0)]);
+            allocator.release(allocation);
+          }
+          return null;
+        }
+      }));
+    }
+    for (int i = 0; i < futures.size(); i++) {
+      futures.get(i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+    return System.nanoTime() - startNs;
+  }
+
+  /**
+   * A bounded single producer, single consumer queue which spins rather than locks, so that the
+   * benchmark measures the allocator rather than the hand-off.
+   */
+  private static final class AllocationQueue {
+
+    private final Allocation[] allocations;
+    private final AtomicLong head;
+    private final AtomicLong tail;
+
+    public AllocationQueue(int capacity) {
+      allocations = new Allocation[capacity];
+      head = new AtomicLong();
+      tail = new AtomicLong();
+    }
+
+    public void put(Allocation allocation) {
+      long tailIndex = tail.get();
+      while (tailIndex - head.get() == allocations.length) {
+        Thread.yield();
+      }
+      allocations[(int) (tailIndex % allocations.length)] = allocation;
+      tail.lazySet(tailIndex + 1);
+    }
+
+    public Allocation take() {
+      long headIndex = head.get();
+      while (headIndex == tail.get()) {
+        Thread.yield();
+      }
+      int index = (int) (headIndex % allocations.length);
+      Allocation allocation = allocations[index];
+      allocations[index] = null;
+      head.lazySet(headIndex + 1);
+      return allocation;
+    }
+
+  }
+
+  /**
+   * The allocator this project used before {@link DefaultAllocator} became lock-free, reduced to
+   * what the benchmark uses.
+   */
+  private static final class SynchronizedAllocator implements Allocator {
+
+    private final int individualAllocationSize;
+    private final Allocation[] singleAllocationReleaseHolder;
+
+    private int allocatedCount;
+    private int availableCount;
+    private Allocation[] availableAllocations;
+
+    public SynchronizedAllocator(int individualAllocationSize) {
+      this.individualAllocationSize = individualAllocationSize;
+      availableAllocations = new Allocation[100];
+      singleAllocationReleaseHolder = new Allocation[1];
+    }
+
+    @Override
+    public synchronized Allocation allocate() {
+      allocatedCount++;
+      Allocation allocation;
+      if (availableCount > 0) {
+        allocation = availableAllocations[--availableCount];
+        availableAllocations[availableCount] = null;
+      } else {
+        allocation = new Allocation(new byte[individualAllocationSize], 0);
+      }
+      return allocation;
+    }
+
+    @Override
+    public synchronized void release(Allocation allocation) {
+      singleAllocationReleaseHolder[0] = allocation;
+      release(singleAllocationReleaseHolder);
+    }
+
+    @Override
+    public synchronized void release(Allocation[] allocations) {
+      if (availableCount + allocations.length >= availableAllocations.length) {
+        availableAllocations = Arrays.copyOf(availableAllocations,
+            Math.max(availableAllocations.length * 2, availableCount + allocations.length));
+      }
+      for (Allocation allocation : allocations) {
+        availableAllocations[availableCount++] = allocation;
+      }
+      allocatedCount -= allocations.length;
+      notifyAll();
+    }
+
+    @Override
+    public void trim() {
+      // Not used by the benchmark.
+    }
+
+    @Override
+    public synchronized int getTotalBytesAllocated() {
+      return allocatedCount * individualAllocationSize;
+    }
+
+    @Override
+    public int getIndividualAllocationLength() {
+      return individualAllocationSize;
+    }
+
+  }
+
+}
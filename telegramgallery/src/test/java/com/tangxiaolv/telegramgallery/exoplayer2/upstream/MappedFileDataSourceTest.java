@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import com.tangxiaolv.telegramgallery.exoplayer2.C;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Tests for {@link MappedFileDataSource}, checking that mappings are reused and sized from the
+ * reads expected.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Config.TARGET_SDK, manifest = Config.NONE)
+public final class MappedFileDataSourceTest {
+
+  private static final int FILE_LENGTH = 8 * 1024 * 1024 + 1000;
+  private static final int READ_LENGTH = 4096;
+
+  private File file;
+  private Uri uri;
+  private byte[] data;
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("MappedFileDataSourceTest", null);
+    data = new byte[FILE_LENGTH];
+    new Random(0).nextBytes(data);
+    writeFile(data);
+    uri = Uri.fromFile(file);
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testReadsMatchFile() throws IOException {
+    MappedFileDataSource dataSource = new MappedFileDataSource();
+    Random random = new Random(0);
+    for (int i = 0; i < 50; i++) {
+      int position = random.nextInt(FILE_LENGTH);
+      long length = random.nextBoolean() ? C.LENGTH_UNSET
+          : random.nextInt(FILE_LENGTH - position + 1);
+      assertReadMatches(dataSource, new DataSpec(uri, position, length, null));
+    }
+  }
+
+  @Test
+  public void testReopenInsideWindowReusesMapping() throws IOException {
+    MappedFileDataSource dataSource = new MappedFileDataSource();
+    dataSource.open(new DataSpec(uri));
+    ByteBuffer window = dataSource.getMappedRegion();
+    assertEquals(MappedFileDataSource.INITIAL_WINDOW_SIZE, window.capacity());
+    dataSource.close();
+
+    // A seek back inside the window, as extractors do after reading a header.
+    dataSource.open(new DataSpec(uri, 1000, C.LENGTH_UNSET, null));
+    assertSame(window, dataSource.getMappedRegion());
+    assertEquals(1000, window.position());
+    dataSource.close();
+    dataSource.open(new DataSpec(uri, MappedFileDataSource.INITIAL_WINDOW_SIZE - 1,
+        C.LENGTH_UNSET, null));
+    assertSame(window, dataSource.getMappedRegion());
+    dataSource.close();
+
+    // Outside the window a new one is mapped.
+    dataSource.open(new DataSpec(uri, MappedFileDataSource.INITIAL_WINDOW_SIZE, C.LENGTH_UNSET,
+        null));
+    assertTrue(window != dataSource.getMappedRegion());
+    dataSource.close();
+  }
+
+  @Test
+  public void testModifiedFileIsMappedAgain() throws IOException {
+    MappedFileDataSource dataSource = new MappedFileDataSource();
+    dataSource.open(new DataSpec(uri));
+    ByteBuffer window = dataSource.getMappedRegion();
+    dataSource.close();
+    data = Arrays.copyOf(data, FILE_LENGTH / 2);
+    writeFile(data);
+    dataSource.open(new DataSpec(uri));
+    assertTrue(window != dataSource.getMappedRegion());
+    assertEquals(FILE_LENGTH / 2, readToEnd(dataSource).length);
+    dataSource.close();
+  }
+
+  @Test
+  public void testBoundedOpenMapsItsLength() throws IOException {
+    MappedFileDataSource dataSource = new MappedFileDataSource();
+    int length = 3 * 1024 * 1024;
+    dataSource.open(new DataSpec(uri, 10, length, null));
+    assertEquals(length, dataSource.getMappedRegion().capacity());
+    dataSource.close();
+  }
+
+  @Test
+  public void testUnboundedWindowFollowsPreviousRead() throws IOException {
+    MappedFileDataSource dataSource = new MappedFileDataSource();
+    int length = 3 * 1024 * 1024;
+    dataSource.open(new DataSpec(uri));
+    readBytes(dataSource, length);
+    dataSource.close();
+    dataSource.open(new DataSpec(uri, 4 * 1024 * 1024, C.LENGTH_UNSET, null));
+    assertEquals(length, dataSource.getMappedRegion().capacity());
+    // Reading past the window continues from the file.
+    byte[] readData = readToEnd(dataSource);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data, 4 * 1024 * 1024, FILE_LENGTH), readData));
+    dataSource.close();
+
+    // Short reads shrink the next window back to the initial size.
+    dataSource.open(new DataSpec(uri, 0, READ_LENGTH, null));
+    readToEnd(dataSource);
+    dataSource.close();
+    dataSource.open(new DataSpec(uri, 5 * 1024 * 1024, C.LENGTH_UNSET, null));
+    assertEquals(MappedFileDataSource.INITIAL_WINDOW_SIZE,
+        dataSource.getMappedRegion().capacity());
+    dataSource.close();
+  }
+
+  @Test
+  public void testShortReadIsNotMapped() throws IOException {
+    MappedFileDataSource dataSource = new MappedFileDataSource();
+    int position = 12345;
+    DataSpec dataSpec = new DataSpec(uri, position, MappedFileDataSource.MIN_MAPPED_LENGTH - 1,
+        null);
+    dataSource.open(dataSpec);
+    assertNull(dataSource.getMappedRegion());
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data, position,
+        position + MappedFileDataSource.MIN_MAPPED_LENGTH - 1), readToEnd(dataSource)));
+    dataSource.close();
+  }
+
+  private void assertReadMatches(DataSource dataSource, DataSpec dataSpec) throws IOException {
+    long length = dataSource.open(dataSpec);
+    int position = (int) dataSpec.position;
+    assertEquals(dataSpec.length == C.LENGTH_UNSET ? FILE_LENGTH - position : dataSpec.length,
+        length);
+    byte[] readData = readToEnd(dataSource);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data, position, position + (int) length),
+        readData));
+    dataSource.close();
+  }
+
+  private void writeFile(byte[] fileData) throws IOException {
+    FileOutputStream outputStream = new FileOutputStream(file);
+    try {
+      outputStream.write(fileData);
+    } finally {
+      outputStream.close();
+    }
+    // Make sure the modification time changes even on file systems with a coarse resolution.
+    file.setLastModified(file.lastModified() + 2000);
+  }
+
+  private static void readBytes(DataSource dataSource, int length) throws IOException {
+    byte[] buffer = new byte[READ_LENGTH];
+    int bytesRead = 0;
+    while (bytesRead < length) {
+      bytesRead += dataSource.read(buffer, 0, Math.min(READ_LENGTH, length - bytesRead));
+    }
+  }
+
+  private static byte[] readToEnd(DataSource dataSource) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    byte[] buffer = new byte[READ_LENGTH];
+    int bytesRead;
+    while ((bytesRead = dataSource.read(buffer, 0, READ_LENGTH)) != C.RESULT_END_OF_INPUT) {
+      outputStream.write(buffer, 0, bytesRead);
+    }
+    return outputStream.toByteArray();
+  }
+
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.tangxiaolv.telegramgallery.exoplayer2.C;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Tests for {@link SegmentedDataSource} against a local HTTP server which throttles each
+ * connection, so that loading over more connections is faster.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Config.TARGET_SDK, manifest = Config.NONE)
+public final class SegmentedDataSourceTest {
+
+  private static final int SEGMENT_LENGTH = 32 * 1024;
+  private static final int ALLOCATION_LENGTH = 8 * 1024;
+  private static final int MAX_CONNECTION_COUNT = 4;
+  private static final int RESOURCE_LENGTH = 64 * SEGMENT_LENGTH + 1000;
+  private static final int BYTES_PER_SECOND_PER_CONNECTION = 256 * 1024;
+  private static final int WRITE_LENGTH = 4 * 1024;
+  private static final int READ_LENGTH = 3000;
+  private static final long TIMEOUT_MS = 10000;
+
+  private static final Pattern RANGE_HEADER = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+  private byte[] data;
+  private HttpServer server;
+  private ExecutorService serverExecutor;
+  private Uri uri;
+  private DefaultAllocator allocator;
+  private ExecutorService loadingExecutor;
+
+  // Set by tests before reading.
+  private volatile long failingRangeStart;
+  private volatile long truncatedRangeStart;
+
+  private final AtomicInteger activeRangeConnections = new AtomicInteger();
+  private final AtomicInteger maxActiveRangeConnections = new AtomicInteger();
+
+  @Before
+  public void setUp() throws IOException {
+    data = new byte[RESOURCE_LENGTH];
+    new Random(0).nextBytes(data);
+    failingRangeStart = C.POSITION_UNSET;
+    truncatedRangeStart = C.POSITION_UNSET;
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new ThrottlingHandler());
+    serverExecutor = Executors.newCachedThreadPool();
+    server.setExecutor(serverExecutor);
+    server.start();
+    uri = Uri.parse("http://127.0.0.1:" + server.getAddress().getPort() + "/resource");
+    allocator = new DefaultAllocator(false, ALLOCATION_LENGTH);
+    loadingExecutor = SegmentedDataSource.createExecutor(MAX_CONNECTION_COUNT);
+  }
+
+  @After
+  public void tearDown() {
+    loadingExecutor.shutdownNow();
+    server.stop(0);
+    serverExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testReadsResourceInOrder() throws Exception {
+    SegmentedDataSource dataSource = createDataSource(new DefaultBandwidthMeter());
+    assertEquals(RESOURCE_LENGTH, dataSource.open(new DataSpec(uri)));
+    byte[] readData = readToEnd(dataSource);
+    assertTrue(Arrays.equals(data, readData));
+    // The end of the resource keeps being reported.
+    assertEquals(C.RESULT_END_OF_INPUT, dataSource.read(new byte[READ_LENGTH], 0, READ_LENGTH));
+    dataSource.close();
+    assertAllocationsReleased();
+  }
+
+  @Test
+  public void testReadsRangeInOrder() throws Exception {
+    SegmentedDataSource dataSource = createDataSource(new DefaultBandwidthMeter());
+    int position = SEGMENT_LENGTH / 2 + 1;
+    int length = 10 * SEGMENT_LENGTH + 7;
+    assertEquals(length, dataSource.open(new DataSpec(uri, position, length, null)));
+    byte[] readData = readToEnd(dataSource);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data, position, position + length), readData));
+    dataSource.close();
+    assertAllocationsReleased();
+  }
+
+  @Test
+  public void testShortResourceIsReadFromOneConnection() throws Exception {
+    SegmentedDataSource dataSource = createDataSource(new DefaultBandwidthMeter());
+    int length = 2 * SEGMENT_LENGTH;
+    dataSource.open(new DataSpec(uri, 0, length, null));
+    assertTrue(Arrays.equals(Arrays.copyOf(data, length), readToEnd(dataSource)));
+    dataSource.close();
+    assertEquals(0, maxActiveRangeConnections.get());
+  }
+
+  @Test
+  public void testSegmentErrorIsThrownAtItsPosition() throws Exception {
+    failingRangeStart = 5 * SEGMENT_LENGTH;
+    assertErrorAtPosition(failingRangeStart, HttpDataSource.InvalidResponseCodeException.class);
+  }
+
+  @Test
+  public void testTruncatedSegmentIsThrownAtItsPosition() throws Exception {
+    truncatedRangeStart = 5 * SEGMENT_LENGTH;
+    assertErrorAtPosition(truncatedRangeStart + SEGMENT_LENGTH / 2, IOException.class);
+  }
+
+  @Test
+  public void testCloseWhileLoadingReleasesAllocations() throws Exception {
+    SegmentedDataSource dataSource = createDataSource(new DefaultBandwidthMeter());
+    dataSource.open(new DataSpec(uri));
+    byte[] buffer = new byte[READ_LENGTH];
+    int bytesRead = 0;
+    while (bytesRead < 3 * SEGMENT_LENGTH) {
+      bytesRead += dataSource.read(buffer, 0, READ_LENGTH);
+    }
+    dataSource.close();
+    assertAllocationsReleased();
+  }
+
+  @Test
+  public void testConnectionCountIncreasesWithThroughput() throws Exception {
+    SegmentedDataSource dataSource = createDataSource(new DefaultBandwidthMeter());
+    long startMs = System.currentTimeMillis();
+    dataSource.open(new DataSpec(uri));
+    assertTrue(Arrays.equals(data, readToEnd(dataSource)));
+    dataSource.close();
+    long elapsedMs = System.currentTimeMillis() - startMs;
+    System.out.println("SegmentedDataSource: " + RESOURCE_LENGTH / elapsedMs + " KB/s, "
+        + maxActiveRangeConnections.get() + " connections at most, "
+        + BYTES_PER_SECOND_PER_CONNECTION / 1024 + " KB/s per connection");
+    // Each added connection raises the throughput, so all connections end up in use.
+    assertEquals(MAX_CONNECTION_COUNT, maxActiveRangeConnections.get());
+  }
+
+  private void assertErrorAtPosition(long errorPosition, Class<? extends IOException> errorClass)
+      throws Exception {
+    SegmentedDataSource dataSource = createDataSource(new DefaultBandwidthMeter());
+    dataSource.open(new DataSpec(uri));
+    byte[] buffer = new byte[READ_LENGTH];
+    int position = 0;
+    try {
+      while (true) {
+        int bytesRead = dataSource.read(buffer, 0, READ_LENGTH);
+        assertTrue(bytesRead != C.RESULT_END_OF_INPUT);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, position, position + bytesRead),
+            Arrays.copyOf(buffer, bytesRead)));
+        position += bytesRead;
+      }
+    } catch (IOException e) {
+      assertTrue(e.toString(), errorClass.isInstance(e));
+    }
+    // Everything before the failing range was read.
+    assertTrue(position <= errorPosition);
+    assertTrue(position > errorPosition - SEGMENT_LENGTH);
+    dataSource.close();
+    assertAllocationsReleased();
+  }
+
+  private SegmentedDataSource createDataSource(DefaultBandwidthMeter bandwidthMeter) {
+    return new SegmentedDataSource(new DefaultHttpDataSourceFactory("test", bandwidthMeter),
+        bandwidthMeter, loadingExecutor, allocator, MAX_CONNECTION_COUNT, SEGMENT_LENGTH);
+  }
+
+  /** Waits for loading threads of closed sources to return their allocations. */
+  private void assertAllocationsReleased() throws InterruptedException {
+    long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+    while (allocator.getTotalBytesAllocated() != 0) {
+      assertTrue("Allocations weren't released", System.currentTimeMillis() < deadlineMs);
+      Thread.sleep(10);
+    }
+  }
+
+  private static byte[] readToEnd(DataSource dataSource) throws IOException {
+    byte[] readData = new byte[0];
+    byte[] buffer = new byte[READ_LENGTH];
+    int bytesRead;
+    while ((bytesRead = dataSource.read(buffer, 0, READ_LENGTH)) != C.RESULT_END_OF_INPUT) {
+      readData = Arrays.copyOf(readData, readData.length + bytesRead);
+      System.arraycopy(buffer, 0, readData, readData.length - bytesRead, bytesRead);
+    }
+    return readData;
+  }
+
+  /**
+   * Serves {@link #data}, honoring range requests, at most {@link
+   * #BYTES_PER_SECOND_PER_CONNECTION} on each connection.
+   */
+  private final class ThrottlingHandler implements HttpHandler {
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      long start = 0;
+      long end = RESOURCE_LENGTH - 1;
+      boolean isRangeRequest = false;
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      if (range != null) {
+        Matcher matcher = RANGE_HEADER.matcher(range);
+        assertTrue(matcher.matches());
+        start = Long.parseLong(matcher.group(1));
+        if (!matcher.group(2).isEmpty()) {
+          end = Long.parseLong(matcher.group(2));
+          // Only the segments are requested with a bounded range.
+          isRangeRequest = start > 0 && end < RESOURCE_LENGTH - 1;
+        }
+      }
+      if (isRangeRequest) {
+        int active = activeRangeConnections.incrementAndGet();
+        int maxActive;
+        while (active > (maxActive = maxActiveRangeConnections.get())
+            && !maxActiveRangeConnections.compareAndSet(maxActive, active)) {
+          // Retry.
+        }
+      }
+      try {
+        if (start == failingRangeStart) {
+          exchange.sendResponseHeaders(500, -1);
+          return;
+        }
+        long length = end - start + 1;
+        exchange.getResponseHeaders().set("Content-Range",
+            "bytes " + start + "-" + end + "/" + RESOURCE_LENGTH);
+        exchange.sendResponseHeaders(range != null ? 206 : 200, length);
+        if (start == truncatedRangeStart) {
+          length /= 2;
+        }
+        writeThrottled(exchange.getResponseBody(), (int) start, (int) length);
+      } catch (IOException e) {
+        // The client closed the connection.
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        if (isRangeRequest) {
+          activeRangeConnections.decrementAndGet();
+        }
+        exchange.close();
+      }
+    }
+
+    private void writeThrottled(OutputStream outputStream, int position, int length)
+        throws IOException, InterruptedException {
+      long startMs = System.currentTimeMillis();
+      int written = 0;
+      while (written < length) {
+        int writeLength = Math.min(WRITE_LENGTH, length - written);
+        outputStream.write(data, position + written, writeLength);
+        outputStream.flush();
+        written += writeLength;
+        long dueMs = startMs + written * 1000L / BYTES_PER_SECOND_PER_CONNECTION;
+        long sleepMs = dueMs - System.currentTimeMillis();
+        if (sleepMs > 0) {
+          Thread.sleep(sleepMs);
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import com.tangxiaolv.telegramgallery.exoplayer2.C;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSource;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSpec;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.FileDataSource;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.Util;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Tests for {@link CacheFileDataSource}, and a benchmark comparing its sequential and seek heavy
+ * read throughput with {@link FileDataSource}, which {@link CacheDataSource} used before.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Config.TARGET_SDK, manifest = Config.NONE)
+public final class CacheFileDataSourceTest {
+
+  private static final String KEY = "key";
+  private static final int SPAN_COUNT = 16;
+  private static final int SPAN_LENGTH = 2 * 1024 * 1024;
+  // DefaultExtractorInput reads sample data in chunks of this order.
+  private static final int READ_LENGTH = 4096;
+  private static final int SEEK_COUNT = 20000;
+  private static final int BENCHMARK_ROUNDS = 5;
+
+  private File cacheDir;
+  private SimpleCache cache;
+  private byte[] data;
+
+  @Before
+  public void setUp() throws Exception {
+    cacheDir = File.createTempFile("CacheFileDataSourceTest", null);
+    cacheDir.delete();
+    cacheDir.mkdir();
+    cache = new SimpleCache(cacheDir, new NoOpCacheEvictor());
+    data = new byte[SPAN_COUNT * SPAN_LENGTH];
+    new Random(0).nextBytes(data);
+    for (int i = 0; i < SPAN_COUNT; i++) {
+      writeSpan(i, data, i * SPAN_LENGTH);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    Util.recursiveDelete(cacheDir);
+  }
+
+  @Test
+  public void testRandomReadsMatchFileDataSource() throws Exception {
+    CacheFileDataSource mappedDataSource = new CacheFileDataSource(cache);
+    FileDataSource fileDataSource = new FileDataSource();
+    Random random = new Random(0);
+    byte[] mappedBuffer = new byte[READ_LENGTH];
+    byte[] fileBuffer = new byte[READ_LENGTH];
+    for (int i = 0; i < 1000; i++) {
+      CacheSpan span = getSpans().get(random.nextInt(SPAN_COUNT));
+      DataSpec dataSpec = createDataSpec(span, random.nextInt(SPAN_LENGTH - READ_LENGTH),
+          random.nextBoolean() ? C.LENGTH_UNSET : READ_LENGTH);
+      readFully(mappedDataSource, dataSpec, mappedBuffer);
+      readFully(fileDataSource, dataSpec, fileBuffer);
+      assertTrue(Arrays.equals(fileBuffer, mappedBuffer));
+      int position = (int) dataSpec.absoluteStreamPosition;
+      assertTrue(Arrays.equals(Arrays.copyOfRange(data, position, position + READ_LENGTH),
+          mappedBuffer));
+    }
+  }
+
+  @Test
+  public void testTouchedSpanReusesMapping() throws Exception {
+    CacheFileDataSource dataSource = new CacheFileDataSource(cache);
+    byte[] buffer = new byte[READ_LENGTH];
+    readFully(dataSource, createDataSpec(getSpans().get(0), 0, READ_LENGTH), buffer);
+    Thread.sleep(2);
+    // Renames the span file.
+    CacheSpan touchedSpan = cache.startReadWrite(KEY, 0);
+    readFully(dataSource, createDataSpec(touchedSpan, READ_LENGTH, READ_LENGTH), buffer);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data, READ_LENGTH, 2 * READ_LENGTH), buffer));
+  }
+
+  @Test
+  public void testReplacedSpanIsReadFromNewFile() throws Exception {
+    CacheFileDataSource dataSource = new CacheFileDataSource(cache);
+    byte[] buffer = new byte[READ_LENGTH];
+    readFully(dataSource, createDataSpec(getSpans().get(0), 0, READ_LENGTH), buffer);
+
+    // Evict the span and write different data at the same key and position.
+    cache.removeSpan(getSpans().get(0));
+    byte[] newData = new byte[SPAN_LENGTH];
+    Arrays.fill(newData, (byte) 1);
+    Thread.sleep(1000);
+    writeSpan(0, newData, 0);
+
+    readFully(dataSource, createDataSpec(getSpans().get(0), 0, READ_LENGTH), buffer);
+    assertTrue(Arrays.equals(Arrays.copyOf(newData, READ_LENGTH), buffer));
+  }
+
+  /**
+   * Reads all spans front to back, then opens the spans at random positions for a single read, in
+   * the way {@link CacheDataSource} does after each seek. Throughput is printed, the best of
+   * {@link #BENCHMARK_ROUNDS} for each source.
+   */
+  @Test
+  public void testReadThroughput() throws Exception {
+    DataSource fileDataSource = new FileDataSource();
+    DataSource mappedDataSource = new CacheFileDataSource(cache);
+    long fileSequentialNs = Long.MAX_VALUE;
+    long mappedSequentialNs = Long.MAX_VALUE;
+    long fileSeekNs = Long.MAX_VALUE;
+    long mappedSeekNs = Long.MAX_VALUE;
+    for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+      long startNs = System.nanoTime();
+      long fileChecksum = readSequentially(fileDataSource);
+      fileSequentialNs = Math.min(fileSequentialNs, System.nanoTime() - startNs);
+      startNs = System.nanoTime();
+      long mappedChecksum = readSequentially(mappedDataSource);
+      mappedSequentialNs = Math.min(mappedSequentialNs, System.nanoTime() - startNs);
+      assertEquals(fileChecksum, mappedChecksum);
+
+      startNs = System.nanoTime();
+      fileChecksum = readWithSeeks(fileDataSource);
+      fileSeekNs = Math.min(fileSeekNs, System.nanoTime() - startNs);
+      startNs = System.nanoTime();
+      mappedChecksum = readWithSeeks(mappedDataSource);
+      mappedSeekNs = Math.min(mappedSeekNs, System.nanoTime() - startNs);
+      assertEquals(fileChecksum, mappedChecksum);
+    }
+    long sequentialBytes = (long) SPAN_COUNT * SPAN_LENGTH;
+    long seekBytes = (long) SEEK_COUNT * READ_LENGTH;
+    System.out.println("CacheFileDataSource sequential: FileDataSource "
+        + toMegabytesPerSecond(sequentialBytes, fileSequentialNs) + " MB/s, mapped "
+        + toMegabytesPerSecond(sequentialBytes, mappedSequentialNs) + " MB/s");
+    System.out.println("CacheFileDataSource seeks: FileDataSource "
+        + toMegabytesPerSecond(seekBytes, fileSeekNs) + " MB/s, mapped "
+        + toMegabytesPerSecond(seekBytes, mappedSeekNs) + " MB/s");
+  }
+
+  private long readSequentially(DataSource dataSource) throws IOException {
+    byte[] buffer = new byte[READ_LENGTH];
+    long checksum = 0;
+    for (CacheSpan span : getSpans()) {
+      dataSource.open(createDataSpec(span, 0, C.LENGTH_UNSET));
+      try {
+        int bytesRead;
+        while ((bytesRead = dataSource.read(buffer, 0, READ_LENGTH)) != C.RESULT_END_OF_INPUT) {
+          checksum = 31 * checksum + buffer[bytesRead - 1];
+        }
+      } finally {
+        dataSource.close();
+      }
+    }
+    return checksum;
+  }
+
+  private long readWithSeeks(DataSource dataSource) throws IOException {
+    ArrayList<CacheSpan> spans = getSpans();
+    Random random = new Random(0);
+    byte[] buffer = new byte[READ_LENGTH];
+    long checksum = 0;
+    for (int i = 0; i < SEEK_COUNT; i++) {
+      CacheSpan span = spans.get(random.nextInt(SPAN_COUNT));
+      readFully(dataSource, createDataSpec(span, random.nextInt(SPAN_LENGTH - READ_LENGTH),
+          C.LENGTH_UNSET), buffer);
+      checksum = 31 * checksum + buffer[READ_LENGTH - 1];
+    }
+    return checksum;
+  }
+
+  private ArrayList<CacheSpan> getSpans() {
+    return new ArrayList<>(cache.getCachedSpans(KEY));
+  }
+
+  private void writeSpan(int index, byte[] source, int offset) throws Exception {
+    long position = (long) index * SPAN_LENGTH;
+    CacheSpan holeSpan = cache.startReadWrite(KEY, position);
+    try {
+      File file = cache.startFile(KEY, position, SPAN_LENGTH);
+      FileOutputStream outputStream = new FileOutputStream(file);
+      try {
+        outputStream.write(source, offset, SPAN_LENGTH);
+      } finally {
+        outputStream.close();
+      }
+      cache.commitFile(file);
+    } finally {
+      cache.releaseHoleSpan(holeSpan);
+    }
+  }
+
+  /** Creates a {@link DataSpec} like the one {@link CacheDataSource} uses to read a span. */
+  private static DataSpec createDataSpec(CacheSpan span, long filePosition, long length) {
+    return new DataSpec(Uri.fromFile(span.file), span.position + filePosition, filePosition,
+        length, KEY, 0);
+  }
+
+  /** Opens the source, reads buffer.length bytes into the buffer and closes the source. */
+  private static void readFully(DataSource dataSource, DataSpec dataSpec, byte[] buffer)
+      throws IOException {
+    dataSource.open(dataSpec);
+    try {
+      int bytesRead = 0;
+      while (bytesRead < buffer.length) {
+        int result = dataSource.read(buffer, bytesRead, buffer.length - bytesRead);
+        assertTrue(result != C.RESULT_END_OF_INPUT);
+        bytesRead += result;
+      }
+    } finally {
+      dataSource.close();
+    }
+  }
+
+  private static long toMegabytesPerSecond(long bytes, long durationNs) {
+    return bytes * 1000000000L / durationNs / (1024 * 1024);
+  }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.tangxiaolv.telegramgallery.exoplayer2.util.Util;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.NavigableSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Tests for the span journal of {@link SimpleCache}: reads must not write to it, and the spans
+ * restored from it must match the files in the cache directory across restarts.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Config.TARGET_SDK, manifest = Config.NONE)
+public final class SimpleCacheJournalTest {
+
+  private static final String KEY = "key";
+  private static final int SPAN_LENGTH = 1024;
+  // Type, id, position, length, timestamp and checksum.
+  private static final int RECORD_SIZE = 1 + 4 + 8 + 8 + 8 + 4;
+  private static final long TIMEOUT_MS = 10000;
+
+  private File cacheDir;
+  private File journalFile;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheDir = File.createTempFile("SimpleCacheJournalTest", null);
+    cacheDir.delete();
+    cacheDir.mkdir();
+    journalFile = new File(cacheDir, CachedSpanJournal.FILE_NAME);
+  }
+
+  @After
+  public void tearDown() {
+    Util.recursiveDelete(cacheDir);
+  }
+
+  @Test
+  public void testReadsDontWriteTheJournal() throws Exception {
+    SimpleCache cache = new SimpleCache(cacheDir, new NoOpCacheEvictor());
+    addSpan(cache, KEY, 0);
+    long journalLength = journalFile.length();
+    for (int i = 0; i < 10; i++) {
+      Thread.sleep(2);
+      assertTrue(cache.startReadWrite(KEY, 0).isCached);
+    }
+    assertEquals(journalLength, journalFile.length());
+  }
+
+  @Test
+  public void testTouchesAreWrittenWithTheNextCommit() throws Exception {
+    SimpleCache cache = new SimpleCache(cacheDir, new NoOpCacheEvictor());
+    addSpan(cache, KEY, 0);
+    for (int i = 0; i < 3; i++) {
+      Thread.sleep(2);
+      cache.startReadWrite(KEY, 0);
+    }
+    long journalLength = journalFile.length();
+    addSpan(cache, KEY, SPAN_LENGTH);
+    // The added span and a single record for the repeatedly touched span.
+    assertEquals(journalLength + 2 * RECORD_SIZE, journalFile.length());
+  }
+
+  @Test
+  public void testUnwrittenTouchIsRestoredFromTheFile() throws Exception {
+    SimpleCache cache = new SimpleCache(cacheDir, new NoOpCacheEvictor());
+    File committedFile = addSpan(cache, KEY, 0);
+    Thread.sleep(2);
+    CacheSpan touchedSpan = cache.startReadWrite(KEY, 0);
+    assertFalse(committedFile.exists());
+
+    // Restarting before the touch was written finds the renamed file rather than dropping it.
+    SimpleCache restartedCache = new SimpleCache(cacheDir, new NoOpCacheEvictor());
+    NavigableSet<CacheSpan> spans = restartedCache.getCachedSpans(KEY);
+    assertEquals(1, spans.size());
+    assertEquals(touchedSpan.file, spans.first().file);
+    assertEquals(touchedSpan.lastAccessTimestamp, spans.first().lastAccessTimestamp);
+    assertTrue(touchedSpan.file.exists());
+  }
+
+  @Test
+  public void testCompactionKeepsSpans() throws Exception {
+    SimpleCache cache = new SimpleCache(cacheDir, new NoOpCacheEvictor());
+    addSpan(cache, KEY, 0);
+    // Each iteration appends an add and a remove record, enough to trigger a compaction.
+    for (int i = 0; i < 520; i++) {
+      addSpan(cache, KEY, SPAN_LENGTH);
+      cache.removeSpan(cache.getCachedSpans(KEY).last());
+    }
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (journalFile.length() > 100 * RECORD_SIZE) {
+      assertTrue("Journal wasn't compacted", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    addSpan(cache, KEY, 2 * SPAN_LENGTH);
+
+    SimpleCache restartedCache = new SimpleCache(cacheDir, new NoOpCacheEvictor());
+    assertEquals(cache.getCachedSpans(KEY), restartedCache.getCachedSpans(KEY));
+    assertEquals(2 * SPAN_LENGTH, restartedCache.getCacheSpace());
+    for (CacheSpan span : restartedCache.getCachedSpans(KEY)) {
+      assertTrue(span.file.exists());
+    }
+  }
+
+  private static File addSpan(SimpleCache cache, String key, long position) throws Exception {
+    CacheSpan holeSpan = cache.startReadWrite(key, position);
+    assertFalse(holeSpan.isCached);
+    try {
+      File file = cache.startFile(key, position, SPAN_LENGTH);
+      FileOutputStream outputStream = new FileOutputStream(file);
+      try {
+        outputStream.write(new byte[SPAN_LENGTH]);
+      } finally {
+        outputStream.close();
+      }
+      cache.commitFile(file);
+      return file;
+    } finally {
+      cache.releaseHoleSpan(holeSpan);
+    }
+  }
+
+}
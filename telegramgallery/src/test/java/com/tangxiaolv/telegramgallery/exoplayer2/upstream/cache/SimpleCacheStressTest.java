@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.net.Uri;
+import com.tangxiaolv.telegramgallery.exoplayer2.C;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.DataSpec;
+import com.tangxiaolv.telegramgallery.exoplayer2.upstream.FileDataSource;
+import com.tangxiaolv.telegramgallery.exoplayer2.util.Util;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Stress tests for the per key hole locking of {@link SimpleCache}. Concurrent readers and writers
+ * load the same keys through {@link CacheDataSource} with a {@link FileDataSource} upstream, after
+ * which every byte read and the in-memory representation of the cache are checked.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Config.TARGET_SDK, manifest = Config.NONE)
+public final class SimpleCacheStressTest {
+
+  private static final int KEY_COUNT = 4;
+  private static final int THREAD_COUNT = 8;
+  private static final int READS_PER_THREAD = 200;
+  private static final int DATA_LENGTH = 256 * 1024;
+  private static final int MAX_READ_LENGTH = 64 * 1024;
+  private static final int MAX_CACHE_FILE_SIZE = 16 * 1024;
+  private static final long TIMEOUT_SECONDS = 60;
+
+  private File cacheDir;
+  private File dataDir;
+  private File[] dataFiles;
+  private byte[][] data;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheDir = createTempDirectory("SimpleCacheStressTest");
+    dataDir = createTempDirectory("SimpleCacheStressTestData");
+    Random random = new Random(0);
+    dataFiles = new File[KEY_COUNT];
+    data = new byte[KEY_COUNT][DATA_LENGTH];
+    for (int i = 0; i < KEY_COUNT; i++) {
+      random.nextBytes(data[i]);
+      dataFiles[i] = new File(dataDir, "data" + i);
+      FileOutputStream outputStream = new FileOutputStream(dataFiles[i]);
+      try {
+        outputStream.write(data[i]);
+      } finally {
+        outputStream.close();
+      }
+    }
+    executor = Executors.newFixedThreadPool(THREAD_COUNT);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    Util.recursiveDelete(cacheDir);
+    Util.recursiveDelete(dataDir);
+  }
+
+  @Test
+  public void testConcurrentReadersAndWriters() throws Exception {
+    SimpleCache cache = new SimpleCache(cacheDir, new NoOpCacheEvictor());
+    runReaders(cache);
+    assertCacheConsistent(cache);
+    // Filling in the remaining holes leaves the whole content of every key cached.
+    for (int i = 0; i < KEY_COUNT; i++) {
+      readAndCheck(cache, i, 0, C.LENGTH_UNSET);
+      assertTrue(cache.isCached(getKey(i), 0, DATA_LENGTH));
+    }
+    assertCacheConsistent(cache);
+  }
+
+  @Test
+  public void testConcurrentReadersAndWritersWithEviction() throws Exception {
+    SimpleCache cache = new SimpleCache(cacheDir,
+        new LeastRecentlyUsedCacheEvictor(KEY_COUNT * DATA_LENGTH / 4));
+    runReaders(cache);
+    assertCacheConsistent(cache);
+    assertTrue(cache.getCacheSpace() <= KEY_COUNT * DATA_LENGTH / 4);
+  }
+
+  @Test
+  public void testHoleLockOnlyBlocksSameKey() throws Exception {
+    final SimpleCache cache = new SimpleCache(cacheDir, new NoOpCacheEvictor());
+    CacheSpan holeSpan = cache.startReadWrite(getKey(0), 0);
+    assertFalse(holeSpan.isCached);
+    assertNull(cache.startReadWriteNonBlocking(getKey(0), 0));
+
+    // Writers and readers of other keys don't wait for the writer of the first key.
+    CacheSpan otherHoleSpan = cache.startReadWriteNonBlocking(getKey(1), 0);
+    assertNotNull(otherHoleSpan);
+    cache.releaseHoleSpan(otherHoleSpan);
+
+    Future<CacheSpan> blockedRead = executor.submit(new Callable<CacheSpan>() {
+      @Override
+      public CacheSpan call() throws Exception {
+        return cache.startReadWrite(getKey(0), 0);
+      }
+    });
+    try {
+      blockedRead.get(100, TimeUnit.MILLISECONDS);
+      fail();
+    } catch (TimeoutException e) {
+      // Expected, the hole is locked.
+    }
+
+    // Once the data is committed the blocked caller becomes a reader.
+    File file = cache.startFile(getKey(0), 0, MAX_CACHE_FILE_SIZE);
+    FileOutputStream outputStream = new FileOutputStream(file);
+    try {
+      outputStream.write(data[0], 0, MAX_CACHE_FILE_SIZE);
+    } finally {
+      outputStream.close();
+    }
+    cache.commitFile(file);
+    cache.releaseHoleSpan(holeSpan);
+    CacheSpan span = blockedRead.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    assertTrue(span.isCached);
+    assertEquals(0, span.position);
+    assertEquals(MAX_CACHE_FILE_SIZE, span.length);
+    assertCacheConsistent(cache);
+  }
+
+  /**
+   * Reads random ranges of all keys through the cache on {@link #THREAD_COUNT} threads, and checks
+   * the data read.
+   */
+  private void runReaders(final SimpleCache cache) throws Exception {
+    ArrayList<Future<Void>> futures = new ArrayList<>();
+    for (int i = 0; i < THREAD_COUNT; i++) {
+      final Random random = new Random(i);
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          for (int j = 0; j < READS_PER_THREAD; j++) {
+            int keyIndex = random.nextInt(KEY_COUNT);
+            int position = random.nextInt(DATA_LENGTH);
+            int length = random.nextInt(10) == 0 ? C.LENGTH_UNSET
+                : 1 + random.nextInt(Math.min(MAX_READ_LENGTH, DATA_LENGTH - position));
+            readAndCheck(cache, keyIndex, position, length);
+          }
+          return null;
+        }
+      }));
+    }
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        futures.get(i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      } catch (TimeoutException e) {
+        fail("Readers didn't finish, the cache is likely deadlocked");
+      }
+    }
+  }
+
+  private void readAndCheck(SimpleCache cache, int keyIndex, int position, int length)
+      throws IOException {
+    CacheDataSource dataSource = new CacheDataSource(cache, new FileDataSource(),
+        CacheDataSource.FLAG_BLOCK_ON_CACHE, MAX_CACHE_FILE_SIZE);
+    DataSpec dataSpec = new DataSpec(Uri.fromFile(dataFiles[keyIndex]), position, length,
+        getKey(keyIndex));
+    int expectedLength = length == C.LENGTH_UNSET ? DATA_LENGTH - position : length;
+    byte[] buffer = new byte[expectedLength];
+    try {
+      dataSource.open(dataSpec);
+      int bytesRead = 0;
+      while (bytesRead < expectedLength) {
+        int result = dataSource.read(buffer, bytesRead, expectedLength - bytesRead);
+        assertTrue(result != C.RESULT_END_OF_INPUT);
+        bytesRead += result;
+      }
+      if (length == C.LENGTH_UNSET) {
+        assertEquals(C.RESULT_END_OF_INPUT, dataSource.read(new byte[1], 0, 1));
+      }
+    } finally {
+      dataSource.close();
+    }
+    byte[] expected = Arrays.copyOfRange(data[keyIndex], position, position + expectedLength);
+    assertTrue(Arrays.equals(expected, buffer));
+  }
+
+  /**
+   * Checks that the spans of every key don't overlap, match the files and the data, that the cache
+   * space is the sum of their lengths and that no hole is left locked.
+   */
+  private void assertCacheConsistent(SimpleCache cache) throws Exception {
+    long totalLength = 0;
+    for (String key : cache.getKeys()) {
+      int keyIndex = Integer.parseInt(key.substring("key".length()));
+      NavigableSet<CacheSpan> spans = cache.getCachedSpans(key);
+      long previousEnd = 0;
+      for (CacheSpan span : spans) {
+        assertTrue(span.position >= previousEnd);
+        assertTrue(span.file.exists());
+        assertEquals(span.length, span.file.length());
+        byte[] spanData = new byte[(int) span.length];
+        RandomAccessFile file = new RandomAccessFile(span.file, "r");
+        try {
+          file.readFully(spanData);
+        } finally {
+          file.close();
+        }
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data[keyIndex], (int) span.position,
+            (int) (span.position + span.length)), spanData));
+        previousEnd = span.position + span.length;
+        totalLength += span.length;
+      }
+      CacheSpan holeSpan = cache.startReadWriteNonBlocking(key, DATA_LENGTH);
+      assertNotNull(holeSpan);
+      cache.releaseHoleSpan(holeSpan);
+    }
+    assertEquals(totalLength, cache.getCacheSpace());
+  }
+
+  private static String getKey(int keyIndex) {
+    return "key" + keyIndex;
+  }
+
+  private static File createTempDirectory(String prefix) throws IOException {
+    File directory = File.createTempFile(prefix, null);
+    directory.delete();
+    directory.mkdir();
+    return directory;
+  }
+
+}
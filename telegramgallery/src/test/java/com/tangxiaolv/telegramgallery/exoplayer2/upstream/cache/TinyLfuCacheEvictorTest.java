@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.upstream.cache;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Trace driven tests for {@link TinyLfuCacheEvictor}. A {@link Simulator} replays the same trace
+ * of stream reads against each evictor and measures the byte hit ratio.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Config.TARGET_SDK, manifest = Config.NONE)
+public final class TinyLfuCacheEvictorTest {
+
+  private static final long SPAN_SIZE = 256 * 1024;
+  private static final long MAX_BYTES = 32 * 1024 * 1024;
+
+  private static final int CLIP_COUNT = 200;
+  private static final long CLIP_SIZE = 1024 * 1024;
+  private static final long LONG_STREAM_SIZE = 48 * 1024 * 1024;
+  private static final int READ_COUNT = 5000;
+  private static final int READS_PER_LONG_STREAM = 50;
+
+  @Test
+  public void testRepeatedClipsSurviveLongStreams() {
+    String[] keys = new String[READ_COUNT];
+    long[] sizes = new long[READ_COUNT];
+    createClipsAndLongStreamsTrace(keys, sizes, READS_PER_LONG_STREAM);
+
+    double lruHitRatio = new Simulator(new LeastRecentlyUsedCacheEvictor(MAX_BYTES))
+        .replay(keys, sizes);
+    double tinyLfuHitRatio = new Simulator(new TinyLfuCacheEvictor(MAX_BYTES, CLIP_COUNT))
+        .replay(keys, sizes);
+    assertTrue("LRU " + lruHitRatio + ", TinyLFU " + tinyLfuHitRatio,
+        tinyLfuHitRatio > 1.5 * lruHitRatio);
+  }
+
+  @Test
+  public void testClipsOnlyTraceMatchesLru() {
+    String[] keys = new String[READ_COUNT];
+    long[] sizes = new long[READ_COUNT];
+    createClipsAndLongStreamsTrace(keys, sizes, Integer.MAX_VALUE);
+
+    double lruHitRatio = new Simulator(new LeastRecentlyUsedCacheEvictor(MAX_BYTES))
+        .replay(keys, sizes);
+    double tinyLfuHitRatio = new Simulator(new TinyLfuCacheEvictor(MAX_BYTES, CLIP_COUNT))
+        .replay(keys, sizes);
+    // Without scans the frequency filter must not cost hits compared to plain recency.
+    assertTrue("LRU " + lruHitRatio + ", TinyLFU " + tinyLfuHitRatio,
+        tinyLfuHitRatio >= lruHitRatio * 0.95);
+  }
+
+  @Test
+  public void testLongStreamKeepsItsBeginning() {
+    Simulator simulator = new Simulator(new TinyLfuCacheEvictor(MAX_BYTES));
+    simulator.replay(new String[] {"long"}, new long[] {LONG_STREAM_SIZE});
+    // Only the span being read at the end displaces the beginning of the stream.
+    for (long position = 0; position < MAX_BYTES - SPAN_SIZE; position += SPAN_SIZE) {
+      assertTrue(simulator.isCached("long", position));
+    }
+  }
+
+  /**
+   * Creates a trace of clips read with a Zipf distributed popularity, interleaved with distinct
+   * long streams which are each read once.
+   */
+  private static void createClipsAndLongStreamsTrace(String[] keys, long[] sizes,
+      int readsPerLongStream) {
+    double[] cumulativeWeights = new double[CLIP_COUNT];
+    double totalWeight = 0;
+    for (int i = 0; i < CLIP_COUNT; i++) {
+      totalWeight += 1d / (i + 1);
+      cumulativeWeights[i] = totalWeight;
+    }
+    Random random = new Random(0);
+    for (int i = 0; i < keys.length; i++) {
+      if (i % readsPerLongStream == readsPerLongStream - 1) {
+        keys[i] = "long" + i;
+        sizes[i] = LONG_STREAM_SIZE;
+      } else {
+        double weight = random.nextDouble() * totalWeight;
+        int clip = 0;
+        while (cumulativeWeights[clip] < weight) {
+          clip++;
+        }
+        keys[i] = "clip" + clip;
+        sizes[i] = CLIP_SIZE;
+      }
+    }
+  }
+
+  /**
+   * Replays stream reads against a {@link CacheEvictor}. Each read walks a stream from its start
+   * in spans of {@link #SPAN_SIZE}, touching cached spans and adding missing ones, the way
+   * {@link SimpleCache} reports them to its evictor. Only the in-memory representation of the
+   * cache is simulated.
+   */
+  private static final class Simulator implements Cache {
+
+    private final CacheEvictor evictor;
+    private final HashMap<String, TreeMap<Long, CacheSpan>> spans;
+    private final File file;
+    private long cacheSpace;
+    private long time;
+
+    public Simulator(CacheEvictor evictor) {
+      this.evictor = evictor;
+      spans = new HashMap<>();
+      // Marks simulated spans as cached, it's never accessed.
+      file = new File("simulated");
+      evictor.onCacheInitialized();
+    }
+
+    /**
+     * Reads each of the given streams in turn.
+     *
+     * @return The ratio of bytes read from the cache to all bytes read.
+     */
+    public double replay(String[] keys, long[] sizes) {
+      long hitBytes = 0;
+      long totalBytes = 0;
+      for (int i = 0; i < keys.length; i++) {
+        for (long position = 0; position < sizes[i]; position += SPAN_SIZE) {
+          if (read(keys[i], position)) {
+            hitBytes += SPAN_SIZE;
+          }
+          totalBytes += SPAN_SIZE;
+          assertTrue(cacheSpace <= MAX_BYTES);
+        }
+      }
+      return (double) hitBytes / totalBytes;
+    }
+
+    public boolean isCached(String key, long position) {
+      TreeMap<Long, CacheSpan> keySpans = spans.get(key);
+      return keySpans != null && keySpans.containsKey(position);
+    }
+
+    private boolean read(String key, long position) {
+      TreeMap<Long, CacheSpan> keySpans = spans.get(key);
+      CacheSpan span = keySpans != null ? keySpans.get(position) : null;
+      if (span != null) {
+        CacheSpan touchedSpan = new CacheSpan(key, position, SPAN_SIZE, ++time, file);
+        keySpans.put(position, touchedSpan);
+        evictor.onSpanTouched(this, span, touchedSpan);
+        return true;
+      }
+      evictor.onStartFile(this, key, position, SPAN_SIZE);
+      keySpans = spans.get(key);
+      if (keySpans == null) {
+        keySpans = new TreeMap<>();
+        spans.put(key, keySpans);
+      }
+      span = new CacheSpan(key, position, SPAN_SIZE, ++time, file);
+      keySpans.put(position, span);
+      cacheSpace += SPAN_SIZE;
+      evictor.onSpanAdded(this, span);
+      return false;
+    }
+
+    @Override
+    public void removeSpan(CacheSpan span) {
+      TreeMap<Long, CacheSpan> keySpans = spans.get(span.key);
+      assertTrue(keySpans != null && keySpans.remove(span.position) == span);
+      if (keySpans.isEmpty()) {
+        spans.remove(span.key);
+      }
+      cacheSpace -= span.length;
+      evictor.onSpanRemoved(this, span);
+    }
+
+    @Override
+    public long getCacheSpace() {
+      return cacheSpace;
+    }
+
+    @Override
+    public Set<String> getKeys() {
+      return spans.keySet();
+    }
+
+    @Override
+    public NavigableSet<CacheSpan> addListener(String key, Listener listener) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void removeListener(String key, Listener listener) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public NavigableSet<CacheSpan> getCachedSpans(String key) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public CacheSpan startReadWrite(String key, long position) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public CacheSpan startReadWriteNonBlocking(String key, long position) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public File startFile(String key, long position, long maxLength) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void commitFile(File file) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void releaseHoleSpan(CacheSpan holeSpan) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isCached(String key, long position, long length) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getCachedBytes(String key, long position, long length) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setContentLength(String key, long length) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getContentLength(String key) {
+      throw new UnsupportedOperationException();
+    }
+
+  }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangxiaolv.telegramgallery.exoplayer2.util;
+
+import static org.junit.Assert.assertEquals;
+
+import com.tangxiaolv.telegramgallery.exoplayer2.C;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Tests that the word scanner used by {@link NalUnitUtil#discardToSps(ByteBuffer)} and the stride-3
+ * scan of {@link NalUnitUtil#findNalUnit(byte[], int, int, boolean[])} find the same start codes,
+ * and compares their speed on the heap arrays read by the extractors.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Config.TARGET_SDK, manifest = Config.NONE)
+public final class NalUnitUtilTest {
+
+  private static final int DATA_LENGTH = 4 * 1024 * 1024;
+  private static final int BENCHMARK_ROUNDS = 10;
+  private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+  @Test
+  public void testScannersFindSameStartCodes() {
+    Random random = new Random(0);
+    for (int i = 0; i < 1000; i++) {
+      byte[] data = createData(random, random.nextInt(200), 1 + random.nextInt(20));
+      ByteBuffer heapBuffer = ByteBuffer.wrap(data);
+      ByteBuffer directBuffer = ByteBuffer.allocateDirect(data.length);
+      directBuffer.put(data);
+      directBuffer.order(ByteOrder.LITTLE_ENDIAN);
+      int offset = random.nextInt(data.length + 1);
+      int expected = NalUnitUtil.findNalUnit(data, offset, data.length, null);
+      assertEquals(expected, findWithWords(heapBuffer, offset, data.length));
+      assertEquals(expected, findWithWords(directBuffer, offset, data.length));
+      assertEquals(expected, findWithAssembledWords(data, offset, data.length));
+    }
+  }
+
+  /**
+   * Finds all start codes in slice data, and prints the throughput of each scanner. The stride-3
+   * scan reads a third of the bytes, and is faster on heap arrays than reading them a word at a
+   * time, whether each word comes from an intrinsic {@link ByteBuffer#getLong(int)} or is
+   * assembled from single bytes, as Android's heap {@link ByteBuffer#getLong(int)} does. So
+   * {@link NalUnitUtil#findNalUnit(byte[], int, int, boolean[])} and the H.264 and H.265 readers
+   * keep the stride-3 scan. Doesn't assert on timings.
+   */
+  @Test
+  public void testBenchmarkScanners() {
+    // A start code every 2 KB on average, as between the slices of a stream.
+    byte[] data = createData(new Random(0), DATA_LENGTH, DATA_LENGTH / 2048);
+    ByteBuffer heapBuffer = ByteBuffer.wrap(data);
+    ByteBuffer directBuffer = ByteBuffer.allocateDirect(data.length);
+    directBuffer.put(data);
+    directBuffer.order(ByteOrder.nativeOrder());
+    long[] bestNs = new long[] {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+    int[] counts = new int[4];
+    for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+      for (int scanner = 0; scanner < 4; scanner++) {
+        long startNs = System.nanoTime();
+        counts[scanner] = countStartCodes(scanner, data, heapBuffer, directBuffer);
+        bestNs[scanner] = Math.min(bestNs[scanner], System.nanoTime() - startNs);
+      }
+    }
+    String[] names = new String[] {"Stride-3 array scan", "Word scan, heap ByteBuffer",
+        "Word scan, assembled words", "Word scan, direct ByteBuffer"};
+    for (int scanner = 0; scanner < 4; scanner++) {
+      assertEquals(counts[0], counts[scanner]);
+      System.out.println(names[scanner] + ": " + data.length * 1000L / bestNs[scanner] + " MB/s");
+    }
+  }
+
+  private static int countStartCodes(int scanner, byte[] data, ByteBuffer heapBuffer,
+      ByteBuffer directBuffer) {
+    int count = 0;
+    int offset = 0;
+    while (true) {
+      switch (scanner) {
+        case 0:
+          offset = NalUnitUtil.findNalUnit(data, offset, data.length, null);
+          break;
+        case 1:
+          offset = findWithWords(heapBuffer, offset, data.length);
+          break;
+        case 2:
+          offset = findWithAssembledWords(data, offset, data.length);
+          break;
+        default:
+          offset = findWithWords(directBuffer, offset, data.length);
+          break;
+      }
+      if (offset == data.length) {
+        return count;
+      }
+      count++;
+      offset += 3;
+    }
+  }
+
+  /**
+   * Returns the offset of the first start code, or {@code limit} if there is none, as
+   * {@link NalUnitUtil#findNalUnit(byte[], int, int, boolean[])} does.
+   */
+  private static int findWithWords(ByteBuffer data, int offset, int limit) {
+    int index = NalUnitUtil.findThreeBytePattern(data, offset, limit, 1);
+    return index == C.INDEX_UNSET ? limit : index;
+  }
+
+  /**
+   * The word scan of {@link NalUnitUtil#findThreeBytePattern(ByteBuffer, int, int, int)}, reading
+   * each word from single bytes as Android's heap {@link ByteBuffer#getLong(int)} does.
+   */
+  private static int findWithAssembledWords(byte[] data, int offset, int limit) {
+    int patternLimit = limit - 2;
+    int i = offset;
+    while (i <= limit - 8) {
+      long word = (data[i] & 0xFFL) << 56 | (data[i + 1] & 0xFFL) << 48
+          | (data[i + 2] & 0xFFL) << 40 | (data[i + 3] & 0xFFL) << 32
+          | (data[i + 4] & 0xFFL) << 24 | (data[i + 5] & 0xFFL) << 16
+          | (data[i + 6] & 0xFFL) << 8 | (data[i + 7] & 0xFFL);
+      long zeroBytes = ~(((word & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | word | LOW_SEVEN_BITS);
+      if (zeroBytes == 0) {
+        i += 8;
+        continue;
+      }
+      i += Long.numberOfLeadingZeros(zeroBytes) >> 3;
+      if (i >= patternLimit) {
+        return limit;
+      }
+      if (data[i + 1] == 0 && data[i + 2] == 1) {
+        return i;
+      }
+      i++;
+    }
+    for (; i < patternLimit; i++) {
+      if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+        return i;
+      }
+    }
+    return limit;
+  }
+
+  /**
+   * Creates random data containing start codes. Some zero bytes are doubled, so that the scanners
+   * also meet [0, 0] pairs which don't start one.
+   */
+  private static byte[] createData(Random random, int length, int startCodeCount) {
+    byte[] data = new byte[length];
+    random.nextBytes(data);
+    for (int i = 0; i < length - 1; i++) {
+      if (data[i] == 0 && random.nextBoolean()) {
+        data[i + 1] = 0;
+      }
+    }
+    for (int i = 0; i < startCodeCount && length >= 4; i++) {
+      int position = random.nextInt(length - 3);
+      data[position] = 0;
+      data[position + 1] = 0;
+      data[position + 2] = 1;
+    }
+    return data;
+  }
+
+}